@@ -67,7 +67,7 @@ class BackupClient extends Client<TheBackupInterface> implements TheBackupInterf
             public Response<Void> call( TheBackupInterface master, RequestContext context,
                     ChannelBuffer input, ChannelBuffer target )
             {
-                return master.fullBackup( new ToNetworkStoreWriter( target ) );
+                return master.fullBackup( new ToNetworkStoreWriter( target, true ) );
             }
         }, Protocol.VOID_SERIALIZER ),
         INCREMENTAL_BACKUP( new TargetCaller<TheBackupInterface, Void>()
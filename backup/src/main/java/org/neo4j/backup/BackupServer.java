@@ -23,6 +23,7 @@ import org.jboss.netty.channel.Channel;
 import org.neo4j.backup.BackupClient.BackupRequestType;
 import org.neo4j.com.Client;
 import org.neo4j.com.Protocol;
+import org.neo4j.com.RequestClass;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Server;
@@ -31,7 +32,9 @@ import org.neo4j.kernel.impl.util.StringLogger;
 
 class BackupServer extends Server<TheBackupInterface, Object>
 {
-    static final byte PROTOCOL_VERSION = 1;
+    /* Version 1 first version
+     * Version 2 since 1.8, full backups stream store files raw */
+    static final byte PROTOCOL_VERSION = 2;
     private final BackupRequestType[] contexts = BackupRequestType.values();
     static int DEFAULT_PORT = DEFAULT_BACKUP_PORT;
     static final int FRAME_LENGTH = Protocol.MEGA*4;
@@ -49,6 +52,12 @@ class BackupServer extends Server<TheBackupInterface, Object>
     {
     }
 
+    @Override
+    protected RequestClass getRequestClass( RequestType<TheBackupInterface> type )
+    {
+        return RequestClass.BULK;
+    }
+
     @Override
     protected RequestType<TheBackupInterface> getRequestContext( byte id )
     {
@@ -0,0 +1,96 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures a round trip of one transaction through a {@link BlockLogBuffer} and a
+ * {@link BlockLogReader}, with the small blocks of internal protocol version 3 and
+ * the large blocks of version 4 and later. The transaction is written as log entries,
+ * like a transaction extracted from the logical log is.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class BlockLogBufferBenchmark
+{
+    private static final int ENTRY_DATA_SIZE = 100;
+
+    @Param( { "false", "true" } )
+    public boolean largeBlocks;
+
+    @Param( { "200", "20000", "2000000" } )
+    public int transactionSize;
+
+    @Param( { "1024", "65536" } )
+    public int readSize;
+
+    private final byte[] entryData = new byte[ENTRY_DATA_SIZE];
+    private ChannelBuffer buffer;
+    private ByteBuffer readBuffer;
+
+    @Setup
+    public void setup()
+    {
+        buffer = ChannelBuffers.dynamicBuffer( transactionSize + transactionSize/10 );
+        readBuffer = ByteBuffer.allocate( readSize );
+    }
+
+    @Benchmark
+    public long roundTrip() throws IOException
+    {
+        buffer.clear();
+        BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer, largeBlocks );
+        int written = 0;
+        while ( written + 1 + 4 + 8 + ENTRY_DATA_SIZE <= transactionSize )
+        {
+            blockBuffer.put( (byte) 1 );
+            blockBuffer.putInt( written );
+            blockBuffer.putLong( written );
+            blockBuffer.put( entryData );
+            written += 1 + 4 + 8 + ENTRY_DATA_SIZE;
+        }
+        blockBuffer.done();
+
+        BlockLogReader reader = new BlockLogReader( buffer, largeBlocks );
+        long total = 0;
+        int read;
+        while ( (read = reader.read( readBuffer )) > 0 )
+        {
+            total += read;
+            readBuffer.clear();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures how fast a message is split up in chunks by a {@link ChunkingChannelBuffer}
+ * and put back together by a {@link DechunkingChannelBuffer}, written and read a little
+ * at a time like serializers and deserializers do. The chunks are written to an embedded
+ * channel which keeps them in memory, so no network is involved.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class ChunkingBenchmark
+{
+    private static final byte APPLICATION_PROTOCOL_VERSION = 1;
+    private static final int ACCESS_SIZE = 1024;
+
+    @Param( { "1000", "1000000", "50000000" } )
+    public int messageSize;
+
+    @Param( { "65536", "16777216" } )
+    public int frameLength;
+
+    private final Queue<ChannelBuffer> chunks = new LinkedList<ChannelBuffer>();
+    private final byte[] data = new byte[ACCESS_SIZE];
+    private Channel channel;
+    private ChannelBuffer buffer;
+
+    @Setup
+    public void setup()
+    {
+        channel = new EncoderEmbedder<ChannelBuffer>( new ChunkCollector( chunks ) ).getPipeline().getChannel();
+        buffer = ChannelBuffers.dynamicBuffer( BufferPool.MIN_SIZE );
+    }
+
+    @Benchmark
+    public long chunkAndDechunk()
+    {
+        buffer.clear();
+        ChunkingChannelBuffer chunking = new ChunkingChannelBuffer( buffer, channel, frameLength,
+                Server.INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+        for ( int written = 0; written < messageSize; written += ACCESS_SIZE )
+        {
+            chunking.writeBytes( data, 0, Math.min( ACCESS_SIZE, messageSize - written ) );
+        }
+        chunking.done();
+
+        DechunkingChannelBuffer dechunking = new DechunkingChannelBuffer( null, 0,
+                Server.INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION )
+        {
+            @Override
+            protected ChannelBuffer readNext()
+            {
+                return chunks.remove();
+            }
+        };
+        for ( int read = 0; read < messageSize; read += ACCESS_SIZE )
+        {
+            dechunking.readBytes( data, 0, Math.min( ACCESS_SIZE, messageSize - read ) );
+        }
+        return dechunking.getBytesRead();
+    }
+
+    /**
+     * Keeps copies of the chunks written to the channel and completes the writes right
+     * away, since the chunking buffer reuses its buffer when the previous chunk is written.
+     */
+    static class ChunkCollector extends SimpleChannelDownstreamHandler
+    {
+        private final Queue<ChannelBuffer> chunks;
+
+        ChunkCollector( Queue<ChannelBuffer> chunks )
+        {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public void writeRequested( ChannelHandlerContext ctx, MessageEvent e )
+        {
+            chunks.add( ChannelBuffers.copiedBuffer( (ChannelBuffer) e.getMessage() ) );
+            e.getFuture().setSuccess();
+        }
+    }
+}
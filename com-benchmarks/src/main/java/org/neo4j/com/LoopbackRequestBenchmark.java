@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.neo4j.kernel.impl.util.StringLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the latency of requests from a {@link Client} to a {@link Server} over the
+ * loopback interface, from one and up to many threads sharing the client. The request
+ * carries a payload of the given size which the server reads and answers with its size,
+ * so the whole path of a request is covered: acquiring a channel, chunking, the network,
+ * scheduling, dechunking, and the same way back for the response.
+ *
+ * Channels are either acquired per request, or shared by concurrent requests when
+ * multiplexing, see {@link RequestMultiplexer}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SampleTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class LoopbackRequestBenchmark
+{
+    private static final int SERVER_PORT = 8950;
+    private static final byte APPLICATION_PROTOCOL_VERSION = 1;
+    private static final StoreId STORE_ID = new StoreId( 1, 2, 3 );
+
+    @Param( { "16", "16384", "1048576" } )
+    public int payloadSize;
+
+    @Param( { "0", "4" } )
+    public int multiplexedChannels;
+
+    private EchoServer server;
+    private EchoClient client;
+
+    @Setup
+    public void setup()
+    {
+        server = new EchoServer();
+        client = new EchoClient( multiplexedChannels, new byte[payloadSize] );
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public int oneThread()
+    {
+        return client.echo();
+    }
+
+    @Benchmark
+    @Threads( 4 )
+    public int fourThreads()
+    {
+        return client.echo();
+    }
+
+    @Benchmark
+    @Threads( 16 )
+    public int sixteenThreads()
+    {
+        return client.echo();
+    }
+
+    public interface EchoTarget
+    {
+        Response<Integer> echo( ChannelBuffer payload );
+    }
+
+    static enum EchoRequestType implements RequestType<EchoTarget>
+    {
+        ECHO;
+
+        private final TargetCaller<EchoTarget, Integer> caller = new TargetCaller<EchoTarget, Integer>()
+        {
+            @Override
+            public Response<Integer> call( EchoTarget target, RequestContext context, ChannelBuffer input,
+                    ChannelBuffer output )
+            {
+                return target.echo( input );
+            }
+        };
+
+        @Override
+        public TargetCaller getTargetCaller()
+        {
+            return caller;
+        }
+
+        @Override
+        public ObjectSerializer getObjectSerializer()
+        {
+            return Protocol.INTEGER_SERIALIZER;
+        }
+
+        @Override
+        public byte id()
+        {
+            return (byte) ordinal();
+        }
+    }
+
+    static class EchoServer extends Server<EchoTarget, Integer>
+    {
+        EchoServer()
+        {
+            super( new EchoTarget()
+            {
+                @Override
+                public Response<Integer> echo( ChannelBuffer payload )
+                {
+                    int size = payload.readInt();
+                    byte[] readBuffer = new byte[Math.min( size, BufferPool.MIN_SIZE )];
+                    for ( int read = 0; read < size; read += readBuffer.length )
+                    {
+                        payload.readBytes( readBuffer, 0, Math.min( readBuffer.length, size - read ) );
+                    }
+                    return new Response<Integer>( size, STORE_ID, TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+                }
+            }, SERVER_PORT, StringLogger.DEV_NULL, Protocol.DEFAULT_FRAME_LENGTH, APPLICATION_PROTOCOL_VERSION,
+                    DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
+                    TxChecksumVerifier.ALWAYS_MATCH );
+        }
+
+        @Override
+        protected RequestType<EchoTarget> getRequestContext( byte id )
+        {
+            return EchoRequestType.values()[id];
+        }
+
+        @Override
+        protected void finishOffChannel( Channel channel, RequestContext context )
+        {
+        }
+    }
+
+    static class EchoClient extends Client<EchoTarget>
+    {
+        private final byte[] payload;
+
+        EchoClient( int multiplexedChannels, byte[] payload )
+        {
+            super( "localhost", SERVER_PORT, StringLogger.DEV_NULL, STORE_ID, Protocol.DEFAULT_FRAME_LENGTH,
+                    APPLICATION_PROTOCOL_VERSION, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
+                    Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
+                    Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT, ConnectionLostHandler.NO_ACTION,
+                    new Settings().multiplexedChannels( multiplexedChannels ) );
+            this.payload = payload;
+        }
+
+        int echo()
+        {
+            Response<Integer> response = sendRequest( EchoRequestType.ECHO, RequestContext.EMPTY, new Serializer()
+            {
+                @Override
+                public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+                {
+                    buffer.writeInt( payload.length );
+                    buffer.writeBytes( payload );
+                }
+            }, Protocol.INTEGER_DESERIALIZER );
+            try
+            {
+                return response.response();
+            }
+            finally
+            {
+                response.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures writing and reading back strings, like index names and keys in requests and
+ * data source names in request contexts, in the fixed two bytes per char form of
+ * {@link Protocol#writeString(ChannelBuffer, String)} and the UTF-8 form of
+ * {@link Protocol#writeUtf8String(ChannelBuffer, String)}.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class ProtocolStringBenchmark
+{
+    @Param( { "8", "64", "1024" } )
+    public int length;
+
+    private String string;
+    private ChannelBuffer buffer;
+
+    @Setup
+    public void setup()
+    {
+        char[] chars = new char[length];
+        Arrays.fill( chars, 'x' );
+        string = new String( chars );
+        buffer = ChannelBuffers.dynamicBuffer( 4 + length*2 );
+    }
+
+    @Benchmark
+    public String writeAndReadString()
+    {
+        buffer.clear();
+        Protocol.writeString( buffer, string );
+        return Protocol.readString( buffer );
+    }
+
+    @Benchmark
+    public String writeAndReadUtf8String()
+    {
+        buffer.clear();
+        Protocol.writeUtf8String( buffer, string );
+        return Protocol.readUtf8String( buffer );
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.neo4j.com.RequestContext.lastAppliedTx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.neo4j.com.RequestContext.Tx;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures writing a {@link RequestContext}, like a client does in front of every request,
+ * and reading it back like the server does, in the compact form of a {@link ConnectionSession}.
+ * The sessions have been through the handshake, so data source names are sent as indexes,
+ * which is what every request but the first few on a connection looks like.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+public class RequestContextBenchmark
+{
+    private static final String[] DATA_SOURCES = { "nioneodb", "lucene-index", "lucene" };
+
+    @Param( { "1", "3" } )
+    public int dataSources;
+
+    private final ConnectionSession client = new ConnectionSession();
+    private final ConnectionSession server = new ConnectionSession();
+    private final ChannelBuffer buffer = ChannelBuffers.dynamicBuffer( 256 );
+    private RequestContext context;
+
+    @Setup
+    public void setup()
+    {
+        Tx[] txs = new Tx[dataSources];
+        for ( int i = 0; i < txs.length; i++ )
+        {
+            txs[i] = lastAppliedTx( DATA_SOURCES[i], 1234567 + i );
+        }
+        context = new RequestContext( 1349870000000L, 2, 10, txs, 1, -98765 );
+
+        // The handshake, after which names aren't sent anymore
+        client.writeContext( context, buffer );
+        server.readContext( buffer );
+        client.responseReceived( context );
+    }
+
+    @Benchmark
+    public RequestContext writeAndReadContext()
+    {
+        buffer.clear();
+        client.writeContext( context, buffer );
+        return server.readContext( buffer );
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.neo4j.helpers.Triplet;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures encoding a {@link TransactionStream} into a response, like the master does
+ * with {@link Server#writeTransactionStreams}, and decoding it, like a slave does with
+ * {@link Client#readTransactionStreams}, reading each transaction a little at a time.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+public class TransactionStreamCodecBenchmark
+{
+    private static final String DATA_SOURCE = "nioneodb";
+    private static final int ENTRY_DATA_SIZE = 100;
+    private static final int READ_SIZE = 1024;
+
+    @Param( { "false", "true" } )
+    public boolean largeBlocks;
+
+    @Param( { "1", "100" } )
+    public int transactions;
+
+    @Param( { "200", "20000" } )
+    public int transactionSize;
+
+    private ChannelBuffer buffer;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate( READ_SIZE );
+    private final byte[] entryData = new byte[ENTRY_DATA_SIZE];
+    private TxExtractor extractor;
+
+    @Setup
+    public void setup()
+    {
+        buffer = ChannelBuffers.dynamicBuffer( transactions * (transactionSize + transactionSize/10 + 100) );
+        extractor = new TxExtractor()
+        {
+            @Override
+            public void extract( LogBuffer logBuffer )
+            {
+                try
+                {
+                    // Roughly what log entries with commands look like
+                    int written = 0;
+                    while ( written + 1 + 4 + 8 + ENTRY_DATA_SIZE <= transactionSize )
+                    {
+                        logBuffer.put( (byte) 1 );
+                        logBuffer.putInt( written );
+                        logBuffer.putLong( written );
+                        logBuffer.put( entryData );
+                        written += 1 + 4 + 8 + ENTRY_DATA_SIZE;
+                    }
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+
+            @Override
+            public ReadableByteChannel extract()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Benchmark
+    public long encodeAndDecode() throws IOException
+    {
+        buffer.clear();
+        Server.writeTransactionStreams( transactionStream(), buffer, largeBlocks );
+
+        TransactionStream stream = Client.readTransactionStreams( buffer, null, largeBlocks );
+        long total = 0;
+        while ( stream.hasNext() )
+        {
+            ReadableByteChannel data = stream.next().third().extract();
+            int read;
+            while ( (read = data.read( readBuffer )) > 0 )
+            {
+                total += read;
+                readBuffer.clear();
+            }
+            data.close();
+        }
+        return total;
+    }
+
+    private TransactionStream transactionStream()
+    {
+        return new TransactionStream( DATA_SOURCE )
+        {
+            private long txId;
+
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                return txId < transactions ? Triplet.of( DATA_SOURCE, ++txId, extractor ) : null;
+            }
+        };
+    }
+}
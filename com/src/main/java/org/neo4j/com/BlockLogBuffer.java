@@ -36,6 +36,12 @@ import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
  * be anything greater than one and up to 256. This is signaled via the first
  * byte which is 0 for every non-last chunk and the actual number of bytes for
  * the last one (always > 0).
+ * <p>
+ * With large blocks every block instead starts with an int header, where the
+ * highest bit is set if more blocks follow and the rest is the number of data
+ * bytes in the block. Blocks are up to {@link #LARGE_MAX_SIZE} bytes and the
+ * last one may be empty. Large byte arrays are written as blocks of their own,
+ * straight to the channel, instead of going through the internal buffer.
  */
 public class BlockLogBuffer implements LogBuffer
 {
@@ -44,14 +50,34 @@ public class BlockLogBuffer implements LogBuffer
     static final int MAX_SIZE = 256; /* soft limit, incl. header */
     static final int DATA_SIZE = MAX_SIZE-1;
 
+    // Large blocks, highest bit of the int header set if more blocks follow
+    static final int MORE_BLOCKS = 0x80000000;
+    static final int LARGE_HEADER_SIZE = 4;
+    // The data of a block is written to the channel in one go, i.e. into one chunk,
+    // so this must stay well below the frame length
+    static final int LARGE_MAX_SIZE = 8*1024; /* soft limit, incl. header */
+
     private final ChannelBuffer target;
-    // MAX_SIZE can be overcome by one primitive put(), the largest is 8 bytes
-    private final byte[] byteArray = new byte[MAX_SIZE + 8/*largest atom*/];
-    private final ByteBuffer byteBuffer = ByteBuffer.wrap( byteArray );
+    private final boolean largeBlocks;
+    private final int maxSize;
+    private final int headerSize;
+    // maxSize can be overcome by one primitive put(), the largest is 8 bytes
+    private final byte[] byteArray;
+    private final ByteBuffer byteBuffer;
 
     public BlockLogBuffer( ChannelBuffer target )
+    {
+        this( target, false );
+    }
+
+    public BlockLogBuffer( ChannelBuffer target, boolean largeBlocks )
     {
         this.target = target;
+        this.largeBlocks = largeBlocks;
+        this.maxSize = largeBlocks ? LARGE_MAX_SIZE : MAX_SIZE;
+        this.headerSize = largeBlocks ? LARGE_HEADER_SIZE : 1;
+        this.byteArray = new byte[maxSize + 8/*largest atom*/];
+        this.byteBuffer = ByteBuffer.wrap( byteArray );
         clearInternalBuffer();
     }
 
@@ -59,12 +85,19 @@ public class BlockLogBuffer implements LogBuffer
     {
         byteBuffer.clear();
         // reserve space for size - assume we are going to fill the buffer
-        byteBuffer.put( FULL_BLOCK_AND_MORE );
+        if ( largeBlocks )
+        {
+            byteBuffer.putInt( MORE_BLOCKS | (maxSize - headerSize) );
+        }
+        else
+        {
+            byteBuffer.put( FULL_BLOCK_AND_MORE );
+        }
     }
 
     /**
-     * If the position of the byteBuffer is larger than MAX_SIZE then
-     * MAX_SIZE bytes are flushed to the underlying channel. The remaining
+     * If the position of the byteBuffer is larger than maxSize then
+     * maxSize bytes are flushed to the underlying channel. The remaining
      * bytes (1 up to and including 8 - see the byteArray field initializer)
      * are moved over at the beginning of the cleared buffer.
      *
@@ -72,16 +105,31 @@ public class BlockLogBuffer implements LogBuffer
      */
     private LogBuffer checkFlush()
     {
-        if ( byteBuffer.position() > MAX_SIZE )
+        if ( byteBuffer.position() > maxSize )
         {
-            target.writeBytes( byteArray, 0, MAX_SIZE );
+            target.writeBytes( byteArray, 0, maxSize );
             int pos = byteBuffer.position();
             clearInternalBuffer();
-            byteBuffer.put( byteArray, MAX_SIZE, pos - MAX_SIZE );
+            byteBuffer.put( byteArray, maxSize, pos - maxSize );
         }
         return this;
     }
 
+    /**
+     * Writes what's currently in the internal buffer as a large block with more
+     * blocks to come, so that something else can be written as blocks of its own.
+     */
+    private void flushLargeBlock()
+    {
+        int dataSize = byteBuffer.position() - headerSize;
+        if ( dataSize > 0 )
+        {
+            byteBuffer.putInt( 0, MORE_BLOCKS | dataSize );
+            target.writeBytes( byteArray, 0, byteBuffer.position() );
+            clearInternalBuffer();
+        }
+    }
+
     public LogBuffer put( byte b ) throws IOException
     {
         byteBuffer.put( b );
@@ -120,6 +168,22 @@ public class BlockLogBuffer implements LogBuffer
 
     public LogBuffer put( byte[] bytes ) throws IOException
     {
+        if ( largeBlocks && bytes.length > byteBuffer.remaining() )
+        {
+            // Each block is written with a single writeBytes so that it never gets
+            // split between two chunks, see BlockLogReader
+            flushLargeBlock();
+            int dataSize = maxSize - headerSize;
+            int pos = 0;
+            for ( ; bytes.length - pos >= dataSize; pos += dataSize )
+            {
+                target.writeInt( MORE_BLOCKS | dataSize );
+                target.writeBytes( bytes, pos, dataSize );
+            }
+            byteBuffer.put( bytes, pos, bytes.length - pos );
+            return this;
+        }
+
         for ( int pos = 0; pos < bytes.length; )
         {
             int toWrite = Math.min( byteBuffer.remaining(), bytes.length - pos );
@@ -170,13 +234,21 @@ public class BlockLogBuffer implements LogBuffer
     /**
      * Signals the end of use for this buffer over this channel - first byte of
      * the chunk is set to the position of the buffer ( != 0, instead of
-     * FULL_BLOCK_AND_MORE) and it is written to the channel.
+     * FULL_BLOCK_AND_MORE) and it is written to the channel. With large blocks
+     * the header is set to the data size without the more blocks bit.
      */
     public void done()
     {
-        assert byteBuffer.position() > 1 : "buffer should contain more than the header";
-        assert byteBuffer.position() <= MAX_SIZE : "buffer should not be over full";
-        byteBuffer.put( 0, (byte) ( byteBuffer.position() - 1 ) );
+        assert largeBlocks || byteBuffer.position() > 1 : "buffer should contain more than the header";
+        assert byteBuffer.position() <= maxSize : "buffer should not be over full";
+        if ( largeBlocks )
+        {
+            byteBuffer.putInt( 0, byteBuffer.position() - headerSize );
+        }
+        else
+        {
+            byteBuffer.put( 0, (byte) ( byteBuffer.position() - 1 ) );
+        }
         byteBuffer.flip();
         target.writeBytes( byteBuffer );
         clearInternalBuffer();
@@ -33,18 +33,58 @@ import org.jboss.netty.buffer.ChannelBuffer;
  * coming.</li> <li>If the first byte is not 0, then its value cast as an
  * integer is the total size of the chunk AND there are no more - the stream is
  * complete</li>
- *
+ * <p>
+ * With large blocks, see {@link BlockLogBuffer}, the data of each block is
+ * instead read in bulk straight into the destination buffer.
  */
 public class BlockLogReader implements ReadableByteChannel
 {
     private final ChannelBuffer source;
-    private final byte[] byteArray = new byte[BlockLogBuffer.MAX_SIZE];
-    private final ByteBuffer byteBuffer = ByteBuffer.wrap( byteArray );
+    private final boolean largeBlocks;
+    private final byte[] byteArray;
+    private final ByteBuffer byteBuffer;
     private boolean moreBlocks;
+    // Data left to read in the current block, with large blocks
+    private int blockRemaining;
 
     public BlockLogReader( ChannelBuffer source )
+    {
+        this( source, false );
+    }
+
+    public BlockLogReader( ChannelBuffer source, boolean largeBlocks )
+    {
+        this( source, largeBlocks, true );
+    }
+
+    /**
+     * @param started whether or not the first block of log follows right away
+     * in {@code source}, otherwise it's awaited by {@link #nextTransaction()}.
+     */
+    BlockLogReader( ChannelBuffer source, boolean largeBlocks, boolean started )
     {
         this.source = source;
+        this.largeBlocks = largeBlocks;
+        this.byteArray = largeBlocks ? null : new byte[BlockLogBuffer.MAX_SIZE];
+        this.byteBuffer = largeBlocks ? null : ByteBuffer.wrap( byteArray );
+        if ( started )
+        {
+            readNextBlock();
+        }
+        else if ( !largeBlocks )
+        {
+            byteBuffer.limit( 0 );
+        }
+    }
+
+    /**
+     * Makes this reader read the log of another transaction, the blocks of which
+     * follow in the source. Whatever was left of the previous one must have been
+     * skipped, see {@link #close()}. Lets a whole stream of transactions be read
+     * with the same reader and its block buffer.
+     */
+    void nextTransaction()
+    {
         readNextBlock();
     }
 
@@ -55,6 +95,14 @@ public class BlockLogReader implements ReadableByteChannel
      */
     private void readNextBlock()
     {
+        if ( largeBlocks )
+        {
+            int header = source.readInt();
+            moreBlocks = (header & BlockLogBuffer.MORE_BLOCKS) != 0;
+            blockRemaining = header & ~BlockLogBuffer.MORE_BLOCKS;
+            return;
+        }
+
         int blockSize = source.readUnsignedByte();
         byteBuffer.clear();
         moreBlocks = blockSize == BlockLogBuffer.FULL_BLOCK_AND_MORE;
@@ -78,6 +126,11 @@ public class BlockLogReader implements ReadableByteChannel
 
     public int read( ByteBuffer dst ) throws IOException
     {
+        if ( largeBlocks )
+        {
+            return readLargeBlocks( dst );
+        }
+
         /*
          * Fill up dst with what comes from the channel, until dst is full.
          * readAsMuchAsPossible() is constantly called reading essentially
@@ -99,6 +152,40 @@ public class BlockLogReader implements ReadableByteChannel
         return bytesRead == 0 && !moreBlocks ? -1 : bytesRead;
     }
 
+    private int readLargeBlocks( ByteBuffer dst )
+    {
+        int bytesRead = 0;
+        while ( dst.hasRemaining() )
+        {
+            if ( blockRemaining == 0 )
+            {
+                if ( !moreBlocks )
+                {
+                    break;
+                }
+                readNextBlock();
+                continue;
+            }
+
+            // Only as much as the source has at hand, since a dechunking source
+            // won't read more than one chunk ahead to satisfy a read.
+            source.readable();
+            int bytesToRead = Math.min( Math.min( dst.remaining(), blockRemaining ), source.readableBytes() );
+            if ( bytesToRead == 0 )
+            {
+                throw new IllegalStateException( "Block log ended prematurely, " + blockRemaining +
+                        " bytes missing from the current block" );
+            }
+            ByteBuffer slice = dst.slice();
+            slice.limit( bytesToRead );
+            source.readBytes( slice );
+            dst.position( dst.position() + bytesToRead );
+            blockRemaining -= bytesToRead;
+            bytesRead += bytesToRead;
+        }
+        return bytesRead == 0 && !moreBlocks && blockRemaining == 0 ? -1 : bytesRead;
+    }
+
     /**
      * Reads in at most {@code maxBytesWanted} in {@code dst} but never more
      * than a chunk.
@@ -126,9 +213,38 @@ public class BlockLogReader implements ReadableByteChannel
      */
     private void readToTheEnd()
     {
+        if ( largeBlocks )
+        {
+            skipBlockData( source, blockRemaining );
+            blockRemaining = 0;
+        }
         while ( moreBlocks )
         {
             readNextBlock();
+            if ( largeBlocks )
+            {
+                skipBlockData( source, blockRemaining );
+                blockRemaining = 0;
+            }
+        }
+    }
+
+    /**
+     * Skips {@code length} bytes of data, possibly spanning more than one chunk if
+     * {@code source} is a {@link DechunkingChannelBuffer}.
+     */
+    static void skipBlockData( ChannelBuffer source, int length )
+    {
+        while ( length > 0 )
+        {
+            source.readable();
+            int bytesToSkip = Math.min( length, source.readableBytes() );
+            if ( bytesToSkip == 0 )
+            {
+                bytesToSkip = length; // let the source fail
+            }
+            source.skipBytes( bytesToSkip );
+            length -= bytesToSkip;
         }
     }
 }
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * A bounded pool of buffers, so that chunks, request buffers and temporary
+ * buffers for streaming store files can be reused instead of allocated
+ * for every request. Buffers are pooled in size classes, powers of two from
+ * {@link #MIN_SIZE} up to {@link #MAX_SIZE}, and acquiring a buffer gives one
+ * of (at least) the requested size. Released buffers are kept for reuse as long
+ * as the total size of the pooled buffers stays within a limit, otherwise they're
+ * left to the garbage collector.
+ * <p>
+ * The pool is only a cache, so a buffer that never gets released isn't a leak,
+ * only a lost opportunity for reuse. A buffer mustn't be touched after it
+ * has been released though.
+ */
+public class BufferPool
+{
+    public static final int MIN_SIZE = 4*1024;
+    public static final int MAX_SIZE = Protocol.DEFAULT_FRAME_LENGTH;
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64*Protocol.MEGA;
+
+    /**
+     * The pool shared by clients and servers of the com module.
+     */
+    public static final BufferPool DEFAULT = new BufferPool( DEFAULT_MAX_POOLED_BYTES );
+
+    private static class SizeClass
+    {
+        private final int size;
+        private final Queue<ChannelBuffer> heap = new ConcurrentLinkedQueue<ChannelBuffer>();
+        private final Queue<ByteBuffer> direct = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        SizeClass( int size )
+        {
+            this.size = size;
+        }
+    }
+
+    private final SizeClass[] sizeClasses;
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    public BufferPool( long maxPooledBytes )
+    {
+        this.maxPooledBytes = maxPooledBytes;
+        this.sizeClasses = new SizeClass[sizeClassOf( MAX_SIZE )+1];
+        for ( int i = 0; i < sizeClasses.length; i++ )
+        {
+            sizeClasses[i] = new SizeClass( MIN_SIZE << i );
+        }
+    }
+
+    /**
+     * @return a cleared, dynamic heap buffer with a capacity of at least {@code size} bytes.
+     * It's allowed to grow beyond that capacity.
+     */
+    public ChannelBuffer acquire( int size )
+    {
+        acquired.incrementAndGet();
+        if ( size > MAX_SIZE ) return ChannelBuffers.dynamicBuffer( size );
+        SizeClass sizeClass = sizeClasses[sizeClassOf( size )];
+        ChannelBuffer buffer = sizeClass.heap.poll();
+        if ( buffer == null ) return ChannelBuffers.dynamicBuffer( sizeClass.size );
+        reusedBuffer( buffer.capacity() );
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return a cleared direct buffer with a capacity of at least {@code size} bytes.
+     */
+    public ByteBuffer acquireDirect( int size )
+    {
+        acquired.incrementAndGet();
+        if ( size > MAX_SIZE ) return ByteBuffer.allocateDirect( size );
+        SizeClass sizeClass = sizeClasses[sizeClassOf( size )];
+        ByteBuffer buffer = sizeClass.direct.poll();
+        if ( buffer == null ) return ByteBuffer.allocateDirect( sizeClass.size );
+        reusedBuffer( buffer.capacity() );
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back to the pool. A dynamic buffer that has grown is
+     * pooled in the largest size class that it can hold.
+     */
+    public void release( ChannelBuffer buffer )
+    {
+        released.incrementAndGet();
+        int capacity = buffer.capacity();
+        if ( capacity < MIN_SIZE || capacity > MAX_SIZE || !reserve( capacity ) )
+        {
+            discarded.incrementAndGet();
+            return;
+        }
+        sizeClasses[sizeClassFor( capacity )].heap.offer( buffer );
+    }
+
+    public void release( ByteBuffer buffer )
+    {
+        released.incrementAndGet();
+        int capacity = buffer.capacity();
+        if ( !buffer.isDirect() || capacity < MIN_SIZE || capacity > MAX_SIZE || !reserve( capacity ) )
+        {
+            discarded.incrementAndGet();
+            return;
+        }
+        sizeClasses[sizeClassFor( capacity )].direct.offer( buffer );
+    }
+
+    private void reusedBuffer( int capacity )
+    {
+        reused.incrementAndGet();
+        pooledBytes.addAndGet( -capacity );
+    }
+
+    private boolean reserve( int capacity )
+    {
+        while ( true )
+        {
+            long current = pooledBytes.get();
+            if ( current + capacity > maxPooledBytes ) return false;
+            if ( pooledBytes.compareAndSet( current, current + capacity ) ) return true;
+        }
+    }
+
+    /**
+     * @return the smallest size class which holds {@code size} bytes.
+     */
+    private static int sizeClassOf( int size )
+    {
+        int sizeClass = 0;
+        while ( (MIN_SIZE << sizeClass) < size ) sizeClass++;
+        return sizeClass;
+    }
+
+    /**
+     * @return the largest size class which a buffer with the given capacity can serve.
+     */
+    private static int sizeClassFor( int capacity )
+    {
+        int sizeClass = 0;
+        while ( (MIN_SIZE << (sizeClass+1)) <= capacity ) sizeClass++;
+        return sizeClass;
+    }
+
+    public long getMaxPooledBytes()
+    {
+        return maxPooledBytes;
+    }
+
+    public long getPooledBytes()
+    {
+        return pooledBytes.get();
+    }
+
+    public long getAcquired()
+    {
+        return acquired.get();
+    }
+
+    public long getReused()
+    {
+        return reused.get();
+    }
+
+    public long getReleased()
+    {
+        return released.get();
+    }
+
+    public long getDiscarded()
+    {
+        return discarded.get();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * The part of a {@link MemoryBudget} used by one channel, pausing reading from
+ * the channel while it or the total is over budget.
+ */
+class ChannelBudget
+{
+    private final Channel channel;
+    private final MemoryBudget total;
+    private long bytes; // Guarded by this
+    private boolean paused; // Guarded by this
+    private boolean closed; // Guarded by this
+
+    ChannelBudget( Channel channel, MemoryBudget total )
+    {
+        this.channel = channel;
+        this.total = total;
+    }
+
+    void allocate( int size )
+    {
+        synchronized ( this )
+        {
+            bytes += size;
+            if ( closed ) return;
+            boolean totalOverBudget = total.allocate( size );
+            if ( bytes > total.getMaxBytesPerChannel() || totalOverBudget )
+            {
+                if ( !paused )
+                {
+                    paused = true;
+                    total.paused();
+                    channel.setReadable( false );
+                }
+                if ( totalOverBudget ) total.waitForTotal( this );
+            }
+        }
+    }
+
+    void free( int size )
+    {
+        synchronized ( this )
+        {
+            bytes -= size;
+            if ( closed ) return;
+        }
+        // Outside of the monitor since freeing may resume other channels
+        total.free( size );
+        resumeIfWithinBudget();
+    }
+
+    /**
+     * Gives back what this channel holds to the total, since what's in flight
+     * on a closed channel is going nowhere and mightn't be freed.
+     */
+    void close()
+    {
+        long held;
+        synchronized ( this )
+        {
+            if ( closed ) return;
+            closed = true;
+            held = bytes;
+            if ( paused ) total.resumed( this );
+        }
+        total.free( held );
+    }
+
+    synchronized void resumeIfWithinBudget()
+    {
+        if ( !paused || closed || bytes > total.getMaxBytesPerChannel()/2 ) return;
+        if ( total.isOverHalf() )
+        {
+            total.waitForTotal( this );
+            // Checked again in case it came down before this channel was waiting for it
+            if ( total.isOverHalf() ) return;
+        }
+        paused = false;
+        total.resumed( this );
+        channel.setReadable( true );
+    }
+
+    synchronized long getBytes()
+    {
+        return bytes;
+    }
+}
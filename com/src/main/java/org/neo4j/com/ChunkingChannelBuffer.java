@@ -27,12 +27,10 @@ import java.nio.ByteOrder;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.nio.charset.Charset;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBufferFactory;
 import org.jboss.netty.buffer.ChannelBufferIndexFinder;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -46,40 +44,81 @@ import org.jboss.netty.channel.ChannelFutureListener;
  * when that capacity is reached. When content addition would make the size of
  * the buffer exceed its capacity, a 2-byte continuation header is added in the
  * stream that contains flow information and protocol versions and it is
- * streamed over the channel. It is expected that a
+ * streamed over the channel. Unless talking the legacy internal protocol the
+ * header is followed by the id of the request the chunk belongs to, so that
+ * chunks of concurrent requests can be interleaved on the same channel. It is
+ * expected that a
  * {@link DechunkingChannelBuffer} sits on the other end waiting to deserialize
  * this stream. A final serialization round happens when <code>done()</code> is
  * called, if content has been added.
  * <p>
- * Each chunk written is marked as pending and no more than
- * MAX_WRITE_AHEAD_CHUNKS are left pending - in such a case the write process
- * sleeps until some acknowledgment comes back from the other side that chunks
- * have been read.
+ * Each chunk written is marked as pending until it has been written out to
+ * the socket. No more than a write-ahead window of bytes are left pending - in
+ * such a case the write process waits until enough of them have been written
+ * out, notified as soon as that happens. One chunk is always let through,
+ * even if it alone is larger than the window.
+ * <p>
+ * Buffers for the chunks following the first one are acquired from a
+ * {@link BufferPool} and handed back to it as soon as they've been written out.
+ * The buffer given at construction is handed back too, if it's marked as pooled.
  */
-public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListener
+public class ChunkingChannelBuffer implements ChannelBuffer
 {
     static final byte CONTINUATION_LAST = 0;
     static final byte CONTINUATION_MORE = 1;
     static final byte OUTCOME_SUCCESS = 0;
     static final byte OUTCOME_FAILURE = 1;
-    private static final int MAX_WRITE_AHEAD_CHUNKS = 5;
+    public static final int DEFAULT_MAX_WRITE_AHEAD_BYTES = 4*Protocol.MEGA;
+    // Safety net for when the channel gets closed without the pending writes failing
+    private static final int CHANNEL_CHECK_INTERVAL_MILLIS = 1000;
+    // Buffers for following chunks start out this big and grow up to the capacity if needed,
+    // so that a small last chunk doesn't tie up a buffer of the full frame length
+    static final int INITIAL_CHUNK_BUFFER_SIZE = 64*1024;
 
     private ChannelBuffer buffer;
+    private boolean pooledBuffer;
+    private final BufferPool pool;
     private final Channel channel;
     private final int capacity;
     private int continuationPosition;
-    private final AtomicInteger writeAheadCounter = new AtomicInteger();
+    private final int maxWriteAheadBytes;
+    private long writeAheadBytes; // Guarded by this
+    private long bytesWritten;
     private volatile boolean failure;
     private final byte applicationProtocolVersion;
     private final byte internalProtocolVersion;
+    private final int requestId;
+    private final ChannelBudget budget;
 
     public ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion, byte applicationProtocolVersion )
     {
+        this( buffer, channel, capacity, internalProtocolVersion, applicationProtocolVersion, 0,
+                DEFAULT_MAX_WRITE_AHEAD_BYTES, BufferPool.DEFAULT, false, null );
+    }
+
+    /**
+     * @param requestId the request the chunks belong to, if the internal protocol has request ids.
+     * @param maxWriteAheadBytes how many bytes of chunks that may be written, but not yet
+     * written out, before writing waits for the channel to catch up.
+     * @param pool where buffers for subsequent chunks come from.
+     * @param pooledBuffer whether or not {@code buffer} was acquired from {@code pool}
+     * and should be released back to it when written.
+     * @param budget what chunks written, but not yet written out, count towards, or {@code null}.
+     */
+    ChunkingChannelBuffer( ChannelBuffer buffer, Channel channel, int capacity, byte internalProtocolVersion,
+            byte applicationProtocolVersion, int requestId, int maxWriteAheadBytes, BufferPool pool,
+            boolean pooledBuffer, ChannelBudget budget )
+    {
+        this.budget = budget;
         this.buffer = buffer;
+        this.pool = pool;
+        this.pooledBuffer = pooledBuffer;
+        this.maxWriteAheadBytes = maxWriteAheadBytes;
         this.channel = channel;
         this.capacity = capacity;
         this.internalProtocolVersion = internalProtocolVersion;
         this.applicationProtocolVersion = applicationProtocolVersion;
+        this.requestId = requestId;
         addRoomForContinuationHeader();
     }
 
@@ -89,6 +128,8 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         // byte 0: [pppp,ppoc] p: internal protocol version, o: outcome, c: continuation
         // byte 1: [aaaa,aaaa] a: application protocol version
         buffer.writeBytes( header( CONTINUATION_LAST ) );
+        // bytes 2-5: request id, unless legacy protocol
+        if ( Protocol.hasRequestIds( internalProtocolVersion ) ) buffer.writeInt( requestId );
     }
 
     private byte[] header( byte continuation )
@@ -532,39 +573,56 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         {
             setContinuation( CONTINUATION_MORE );
             writeCurrentChunk();
-            // TODO Reuse buffers?
-            buffer = ChannelBuffers.dynamicBuffer();
+            buffer = pool.acquire( Math.min( capacity, INITIAL_CHUNK_BUFFER_SIZE ) );
+            pooledBuffer = true;
             addRoomForContinuationHeader();
         }
     }
 
-    private void writeCurrentChunk()
+    private ChannelFuture writeCurrentChunk()
     {
         if ( !channel.isOpen() || !channel.isConnected() || !channel.isBound() )
             throw new ComException( "Channel has been closed, so no need to try to write to it anymore. Client closed it?" );
 
-        waitForClientToCatchUpOnReadingChunks();
-        ChannelFuture future = channel.write( buffer );
-        future.addListener( this );
-        writeAheadCounter.incrementAndGet();
+        final int chunkSize = buffer.readableBytes();
+        waitForClientToCatchUpOnReadingChunks( chunkSize );
+        if ( budget != null ) budget.allocate( chunkSize );
+        final ChannelBuffer chunk = buffer;
+        final boolean releaseChunk = pooledBuffer;
+        bytesWritten += chunkSize;
+        ChannelFuture future = channel.write( chunk );
+        future.addListener( new ChannelFutureListener()
+        {
+            @Override
+            public void operationComplete( ChannelFuture future ) throws Exception
+            {
+                if ( !future.isSuccess() || future.isCancelled() )
+                {
+                    future.getChannel().close();
+                }
+                chunkWrittenOut( chunkSize );
+                if ( budget != null ) budget.free( chunkSize );
+                if ( releaseChunk ) pool.release( chunk );
+            }
+        } );
+        return future;
     }
 
-    private void waitForClientToCatchUpOnReadingChunks()
+    private synchronized void waitForClientToCatchUpOnReadingChunks( int chunkSize )
     {
-        // Wait until channel gets disconnected or client catches up.
-        // If channel has been disconnected we can exit and the next write
-        // will produce a decent exception out.
+        // Wait until channel gets disconnected or enough of the pending chunks
+        // have been written out. If channel has been disconnected we can exit
+        // and the next write will produce a decent exception out.
         boolean waited = false;
-        while ( channel.isConnected() && writeAheadCounter.get() >= MAX_WRITE_AHEAD_CHUNKS )
+        while ( channel.isConnected() && writeAheadBytes > 0 && writeAheadBytes + chunkSize > maxWriteAheadBytes )
         {
             waited = true;
             try
             {
-                Thread.sleep( 200 );
+                wait( CHANNEL_CHECK_INTERVAL_MILLIS );
             }
             catch ( InterruptedException e )
             {   // OK
-                Thread.interrupted();
             }
         }
 
@@ -572,29 +630,34 @@ public class ChunkingChannelBuffer implements ChannelBuffer, ChannelFutureListen
         {
             throw new ComException( "Channel has been closed" );
         }
+        writeAheadBytes += chunkSize;
     }
 
-    @Override
-    public void operationComplete( ChannelFuture future ) throws Exception
+    private synchronized void chunkWrittenOut( int chunkSize )
     {
-        if ( !future.isDone() )
-        {
-            throw new ComException( "This should not be possible because we waited for the future to be done" );
-        }
-
-        if ( !future.isSuccess() || future.isCancelled() )
-        {
-            future.getChannel().close();
-        }
-        writeAheadCounter.decrementAndGet();
+        writeAheadBytes -= chunkSize;
+        notifyAll();
     }
 
-    public void done()
+    /**
+     * @return the future of the write of the last chunk, or {@code null} if there
+     * was nothing to write.
+     */
+    public ChannelFuture done()
     {
         if ( readable() /* Meaning that something has been written to it and can be read/sent */ )
         {
-            writeCurrentChunk();
+            return writeCurrentChunk();
         }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes, headers included, of the chunks written so far.
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
     }
 
     public void writeByte( int value )
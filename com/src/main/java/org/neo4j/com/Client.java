@@ -23,16 +23,20 @@ import static org.neo4j.com.Protocol.addLengthFieldPipes;
 import static org.neo4j.com.Protocol.readString;
 import static org.neo4j.com.Protocol.writeString;
 
-import java.net.InetSocketAddress;
+import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -43,10 +47,19 @@ import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
 import org.jboss.netty.handler.queue.BlockingReadHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.neo4j.com.RequestContext.Tx;
+import org.neo4j.com.RequestMetrics.Phase;
 import org.neo4j.helpers.Exceptions;
+import org.neo4j.helpers.NamedThreadFactory;
 import org.neo4j.helpers.Triplet;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 import org.neo4j.kernel.impl.util.StringLogger;
@@ -64,8 +77,13 @@ public abstract class Client<T> implements ChannelPipelineFactory
     // with the server in some way.
     public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT = 20;
     public static final int DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS = 20;
+    // Unused channels are closed after this long, so that bursts of requests don't leave
+    // lots of idle connections to the server behind
+    public static final int DEFAULT_CHANNEL_IDLE_TIMEOUT_SECONDS = 60;
+    private static final String TIMEOUT_THREAD_NAME = "Client response timeouts";
 
     private final ClientBootstrap bootstrap;
+    private final Transport transport;
     private final SocketAddress address;
     private final StringLogger msgLog;
     private final ExecutorService executor;
@@ -74,8 +92,14 @@ public abstract class Client<T> implements ChannelPipelineFactory
     private final int readTimeout;
     private final byte applicationProtocolVersion;
     private final StoreId storeId;
-    private final ResourceReleaser resourcePoolReleaser;
     private final List<MismatchingVersionHandler> mismatchingVersionHandlers;
+    private final boolean shareChannels;
+    private final boolean compression;
+    private final long heartbeatTimeoutMillis;
+    private final Channel[] sharedChannels;
+    private final AtomicInteger nextSharedChannel = new AtomicInteger();
+    private final RequestMetrics metrics = new RequestMetrics();
+    private Timer responseTimeouts; // Guarded by sharedChannels, created on first async request or channel with heartbeats
 
     public Client( String hostNameOrIp, int port, StringLogger logger,
             StoreId storeId, int frameLength, byte applicationProtocolVersion, int readTimeout,
@@ -91,15 +115,29 @@ public abstract class Client<T> implements ChannelPipelineFactory
             byte applicationProtocolVersion, int readTimeout,
             int maxConcurrentChannels, int maxUnusedPoolSize,
             final ConnectionLostHandler connectionLostHandler )
+    {
+        this( hostNameOrIp, port, logger, storeId, frameLength,
+                applicationProtocolVersion, readTimeout, maxConcurrentChannels,
+                maxUnusedPoolSize, connectionLostHandler, new Settings() );
+    }
+
+    public Client( String hostNameOrIp, int port, StringLogger logger,
+            StoreId storeId, int frameLength,
+            byte applicationProtocolVersion, int readTimeout,
+            int maxConcurrentChannels, int maxUnusedPoolSize,
+            final ConnectionLostHandler connectionLostHandler, Settings settings )
     {
         this.msgLog = logger;
+        this.heartbeatTimeoutMillis = settings.heartbeatTimeoutMillis;
+        this.compression = settings.compression;
         this.storeId = storeId;
         this.frameLength = frameLength;
         this.applicationProtocolVersion = applicationProtocolVersion;
         this.readTimeout = readTimeout;
         this.mismatchingVersionHandlers = new ArrayList<MismatchingVersionHandler>( 2 );
         channelPool = new ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>>(
-                maxConcurrentChannels, maxUnusedPoolSize )
+                maxConcurrentChannels, maxUnusedPoolSize,
+                TimeUnit.SECONDS.toMillis( DEFAULT_CHANNEL_IDLE_TIMEOUT_SECONDS ) )
         {
             @Override
             protected Triplet<Channel, ChannelBuffer, ByteBuffer> create()
@@ -111,7 +149,7 @@ public abstract class Client<T> implements ChannelPipelineFactory
                 {
                     channel = Triplet.of( channelFuture.getChannel(),
                             ChannelBuffers.dynamicBuffer(),
-                            ByteBuffer.allocateDirect( 1024 * 1024 ) );
+                            BufferPool.DEFAULT.acquireDirect( Protocol.MEGA ) );
                     msgLog.logMessage( "Opened a new channel to " + address, true );
                     return channel;
                 }
@@ -144,28 +182,69 @@ public abstract class Client<T> implements ChannelPipelineFactory
             {
                 Channel channel = resource.first();
                 if ( channel.isConnected() ) channel.close();
+                BufferPool.DEFAULT.release( resource.third() );
             }
         };
 
-        address = new InetSocketAddress( hostNameOrIp, port );
+        transport = Transport.configured();
+        address = transport.clientAddress( hostNameOrIp, port );
         executor = Executors.newCachedThreadPool();
-        bootstrap = new ClientBootstrap( new NioClientSocketChannelFactory( executor, executor ) );
+        bootstrap = new ClientBootstrap( transport.newClientChannelFactory( executor ) );
         bootstrap.setPipelineFactory( this );
-        /*
-         * This is here to couple the channel releasing to Response.close() itself and not
-         * to TransactionStream.close() as it is implemented here. The reason is that a Response
-         * that is returned without a TransactionStream will still hold the channel and should
-         * release it eventually. Also, logically, closing the channel is not dependent on the
-         * TransactionStream.
+        shareChannels = settings.multiplexedChannels > 0;
+        sharedChannels = new Channel[Math.max( 1, settings.multiplexedChannels )];
+        msgLog.logMessage( getClass().getSimpleName() + " communication started and bound to " + hostNameOrIp + ":" + port, true );
+    }
+
+    /**
+     * Optional settings of a client, each one with a default, e.g.
+     * {@code new Client.Settings().multiplexedChannels( 4 ).compression( true )}.
+     */
+    public static class Settings
+    {
+        private int multiplexedChannels;
+        private boolean compression;
+        private long heartbeatTimeoutMillis;
+
+        /**
+         * @param multiplexedChannels if larger than zero requests aren't bound to a channel
+         * of their own, instead this number of channels are shared among all requests, with
+         * responses routed back by request id. Zero, the default, means one pooled channel per
+         * request in flight, which is also what clients talking the legacy internal protocol get.
+         * Asynchronous requests always share channels, see {@link Client#sendRequestAsync}.
          */
-        resourcePoolReleaser = new ResourceReleaser()
+        public Settings multiplexedChannels( int multiplexedChannels )
         {
-            public void release()
-            {
-                channelPool.release();
-            }
-        };
-        msgLog.logMessage( getClass().getSimpleName() + " communication started and bound to " + hostNameOrIp + ":" + port, true );
+            this.multiplexedChannels = multiplexedChannels;
+            return this;
+        }
+
+        /**
+         * @param compression whether or not to compress what's sent over the channels,
+         * which also makes the server compress its responses. Only has an effect if the
+         * internal protocol supports it, see {@link CompressionHandler}. Off by default.
+         */
+        public Settings compression( boolean compression )
+        {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * @param heartbeatTimeoutMillis channels are closed, failing the requests waiting on
+         * them, if nothing has been heard from the server for this long. Heartbeats are sent
+         * to keep idle channels alive. 0, the default, means no heartbeats, see {@link HeartbeatHandler}.
+         */
+        public Settings heartbeatTimeoutMillis( long heartbeatTimeoutMillis )
+        {
+            this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+            return this;
+        }
+
+        public long getHeartbeatTimeoutMillis()
+        {
+            return heartbeatTimeoutMillis;
+        }
     }
 
     /**
@@ -187,52 +266,43 @@ public abstract class Client<T> implements ChannelPipelineFactory
     {
         boolean success = true;
         Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext = null;
+        int requestId = RequestMultiplexer.newRequestId();
         try
         {
             // Send 'em over the wire
+            long startNanos = System.nanoTime();
             channelContext = getChannel( type );
-            Channel channel = channelContext.first();
-            channelContext.second().clear();
-            ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( channelContext.second(),
-                    channel, frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
-            chunkingBuffer.writeByte( type.id() );
-            writeContext( type, context, chunkingBuffer );
-            serializer.write( chunkingBuffer, channelContext.third() );
-            chunkingBuffer.done();
+            long acquiredNanos = System.nanoTime();
+            metrics.record( type, Phase.ACQUIRE, acquiredNanos - startNanos );
+            BlockingReadHandler<ChannelBuffer> reader = registerRequest( channelContext.first(), requestId );
+            long requestBytes = writeRequest( type, context, serializer, channelContext, requestId );
+            long sentNanos = System.nanoTime();
 
             // Read the response
-            @SuppressWarnings( "unchecked" )
-            BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
-                    channel.getPipeline().get( "blockingHandler" );
             DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( reader, getReadTimeout( type, readTimeout ),
                     getInternalProtocolVersion(), applicationProtocolVersion );
-
-            R response = deserializer.read( dechunkingBuffer, channelContext.third() );
-            StoreId storeId = readStoreId( dechunkingBuffer, channelContext.third() );
-            if ( shouldCheckStoreId( type ) )
-            {
-                // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
-                if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
-                else assertCorrectStoreId( storeId, this.storeId );
-            }
-            TransactionStream txStreams = readTransactionStreams(
-                    dechunkingBuffer, channelPool );
-            return new Response<R>( response, storeId, txStreams,
-                    resourcePoolReleaser );
+            Response<R> response = readResponse( type, context, deserializer, specificStoreId, dechunkingBuffer,
+                    channelContext.first(), channelContext.third(), requestReleaser( type, channelContext, requestId ) );
+            long receivedNanos = System.nanoTime();
+            metrics.record( type, Phase.SEND, sentNanos - acquiredNanos );
+            metrics.record( type, Phase.RESPONSE, receivedNanos - sentNanos );
+            metrics.record( type, Phase.TOTAL, receivedNanos - startNanos );
+            metrics.recordTraffic( type, requestBytes, dechunkingBuffer.getBytesRead() );
+            return response;
         }
         catch ( IllegalProtocolVersionException e )
         {
             success = false;
-            for ( MismatchingVersionHandler handler : mismatchingVersionHandlers )
-            {
-                handler.versionMismatched( e.getExpected(), e.getReceived() );
-            }
+            versionMismatched( e );
             throw e;
         }
         catch ( Throwable e )
         {
             success = false;
-            if ( channelContext != null )
+            // Other requests in flight on a shared channel would fail along with this one if it
+            // was closed, so it's only closed if its framing is broken. Otherwise releasing the
+            // request below is enough, whatever is left of its response is then dropped.
+            if ( channelContext != null && (!usesSharedChannels() || brokeFraming( e )) )
             {
                 closeChannel( channelContext );
             }
@@ -245,11 +315,293 @@ public abstract class Client<T> implements ChannelPipelineFactory
              */
             if ( !success )
             {
-                releaseChannel( type, channelContext );
+                releaseRequest( type, channelContext, requestId );
             }
         }
     }
 
+    private static boolean brokeFraming( Throwable e )
+    {
+        for ( Throwable cause = e; cause != null; cause = cause.getCause() )
+        {
+            if ( cause instanceof CorruptedFrameException || cause instanceof TooLongFrameException )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a request without waiting for the response. The response is decoded on the
+     * I/O thread when it has been fully received and then handed to the returned future.
+     * Responses from asynchronous requests are fully buffered, so don't use this for requests
+     * that stream big amounts of data, like copying a store. Asynchronous requests always
+     * go over the shared channels, or the one channel shared by all asynchronous requests
+     * if channels otherwise aren't shared. Talking the legacy internal protocol, which can't
+     * route responses, the request is instead done synchronously.
+     */
+    protected <R> ResponseFuture<R> sendRequestAsync( RequestType<T> type, RequestContext context,
+            Serializer serializer, Deserializer<R> deserializer )
+    {
+        if ( !isMultiplexing() )
+        {
+            try
+            {
+                return ResponseFuture.completed( sendRequest( type, context, serializer, deserializer ) );
+            }
+            catch ( RuntimeException e )
+            {
+                return ResponseFuture.failed( e );
+            }
+        }
+
+        int requestId = RequestMultiplexer.newRequestId();
+        Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext = null;
+        AsyncResponse<R> response = new AsyncResponse<R>( type, context, deserializer, requestId );
+        try
+        {
+            response.startNanos = System.nanoTime();
+            channelContext = getSharedChannel();
+            long acquiredNanos = System.nanoTime();
+            metrics.record( type, Phase.ACQUIRE, acquiredNanos - response.startNanos );
+            response.channel = channelContext.first();
+            response.temporaryBuffer = channelContext.third();
+            multiplexer( channelContext.first() ).register( requestId, response );
+            response.timeout = responseTimeouts().newTimeout( response, getReadTimeout( type, readTimeout ),
+                    TimeUnit.SECONDS );
+            response.requestBytes = writeRequest( type, context, serializer, channelContext, requestId );
+            response.sentNanos = System.nanoTime();
+            metrics.record( type, Phase.SEND, response.sentNanos - acquiredNanos );
+        }
+        catch ( Throwable e )
+        {
+            response.failed( e );
+        }
+        return response.future;
+    }
+
+    private Timer responseTimeouts()
+    {
+        synchronized ( sharedChannels )
+        {
+            if ( responseTimeouts == null )
+            {
+                responseTimeouts = new HashedWheelTimer( new NamedThreadFactory( TIMEOUT_THREAD_NAME ) );
+            }
+            return responseTimeouts;
+        }
+    }
+
+    /**
+     * Collects the chunks of a response to an asynchronous request, on the I/O thread,
+     * and decodes it when the last chunk has arrived. Also fails the request if it times out.
+     */
+    private class AsyncResponse<R> implements RequestMultiplexer.Receiver, TimerTask
+    {
+        private final RequestType<T> type;
+        private final RequestContext context;
+        private final Deserializer<R> deserializer;
+        private final int requestId;
+        private final Queue<ChannelBuffer> chunks = new LinkedList<ChannelBuffer>(); // Guarded by this
+        private final ResponseFuture<R> future = new ResponseFuture<R>();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Channel channel;
+        private volatile ByteBuffer temporaryBuffer;
+        private volatile Timeout timeout;
+        private volatile long startNanos, sentNanos, requestBytes;
+
+        AsyncResponse( RequestType<T> type, RequestContext context, Deserializer<R> deserializer, int requestId )
+        {
+            this.type = type;
+            this.context = context;
+            this.deserializer = deserializer;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public void receive( ChannelEvent event )
+        {
+            if ( event instanceof MessageEvent )
+            {
+                ChannelBuffer chunk = (ChannelBuffer) ((MessageEvent) event).getMessage();
+                boolean last;
+                synchronized ( this )
+                {
+                    chunks.add( chunk );
+                    last = (chunk.getByte( chunk.readerIndex() ) & ChunkingChannelBuffer.CONTINUATION_MORE) == 0;
+                }
+                if ( last ) decode();
+            }
+            else if ( event instanceof ExceptionEvent )
+            {
+                failed( ((ExceptionEvent) event).getCause() );
+            }
+            else
+            {
+                failed( new ComException( "Channel has been closed" ) );
+            }
+        }
+
+        @Override
+        public void run( Timeout timeout )
+        {
+            failed( new ComException( "Timed out waiting for response to " + type ) );
+        }
+
+        private void decode()
+        {
+            if ( !done() )
+            {
+                return;
+            }
+            try
+            {
+                // All chunks are here already, so reading them won't block
+                DechunkingChannelBuffer dechunkingBuffer = new DechunkingChannelBuffer( null, 0,
+                        getInternalProtocolVersion(), applicationProtocolVersion )
+                {
+                    @Override
+                    protected ChannelBuffer readNext()
+                    {
+                        synchronized ( AsyncResponse.this )
+                        {
+                            ChannelBuffer chunk = chunks.poll();
+                            if ( chunk == null ) throw new ComException( "Incomplete response to " + type );
+                            return chunk;
+                        }
+                    }
+                };
+                Response<R> response = readResponse( type, context, deserializer, null, dechunkingBuffer, channel,
+                        temporaryBuffer, ResourceReleaser.NO_OP );
+                long receivedNanos = System.nanoTime();
+                metrics.record( type, Phase.RESPONSE, receivedNanos - sentNanos );
+                metrics.record( type, Phase.TOTAL, receivedNanos - startNanos );
+                metrics.recordTraffic( type, requestBytes, dechunkingBuffer.getBytesRead() );
+                future.complete( response );
+            }
+            catch ( IllegalProtocolVersionException e )
+            {
+                versionMismatched( e );
+                future.fail( e );
+            }
+            catch ( Throwable e )
+            {
+                future.fail( e );
+            }
+            finally
+            {
+                BufferPool.DEFAULT.release( temporaryBuffer );
+            }
+        }
+
+        void failed( Throwable cause )
+        {
+            if ( done() )
+            {
+                if ( temporaryBuffer != null ) BufferPool.DEFAULT.release( temporaryBuffer );
+                future.fail( Exceptions.launderedException( ComException.class, cause ) );
+            }
+        }
+
+        /**
+         * @return whether or not this was the first call, i.e. whether it's up to the caller
+         * to complete the request, since it can fail or time out while being decoded.
+         */
+        private boolean done()
+        {
+            if ( !done.compareAndSet( false, true ) )
+            {
+                return false;
+            }
+            if ( channel != null ) multiplexer( channel ).unregister( requestId );
+            if ( timeout != null ) timeout.cancel();
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    private long writeRequest( RequestType<T> type, RequestContext context, Serializer serializer,
+            Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext, int requestId ) throws IOException
+    {
+        channelContext.second().clear();
+        ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( channelContext.second(),
+                channelContext.first(), frameLength, getInternalProtocolVersion(), applicationProtocolVersion, requestId,
+                ChunkingChannelBuffer.DEFAULT_MAX_WRITE_AHEAD_BYTES, BufferPool.DEFAULT, false, null );
+        chunkingBuffer.writeByte( type.id() );
+        if ( Protocol.hasDeadlines( getInternalProtocolVersion() ) )
+        {
+            // How long we'll wait for the response, so that the server can give up when we do
+            chunkingBuffer.writeInt( (int) Math.min( Integer.MAX_VALUE,
+                    TimeUnit.SECONDS.toMillis( getReadTimeout( type, readTimeout ) ) ) );
+        }
+        if ( Protocol.hasCompactContexts( getInternalProtocolVersion() ) )
+        {
+            ConnectionSession.of( channelContext.first() ).writeContext( context, chunkingBuffer );
+        }
+        else
+        {
+            writeContext( type, context, chunkingBuffer );
+        }
+        serializer.write( chunkingBuffer, channelContext.third() );
+        chunkingBuffer.done();
+        return chunkingBuffer.getBytesWritten();
+    }
+
+    private <R> Response<R> readResponse( RequestType<T> type, RequestContext context, Deserializer<R> deserializer,
+            StoreId specificStoreId, DechunkingChannelBuffer dechunkingBuffer, Channel channel,
+            ByteBuffer temporaryBuffer, ResourceReleaser releaser ) throws IOException
+    {
+        R response = deserializer.read( dechunkingBuffer, temporaryBuffer );
+        StoreId storeId;
+        if ( Protocol.hasCompactContexts( getInternalProtocolVersion() ) )
+        {
+            ConnectionSession session = ConnectionSession.of( channel );
+            session.responseReceived( context );
+            if ( session.readStoreIdFlag( dechunkingBuffer ) )
+            {
+                storeId = readStoreId( dechunkingBuffer, temporaryBuffer );
+                session.storeIdReceived( storeId );
+            }
+            else
+            {
+                storeId = session.getReceivedStoreId();
+            }
+        }
+        else
+        {
+            storeId = readStoreId( dechunkingBuffer, temporaryBuffer );
+        }
+        if ( shouldCheckStoreId( type ) )
+        {
+            // specificStoreId is there as a workaround for then the graphDb isn't initialized yet
+            if ( specificStoreId != null ) assertCorrectStoreId( storeId, specificStoreId );
+            else assertCorrectStoreId( storeId, this.storeId );
+        }
+        TransactionStream txStreams = readTransactionStreams(
+                dechunkingBuffer, channelPool, Protocol.hasLargeBlocks( getInternalProtocolVersion() ) );
+        return new Response<R>( response, storeId, txStreams, releaser );
+    }
+
+    private void versionMismatched( IllegalProtocolVersionException e )
+    {
+        for ( MismatchingVersionHandler handler : mismatchingVersionHandlers )
+        {
+            handler.versionMismatched( e.getExpected(), e.getReceived() );
+        }
+    }
+
+    /**
+     * @return timings and traffic of the requests sent by this client, asynchronous
+     * ones included.
+     */
+    public RequestMetrics getRequestMetrics()
+    {
+        return metrics;
+    }
+
     protected int getReadTimeout( RequestType<T> type, int readTimeout )
     {
         return readTimeout;
@@ -298,11 +650,79 @@ public abstract class Client<T> implements ChannelPipelineFactory
         targetBuffer.writeLong( context.getChecksum() );
     }
 
+    /*
+     * This is here to couple the channel releasing to Response.close() itself and not
+     * to TransactionStream.close() as it is implemented here. The reason is that a Response
+     * that is returned without a TransactionStream will still hold the channel and should
+     * release it eventually. Also, logically, closing the channel is not dependent on the
+     * TransactionStream.
+     */
+    private ResourceReleaser requestReleaser( final RequestType<T> type,
+            final Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext, final int requestId )
+    {
+        return new ResourceReleaser()
+        {
+            public void release()
+            {
+                releaseRequest( type, channelContext, requestId );
+            }
+        };
+    }
+
+    private BlockingReadHandler<ChannelBuffer> registerRequest( Channel channel, int requestId )
+    {
+        if ( !isMultiplexing() )
+        {
+            @SuppressWarnings( "unchecked" )
+            BlockingReadHandler<ChannelBuffer> reader = (BlockingReadHandler<ChannelBuffer>)
+                    channel.getPipeline().get( "blockingHandler" );
+            return reader;
+        }
+        return multiplexer( channel ).register( requestId );
+    }
+
+    private void releaseRequest( RequestType<T> type, Triplet<Channel, ChannelBuffer, ByteBuffer> channelContext,
+            int requestId )
+    {
+        if ( channelContext != null && isMultiplexing() )
+        {
+            multiplexer( channelContext.first() ).unregister( requestId );
+        }
+        if ( !usesSharedChannels() )
+        {
+            releaseChannel( type, channelContext );
+        }
+        else if ( channelContext != null )
+        {
+            BufferPool.DEFAULT.release( channelContext.third() );
+        }
+    }
+
+    private boolean usesSharedChannels()
+    {
+        return shareChannels && isMultiplexing();
+    }
+
+    private boolean isMultiplexing()
+    {
+        return Protocol.hasRequestIds( getInternalProtocolVersion() );
+    }
+
+    private static RequestMultiplexer multiplexer( Channel channel )
+    {
+        return (RequestMultiplexer) channel.getPipeline().get( "multiplexer" );
+    }
+
     private Triplet<Channel, ChannelBuffer, ByteBuffer> getChannel( RequestType<T> type ) throws Exception
     {
+        if ( usesSharedChannels() )
+        {
+            return getSharedChannel();
+        }
+
         // Calling acquire is dangerous since it may be a blocking call... and if this
         // thread holds a lock which others may want to be able to communicate with
-        // the server things go stiff.
+        // the server things go stiff. The wait shows up as Phase.ACQUIRE in the metrics.
         Triplet<Channel, ChannelBuffer, ByteBuffer> result = channelPool.acquire();
         if ( result == null )
         {
@@ -312,9 +732,44 @@ public abstract class Client<T> implements ChannelPipelineFactory
         return result;
     }
 
+    /**
+     * Picks one of the shared channels, round robin, and (re)connects it if needed.
+     * A request gets a write buffer and a pooled temporary buffer of its own, the latter
+     * to be released when done, but the channel is free for others to use.
+     */
+    private Triplet<Channel, ChannelBuffer, ByteBuffer> getSharedChannel()
+    {
+        int index = (nextSharedChannel.getAndIncrement() & Integer.MAX_VALUE) % sharedChannels.length;
+        Channel channel;
+        synchronized ( sharedChannels )
+        {
+            channel = sharedChannels[index];
+            if ( channel == null || !channel.isConnected() )
+            {
+                channel = connect();
+                sharedChannels[index] = channel;
+            }
+        }
+        return Triplet.of( channel, ChannelBuffers.dynamicBuffer(), BufferPool.DEFAULT.acquireDirect( Protocol.MEGA ) );
+    }
+
+    private Channel connect()
+    {
+        ChannelFuture channelFuture = bootstrap.connect( address );
+        channelFuture.awaitUninterruptibly( 5, TimeUnit.SECONDS );
+        if ( channelFuture.isSuccess() )
+        {
+            msgLog.logMessage( "Opened a new shared channel to " + address, true );
+            return channelFuture.getChannel();
+        }
+        String msg = "Client could not connect to " + address;
+        msgLog.logMessage( msg, true );
+        throw new ComException( msg );
+    }
+
     protected void releaseChannel( RequestType<T> type, Triplet<Channel, ChannelBuffer, ByteBuffer> channel )
     {
-        channelPool.release();
+        channelPool.release( channel );
     }
 
     protected void closeChannel( Triplet<Channel, ChannelBuffer, ByteBuffer> channel )
@@ -325,16 +780,41 @@ public abstract class Client<T> implements ChannelPipelineFactory
     public ChannelPipeline getPipeline() throws Exception
     {
         ChannelPipeline pipeline = Channels.pipeline();
+        transport.addTransportPipes( pipeline );
         addLengthFieldPipes( pipeline, frameLength );
-        BlockingReadHandler<ChannelBuffer> reader = new BlockingReadHandler<ChannelBuffer>(
-                new ArrayBlockingQueue<ChannelEvent>( 3, false ) );
-        pipeline.addLast( "blockingHandler", reader );
+        if ( heartbeatTimeoutMillis > 0 && Protocol.hasHeartbeats( getInternalProtocolVersion() ) )
+        {
+            HeartbeatHandler.addHeartbeatPipes( pipeline, responseTimeouts(), getInternalProtocolVersion(),
+                    heartbeatTimeoutMillis, true, msgLog );
+        }
+        if ( compression && Protocol.hasCompression( getInternalProtocolVersion() ) )
+        {
+            pipeline.addLast( "compression", new CompressionHandler( getInternalProtocolVersion(), true, msgLog ) );
+        }
+        if ( isMultiplexing() )
+        {
+            pipeline.addLast( "multiplexer", new RequestMultiplexer( getInternalProtocolVersion() ) );
+        }
+        else
+        {
+            BlockingReadHandler<ChannelBuffer> reader = new BlockingReadHandler<ChannelBuffer>(
+                    new ArrayBlockingQueue<ChannelEvent>( 3, false ) );
+            pipeline.addLast( "blockingHandler", reader );
+        }
         return pipeline;
     }
 
     public void shutdown()
     {
         channelPool.close( true );
+        synchronized ( sharedChannels )
+        {
+            for ( Channel channel : sharedChannels )
+            {
+                if ( channel != null && channel.isConnected() ) channel.close();
+            }
+            if ( responseTimeouts != null ) responseTimeouts.stop();
+        }
         executor.shutdownNow();
         mismatchingVersionHandlers.clear();
         msgLog.logMessage( toString() + " shutdown", true );
@@ -349,6 +829,14 @@ public abstract class Client<T> implements ChannelPipelineFactory
     protected static TransactionStream readTransactionStreams(
             final ChannelBuffer buffer,
             final ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> resourcePool )
+    {
+        return readTransactionStreams( buffer, resourcePool, false );
+    }
+
+    protected static TransactionStream readTransactionStreams(
+            final ChannelBuffer buffer,
+            final ResourcePool<Triplet<Channel, ChannelBuffer, ByteBuffer>> resourcePool,
+            final boolean largeBlocks )
     {
         final String[] datasources = readTransactionStreamHeader( buffer );
 
@@ -359,14 +847,27 @@ public abstract class Client<T> implements ChannelPipelineFactory
 
         return new TransactionStream()
         {
+            // One reader for the whole stream, moved on to one transaction after another
+            private final BlockLogReader reader = new BlockLogReader( buffer, largeBlocks, false );
+            private final TxExtractor extractor = TxExtractor.create( reader );
+
             @Override
             protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
             {
-                makeSureNextTransactionIsFullyFetched( buffer );
+                try
+                {
+                    // Skips what the previous transaction's consumer left unread, if anything
+                    reader.close();
+                }
+                catch ( IOException e )
+                {
+                    throw new ComException( e );
+                }
+                makeSureNextTransactionIsFullyFetched( buffer, largeBlocks );
                 String datasource = datasources[buffer.readUnsignedByte()];
                 if ( datasource == null ) return null;
                 long txId = buffer.readLong();
-                TxExtractor extractor = TxExtractor.create( new BlockLogReader( buffer ) );
+                reader.nextTransaction();
                 return Triplet.of( datasource, txId, extractor );
             }
 
@@ -390,7 +891,7 @@ public abstract class Client<T> implements ChannelPipelineFactory
         return datasources;
     }
 
-    private static void makeSureNextTransactionIsFullyFetched( ChannelBuffer buffer )
+    private static void makeSureNextTransactionIsFullyFetched( ChannelBuffer buffer, boolean largeBlocks )
     {
         buffer.markReaderIndex();
         try
@@ -398,12 +899,25 @@ public abstract class Client<T> implements ChannelPipelineFactory
             if ( buffer.readUnsignedByte() > 0 /* datasource id */ )
             {
                 buffer.skipBytes( 8 ); // tx id
-                int blockSize = 0;
-                while ( (blockSize = buffer.readUnsignedByte()) == 0 )
+                if ( largeBlocks )
+                {
+                    int header;
+                    do
+                    {
+                        header = buffer.readInt();
+                        BlockLogReader.skipBlockData( buffer, header & ~BlockLogBuffer.MORE_BLOCKS );
+                    }
+                    while ( (header & BlockLogBuffer.MORE_BLOCKS) != 0 );
+                }
+                else
                 {
-                    buffer.skipBytes( BlockLogBuffer.DATA_SIZE );
+                    int blockSize = 0;
+                    while ( (blockSize = buffer.readUnsignedByte()) == 0 )
+                    {
+                        buffer.skipBytes( BlockLogBuffer.DATA_SIZE );
+                    }
+                    buffer.skipBytes( blockSize );
                 }
-                buffer.skipBytes( blockSize );
             }
         }
         finally
@@ -0,0 +1,253 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.compression.ZlibDecoder;
+import org.jboss.netty.handler.codec.compression.ZlibEncoder;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * Compresses the chunks going out over a channel and decompresses the ones coming
+ * in. It sits right after the framing in the pipeline, so it sees whole chunks.
+ * Only the part after the continuation header and request id is compressed and
+ * such chunks are flagged with the otherwise unused highest bit of the header,
+ * see {@link #COMPRESSED}.
+ * <p>
+ * Compression is negotiated per connection: a client configured for it
+ * compresses all its chunks and the other side starts compressing its chunks
+ * on a channel as soon as it receives a compressed chunk on it. Chunks of other
+ * internal protocol versions than this one are passed through untouched, so a
+ * peer not knowing about compression never gets to see a compressed chunk.
+ * <p>
+ * Each direction of a connection is one deflate stream, flushed at the end of
+ * every chunk. That way everything sent over a connection so far serves as the
+ * dictionary for what comes next, for example the record headers and property
+ * keys repeated in transaction streams and store files.
+ */
+public class CompressionHandler extends SimpleChannelHandler
+{
+    static final int COMPRESSED = 0x80;
+    private static final int HEADER_SIZE = 2 + Protocol.REQUEST_ID_SIZE;
+    private static final int COMPRESSION_LEVEL = 1; // fastest
+
+    private final byte internalProtocolVersion;
+    private final StringLogger msgLog;
+    private volatile boolean compressing;
+    private Compressor compressor; // Guarded by this
+    private Decompressor decompressor; // Only used from the I/O thread
+    private final Stats sent = new Stats();
+    private final Stats received = new Stats();
+
+    /**
+     * @param compress whether or not to compress from the first chunk, instead
+     * of waiting for the other side to do so.
+     */
+    public CompressionHandler( byte internalProtocolVersion, boolean compress, StringLogger msgLog )
+    {
+        this.internalProtocolVersion = internalProtocolVersion;
+        this.compressing = compress;
+        this.msgLog = msgLog;
+    }
+
+    @Override
+    public void writeRequested( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+    {
+        ChannelBuffer chunk = (ChannelBuffer) e.getMessage();
+        if ( !compressing || !hasExpectedVersion( chunk ) )
+        {
+            ctx.sendDownstream( e );
+            return;
+        }
+
+        // Sent from under the lock since the deflate stream must hit the wire
+        // in the same order as it was produced
+        synchronized ( this )
+        {
+            long time = System.nanoTime();
+            int payloadSize = chunk.readableBytes() - HEADER_SIZE;
+            ChannelBuffer header = chunk.copy( chunk.readerIndex(), HEADER_SIZE );
+            header.setByte( 0, header.getByte( 0 ) | COMPRESSED );
+            if ( compressor == null )
+            {
+                compressor = new Compressor();
+            }
+            ChannelBuffer payload = compressor.compress( ctx,
+                    chunk.slice( chunk.readerIndex() + HEADER_SIZE, payloadSize ) );
+            sent.add( payloadSize, payload.readableBytes(), System.nanoTime() - time );
+            Channels.write( ctx, e.getFuture(), ChannelBuffers.wrappedBuffer( header, payload ),
+                    e.getRemoteAddress() );
+        }
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+    {
+        ChannelBuffer chunk = (ChannelBuffer) e.getMessage();
+        if ( (chunk.getByte( chunk.readerIndex() ) & COMPRESSED) == 0 || !hasExpectedVersion( chunk ) )
+        {
+            ctx.sendUpstream( e );
+            return;
+        }
+
+        // The other side compresses, so should we
+        compressing = true;
+        long time = System.nanoTime();
+        if ( decompressor == null )
+        {
+            decompressor = new Decompressor();
+        }
+        int payloadSize = chunk.readableBytes() - HEADER_SIZE;
+        ChannelBuffer header = chunk.copy( chunk.readerIndex(), HEADER_SIZE );
+        header.setByte( 0, header.getByte( 0 ) & ~COMPRESSED );
+        ChannelBuffer payload = decompressor.decompress( ctx,
+                chunk.slice( chunk.readerIndex() + HEADER_SIZE, payloadSize ) );
+        received.add( payload.readableBytes(), payloadSize, System.nanoTime() - time );
+        Channels.fireMessageReceived( ctx, ChannelBuffers.wrappedBuffer( header, payload ), e.getRemoteAddress() );
+    }
+
+    @Override
+    public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception
+    {
+        if ( compressing )
+        {
+            msgLog.logMessage( "Compression for channel " + ctx.getChannel() + ": " + this, true );
+        }
+        super.channelClosed( ctx, e );
+    }
+
+    private boolean hasExpectedVersion( ChannelBuffer chunk )
+    {
+        if ( chunk.readableBytes() < HEADER_SIZE )
+        {
+            return false;
+        }
+        byte[] header = new byte[] { chunk.getByte( chunk.readerIndex() ), 0 };
+        return DechunkingChannelBuffer.readInternalProtocolVersion( header ) == internalProtocolVersion;
+    }
+
+    public boolean isCompressing()
+    {
+        return compressing;
+    }
+
+    /**
+     * @return statistics about the chunks sent over this channel.
+     */
+    public Stats sent()
+    {
+        return sent;
+    }
+
+    /**
+     * @return statistics about the chunks received over this channel.
+     */
+    public Stats received()
+    {
+        return received;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "sent " + sent + ", received " + received;
+    }
+
+    /**
+     * Throughput and cost of compression in one direction of a connection.
+     */
+    public static class Stats
+    {
+        private long chunks;
+        private long bytes;
+        private long compressedBytes;
+        private long nanos;
+
+        synchronized void add( long bytes, long compressedBytes, long nanos )
+        {
+            this.chunks++;
+            this.bytes += bytes;
+            this.compressedBytes += compressedBytes;
+            this.nanos += nanos;
+        }
+
+        public synchronized long getChunks()
+        {
+            return chunks;
+        }
+
+        /**
+         * @return the number of bytes before compression, or after decompression.
+         */
+        public synchronized long getBytes()
+        {
+            return bytes;
+        }
+
+        public synchronized long getCompressedBytes()
+        {
+            return compressedBytes;
+        }
+
+        /**
+         * @return the time spent compressing, or decompressing, in nanoseconds.
+         */
+        public synchronized long getNanos()
+        {
+            return nanos;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return chunks + " chunks, " + bytes + " bytes as " + compressedBytes + " (" +
+                   (bytes == 0 ? 100 : compressedBytes * 100 / bytes) + "%) in " + nanos / 1000000 + " ms";
+        }
+    }
+
+    // Just to get to the codecs of the compression handlers
+    private static class Compressor extends ZlibEncoder
+    {
+        Compressor()
+        {
+            super( COMPRESSION_LEVEL );
+        }
+
+        ChannelBuffer compress( ChannelHandlerContext ctx, ChannelBuffer data ) throws Exception
+        {
+            return (ChannelBuffer) encode( ctx, ctx.getChannel(), data );
+        }
+    }
+
+    private static class Decompressor extends ZlibDecoder
+    {
+        ChannelBuffer decompress( ChannelHandlerContext ctx, ChannelBuffer data ) throws Exception
+        {
+            ChannelBuffer result = (ChannelBuffer) decode( ctx, ctx.getChannel(), data );
+            return result != null ? result : ChannelBuffers.EMPTY_BUFFER;
+        }
+    }
+}
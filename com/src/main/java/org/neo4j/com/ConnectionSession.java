@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.neo4j.com.Protocol.readSignedVarInt;
+import static org.neo4j.com.Protocol.readSignedVarLong;
+import static org.neo4j.com.Protocol.readUtf8String;
+import static org.neo4j.com.Protocol.readVarInt;
+import static org.neo4j.com.Protocol.writeSignedVarInt;
+import static org.neo4j.com.Protocol.writeSignedVarLong;
+import static org.neo4j.com.Protocol.writeUtf8String;
+import static org.neo4j.com.Protocol.writeVarInt;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+import org.neo4j.com.RequestContext.Tx;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+
+/**
+ * What a client and a server have told each other over one connection, so that it
+ * doesn't have to be repeated in every request and response. There's one session per
+ * channel, on each side, living as long as the channel does.
+ *
+ * The handshake is piggybacked on the first requests rather than being a round trip of
+ * its own:
+ * <ul>
+ * <li>Data source names are sent in full, together with an index picked by the client,
+ * until a response to a request carrying them has been received. After that only
+ * the index is sent.</li>
+ * <li>The server sends the store id in full until a request tells it that the client
+ * has got it. After that it's omitted from responses, as long as it's the same one.</li>
+ * </ul>
+ *
+ * Request contexts are written in a compact form, with var ints instead of fixed size
+ * numbers. Only used with internal protocol versions where
+ * {@link Protocol#hasCompactContexts(byte)}.
+ */
+class ConnectionSession
+{
+    private static final int FLAG_HAS_STORE_ID = 0x1;
+    private static final int INLINE_NAME = 0x1;
+
+    private static final ChannelLocal<ConnectionSession> sessions = new ChannelLocal<ConnectionSession>()
+    {
+        @Override
+        protected ConnectionSession initialValue( Channel channel )
+        {
+            return new ConnectionSession();
+        }
+    };
+
+    // Client side
+    private final ConcurrentMap<String, Integer> indexes = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final Set<String> acknowledged = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    private volatile StoreId receivedStoreId;
+
+    // Server side
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<Integer, String>();
+    private volatile StoreId sentStoreId;
+    private volatile boolean clientHasStoreId;
+
+    static ConnectionSession of( Channel channel )
+    {
+        return sessions.get( channel );
+    }
+
+    void writeContext( RequestContext context, ChannelBuffer buffer )
+    {
+        buffer.writeByte( receivedStoreId != null ? FLAG_HAS_STORE_ID : 0 );
+        writeSignedVarLong( buffer, context.getSessionId() );
+        writeSignedVarInt( buffer, context.machineId() );
+        writeSignedVarInt( buffer, context.getEventIdentifier() );
+        Tx[] txs = context.lastAppliedTransactions();
+        writeVarInt( buffer, txs.length );
+        for ( Tx tx : txs )
+        {
+            String name = tx.getDataSourceName();
+            int index = indexOf( name );
+            if ( acknowledged.contains( name ) )
+            {
+                writeVarInt( buffer, index << 1 );
+            }
+            else
+            {
+                writeVarInt( buffer, (index << 1) | INLINE_NAME );
+                writeUtf8String( buffer, name );
+            }
+            writeSignedVarLong( buffer, tx.getTxId() );
+        }
+        writeSignedVarInt( buffer, context.getMasterId() );
+        buffer.writeLong( context.getChecksum() );
+    }
+
+    private int indexOf( String name )
+    {
+        Integer index = indexes.get( name );
+        if ( index == null )
+        {
+            Integer newIndex = nextIndex.getAndIncrement();
+            index = indexes.putIfAbsent( name, newIndex );
+            if ( index == null ) index = newIndex;
+        }
+        return index;
+    }
+
+    RequestContext readContext( ChannelBuffer buffer )
+    {
+        if ( (buffer.readByte() & FLAG_HAS_STORE_ID) != 0 ) clientHasStoreId = true;
+        long sessionId = readSignedVarLong( buffer );
+        int machineId = readSignedVarInt( buffer );
+        int eventIdentifier = readSignedVarInt( buffer );
+        Tx[] lastAppliedTransactions = new Tx[readVarInt( buffer )];
+        for ( int i = 0; i < lastAppliedTransactions.length; i++ )
+        {
+            int indexAndFlag = readVarInt( buffer );
+            int index = indexAndFlag >>> 1;
+            String name;
+            if ( (indexAndFlag & INLINE_NAME) != 0 )
+            {
+                name = readUtf8String( buffer );
+                names.put( index, name );
+            }
+            else
+            {
+                name = names.get( index );
+                if ( name == null ) throw new ComException( "Unknown data source index " + index );
+            }
+            lastAppliedTransactions[i] = RequestContext.lastAppliedTx( name, readSignedVarLong( buffer ) );
+        }
+        int masterId = readSignedVarInt( buffer );
+        long checksum = buffer.readLong();
+        return new RequestContext( sessionId, machineId, eventIdentifier, lastAppliedTransactions, masterId, checksum );
+    }
+
+    /**
+     * Called when a response to a request with the given context has been successfully
+     * received, which means that the server knows the names of its data sources.
+     */
+    void responseReceived( RequestContext context )
+    {
+        for ( Tx tx : context.lastAppliedTransactions() )
+        {
+            acknowledged.add( tx.getDataSourceName() );
+        }
+    }
+
+    void writeStoreId( StoreId storeId, ChannelBuffer buffer )
+    {
+        if ( clientHasStoreId && storeId.equals( sentStoreId ) )
+        {
+            buffer.writeByte( 0 );
+            return;
+        }
+        buffer.writeByte( 1 );
+        buffer.writeBytes( storeId.serialize() );
+        if ( sentStoreId == null ) sentStoreId = storeId;
+    }
+
+    /**
+     * @return whether or not the store id follows in the response. If not then it's
+     * the one from {@link #getReceivedStoreId()}.
+     */
+    boolean readStoreIdFlag( ChannelBuffer buffer )
+    {
+        return buffer.readByte() != 0;
+    }
+
+    StoreId getReceivedStoreId()
+    {
+        if ( receivedStoreId == null ) throw new ComException( "Store id omitted before it was received" );
+        return receivedStoreId;
+    }
+
+    void storeIdReceived( StoreId storeId )
+    {
+        if ( receivedStoreId == null ) receivedStoreId = storeId;
+    }
+}
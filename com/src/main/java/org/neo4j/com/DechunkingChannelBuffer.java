@@ -48,6 +48,7 @@ public class DechunkingChannelBuffer implements ChannelBuffer
     private boolean failure;
     private final byte applicationProtocolVersion;
     private final byte internalProtocolVersion;
+    private long bytesRead;
 
     DechunkingChannelBuffer( BlockingReadHandler<ChannelBuffer> reader, int timeoutSeconds, byte internalProtocolVersion,
             byte applicationProtocolVersion )
@@ -91,17 +92,23 @@ public class DechunkingChannelBuffer implements ChannelBuffer
     private void readNextChunk()
     {
         ChannelBuffer readBuffer = readNext();
+        bytesRead += readBuffer.readableBytes();
 
         /* Header layout:
          * [    ,    ][    ,   x] 0: last chunk in message, 1: there a more chunks after this one
          * [    ,    ][    ,  x ] 0: success, 1: failure
          * [    ,    ][xxxx,xx  ] internal protocol version
-         * [xxxx,xxxx][    ,    ] application protocol version */
+         * [xxxx,xxxx][    ,    ] application protocol version
+         * followed by a 4 byte request id, unless legacy protocol */
         byte[] header = new byte[2];
         readBuffer.readBytes( header );
         more = (header[0] & 0x1) != 0;
         failure = (header[0] & 0x2) != 0;
         assertSameProtocolVersion( header, internalProtocolVersion, applicationProtocolVersion );
+        if ( Protocol.hasRequestIds( internalProtocolVersion ) )
+        {   // The request id has already been used to route this chunk here
+            readBuffer.skipBytes( Protocol.REQUEST_ID_SIZE );
+        }
 
         if ( !more && buffer == null )
         {
@@ -129,20 +136,28 @@ public class DechunkingChannelBuffer implements ChannelBuffer
          * Only 6 bits for internal protocol version, yielding 64 values. It's ok to wrap around because
          * It's highly unlikely that instances that are so far apart in versions will communicate
          * with each other.
+         *
+         * The application protocol version is checked first since it's what tells which client to
+         * fall back to, see MismatchingVersionHandler.
          */
-        byte readInternalProtocolVersion = (byte) ((header[0] & 0x7C) >>> 2);
-        if ( readInternalProtocolVersion != internalProtocolVersion )
-        {
-            throw new IllegalProtocolVersionException( internalProtocolVersion, readInternalProtocolVersion,
-                    "Unexpected internal protocol version " + readInternalProtocolVersion +
-                    ", expected " + internalProtocolVersion + ". Header:" + numbersToBitString( header ) );
-        }
         if ( header[1] != applicationProtocolVersion )
         {
             throw new IllegalProtocolVersionException( applicationProtocolVersion, header[1],
                     "Unexpected application protocol version " + header[1] +
                     ", expected " + applicationProtocolVersion + ". Header:" + numbersToBitString( header ) );
         }
+        byte readInternalProtocolVersion = readInternalProtocolVersion( header );
+        if ( readInternalProtocolVersion != internalProtocolVersion )
+        {
+            throw new IllegalProtocolVersionException( internalProtocolVersion, readInternalProtocolVersion,
+                    "Unexpected internal protocol version " + readInternalProtocolVersion +
+                    ", expected " + internalProtocolVersion + ". Header:" + numbersToBitString( header ) );
+        }
+    }
+
+    static byte readInternalProtocolVersion( byte[] header )
+    {
+        return (byte) ((header[0] & 0x7C) >>> 2);
     }
 
     private Throwable readAndThrowFailureResponse()
@@ -168,6 +183,14 @@ public class DechunkingChannelBuffer implements ChannelBuffer
         return buffer.factory();
     }
 
+    /**
+     * @return the number of bytes, headers included, of the chunks read so far.
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
     public boolean failure()
     {
         return failure;
@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.Timer;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+/**
+ * Keeps track of whether or not the other side of a channel is alive, by sending small
+ * heartbeat chunks when nothing else has been sent for a while and by closing the channel
+ * when nothing at all has been heard from the other side within the heartbeat timeout.
+ * That way a dead peer or a half-open connection is noticed within the timeout, instead
+ * of when a request times out or never at all, and closing the channel fails the requests
+ * waiting on it and finishes off the transactions of it right away.
+ * <p>
+ * Heartbeats are negotiated per connection, like {@link CompressionHandler compression}:
+ * the client sends heartbeats from the start and the server starts sending them on a
+ * channel once it has received one on it. A channel is only ever closed for being silent
+ * if the other side has sent heartbeats on it, so a peer with heartbeats turned off
+ * doesn't get its idle channels closed. The heartbeat timeout should be the same on
+ * both sides.
+ * <p>
+ * A heartbeat chunk is a continuation header followed by {@link #HEARTBEAT_REQUEST_ID},
+ * which is never the id of a real request. It sits right after the framing in the
+ * pipeline, so heartbeats never get compressed or reach the handlers after it.
+ */
+public class HeartbeatHandler extends IdleStateAwareChannelHandler
+{
+    static final int HEARTBEAT_REQUEST_ID = -1;
+    private static final int HEARTBEAT_SIZE = 2 + Protocol.REQUEST_ID_SIZE;
+
+    private final byte internalProtocolVersion;
+    private final long timeoutMillis;
+    private final StringLogger msgLog;
+    private volatile boolean sending;
+    private volatile boolean peerSending;
+
+    /**
+     * @param send whether or not to send heartbeats from the start, instead of
+     * waiting for the other side to do so.
+     */
+    public HeartbeatHandler( byte internalProtocolVersion, long timeoutMillis, boolean send, StringLogger msgLog )
+    {
+        this.internalProtocolVersion = internalProtocolVersion;
+        this.timeoutMillis = timeoutMillis;
+        this.sending = send;
+        this.msgLog = msgLog;
+    }
+
+    /**
+     * Adds heartbeats to a pipeline, right after the framing. Heartbeats are sent when
+     * nothing has been written for a quarter of the timeout.
+     */
+    public static void addHeartbeatPipes( ChannelPipeline pipeline, Timer timer, byte internalProtocolVersion,
+            long timeoutMillis, boolean send, StringLogger msgLog )
+    {
+        pipeline.addLast( "idleState", new IdleStateHandler( timer, timeoutMillis,
+                Math.max( 1, timeoutMillis / 4 ), 0, TimeUnit.MILLISECONDS ) );
+        pipeline.addLast( "heartbeat", new HeartbeatHandler( internalProtocolVersion, timeoutMillis, send, msgLog ) );
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+    {
+        if ( isHeartbeat( (ChannelBuffer) e.getMessage() ) )
+        {
+            peerSending = true;
+            sending = true;
+            return;
+        }
+        ctx.sendUpstream( e );
+    }
+
+    private boolean isHeartbeat( ChannelBuffer chunk )
+    {
+        return chunk.readableBytes() == HEARTBEAT_SIZE &&
+                chunk.getInt( chunk.readerIndex() + 2 ) == HEARTBEAT_REQUEST_ID &&
+                DechunkingChannelBuffer.readInternalProtocolVersion(
+                        new byte[] { chunk.getByte( chunk.readerIndex() ), 0 } ) == internalProtocolVersion;
+    }
+
+    @Override
+    public void channelIdle( ChannelHandlerContext ctx, IdleStateEvent e ) throws Exception
+    {
+        if ( e.getState() == IdleState.WRITER_IDLE && sending )
+        {
+            ChannelBuffer heartbeat = ChannelBuffers.buffer( HEARTBEAT_SIZE );
+            heartbeat.writeByte( internalProtocolVersion << 2 );
+            heartbeat.writeByte( 0 );
+            heartbeat.writeInt( HEARTBEAT_REQUEST_ID );
+            Channels.write( ctx, Channels.future( ctx.getChannel() ), heartbeat );
+        }
+        else if ( e.getState() == IdleState.READER_IDLE && peerSending && ctx.getChannel().isOpen() &&
+                ctx.getChannel().isReadable() /*not paused on purpose, see MemoryBudget*/ )
+        {
+            msgLog.logMessage( "No heartbeat on " + ctx.getChannel() + " for " + timeoutMillis +
+                    " ms, closing it", true );
+            ctx.getChannel().close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Values are counted in
+ * buckets, four per power of two, so percentiles are accurate to within 25%.
+ * Recording a value is a couple of atomic increments, cheap enough to do for
+ * every request.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray( BUCKETS );
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record( long nanos )
+    {
+        if ( nanos < 0 ) nanos = 0;
+        buckets.incrementAndGet( bucketOf( nanos ) );
+        count.incrementAndGet();
+        total.addAndGet( nanos );
+        for ( long current = max.get(); nanos > current; current = max.get() )
+        {
+            if ( max.compareAndSet( current, nanos ) ) break;
+        }
+    }
+
+    /**
+     * Values below {@link #SUB_BUCKETS} get a bucket each, the rest are split
+     * on their highest bit and the {@link #SUB_BUCKET_BITS} bits after it.
+     */
+    static int bucketOf( long value )
+    {
+        if ( value < SUB_BUCKETS ) return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that falls into the given bucket.
+     */
+    static long highestValueOf( int bucket )
+    {
+        if ( bucket < SUB_BUCKETS ) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMeanNanos()
+    {
+        long count = this.count.get();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return an upper bound of the value that the given percentile of
+     * the recorded values are lower than or equal to, or 0 if nothing has been recorded.
+     */
+    public long getPercentileNanos( double percentile )
+    {
+        long count = this.count.get();
+        if ( count == 0 ) return 0;
+        long rank = Math.max( 1, (long) Math.ceil( count * percentile / 100 ) );
+        long seen = 0;
+        for ( int bucket = 0; bucket < BUCKETS; bucket++ )
+        {
+            seen += buckets.get( bucket );
+            if ( seen >= rank ) return Math.min( highestValueOf( bucket ), getMaxNanos() );
+        }
+        return getMaxNanos();
+    }
+}
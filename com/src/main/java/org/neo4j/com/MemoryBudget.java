@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How many bytes a {@link Server} may hold on to for the requests in flight on
+ * it, in total and per channel. That is requests received, but not yet read by
+ * their handlers, and responses written, but not yet sent off. Going over budget
+ * doesn't fail anything, instead reading from channels is paused until enough
+ * has been handled and sent off, so that clients are slowed down by the transport
+ * itself rather than pushing the server into garbage collection.
+ * <p>
+ * A channel over its own budget is paused until it's down to half of it. Channels
+ * adding to the total while it's over budget are paused until the total is down
+ * to half of the budget.
+ */
+public class MemoryBudget
+{
+    public static final long DEFAULT_MAX_BYTES = 256*Protocol.MEGA;
+    public static final long DEFAULT_MAX_BYTES_PER_CHANNEL = 16*Protocol.MEGA;
+
+    private final long maxBytes;
+    private final long maxBytesPerChannel;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicInteger pausedChannels = new AtomicInteger();
+    private final AtomicLong pauses = new AtomicLong();
+    // Paused channels which are within their own budget, but waiting for the total to come down
+    private final Set<ChannelBudget> waitingChannels = new LinkedHashSet<ChannelBudget>(); // Guarded by itself
+
+    public MemoryBudget()
+    {
+        this( DEFAULT_MAX_BYTES, DEFAULT_MAX_BYTES_PER_CHANNEL );
+    }
+
+    public MemoryBudget( long maxBytes, long maxBytesPerChannel )
+    {
+        this.maxBytes = maxBytes;
+        this.maxBytesPerChannel = maxBytesPerChannel;
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    public long getMaxBytesPerChannel()
+    {
+        return maxBytesPerChannel;
+    }
+
+    /**
+     * @return the number of bytes currently held for requests and responses in flight.
+     */
+    public long getUsedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the number of channels currently not read from, for being over budget.
+     */
+    public int getPausedChannels()
+    {
+        return pausedChannels.get();
+    }
+
+    /**
+     * @return the number of times a channel has been paused, for being over budget.
+     */
+    public long getPauses()
+    {
+        return pauses.get();
+    }
+
+    boolean allocate( long bytes )
+    {
+        return usedBytes.addAndGet( bytes ) > maxBytes;
+    }
+
+    void free( long bytes )
+    {
+        if ( usedBytes.addAndGet( -bytes ) > maxBytes/2 ) return;
+
+        List<ChannelBudget> toResume;
+        synchronized ( waitingChannels )
+        {
+            if ( waitingChannels.isEmpty() ) return;
+            toResume = new ArrayList<ChannelBudget>( waitingChannels );
+            waitingChannels.clear();
+        }
+        for ( ChannelBudget channel : toResume )
+        {
+            channel.resumeIfWithinBudget();
+        }
+    }
+
+    boolean isOverHalf()
+    {
+        return usedBytes.get() > maxBytes/2;
+    }
+
+    void paused()
+    {
+        pausedChannels.incrementAndGet();
+        pauses.incrementAndGet();
+    }
+
+    void waitForTotal( ChannelBudget channel )
+    {
+        synchronized ( waitingChannels )
+        {
+            waitingChannels.add( channel );
+        }
+    }
+
+    void resumed( ChannelBudget channel )
+    {
+        pausedChannels.decrementAndGet();
+        synchronized ( waitingChannels )
+        {
+            waitingChannels.remove( channel );
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -33,6 +34,25 @@ public abstract class Protocol
     public static final int MEGA = 1024 * 1024;
     public static final int DEFAULT_FRAME_LENGTH = 16*MEGA;
 
+    /*
+     * How the contents of a streamed store file is sent, see ToNetworkStoreWriter.
+     * Only the first two are understood by older clients.
+     */
+    static final byte STORE_FILE_EMPTY = 0;
+    static final byte STORE_FILE_BLOCKS = 1;
+    static final byte STORE_FILE_RAW = 2;
+
+    /**
+     * Size of the request id which, since internal protocol version 3, follows
+     * the two byte continuation header in every chunk. It's what lets responses
+     * for many concurrent requests share one channel.
+     */
+    static final int REQUEST_ID_SIZE = 4;
+    static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    // Strings are read in slices of at most this many bytes, so that a long string
+    // can span several chunks of a DechunkingChannelBuffer
+    private static final int STRING_SLICE_SIZE = 8192;
+
     public static final ObjectSerializer<Integer> INTEGER_SERIALIZER = new ObjectSerializer<Integer>()
     {
         @SuppressWarnings( "boxing" )
@@ -91,7 +111,15 @@ public abstract class Protocol
             while ( 0 != ( pathLength = buffer.readUnsignedShort() ) )
             {
                 String path = readString( buffer, pathLength );
-                boolean hasData = buffer.readByte() == 1;
+                byte format = buffer.readByte();
+                if ( format == STORE_FILE_RAW )
+                {
+                    StoreFileReader data = new StoreFileReader( buffer, buffer.readLong() );
+                    writer.write( path, data, temporaryBuffer, true );
+                    data.skipRemaining();
+                    continue;
+                }
+                boolean hasData = format == STORE_FILE_BLOCKS;
                 writer.write( path, hasData ? new BlockLogReader( buffer ) : null, temporaryBuffer, hasData );
             }
             writer.done();
@@ -99,6 +127,67 @@ public abstract class Protocol
         }
     };
     
+    /**
+     * @return whether or not chunks of the given internal protocol version carry a
+     * request id after the continuation header. Only the legacy version, spoken by
+     * 1.7 and older instances, doesn't.
+     */
+    static boolean hasRequestIds( byte internalProtocolVersion )
+    {
+        return internalProtocolVersion != Server.LEGACY_INTERNAL_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return whether or not transaction streams are written with large blocks, see
+     * {@link BlockLogBuffer}, in the given internal protocol version.
+     */
+    static boolean hasLargeBlocks( byte internalProtocolVersion )
+    {
+        return hasRequestIds( internalProtocolVersion ) &&
+                internalProtocolVersion != Server.REQUEST_IDS_INTERNAL_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return whether or not chunks can be compressed, see {@link CompressionHandler},
+     * in the given internal protocol version.
+     */
+    static boolean hasCompression( byte internalProtocolVersion )
+    {
+        return hasLargeBlocks( internalProtocolVersion ) &&
+                internalProtocolVersion != Server.LARGE_BLOCKS_INTERNAL_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return whether or not request contexts are written in the compact form of a
+     * {@link ConnectionSession}, with the store id and data source names sent once
+     * per connection, in the given internal protocol version.
+     */
+    static boolean hasCompactContexts( byte internalProtocolVersion )
+    {
+        return hasCompression( internalProtocolVersion ) &&
+                internalProtocolVersion != Server.COMPRESSION_INTERNAL_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return whether or not idle channels are kept alive and checked with heartbeats,
+     * see {@link HeartbeatHandler}, in the given internal protocol version.
+     */
+    static boolean hasHeartbeats( byte internalProtocolVersion )
+    {
+        return hasCompactContexts( internalProtocolVersion ) &&
+                internalProtocolVersion != Server.COMPACT_CONTEXTS_INTERNAL_PROTOCOL_VERSION;
+    }
+
+    /**
+     * @return whether or not requests carry how long their clients wait for the responses,
+     * see {@link RequestDeadline}, in the given internal protocol version.
+     */
+    static boolean hasDeadlines( byte internalProtocolVersion )
+    {
+        return hasHeartbeats( internalProtocolVersion ) &&
+                internalProtocolVersion != Server.HEARTBEATS_INTERNAL_PROTOCOL_VERSION;
+    }
+
     public static void addLengthFieldPipes( ChannelPipeline pipeline, int frameLength )
     {
         pipeline.addLast( "frameDecoder",
@@ -115,11 +204,13 @@ public abstract class Protocol
 
     public static void writeChars( ChannelBuffer buffer, char[] chars )
     {
-        // TODO optimize?
-        for ( char ch : chars )
+        byte[] bytes = new byte[chars.length*2];
+        for ( int i = 0, b = 0; i < chars.length; i++ )
         {
-            buffer.writeChar( ch );
+            bytes[b++] = (byte) (chars[i] >>> 8);
+            bytes[b++] = (byte) chars[i];
         }
+        buffer.writeBytes( bytes );
     }
 
     public static String readString( ChannelBuffer buffer )
@@ -141,10 +232,106 @@ public abstract class Protocol
     public static String readString( ChannelBuffer buffer, int length )
     {
         char[] chars = new char[length];
-        for ( int i = 0; i < length; i++ )
+        byte[] bytes = new byte[Math.min( length*2, STRING_SLICE_SIZE )];
+        for ( int i = 0; i < length; )
         {
-            chars[i] = buffer.readChar();
+            int slice = Math.min( length-i, bytes.length/2 );
+            buffer.readBytes( bytes, 0, slice*2 );
+            for ( int b = 0; b < slice*2; b += 2 )
+            {
+                chars[i++] = (char) (((bytes[b] & 0xFF) << 8) | (bytes[b+1] & 0xFF));
+            }
         }
         return new String( chars );
     }
+
+    /**
+     * Writes a string as its UTF-8 bytes, preceded by their count as a var int.
+     * Much more compact than {@link #writeString(ChannelBuffer, String)} for the
+     * mostly ASCII names that goes over the wire.
+     */
+    public static void writeUtf8String( ChannelBuffer buffer, String string )
+    {
+        byte[] bytes = string.getBytes( UTF_8 );
+        writeVarInt( buffer, bytes.length );
+        buffer.writeBytes( bytes );
+    }
+
+    public static String readUtf8String( ChannelBuffer buffer )
+    {
+        int length = readVarInt( buffer );
+        byte[] bytes = new byte[length];
+        for ( int i = 0; i < length; i += STRING_SLICE_SIZE )
+        {
+            buffer.readBytes( bytes, i, Math.min( length-i, STRING_SLICE_SIZE ) );
+        }
+        return new String( bytes, UTF_8 );
+    }
+
+    /**
+     * Writes a non-negative int in as few bytes as possible, seven bits per byte where
+     * the highest bit tells whether or not there are more bytes to read.
+     */
+    public static void writeVarInt( ChannelBuffer buffer, int value )
+    {
+        writeVarLong( buffer, value & 0xFFFFFFFFL );
+    }
+
+    public static int readVarInt( ChannelBuffer buffer )
+    {
+        long value = readVarLong( buffer );
+        if ( (value >>> 32) != 0 ) throw new ComException( "Invalid var int " + value );
+        return (int) value;
+    }
+
+    /**
+     * Writes a long, treated as unsigned, in as few bytes as possible, see {@link #writeVarInt(ChannelBuffer, int)}.
+     */
+    public static void writeVarLong( ChannelBuffer buffer, long value )
+    {
+        while ( (value & ~0x7FL) != 0 )
+        {
+            buffer.writeByte( (int) ((value & 0x7F) | 0x80) );
+            value >>>= 7;
+        }
+        buffer.writeByte( (int) value );
+    }
+
+    public static long readVarLong( ChannelBuffer buffer )
+    {
+        long value = 0;
+        for ( int shift = 0; shift < 64; shift += 7 )
+        {
+            byte b = buffer.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ( (b & 0x80) == 0 ) return value;
+        }
+        throw new ComException( "Malformed var long" );
+    }
+
+    /**
+     * Writes an int which may be negative, like -1 for "no machine", zig-zag encoded so
+     * that small negative numbers are as compact as small positive ones.
+     */
+    public static void writeSignedVarInt( ChannelBuffer buffer, int value )
+    {
+        writeVarInt( buffer, (value << 1) ^ (value >> 31) );
+    }
+
+    public static int readSignedVarInt( ChannelBuffer buffer )
+    {
+        int value = readVarInt( buffer );
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public static void writeSignedVarLong( ChannelBuffer buffer, long value )
+    {
+        writeVarLong( buffer, (value << 1) ^ (value >> 63) );
+    }
+
+    public static long readSignedVarLong( ChannelBuffer buffer )
+    {
+        long value = readVarLong( buffer );
+        return (value >>> 1) ^ -(value & 1);
+    }
 }
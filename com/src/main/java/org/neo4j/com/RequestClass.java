@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+/**
+ * Classes of requests which a {@link Server} schedules separately, each with
+ * threads and a queue of its own, so that a flood of one kind of requests
+ * can't starve the others. F.ex. short lock requests mustn't have to wait
+ * for threads busy streaming store copies.
+ */
+public enum RequestClass
+{
+    /**
+     * Short requests which other requests may be waiting for, like starting
+     * and finishing transactions. They're never queued - if all threads are
+     * busy the request is rejected straight away.
+     */
+    CONTROL( 500, 0 ),
+
+    /**
+     * Requests taking locks, which wait for as long as someone else holds
+     * them. Kept apart from {@link #CONTROL} so that requests waiting in line
+     * for a lock can't take the threads from the requests which would release
+     * it. Never queued either, since a lock request stuck behind others waiting
+     * for a different lock could wait forever.
+     */
+    LOCK( 500, 0 ),
+
+    /**
+     * Requests doing a moderate amount of work, like committing a transaction.
+     */
+    TRANSACTION( 64, 1000 ),
+
+    /**
+     * Requests which may stream lots of data, like copying a store or pulling
+     * updates for a slave that has fallen behind.
+     */
+    BULK( 8, 64 );
+
+    private final int defaultMaxThreads;
+    private final int defaultMaxQueued;
+
+    private RequestClass( int defaultMaxThreads, int defaultMaxQueued )
+    {
+        this.defaultMaxThreads = defaultMaxThreads;
+        this.defaultMaxQueued = defaultMaxQueued;
+    }
+
+    public int defaultMaxThreads()
+    {
+        return defaultMaxThreads;
+    }
+
+    public int defaultMaxQueued()
+    {
+        return defaultMaxQueued;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * When the client of a request stops waiting for its response. Clients talking an
+ * internal protocol version with deadlines send along how long they will wait for
+ * the response with each request, see {@link Client#getReadTimeout(RequestType, int)}.
+ * A request is also past its deadline when the channel it came in on is closed,
+ * since there's no one left to send the response to.
+ *
+ * A {@link Server} doesn't start handling requests which are past their deadline
+ * by the time they get a thread from the {@link RequestScheduler}. Handlers which
+ * may wait for a long time, like for a lock, can look at {@link #current()} and give
+ * up rather than keep waiting for something nobody waits for anymore.
+ */
+public class RequestDeadline
+{
+    /**
+     * The deadline of code not handling a request for a {@link Server}, which never passes.
+     */
+    public static final RequestDeadline NONE = new RequestDeadline( null, 0 );
+
+    private static final ThreadLocal<RequestDeadline> CURRENT = new ThreadLocal<RequestDeadline>();
+
+    private final Channel channel;
+    private final long timeoutNanos;
+    private volatile long startNanos;
+    private volatile boolean started;
+
+    /**
+     * @param timeoutMillis how long the client waits for the response, counted from when
+     * {@link #start(long)} is called, or {@code 0} for as long as the channel is open.
+     */
+    RequestDeadline( Channel channel, int timeoutMillis )
+    {
+        this.channel = channel;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+    }
+
+    /**
+     * @return the deadline of the request being handled by the current thread,
+     * or {@link #NONE} if it isn't handling any.
+     */
+    public static RequestDeadline current()
+    {
+        RequestDeadline deadline = CURRENT.get();
+        return deadline != null ? deadline : NONE;
+    }
+
+    static void enter( RequestDeadline deadline )
+    {
+        CURRENT.set( deadline );
+    }
+
+    static void exit()
+    {
+        CURRENT.remove();
+    }
+
+    /**
+     * Starts the clock, when the client has sent all of the request and
+     * starts to wait for the response.
+     */
+    void start( long nanos )
+    {
+        startNanos = nanos;
+        started = true;
+    }
+
+    /**
+     * @return whether or not the client of the request has given up on it, or is gone.
+     */
+    public boolean isPassed()
+    {
+        if ( channel != null && !channel.isConnected() ) return true;
+        return started && timeoutNanos > 0 && System.nanoTime() - startNanos >= timeoutNanos;
+    }
+
+    /**
+     * @throws RequestExpiredException if the deadline has passed.
+     */
+    public void check() throws RequestExpiredException
+    {
+        if ( isPassed() )
+        {
+            throw new RequestExpiredException( channel != null && !channel.isConnected() ?
+                    "Client has disconnected" : "Client has stopped waiting for the response" );
+        }
+    }
+}
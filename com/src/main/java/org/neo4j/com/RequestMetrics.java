@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and traffic of the requests going through a {@link Server} or a
+ * {@link Client}, bucketed by request type and, on the server side, by the
+ * machine id of the client that sent them.
+ */
+public class RequestMetrics
+{
+    public enum Phase
+    {
+        /**
+         * Time for a server from when the first chunk of a request arrives until the
+         * request has been decoded and handed over to be executed.
+         */
+        RECEIVE,
+        /**
+         * Time for a server from when a request has been handed over until it's picked up by a thread.
+         */
+        QUEUE,
+        /**
+         * Time the request target spends on a request.
+         */
+        EXECUTE,
+        /**
+         * Time to write the response, including waiting for the channel to drain.
+         */
+        SERIALIZE,
+        /**
+         * Time from when the response has been written until the last chunk of it has been sent off.
+         */
+        TRANSFER,
+        /**
+         * Time for a client to get a channel to send a request over, including waiting
+         * for one to be released if all are in use.
+         */
+        ACQUIRE,
+        /**
+         * Time for a client to write a request.
+         */
+        SEND,
+        /**
+         * Time for a client from when a request has been written until the response has been read.
+         */
+        RESPONSE,
+        /**
+         * Time for the request as a whole.
+         */
+        TOTAL;
+    }
+
+    public static class Entry
+    {
+        private final Map<Phase, LatencyHistogram> latencies = new EnumMap<Phase, LatencyHistogram>( Phase.class );
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+
+        Entry()
+        {
+            for ( Phase phase : Phase.values() )
+            {
+                latencies.put( phase, new LatencyHistogram() );
+            }
+        }
+
+        public LatencyHistogram latency( Phase phase )
+        {
+            return latencies.get( phase );
+        }
+
+        public long getRequests()
+        {
+            return latency( Phase.TOTAL ).getCount();
+        }
+
+        public long getRequestBytes()
+        {
+            return requestBytes.get();
+        }
+
+        public long getResponseBytes()
+        {
+            return responseBytes.get();
+        }
+    }
+
+    private final ConcurrentMap<String, Entry> byRequestType = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<Integer, Entry> byMachine = new ConcurrentHashMap<Integer, Entry>();
+
+    public void record( RequestType<?> type, Phase phase, long nanos )
+    {
+        entry( byRequestType, type.toString() ).latency( phase ).record( nanos );
+    }
+
+    public void record( RequestType<?> type, int machineId, Phase phase, long nanos )
+    {
+        record( type, phase, nanos );
+        if ( machineId != RequestContext.EMPTY.machineId() )
+        {
+            entry( byMachine, machineId ).latency( phase ).record( nanos );
+        }
+    }
+
+    public void recordTraffic( RequestType<?> type, long requestBytes, long responseBytes )
+    {
+        addTraffic( entry( byRequestType, type.toString() ), requestBytes, responseBytes );
+    }
+
+    public void recordTraffic( RequestType<?> type, int machineId, long requestBytes, long responseBytes )
+    {
+        recordTraffic( type, requestBytes, responseBytes );
+        if ( machineId != RequestContext.EMPTY.machineId() )
+        {
+            addTraffic( entry( byMachine, machineId ), requestBytes, responseBytes );
+        }
+    }
+
+    private static void addTraffic( Entry entry, long requestBytes, long responseBytes )
+    {
+        entry.requestBytes.addAndGet( requestBytes );
+        entry.responseBytes.addAndGet( responseBytes );
+    }
+
+    private static <K> Entry entry( ConcurrentMap<K, Entry> entries, K key )
+    {
+        Entry entry = entries.get( key );
+        if ( entry == null )
+        {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent( key, created );
+            if ( entry == null ) entry = created;
+        }
+        return entry;
+    }
+
+    /**
+     * @return the metrics per request type, keyed by the name of the type.
+     */
+    public Map<String, Entry> getByRequestType()
+    {
+        return byRequestType;
+    }
+
+    /**
+     * @return the metrics per machine id of the client sending the requests.
+     */
+    public Map<Integer, Entry> getByMachine()
+    {
+        return byMachine;
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.queue.BlockingReadHandler;
+
+/**
+ * Sits last in a client channel pipeline and routes incoming chunks to the
+ * request they belong to, by looking at the request id following the continuation
+ * header. This makes it possible to have many requests in flight over the
+ * same channel, each one reading its response from its own
+ * {@link BlockingReadHandler} as if it had the channel to itself.
+ *
+ * Chunks for requests that aren't registered (any longer) are dropped. Closing or
+ * failure of the channel is signaled to all registered requests.
+ *
+ * A request can also register a {@link Receiver} of its own, which gets
+ * the chunks as they arrive, on the I/O thread.
+ */
+public class RequestMultiplexer extends SimpleChannelUpstreamHandler
+{
+    private static final AtomicInteger nextRequestId = new AtomicInteger();
+
+    /**
+     * Receives the chunks and channel events that concerns one request. Called from
+     * the I/O thread so it mustn't block.
+     */
+    public interface Receiver
+    {
+        void receive( ChannelEvent event );
+    }
+
+    private final ConcurrentMap<Integer, Receiver> requests = new ConcurrentHashMap<Integer, Receiver>();
+    private final byte internalProtocolVersion;
+
+    public RequestMultiplexer( byte internalProtocolVersion )
+    {
+        this.internalProtocolVersion = internalProtocolVersion;
+    }
+
+    /**
+     * @return a new request id, unique enough for the lifetime of any in-flight request.
+     */
+    public static int newRequestId()
+    {
+        return nextRequestId.incrementAndGet() & Integer.MAX_VALUE;
+    }
+
+    /**
+     * Registers a request so that chunks with its id gets routed to the returned reader.
+     * {@link #unregister(int)} must be called when the response has been read.
+     */
+    public BlockingReadHandler<ChannelBuffer> register( int requestId )
+    {
+        final BlockingQueue<ChannelEvent> queue = new LinkedBlockingQueue<ChannelEvent>();
+        register( requestId, new Receiver()
+        {
+            @Override
+            public void receive( ChannelEvent event )
+            {
+                queue.offer( event );
+            }
+        } );
+        return new BlockingReadHandler<ChannelBuffer>( queue );
+    }
+
+    public void register( int requestId, Receiver receiver )
+    {
+        requests.put( requestId, receiver );
+    }
+
+    public void unregister( int requestId )
+    {
+        requests.remove( requestId );
+    }
+
+    public int numberOfRequestsInFlight()
+    {
+        return requests.size();
+    }
+
+    @Override
+    public void messageReceived( ChannelHandlerContext ctx, MessageEvent e ) throws Exception
+    {
+        ChannelBuffer chunk = (ChannelBuffer) e.getMessage();
+        if ( chunk.readableBytes() < 2 + Protocol.REQUEST_ID_SIZE || !hasExpectedVersion( chunk ) )
+        {   // Probably from a server talking another protocol version, i.e. there's no request
+            // id to route it with. Let every request read it and fail on the header instead.
+            for ( Receiver receiver : requests.values() )
+            {
+                receiver.receive( new UpstreamMessageEvent( e.getChannel(), chunk.duplicate(), e.getRemoteAddress() ) );
+            }
+            return;
+        }
+
+        Receiver receiver = requests.get( chunk.getInt( chunk.readerIndex() + 2 ) );
+        if ( receiver != null )
+        {
+            receiver.receive( e );
+        }
+    }
+
+    private boolean hasExpectedVersion( ChannelBuffer chunk )
+    {
+        byte[] header = new byte[] { chunk.getByte( chunk.readerIndex() ), 0 };
+        return DechunkingChannelBuffer.readInternalProtocolVersion( header ) == internalProtocolVersion;
+    }
+
+    @Override
+    public void exceptionCaught( ChannelHandlerContext ctx, ExceptionEvent e ) throws Exception
+    {
+        deliverToAll( e );
+    }
+
+    @Override
+    public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e ) throws Exception
+    {
+        deliverToAll( e );
+    }
+
+    private void deliverToAll( ChannelEvent e )
+    {
+        for ( Receiver receiver : requests.values() )
+        {
+            receiver.receive( e );
+        }
+    }
+}
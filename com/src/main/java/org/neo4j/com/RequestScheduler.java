@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.helpers.NamedThreadFactory;
+
+/**
+ * Runs requests for a {@link Server} with a bounded thread pool and a bounded
+ * queue per {@link RequestClass}. A request which doesn't fit is rejected
+ * instead of queued up indefinitely, so that an overloaded server can answer
+ * quickly with a failure rather than spawning more and more threads.
+ */
+public class RequestScheduler
+{
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Map<RequestClass, ThreadPoolExecutor> executors =
+            new EnumMap<RequestClass, ThreadPoolExecutor>( RequestClass.class );
+    private final Map<RequestClass, AtomicLong> rejected = new EnumMap<RequestClass, AtomicLong>( RequestClass.class );
+    private final Map<RequestClass, AtomicLong> expired = new EnumMap<RequestClass, AtomicLong>( RequestClass.class );
+
+    /**
+     * Creates a scheduler with the default limits of each {@link RequestClass}.
+     */
+    public RequestScheduler( String name )
+    {
+        for ( RequestClass requestClass : RequestClass.values() )
+        {
+            add( name, requestClass, requestClass.defaultMaxThreads(), requestClass.defaultMaxQueued() );
+        }
+    }
+
+    /**
+     * Creates a scheduler with the same limits for all request classes.
+     */
+    public RequestScheduler( String name, int maxThreads, int maxQueued )
+    {
+        for ( RequestClass requestClass : RequestClass.values() )
+        {
+            add( name, requestClass, maxThreads, maxQueued );
+        }
+    }
+
+    private void add( String name, RequestClass requestClass, int maxThreads, int maxQueued )
+    {
+        // Without a queue, threads are reused or added on demand like in a cached thread pool.
+        // With a queue, threads are added up to the max before anything gets queued.
+        BlockingQueue<Runnable> queue = maxQueued > 0 ? new ArrayBlockingQueue<Runnable>( maxQueued ) :
+                new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor( maxQueued > 0 ? maxThreads : 0, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, queue,
+                new NamedThreadFactory( name + ":" + requestClass.name().toLowerCase() ) );
+        if ( maxQueued > 0 ) executor.allowCoreThreadTimeOut( true );
+        executors.put( requestClass, executor );
+        rejected.put( requestClass, new AtomicLong() );
+        expired.put( requestClass, new AtomicLong() );
+    }
+
+    /**
+     * @return {@code true} if the job was accepted, or {@code false} if it was
+     * rejected because the threads and queue of the request class are full.
+     * @throws RejectedExecutionException if the scheduler has been shut down.
+     */
+    public boolean submit( RequestClass requestClass, Runnable job )
+    {
+        ThreadPoolExecutor executor = executors.get( requestClass );
+        try
+        {
+            executor.execute( job );
+            return true;
+        }
+        catch ( RejectedExecutionException e )
+        {
+            if ( executor.isShutdown() ) throw e;
+            rejected.get( requestClass ).incrementAndGet();
+            return false;
+        }
+    }
+
+    public void shutdown()
+    {
+        for ( ThreadPoolExecutor executor : executors.values() )
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of requests of the given class waiting for a thread.
+     */
+    public int getQueued( RequestClass requestClass )
+    {
+        return executors.get( requestClass ).getQueue().size();
+    }
+
+    /**
+     * @return the number of requests of the given class being executed.
+     */
+    public int getActive( RequestClass requestClass )
+    {
+        return executors.get( requestClass ).getActiveCount();
+    }
+
+    /**
+     * @return the number of requests of the given class that have been rejected.
+     */
+    public long getRejected( RequestClass requestClass )
+    {
+        return rejected.get( requestClass ).get();
+    }
+
+    void expired( RequestClass requestClass )
+    {
+        expired.get( requestClass ).incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests of the given class that were dropped without being
+     * executed, since their clients had stopped waiting for them by the time they got a
+     * thread, see {@link RequestDeadline}.
+     */
+    public long getExpired( RequestClass requestClass )
+    {
+        return expired.get( requestClass ).get();
+    }
+}
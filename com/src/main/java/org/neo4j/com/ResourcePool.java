@@ -19,49 +19,130 @@
  */
 package org.neo4j.com;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+import org.neo4j.helpers.DaemonThreadFactory;
+
+/**
+ * A pool of at most a certain number of resources, f.ex. channels, handed out by
+ * {@link #acquire()} and given back by {@link #release(Object)}. A resource isn't tied
+ * to the thread acquiring it, so it can be released by any thread and a released
+ * resource is up for grabs by any thread waiting for one.
+ *
+ * The pool is lock-free: idle resources are kept on a stack, so that the most recently
+ * used one is handed out first and the others are left to go idle, and threads waiting
+ * for a resource queue up and are woken up one at a time as resources are released.
+ * Resources which have been idle for longer than the idle timeout are disposed by a
+ * background thread.
+ */
 public abstract class ResourcePool<R>
 {
-    private static final boolean FAIR = true;
+    private static final ScheduledExecutorService evictor =
+            Executors.newSingleThreadScheduledExecutor( new DaemonThreadFactory( "ResourcePool eviction" ) );
 
-    private static class ResizableSemaphore extends Semaphore
+    private static final class Idle<R>
     {
-        private int permits;
+        private final R resource;
+        private final long since;
+        private Idle<R> next;
 
-        ResizableSemaphore( int permits )
+        Idle( R resource, long since )
         {
-            super( permits, FAIR );
-            this.permits = permits;
+            this.resource = resource;
+            this.since = since;
         }
+    }
+
+    /**
+     * Borrowed resources are kept track of by identity, resources like channel buffers
+     * have equals and hash codes depending on their contents.
+     */
+    private static final class Borrowed
+    {
+        private final Object resource;
 
-        synchronized void setPermits( int permits )
+        Borrowed( Object resource )
         {
-            if ( permits > this.permits )
-            {
-                release( permits - this.permits );
-            }
-            else if ( permits < this.permits )
-            {
-                reducePermits( this.permits - permits );
-            }
-            this.permits = permits;
+            this.resource = resource;
+        }
+
+        @Override
+        public boolean equals( Object obj )
+        {
+            return obj instanceof Borrowed && ((Borrowed) obj).resource == resource;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode( resource );
         }
     }
 
-    private final LinkedList<R> unused = new LinkedList<R>();
-    private final Map<Thread, R> current = new ConcurrentHashMap<Thread, R>();
-    private final ResizableSemaphore resources;
-    private int maxUnused; // Guarded by unused
+    private static final class Waiter
+    {
+        private static final int WAITING = 0, SIGNALED = 1, CANCELLED = 2;
+
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger( WAITING );
+    }
+
+    private final AtomicReference<Idle<R>> unused = new AtomicReference<Idle<R>>();
+    private final AtomicInteger unusedCount = new AtomicInteger();
+    private final ConcurrentMap<Borrowed, R> borrowed = new ConcurrentHashMap<Borrowed, R>();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<Waiter>();
+    // Number of resources that can be acquired right now, can be negative after lowering max resources
+    private final AtomicInteger permits;
+    private final AtomicInteger maxResources;
+    private volatile int maxUnused;
+    private final long idleTimeoutMillis;
+    private final ScheduledFuture<?> eviction;
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final AtomicLong evicted = new AtomicLong();
 
     protected ResourcePool( int maxResources, int maxUnused )
     {
+        this( maxResources, maxUnused, 0 );
+    }
+
+    /**
+     * @param idleTimeoutMillis how long a resource may be unused before it's disposed,
+     * or 0 for keeping up to {@code maxUnused} resources forever.
+     */
+    protected ResourcePool( int maxResources, int maxUnused, long idleTimeoutMillis )
+    {
+        this.maxResources = new AtomicInteger( maxResources );
+        this.permits = new AtomicInteger( maxResources );
         this.maxUnused = maxUnused;
-        this.resources = new ResizableSemaphore( maxResources );
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        if ( idleTimeoutMillis > 0 )
+        {
+            long interval = Math.max( 1, idleTimeoutMillis / 2 );
+            this.eviction = evictor.scheduleWithFixedDelay( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS );
+        }
+        else
+        {
+            this.eviction = null;
+        }
     }
 
     protected abstract R create();
@@ -77,86 +158,215 @@ public abstract class ResourcePool<R>
 
     public final void setMaxResources( int maxResources )
     {
-        resources.setPermits( maxResources );
+        int added = maxResources - this.maxResources.getAndSet( maxResources );
+        permits.addAndGet( added );
+        for ( int i = 0; i < added; i++ )
+        {
+            signalWaiter();
+        }
     }
 
+    /**
+     * Hands out an unused resource, or creates a new one, waiting for one to be
+     * released if there already are as many as there may be.
+     */
     public final R acquire()
     {
-        Thread thread = Thread.currentThread();
-        R resource = current.get( thread );
-        if ( resource == null )
+        long startNanos = System.nanoTime();
+        boolean interrupted = false;
+        try
         {
-            resources.acquireUninterruptibly();
-            List<R> garbage = null;
-            synchronized ( unused )
+            for ( ;; )
             {
-                for ( ;; )
+                if ( tryTakePermit() ) return borrow( startNanos );
+
+                Waiter waiter = new Waiter();
+                waiters.offer( waiter );
+                // A resource may have been released in between, before there was anyone to signal
+                if ( tryTakePermit() )
                 {
-                    resource = unused.poll();
-                    if ( resource == null ) break;
-                    if ( isAlive( resource ) ) break;
-                    if ( garbage == null ) garbage = new LinkedList<R>();
-                    garbage.add( resource );
+                    if ( waiter.state.compareAndSet( Waiter.WAITING, Waiter.CANCELLED ) ) waiters.remove( waiter );
+                    return borrow( startNanos );
                 }
-            }
-            if ( resource == null )
-            {
-                resource = create();
-            }
-            current.put( thread, resource );
-            if ( garbage != null )
-            {
-                for ( R dead : garbage )
+                while ( waiter.state.get() == Waiter.WAITING )
                 {
-                    dispose( dead );
+                    LockSupport.park( this );
+                    interrupted |= Thread.interrupted();
                 }
             }
         }
-        return resource;
+        finally
+        {
+            if ( interrupted ) Thread.currentThread().interrupt();
+        }
     }
 
-    public final void release()
+    private boolean tryTakePermit()
     {
-        Thread thread = Thread.currentThread();
-        R resource = current.remove( thread );
+        for ( ;; )
+        {
+            int available = permits.get();
+            if ( available <= 0 ) return false;
+            if ( permits.compareAndSet( available, available - 1 ) ) return true;
+        }
+    }
+
+    private R borrow( long startNanos )
+    {
+        R resource;
         try
         {
-            if ( resource != null )
+            resource = popAlive();
+            if ( resource == null ) resource = create();
+        }
+        catch ( RuntimeException e )
+        {
+            returnPermit();
+            throw e;
+        }
+        catch ( Error e )
+        {
+            returnPermit();
+            throw e;
+        }
+        borrowed.put( new Borrowed( resource ), resource );
+        waitTimes.record( System.nanoTime() - startNanos );
+        return resource;
+    }
+
+    /**
+     * Gives back a resource gotten from {@link #acquire()}, from any thread.
+     */
+    public final void release( R resource )
+    {
+        if ( resource == null || borrowed.remove( new Borrowed( resource ) ) == null ) return;
+
+        boolean keep = isAlive( resource );
+        if ( keep && unusedCount.incrementAndGet() > maxUnused )
+        {
+            unusedCount.decrementAndGet();
+            keep = false;
+        }
+        if ( keep ) push( new Idle<R>( resource, System.currentTimeMillis() ) );
+        else dispose( resource );
+        returnPermit();
+    }
+
+    private void returnPermit()
+    {
+        permits.incrementAndGet();
+        signalWaiter();
+    }
+
+    private void signalWaiter()
+    {
+        Waiter waiter;
+        while ( (waiter = waiters.poll()) != null )
+        {
+            if ( waiter.state.compareAndSet( Waiter.WAITING, Waiter.SIGNALED ) )
             {
-                boolean dead = false;
-                synchronized ( unused )
-                {
-                    if ( unused.size() < maxUnused )
-                    {
-                        unused.add( resource );
-                    }
-                    else
-                    {
-                        dead = true;
-                    }
-                }
-                if ( dead ) dispose( resource );
+                LockSupport.unpark( waiter.thread );
+                return;
             }
         }
-        finally
+    }
+
+    private void push( Idle<R> idle )
+    {
+        for ( ;; )
+        {
+            Idle<R> top = unused.get();
+            idle.next = top;
+            if ( unused.compareAndSet( top, idle ) ) return;
+        }
+    }
+
+    private R popAlive()
+    {
+        for ( ;; )
         {
-            resources.release();
+            Idle<R> top = unused.get();
+            if ( top == null ) return null;
+            if ( !unused.compareAndSet( top, top.next ) ) continue;
+            unusedCount.decrementAndGet();
+            if ( isAlive( top.resource ) ) return top.resource;
+            dispose( top.resource );
         }
     }
 
+    /**
+     * Disposes the resources that have been unused for longer than the idle timeout.
+     * All unused resources are taken off the stack while sorting them out, so an acquiring
+     * thread may create a new one in the meantime. The rest are put back in the same order,
+     * as new entries so that a concurrent {@link #popAlive()} can't mistake them for the
+     * entries it saw on top of the stack.
+     */
+    private void evictIdle()
+    {
+        long oldestAllowed = System.currentTimeMillis() - idleTimeoutMillis;
+        List<Idle<R>> keep = new ArrayList<Idle<R>>();
+        for ( Idle<R> idle = unused.getAndSet( null ); idle != null; idle = idle.next )
+        {
+            if ( idle.since >= oldestAllowed && isAlive( idle.resource ) )
+            {
+                keep.add( idle );
+            }
+            else
+            {
+                unusedCount.decrementAndGet();
+                evicted.incrementAndGet();
+                dispose( idle.resource );
+            }
+        }
+        for ( int i = keep.size() - 1; i >= 0; i-- )
+        {
+            push( new Idle<R>( keep.get( i ).resource, keep.get( i ).since ) );
+        }
+    }
+
+    /**
+     * @return how long {@link #acquire()} has taken, mostly spent waiting for
+     * resources to be released when all are in use.
+     */
+    public LatencyHistogram getWaitTimes()
+    {
+        return waitTimes;
+    }
+
+    public int getActive()
+    {
+        return borrowed.size();
+    }
+
+    public int getIdle()
+    {
+        return Math.max( 0, unusedCount.get() );
+    }
+
+    /**
+     * @return the number of resources disposed for having been unused for too long.
+     */
+    public long getEvicted()
+    {
+        return evicted.get();
+    }
+
     public final void close( boolean force )
     {
-        List<R> dead = new LinkedList<R>();
-        synchronized ( unused )
+        if ( eviction != null ) eviction.cancel( false );
+        maxUnused = 0;
+        for ( Idle<R> idle = unused.getAndSet( null ); idle != null; idle = idle.next )
         {
-            dead.addAll( unused );
-            unused.clear();
-            maxUnused = 0;
+            unusedCount.decrementAndGet();
+            dispose( idle.resource );
         }
-        if ( force ) dead.addAll( current.values() );
-        for ( R resource : dead )
+        if ( force )
         {
-            dispose( resource );
+            for ( Borrowed key : borrowed.keySet() )
+            {
+                R resource = borrowed.remove( key );
+                if ( resource != null ) dispose( resource );
+            }
         }
     }
 }
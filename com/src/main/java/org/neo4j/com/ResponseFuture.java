@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.neo4j.helpers.Exceptions;
+
+/**
+ * The result of an asynchronously sent request, see {@link Client#sendRequestAsync}.
+ * Either wait for it with {@link #get()} or have a {@link ResponseListener}
+ * notified when it completes. Listeners are notified before those waiting get
+ * the response, so whatever a listener does is seen by them.
+ */
+public class ResponseFuture<T>
+{
+    private final CountDownLatch done = new CountDownLatch( 1 );
+    private final List<ResponseListener<T>> listeners = new ArrayList<ResponseListener<T>>( 1 );
+    private Response<T> response; // Guarded by listeners
+    private Throwable failure; // Guarded by listeners
+    private boolean settled; // Guarded by listeners, set once completed or failed, before done
+
+    public static <T> ResponseFuture<T> completed( Response<T> response )
+    {
+        ResponseFuture<T> future = new ResponseFuture<T>();
+        future.complete( response );
+        return future;
+    }
+
+    public static <T> ResponseFuture<T> failed( Throwable cause )
+    {
+        ResponseFuture<T> future = new ResponseFuture<T>();
+        future.fail( cause );
+        return future;
+    }
+
+    /**
+     * @return {@code false} if this future already had completed or failed.
+     */
+    boolean complete( Response<T> response )
+    {
+        List<ResponseListener<T>> toNotify;
+        synchronized ( listeners )
+        {
+            if ( settled ) return false;
+            this.response = response;
+            toNotify = settle();
+        }
+        try
+        {
+            for ( ResponseListener<T> listener : toNotify )
+            {
+                listener.completed( response );
+            }
+        }
+        finally
+        {
+            done.countDown();
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code false} if this future already had completed or failed.
+     */
+    boolean fail( Throwable cause )
+    {
+        List<ResponseListener<T>> toNotify;
+        synchronized ( listeners )
+        {
+            if ( settled ) return false;
+            this.failure = cause;
+            toNotify = settle();
+        }
+        try
+        {
+            for ( ResponseListener<T> listener : toNotify )
+            {
+                listener.failed( cause );
+            }
+        }
+        finally
+        {
+            done.countDown();
+        }
+        return true;
+    }
+
+    // Listeners added from now on are notified right away
+    private List<ResponseListener<T>> settle()
+    {
+        settled = true;
+        List<ResponseListener<T>> toNotify = new ArrayList<ResponseListener<T>>( listeners );
+        listeners.clear();
+        return toNotify;
+    }
+
+    public boolean isDone()
+    {
+        return done.getCount() == 0;
+    }
+
+    public void addListener( ResponseListener<T> listener )
+    {
+        Throwable failure;
+        Response<T> response;
+        synchronized ( listeners )
+        {
+            if ( !settled )
+            {
+                listeners.add( listener );
+                return;
+            }
+            failure = this.failure;
+            response = this.response;
+        }
+        if ( failure != null ) listener.failed( failure );
+        else listener.completed( response );
+    }
+
+    /**
+     * Waits for the response to arrive.
+     * @return the response, which must be closed just like one from a synchronous request.
+     * @throws ComException or whatever exception the request failed with.
+     */
+    public Response<T> get()
+    {
+        try
+        {
+            done.await();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ComException( "Interrupted while waiting for response", e );
+        }
+        return getNow();
+    }
+
+    /**
+     * Like {@link #get()}, but waits at most the given time.
+     * @throws ComException if the response didn't arrive in time.
+     */
+    public Response<T> get( long timeout, TimeUnit unit )
+    {
+        try
+        {
+            if ( !done.await( timeout, unit ) )
+            {
+                throw new ComException( "Response didn't arrive within " + timeout + " " + unit );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new ComException( "Interrupted while waiting for response", e );
+        }
+        return getNow();
+    }
+
+    private Response<T> getNow()
+    {
+        synchronized ( listeners )
+        {
+            if ( failure != null ) throw Exceptions.launderedException( ComException.class, failure );
+            return response;
+        }
+    }
+}
@@ -20,18 +20,23 @@
 package org.neo4j.com;
 
 import static org.neo4j.com.DechunkingChannelBuffer.assertSameProtocolVersion;
+import static org.neo4j.com.Protocol.REQUEST_ID_SIZE;
+import static org.neo4j.com.Protocol.hasDeadlines;
+import static org.neo4j.com.Protocol.hasRequestIds;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -39,20 +44,31 @@ import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelException;
 import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.DefaultExceptionEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.queue.BlockingReadHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.neo4j.com.RequestContext.Tx;
+import org.neo4j.com.RequestMetrics.Phase;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.NamedThreadFactory;
 import org.neo4j.helpers.Pair;
@@ -68,36 +84,71 @@ import org.neo4j.kernel.impl.util.StringLogger;
  */
 public abstract class Server<T, R> extends Protocol implements ChannelPipelineFactory
 {
-    static final byte INTERNAL_PROTOCOL_VERSION = 2;
+    /* Version 2 up to and including 1.7
+     * Version 3 request ids in the chunks
+     * Version 4 large blocks in transaction streams
+     * Version 5 compression, see CompressionHandler
+     * Version 6 compact request contexts, see ConnectionSession
+     * Version 7 heartbeats, see HeartbeatHandler
+     * Version 8 request deadlines, see RequestDeadline */
+    static final byte INTERNAL_PROTOCOL_VERSION = 8;
+    // Versions in between the legacy and the current one, with the features up to and including them
+    static final byte REQUEST_IDS_INTERNAL_PROTOCOL_VERSION = 3;
+    static final byte LARGE_BLOCKS_INTERNAL_PROTOCOL_VERSION = 4;
+    static final byte COMPRESSION_INTERNAL_PROTOCOL_VERSION = 5;
+    static final byte COMPACT_CONTEXTS_INTERNAL_PROTOCOL_VERSION = 6;
+    static final byte HEARTBEATS_INTERNAL_PROTOCOL_VERSION = 7;
+    /**
+     * The internal protocol version spoken by 1.7 and older instances, i.e. without
+     * request ids in the chunks. Clients talking to such instances must use it.
+     */
+    public static final byte LEGACY_INTERNAL_PROTOCOL_VERSION = 2;
     public static final int DEFAULT_BACKUP_PORT = 6362;
 
     // It's ok if there are more transactions, since these worker threads doesn't
     // do any actual work themselves, but spawn off other worker threads doing the
     // actual work. So this is more like a core Netty I/O pool worker size.
     public final static int DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS = 200;
+    // How often a channel is checked for having been closed without Netty telling us,
+    // at most, see silentChannelCheck
+    private static final long SILENT_CHANNEL_CHECK_MILLIS = 5000;
 
+    private final Transport transport;
     private final ChannelFactory channelFactory;
     private final ServerBootstrap bootstrap;
     private T requestTarget;
     private final ChannelGroup channelGroup;
-    private final Map<Channel, Pair<RequestContext, AtomicLong /*time last heard of*/>> connectedSlaveChannels =
-            new HashMap<Channel, Pair<RequestContext,AtomicLong>>();
+    // Since requests are multiplexed there may be several contexts in flight per channel
+    private final Map<Channel, Map<RequestContext, AtomicLong /*time last heard of*/>> connectedSlaveChannels =
+            new HashMap<Channel, Map<RequestContext, AtomicLong>>();
     private final ExecutorService executor;
-    private final ExecutorService targetCallExecutor;
+    private final RequestScheduler scheduler;
+    private final RequestMetrics metrics = new RequestMetrics();
+    private final long slowRequestThresholdMillis;
     private final StringLogger msgLog;
-    private final Map<Channel, PartialRequest> partialRequests =
-            Collections.synchronizedMap( new HashMap<Channel, PartialRequest>() );
+    private final Map<Pair<Channel, Integer/*request id*/>, StreamingRequest> streamingRequests =
+            Collections.synchronizedMap( new HashMap<Pair<Channel, Integer>, StreamingRequest>() );
+    private final MemoryBudget memoryBudget;
+    private final ChannelLocal<ChannelBudget> channelBudgets = new ChannelLocal<ChannelBudget>()
+    {
+        @Override
+        protected ChannelBudget initialValue( Channel channel )
+        {
+            return new ChannelBudget( channel, memoryBudget );
+        }
+    };
     private final int frameLength;
+    private final int maxWriteAheadBytes;
     private volatile boolean shuttingDown;
 
     // Executor for channels that we know should be finished, but can't due to being
     // active at the moment.
     private final ExecutorService unfinishedTransactionExecutor;
 
-    // This is because there's a bug in Netty causing some channelClosed/channelDisconnected
-    // events to not be sent. This is merely a safety net to catch the remained of the closed
-    // channels that netty doesn't tell us about.
-    private final ScheduledExecutorService silentChannelExecutor;
+    // Checks channels for being silent, see silentChannelCheck, and drives the heartbeats
+    private final Timer livenessTimer;
+    private final Map<Channel, Timeout> silentChannelChecks = new HashMap<Channel, Timeout>(); // Guarded by connectedSlaveChannels
+    private final long heartbeatTimeoutMillis;
 
     private final byte applicationProtocolVersion;
     private final int oldChannelThresholdMillis;
@@ -105,27 +156,40 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     public Server( T requestTarget, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
             int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier )
+    {
+        this( requestTarget, port, logger, frameLength, applicationProtocolVersion, maxNumberOfConcurrentTransactions,
+                oldChannelThreshold, txVerifier, new Settings() );
+    }
+
+    public Server( T requestTarget, final int port, StringLogger logger, int frameLength, byte applicationProtocolVersion,
+            int maxNumberOfConcurrentTransactions, int oldChannelThreshold/*seconds*/, TxChecksumVerifier txVerifier,
+            Settings settings )
     {
         this.requestTarget = requestTarget;
+        this.memoryBudget = settings.memoryBudget != null ? settings.memoryBudget : new MemoryBudget();
+        this.heartbeatTimeoutMillis = settings.heartbeatTimeoutMillis;
+        this.slowRequestThresholdMillis = settings.slowRequestThresholdMillis;
         this.frameLength = frameLength;
+        this.maxWriteAheadBytes = settings.maxWriteAheadBytes;
         this.applicationProtocolVersion = applicationProtocolVersion;
         this.msgLog = logger;
         this.txVerifier = txVerifier;
         this.oldChannelThresholdMillis = oldChannelThreshold*1000;
         executor = Executors.newCachedThreadPool();
-        targetCallExecutor = Executors.newCachedThreadPool( new NamedThreadFactory( getClass().getSimpleName() + ":" + port ) );
+        this.scheduler = settings.scheduler != null ? settings.scheduler :
+                new RequestScheduler( getClass().getSimpleName() + ":" + port );
         unfinishedTransactionExecutor = Executors.newScheduledThreadPool( 2 );
-        channelFactory = new NioServerSocketChannelFactory(
-                executor, executor, maxNumberOfConcurrentTransactions );
-        silentChannelExecutor = Executors.newSingleThreadScheduledExecutor();
-        silentChannelExecutor.scheduleWithFixedDelay( silentChannelFinisher(), 5, 5, TimeUnit.SECONDS );
+        transport = Transport.configured();
+        channelFactory = transport.newServerChannelFactory( executor, maxNumberOfConcurrentTransactions );
+        livenessTimer = new HashedWheelTimer( new NamedThreadFactory( getClass().getSimpleName() + ":" + port +
+                " liveness" ), 50, TimeUnit.MILLISECONDS );
         bootstrap = new ServerBootstrap( channelFactory );
         bootstrap.setPipelineFactory( this );
 
         Channel channel;
         try
         {
-            channel = bootstrap.bind( new InetSocketAddress( port ) );
+            channel = bootstrap.bind( transport.serverAddress( port ) );
         }
         catch ( ChannelException e )
         {
@@ -138,44 +202,132 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         msgLog.logMessage( getClass().getSimpleName() + " communication server started and bound to " + port, true );
     }
 
-    private Runnable silentChannelFinisher()
+    /**
+     * Optional settings of a server, each one with a default, e.g.
+     * {@code new Server.Settings().slowRequestThresholdMillis( 1000 ).heartbeatTimeoutMillis( 5000 )}.
+     */
+    public static class Settings
     {
-        // This poller is here because sometimes Netty doesn't tell us when channels are
-        // closed or disconnected. Most of the time it does, but this acts as a safety
-        // net for those we don't get notifications for. When the bug is fixed remove this.
-        return new Runnable()
+        private int maxWriteAheadBytes = ChunkingChannelBuffer.DEFAULT_MAX_WRITE_AHEAD_BYTES;
+        private RequestScheduler scheduler;
+        private long slowRequestThresholdMillis;
+        private long heartbeatTimeoutMillis;
+        private MemoryBudget memoryBudget;
+
+        /**
+         * @param maxWriteAheadBytes how many bytes of a response that may be written, but
+         * not yet sent off, before the writing of it waits for the socket to drain.
+         */
+        public Settings maxWriteAheadBytes( int maxWriteAheadBytes )
+        {
+            this.maxWriteAheadBytes = maxWriteAheadBytes;
+            return this;
+        }
+
+        /**
+         * @param scheduler runs the requests. By default one with the default
+         * limits of each {@link RequestClass}.
+         */
+        public Settings scheduler( RequestScheduler scheduler )
+        {
+            this.scheduler = scheduler;
+            return this;
+        }
+
+        /**
+         * @param slowRequestThresholdMillis requests taking at least this long are logged,
+         * along with their timings and context. 0, the default, means no logging of slow requests.
+         */
+        public Settings slowRequestThresholdMillis( long slowRequestThresholdMillis )
+        {
+            this.slowRequestThresholdMillis = slowRequestThresholdMillis;
+            return this;
+        }
+
+        /**
+         * @param heartbeatTimeoutMillis channels of clients sending heartbeats are closed, and
+         * their transactions finished off, if nothing has been heard from them for this long.
+         * 0, the default, means no heartbeats, see {@link HeartbeatHandler}.
+         */
+        public Settings heartbeatTimeoutMillis( long heartbeatTimeoutMillis )
+        {
+            this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * @param memoryBudget how many bytes the requests in flight on this server may hold on to.
+         * By default the {@link MemoryBudget#MemoryBudget() default} budget.
+         */
+        public Settings memoryBudget( MemoryBudget memoryBudget )
+        {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+    }
+
+    /**
+     * Finishes off a channel which hasn't been heard of for longer than the old channel
+     * threshold, or which has been closed. There's one check per channel with requests
+     * in flight, on the timing wheel, due when the channel would become too old.
+     */
+    private TimerTask silentChannelCheck( final Channel channel )
+    {
+        // Closed channels are checked for here because sometimes Netty doesn't tell us when
+        // channels are closed or disconnected. Most of the time it does, but this acts as a
+        // safety net for those we don't get notifications for.
+        return new TimerTask()
         {
             @Override
-            public void run()
+            public void run( Timeout timeout )
             {
-                Map<Channel, Boolean/*starting to get old?*/> channels = new HashMap<Channel, Boolean>();
+                long age;
                 synchronized ( connectedSlaveChannels )
                 {
-                    for ( Map.Entry<Channel, Pair<RequestContext, AtomicLong>> channel : connectedSlaveChannels.entrySet() )
-                    {   // Has this channel been silent for a while?
-                        long age = System.currentTimeMillis()-channel.getValue().other().get();
-                        if ( age > oldChannelThresholdMillis )
-                        {
-                            msgLog.logMessage( "Found a silent channel " + channel + ", " + age );
-                            channels.put( channel.getKey(), Boolean.TRUE );
-                        }
-                        else if ( age > oldChannelThresholdMillis/2 )
-                        {   // Then add it to a list to check
-                            channels.put( channel.getKey(), Boolean.FALSE );
-                        }
+                    if ( silentChannelChecks.get( channel ) != timeout ) return; // Replaced or cancelled
+                    Map<RequestContext, AtomicLong> requests = connectedSlaveChannels.get( channel );
+                    age = System.currentTimeMillis()-lastHeardOf( requests );
+                    if ( age <= oldChannelThresholdMillis && channel.isOpen() && channel.isConnected() )
+                    {
+                        scheduleSilentChannelCheck( channel, Math.min( oldChannelThresholdMillis-age+1,
+                                SILENT_CHANNEL_CHECK_MILLIS ) );
+                        return;
                     }
                 }
-                for ( Map.Entry<Channel, Boolean> channel : channels.entrySet() )
+                if ( age > oldChannelThresholdMillis )
                 {
-                    if ( channel.getValue() || !channel.getKey().isOpen() || !channel.getKey().isConnected() || !channel.getKey().isBound() )
-                    {
-                        tryToFinishOffChannel( channel.getKey() );
-                    }
+                    msgLog.logMessage( "Found a silent channel " + channel + ", " + age );
                 }
+                tryToFinishOffChannel( channel );
             }
         };
     }
 
+    // Must be called while holding the connectedSlaveChannels monitor
+    private void scheduleSilentChannelCheck( Channel channel, long delayMillis )
+    {
+        if ( shuttingDown ) return;
+        silentChannelChecks.put( channel, livenessTimer.newTimeout( silentChannelCheck( channel ),
+                delayMillis, TimeUnit.MILLISECONDS ) );
+    }
+
+    // Must be called while holding the connectedSlaveChannels monitor
+    private void cancelSilentChannelCheck( Channel channel )
+    {
+        Timeout check = silentChannelChecks.remove( channel );
+        if ( check != null ) check.cancel();
+    }
+
+    private static long lastHeardOf( Map<RequestContext, AtomicLong> requests )
+    {
+        long result = 0;
+        for ( AtomicLong time : requests.values() )
+        {
+            result = Math.max( result, time.get() );
+        }
+        return result;
+    }
+
     /**
      * Only exposed so that tests can control it. It's not configurable really.
      */
@@ -187,7 +339,17 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     public ChannelPipeline getPipeline() throws Exception
     {
         ChannelPipeline pipeline = Channels.pipeline();
+        transport.addTransportPipes( pipeline );
         addLengthFieldPipes( pipeline, frameLength );
+        if ( heartbeatTimeoutMillis > 0 && hasHeartbeats( getInternalProtocolVersion() ) )
+        {
+            HeartbeatHandler.addHeartbeatPipes( pipeline, livenessTimer, getInternalProtocolVersion(),
+                    heartbeatTimeoutMillis, false, msgLog );
+        }
+        if ( hasCompression( getInternalProtocolVersion() ) )
+        {
+            pipeline.addLast( "compression", new CompressionHandler( getInternalProtocolVersion(), false, msgLog ) );
+        }
         pipeline.addLast( "serverHandler", new ServerHandler() );
         return pipeline;
     }
@@ -216,6 +378,9 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         public void channelClosed( ChannelHandlerContext ctx, ChannelStateEvent e )
                 throws Exception
         {
+            failStreamingRequests( ctx.getChannel() );
+            ChannelBudget budget = channelBudgets.remove( ctx.getChannel() );
+            if ( budget != null ) budget.close();
             if ( !ctx.getChannel().isOpen() )
             {
                 tryToFinishOffChannel( ctx.getChannel() );
@@ -242,16 +407,20 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected void tryToFinishOffChannel( Channel channel )
     {
-        Pair<RequestContext, AtomicLong> slave = null;
+        Map<RequestContext, AtomicLong> slaves = null;
         synchronized ( connectedSlaveChannels )
         {
-            slave = connectedSlaveChannels.remove( channel );
+            slaves = connectedSlaveChannels.remove( channel );
+            cancelSilentChannelCheck( channel );
         }
-        if ( slave == null )
+        if ( slaves == null )
         {
             return;
         }
-        tryToFinishOffChannel( channel, slave.first() );
+        for ( RequestContext slave : slaves.keySet() )
+        {
+            tryToFinishOffChannel( channel, slave );
+        }
     }
 
     protected void tryToFinishOffChannel( Channel channel, RequestContext slave )
@@ -274,6 +443,24 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         return true;
     }
 
+    /**
+     * @return whether or not the job was accepted by the scheduler. A job
+     * submitted after shutdown counts as accepted.
+     */
+    private boolean submitSilent( RequestClass requestClass, Runnable job )
+    {
+        try
+        {
+            return scheduler.submit( requestClass, job );
+        }
+        catch ( RejectedExecutionException e )
+        {   // Don't scream and shout if we're shutting down, because a rejected execution
+            // is expected at that time.
+            if ( !shuttingDown ) throw e;
+            return true;
+        }
+    }
+
     private void submitSilent( ExecutorService service, Runnable job )
     {
         try
@@ -322,70 +509,116 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected void handleRequest( ChannelBuffer buffer, final Channel channel ) throws IOException
     {
-        Byte continuation = readContinuationHeader( buffer, channel );
+        long receivedNanos = System.nanoTime();
+        int chunkSize = buffer.readableBytes();
+        int chunkStart = buffer.readerIndex();
+        byte[] header = new byte[2];
+        buffer.readBytes( header );
+        int requestId = readRequestId( buffer );
+        int headerSize = buffer.readerIndex() - chunkStart;
+        Byte continuation = readContinuationHeader( header, requestId, channel );
         if ( continuation == null ) return;
-        if ( continuation == ChunkingChannelBuffer.CONTINUATION_MORE )
+        Pair<Channel, Integer> requestKey = Pair.of( channel, requestId );
+        StreamingRequest streamingRequest = continuation == ChunkingChannelBuffer.CONTINUATION_MORE ?
+                streamingRequests.get( requestKey ) : streamingRequests.remove( requestKey );
+        if ( streamingRequest != null )
         {
-            PartialRequest partialRequest = partialRequests.get( channel );
-            if ( partialRequest == null )
+            // A following chunk of a request that is already being handled, its handler reads it
+            buffer.readerIndex( chunkStart );
+            streamingRequest.add( buffer, chunkSize );
+            // The client starts to wait for the response once it has sent all of the request
+            if ( continuation == ChunkingChannelBuffer.CONTINUATION_LAST )
             {
-                // This is the first chunk in a multi-chunk request
-                RequestType<T> type = getRequestContext( buffer.readByte() );
-                RequestContext context = readContext( buffer );
-                ChannelBuffer targetBuffer = mapSlave( channel, context, type );
-                partialRequest = new PartialRequest( type, context, targetBuffer );
-                partialRequests.put( channel, partialRequest );
+                streamingRequest.deadline.start( receivedNanos );
             }
-            partialRequest.add( buffer );
+            return;
+        }
+
+        RequestType<T> type = getRequestContext( buffer.readByte() );
+        RequestDeadline deadline = new RequestDeadline( channel,
+                hasDeadlines( getInternalProtocolVersion() ) ? buffer.readInt() : 0 );
+        RequestContext context = readContext( buffer, channel );
+        ChannelBuffer targetBuffer = mapSlave( channel, context, type );
+        ChannelBudget budget = channelBudgets.get( channel );
+        if ( continuation == ChunkingChannelBuffer.CONTINUATION_LAST )
+        {
+            // Held on to until handled
+            budget.allocate( chunkSize );
+            deadline.start( receivedNanos );
         }
         else
         {
-            PartialRequest partialRequest = partialRequests.remove( channel );
-            RequestType<T> type = null;
-            RequestContext context = null;
-            ChannelBuffer targetBuffer;
-            ChannelBuffer bufferToReadFrom = null;
-            ChannelBuffer bufferToWriteTo = null;
-            if ( partialRequest == null )
-            {
-                // This is the one and single chunk in the request
-                type = getRequestContext( buffer.readByte() );
-                context = readContext( buffer );
-                targetBuffer = mapSlave( channel, context, type );
-                bufferToReadFrom = buffer;
-                bufferToWriteTo = targetBuffer;
-            }
-            else
+            // This is the first chunk in a multi-chunk request. Rather than buffering all of it
+            // the request is handled right away, its handler reading the rest as it arrives.
+            ChannelBuffer firstChunk = ChannelBuffers.wrappedBuffer( buffer.slice( chunkStart, headerSize ),
+                    buffer.slice() );
+            streamingRequest = new StreamingRequest( channel, budget, deadline, firstChunk, chunkSize );
+            streamingRequests.put( requestKey, streamingRequest );
+        }
+
+        targetBuffer.clear();
+        final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( targetBuffer, channel, frameLength,
+                getInternalProtocolVersion(), applicationProtocolVersion, requestId, maxWriteAheadBytes,
+                BufferPool.DEFAULT, true, budget );
+        long decodedNanos = System.nanoTime();
+        if ( !submitSilent( getRequestClass( type ), targetCaller( type, channel, context, chunkingBuffer,
+                buffer, streamingRequest, budget, deadline, receivedNanos, decodedNanos, chunkSize ) ) )
+        {
+            rejectRequest( type, channel, context, chunkingBuffer );
+            if ( streamingRequest != null ) streamingRequest.done();
+            else budget.free( chunkSize );
+        }
+    }
+
+    /**
+     * Lets the handlers of requests on a closed channel, still waiting for
+     * more of their requests, know that no more will come.
+     */
+    private void failStreamingRequests( Channel channel )
+    {
+        synchronized ( streamingRequests )
+        {
+            for ( Iterator<Map.Entry<Pair<Channel, Integer>, StreamingRequest>> entries =
+                    streamingRequests.entrySet().iterator(); entries.hasNext(); )
             {
-                // This is the last chunk in a multi-chunk request
-                type = partialRequest.type;
-                context = partialRequest.context;
-                targetBuffer = partialRequest.buffer;
-                partialRequest.add( buffer );
-                bufferToReadFrom = targetBuffer;
-                bufferToWriteTo = ChannelBuffers.dynamicBuffer();
+                Map.Entry<Pair<Channel, Integer>, StreamingRequest> entry = entries.next();
+                if ( entry.getKey().first() == channel )
+                {
+                    entry.getValue().failed( new ClosedChannelException() );
+                    entries.remove();
+                }
             }
-
-            bufferToWriteTo.clear();
-            final ChunkingChannelBuffer chunkingBuffer = new ChunkingChannelBuffer( bufferToWriteTo, channel, frameLength,
-                    getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( targetCallExecutor, targetCaller( type, channel, context, chunkingBuffer, bufferToReadFrom ) );
         }
     }
 
-    private Byte readContinuationHeader( ChannelBuffer buffer, final Channel channel )
+    /**
+     * @return how many bytes the requests in flight on this server hold on to, and may.
+     */
+    public MemoryBudget getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    private int readRequestId( ChannelBuffer buffer )
+    {
+        // A client with another internal protocol version may not have sent any request id,
+        // but that will be detected when verifying the header anyway.
+        return hasRequestIds( getInternalProtocolVersion() ) && buffer.readableBytes() >= REQUEST_ID_SIZE ?
+                buffer.readInt() : 0;
+    }
+
+    private Byte readContinuationHeader( byte[] header, int requestId, final Channel channel )
     {
-        byte[] header = new byte[2];
-        buffer.readBytes( header );
         try
         {   // Read request header and assert correct internal/application protocol version
             assertSameProtocolVersion( header, getInternalProtocolVersion(), applicationProtocolVersion );
         }
         catch ( final IllegalProtocolVersionException e )
         {   // Version mismatch, fail with a good exception back to the client
-            final ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer( ChannelBuffers.dynamicBuffer(), channel,
-                    frameLength, getInternalProtocolVersion(), applicationProtocolVersion );
-            submitSilent( targetCallExecutor, new Runnable()
+            final ChunkingChannelBuffer failureResponse = new ChunkingChannelBuffer(
+                    BufferPool.DEFAULT.acquire( BufferPool.MIN_SIZE ), channel, frameLength, getInternalProtocolVersion(),
+                    applicationProtocolVersion, requestId, maxWriteAheadBytes, BufferPool.DEFAULT, true, null );
+            submitSilent( RequestClass.CONTROL, new Runnable()
             {
                 @Override
                 public void run()
@@ -398,8 +631,57 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         return (byte) (header[0] & 0x1);
     }
 
+    /**
+     * Answers a request which the scheduler didn't have room for with a failure, right away.
+     */
+    private void rejectRequest( RequestType<T> type, Channel channel, RequestContext context,
+            ChunkingChannelBuffer targetBuffer )
+    {
+        RequestClass requestClass = getRequestClass( type );
+        try
+        {
+            targetBuffer.clear( true );
+            writeFailureResponse( new RequestRejectedException( "Too many " + requestClass.name().toLowerCase()
+                    + " requests in progress, rejected " + type ), targetBuffer );
+        }
+        finally
+        {
+            unmapSlave( channel, context );
+        }
+    }
+
+    /**
+     * Answers a request which got a thread only after its client stopped waiting for it
+     * with a failure, instead of handling it.
+     */
+    private void expireRequest( RequestType<T> type, Channel channel, ChunkingChannelBuffer targetBuffer )
+    {
+        scheduler.expired( getRequestClass( type ) );
+        if ( !channel.isConnected() ) return;
+        targetBuffer.clear( true );
+        writeFailureResponse( new RequestExpiredException( "Client has stopped waiting for " + type ),
+                targetBuffer );
+    }
+
+    /**
+     * @return the class of requests that requests of the given type is scheduled as.
+     * Unless overridden all requests are of the {@link RequestClass#CONTROL} class,
+     * i.e. never queued.
+     */
+    protected RequestClass getRequestClass( RequestType<T> type )
+    {
+        return RequestClass.CONTROL;
+    }
+
+    public RequestScheduler getRequestScheduler()
+    {
+        return scheduler;
+    }
+
     private Runnable targetCaller( final RequestType<T> type, final Channel channel, final RequestContext context,
-            final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom )
+            final ChunkingChannelBuffer targetBuffer, final ChannelBuffer bufferToReadFrom,
+            final StreamingRequest streamingRequest, final ChannelBudget budget, final RequestDeadline deadline,
+            final long receivedNanos, final long decodedNanos, final long firstChunkBytes )
     {
         return new Runnable()
         {
@@ -409,12 +691,48 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
                 Response<R> response = null;
                 try
                 {
-                    response = type.getTargetCaller().call( requestTarget, context, bufferToReadFrom, targetBuffer );
+                    if ( deadline.isPassed() )
+                    {
+                        expireRequest( type, channel, targetBuffer );
+                        return;
+                    }
+                    final long[] phaseNanos = new long[Phase.values().length];
+                    long startedNanos = System.nanoTime();
+                    phaseNanos[Phase.RECEIVE.ordinal()] = decodedNanos - receivedNanos;
+                    phaseNanos[Phase.QUEUE.ordinal()] = startedNanos - decodedNanos;
+                    ChannelBuffer input = streamingRequest != null ? streamingRequest.body() : bufferToReadFrom;
+                    RequestDeadline.enter( deadline );
+                    try
+                    {
+                        response = type.getTargetCaller().call( requestTarget, context, input, targetBuffer );
+                    }
+                    finally
+                    {
+                        RequestDeadline.exit();
+                    }
+                    long executedNanos = System.nanoTime();
+                    phaseNanos[Phase.EXECUTE.ordinal()] = executedNanos - startedNanos;
                     type.getObjectSerializer().write( response.response(), targetBuffer );
-                    writeStoreId( response.getStoreId(), targetBuffer );
-                    writeTransactionStreams( response.transactions(), targetBuffer );
-                    targetBuffer.done();
+                    writeStoreId( response.getStoreId(), targetBuffer, channel );
+                    writeTransactionStreams( response.transactions(), targetBuffer,
+                            hasLargeBlocks( getInternalProtocolVersion() ) );
+                    ChannelFuture lastChunkWritten = targetBuffer.done();
+                    final long serializedNanos = System.nanoTime();
+                    phaseNanos[Phase.SERIALIZE.ordinal()] = serializedNanos - executedNanos;
                     responseWritten( type, channel, context );
+                    // There's always a last chunk to write, if nothing else the continuation header
+                    lastChunkWritten.addListener( new ChannelFutureListener()
+                    {
+                        @Override
+                        public void operationComplete( ChannelFuture future )
+                        {
+                            long sentNanos = System.nanoTime();
+                            phaseNanos[Phase.TRANSFER.ordinal()] = sentNanos - serializedNanos;
+                            phaseNanos[Phase.TOTAL.ordinal()] = sentNanos - receivedNanos;
+                            long requestBytes = streamingRequest != null ? streamingRequest.bytes : firstChunkBytes;
+                            requestCompleted( type, context, phaseNanos, requestBytes, targetBuffer.getBytesWritten() );
+                        }
+                    } );
                 }
                 catch ( Throwable e )
                 {
@@ -426,12 +744,46 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
                 finally
                 {
                     if ( response != null ) response.close();
+                    if ( streamingRequest != null ) streamingRequest.done();
+                    else budget.free( (int) firstChunkBytes );
                     unmapSlave( channel, context );
                 }
             }
         };
     }
 
+    /**
+     * Records the timings and traffic of a successfully served request and logs it
+     * if it took longer than the slow request threshold.
+     */
+    private void requestCompleted( RequestType<T> type, RequestContext context, long[] phaseNanos,
+            long requestBytes, long responseBytes )
+    {
+        int machineId = context.machineId();
+        StringBuilder phases = new StringBuilder();
+        for ( Phase phase : new Phase[] { Phase.RECEIVE, Phase.QUEUE, Phase.EXECUTE, Phase.SERIALIZE, Phase.TRANSFER,
+                Phase.TOTAL } )
+        {
+            long nanos = phaseNanos[phase.ordinal()];
+            metrics.record( type, machineId, phase, nanos );
+            phases.append( phases.length() > 0 ? ", " : "" ).append( phase.name().toLowerCase() ).append( ": " )
+                    .append( TimeUnit.NANOSECONDS.toMillis( nanos ) ).append( " ms" );
+        }
+        metrics.recordTraffic( type, machineId, requestBytes, responseBytes );
+
+        long totalMillis = TimeUnit.NANOSECONDS.toMillis( phaseNanos[Phase.TOTAL.ordinal()] );
+        if ( slowRequestThresholdMillis > 0 && totalMillis >= slowRequestThresholdMillis )
+        {
+            msgLog.logMessage( "Slow request " + type + " (" + phases + "), " + requestBytes + " bytes in, " +
+                    responseBytes + " bytes out, " + context );
+        }
+    }
+
+    public RequestMetrics getRequestMetrics()
+    {
+        return metrics;
+    }
+
     protected void writeFailureResponse( Throwable exception, ChunkingChannelBuffer buffer )
     {
         try
@@ -453,12 +805,20 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     {
     }
 
-    private static void writeStoreId( StoreId storeId, ChannelBuffer targetBuffer )
+    private void writeStoreId( StoreId storeId, ChannelBuffer targetBuffer, Channel channel )
     {
-        targetBuffer.writeBytes( storeId.serialize() );
+        if ( hasCompactContexts( getInternalProtocolVersion() ) )
+        {
+            ConnectionSession.of( channel ).writeStoreId( storeId, targetBuffer );
+        }
+        else
+        {
+            targetBuffer.writeBytes( storeId.serialize() );
+        }
     }
 
-    private static <T> void writeTransactionStreams( TransactionStream txStream, ChannelBuffer buffer ) throws IOException
+    static <T> void writeTransactionStreams( TransactionStream txStream, ChannelBuffer buffer,
+            boolean largeBlocks ) throws IOException
     {
         if ( !txStream.hasNext() )
         {
@@ -476,11 +836,12 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
             writeString( buffer, datasource );
             datasourceId.put( datasource, i + 1/*0 means "no more transactions"*/);
         }
+        // done() leaves the block buffer cleared, ready for the next transaction
+        BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer, largeBlocks );
         for ( Triplet<String, Long, TxExtractor> tx : IteratorUtil.asIterable( txStream ) )
         {
             buffer.writeByte( datasourceId.get( tx.first() ) );
             buffer.writeLong( tx.second() );
-            BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer );
             tx.third().extract( blockBuffer );
             blockBuffer.done();
         }
@@ -513,6 +874,21 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
         return new RequestContext( sessionId, machineId, eventIdentifier, lastAppliedTransactions, masterId, checksum );
     }
 
+    private RequestContext readContext( ChannelBuffer buffer, Channel channel )
+    {
+        if ( !hasCompactContexts( getInternalProtocolVersion() ) ) return readContext( buffer );
+
+        RequestContext context = ConnectionSession.of( channel ).readContext( buffer );
+        for ( Tx tx : context.lastAppliedTransactions() )
+        {
+            if ( tx.getDataSourceName().equals( Config.DEFAULT_DATA_SOURCE_NAME ) )
+            {
+                txVerifier.assertMatch( tx.getTxId(), context.getMasterId(), context.getChecksum() );
+            }
+        }
+        return context;
+    }
+
     protected abstract RequestType<T> getRequestContext( byte id );
 
     protected ChannelBuffer mapSlave( Channel channel, RequestContext slave, RequestType<T> type )
@@ -524,25 +900,39 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
             // which some communication points pass in as context.
             if ( slave != null && slave.machineId() != RequestContext.EMPTY.machineId() )
             {
-                Pair<RequestContext, AtomicLong> previous = connectedSlaveChannels.get( channel );
+                Map<RequestContext, AtomicLong> requests = connectedSlaveChannels.get( channel );
+                if ( requests == null )
+                {
+                    requests = new HashMap<RequestContext, AtomicLong>();
+                    connectedSlaveChannels.put( channel, requests );
+                    scheduleSilentChannelCheck( channel, oldChannelThresholdMillis+1 );
+                }
+                AtomicLong previous = requests.get( slave );
                 if ( previous != null )
                 {
-                    previous.other().set( System.currentTimeMillis() );
+                    previous.set( System.currentTimeMillis() );
                 }
                 else
                 {
-                    connectedSlaveChannels.put( channel, Pair.of( slave, new AtomicLong( System.currentTimeMillis() ) ) );
+                    requests.put( slave, new AtomicLong( System.currentTimeMillis() ) );
                 }
             }
         }
-        return ChannelBuffers.dynamicBuffer();
+        return BufferPool.DEFAULT.acquire( BufferPool.MIN_SIZE );
     }
 
     protected void unmapSlave( Channel channel, RequestContext slave )
     {
         synchronized ( connectedSlaveChannels )
         {
-            connectedSlaveChannels.remove( channel );
+            Map<RequestContext, AtomicLong> requests = connectedSlaveChannels.get( channel );
+            if ( requests != null )
+            {
+                requests.remove( slave );
+                if ( !requests.isEmpty() ) return; // Other requests are still in flight on it
+                connectedSlaveChannels.remove( channel );
+                cancelSilentChannelCheck( channel );
+            }
             channelGroup.remove( channel );
         }
     }
@@ -556,10 +946,10 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     {
         // Close all open connections
         shuttingDown = true;
-        silentChannelExecutor.shutdown();
         unfinishedTransactionExecutor.shutdown();
-        targetCallExecutor.shutdown();
+        scheduler.shutdown();
         channelGroup.close().awaitUninterruptibly();
+        livenessTimer.stop();
         executor.shutdown();
         msgLog.logMessage( getClass().getSimpleName() + " shutdown", true );
 
@@ -574,17 +964,87 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
 
     protected abstract void finishOffChannel( Channel channel, RequestContext context );
 
-    public Map<Channel, RequestContext> getConnectedSlaveChannels()
+    /**
+     * A request spanning several chunks, handled from the arrival of its first chunk.
+     * Following chunks are queued for its handler, which reads them through
+     * {@link #body()} as they arrive. Queued chunks count towards the
+     * {@link MemoryBudget} of the server until read.
+     */
+    private class StreamingRequest
     {
-        Map<Channel, RequestContext> result = new HashMap<Channel, RequestContext>();
-        synchronized ( connectedSlaveChannels )
+        private final Channel channel;
+        private final ChannelBudget budget;
+        private final RequestDeadline deadline;
+        private final BlockingQueue<ChannelEvent> chunks = new LinkedBlockingQueue<ChannelEvent>();
+        volatile long bytes; // Only written by the I/O thread
+        private volatile boolean done;
+        private DechunkingChannelBuffer body; // Only used by the handler
+
+        StreamingRequest( Channel channel, ChannelBudget budget, RequestDeadline deadline, ChannelBuffer firstChunk,
+                int chunkSize )
+        {
+            this.channel = channel;
+            this.budget = budget;
+            this.deadline = deadline;
+            add( firstChunk, chunkSize );
+        }
+
+        /**
+         * @return the request, blocking reads until the chunks they need have arrived.
+         * Not to be called from an I/O thread.
+         */
+        ChannelBuffer body()
         {
-            for ( Map.Entry<Channel, Pair<RequestContext, AtomicLong>> entry : connectedSlaveChannels.entrySet() )
+            if ( body != null ) return body;
+            body = new DechunkingChannelBuffer( new BlockingReadHandler<ChannelBuffer>( chunks ),
+                    Math.max( 1, oldChannelThresholdMillis/1000 ), getInternalProtocolVersion(),
+                    applicationProtocolVersion )
             {
-                result.put( entry.getKey(), entry.getValue().first() );
+                @Override
+                protected ChannelBuffer readNext()
+                {
+                    ChannelBuffer chunk = super.readNext();
+                    budget.free( chunk.readableBytes() );
+                    return chunk;
+                }
+            };
+            return body;
+        }
+
+        void add( ChannelBuffer chunk, int chunkSize )
+        {
+            bytes += chunkSize;
+            budget.allocate( chunk.readableBytes() );
+            chunks.offer( new UpstreamMessageEvent( channel, chunk, channel.getRemoteAddress() ) );
+            if ( done ) discardChunks();
+        }
+
+        void failed( Throwable cause )
+        {
+            chunks.offer( new DefaultExceptionEvent( channel, cause ) );
+        }
+
+        /**
+         * Called when the handler is done with the request, whether or not it read all of it.
+         * What is or will be left unread is dropped.
+         */
+        void done()
+        {
+            done = true;
+            discardChunks();
+        }
+
+        private void discardChunks()
+        {
+            ChannelEvent event;
+            while ( (event = chunks.poll()) != null )
+            {
+                if ( event instanceof MessageEvent )
+                {
+                    budget.free( ((ChannelBuffer) ((MessageEvent) event).getMessage()).readableBytes() );
+                }
             }
         }
-        return result;
     }
 
     // =====================================================================
@@ -592,22 +1052,19 @@ public abstract class Server<T, R> extends Protocol implements ChannelPipelineFa
     // but exposed so that other tools can reach that information.
     // =====================================================================
 
-    private class PartialRequest
+    public Map<Channel, RequestContext> getConnectedSlaveChannels()
     {
-        final RequestContext context;
-        final ChannelBuffer buffer;
-        final RequestType<T> type;
-
-        public PartialRequest( RequestType<T> type, RequestContext context, ChannelBuffer buffer )
-        {
-            this.type = type;
-            this.context = context;
-            this.buffer = buffer;
-        }
-
-        public void add( ChannelBuffer buffer )
+        Map<Channel, RequestContext> result = new HashMap<Channel, RequestContext>();
+        synchronized ( connectedSlaveChannels )
         {
-            this.buffer.writeBytes( buffer );
+            for ( Map.Entry<Channel, Map<RequestContext, AtomicLong>> entry : connectedSlaveChannels.entrySet() )
+            {
+                for ( RequestContext context : entry.getValue().keySet() )
+                {
+                    result.put( entry.getKey(), context );
+                }
+            }
         }
+        return result;
     }
 }
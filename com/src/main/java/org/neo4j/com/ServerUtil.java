@@ -29,7 +29,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -121,143 +120,166 @@ public class ServerUtil
         XaDataSourceManager dsManager =
                 graphDb.getXaDataSourceManager();
         RequestContext context = RequestContext.anonymous( rotateLogs( graphDb ) );
-        ByteBuffer temporaryBuffer = ByteBuffer.allocateDirect( 1024*1024 );
-        for ( XaDataSource ds : dsManager.getAllRegisteredDataSources() )
+        ByteBuffer temporaryBuffer = BufferPool.DEFAULT.acquireDirect( Protocol.MEGA );
+        try
         {
-            try
+            for ( XaDataSource ds : dsManager.getAllRegisteredDataSources() )
             {
-                ClosableIterable<File> files = ds.listStoreFiles( includeLogicalLogs );
                 try
                 {
-                    for ( File storefile : files )
+                    ClosableIterable<File> files = ds.listStoreFiles( includeLogicalLogs );
+                    try
                     {
-                        FileInputStream stream = new FileInputStream( storefile );
-                        try
+                        for ( File storefile : files )
                         {
-                            writer.write( relativePath( baseDir, storefile ), stream.getChannel(), temporaryBuffer,
-                                    storefile.length() > 0 );
-                        }
-                        finally
-                        {
-                            stream.close();
+                            FileInputStream stream = new FileInputStream( storefile );
+                            try
+                            {
+                                writer.write( relativePath( baseDir, storefile ), stream.getChannel(), temporaryBuffer,
+                                        storefile.length() > 0 );
+                            }
+                            finally
+                            {
+                                stream.close();
+                            }
                         }
                     }
+                    finally
+                    {
+                        files.close();
+                    }
                 }
-                finally
+                catch ( IOException e )
                 {
-                    files.close();
+                    throw new ServerFailureException( e );
                 }
             }
-            catch ( IOException e )
-            {
-                throw new ServerFailureException( e );
-            }
+        }
+        finally
+        {
+            BufferPool.DEFAULT.release( temporaryBuffer );
         }
         return context;
     }
 
     /**
-     * For a given {@link XaDataSource} it extracts the transaction stream from
-     * startTxId up to endTxId (inclusive) in the provided {@link List} and
-     * returns the {@link LogExtractor} used to create the stream.
+     * For a given {@link XaDataSource} it opens its log for extracting the
+     * transactions startTxId up to endTxId (inclusive). They are extracted one
+     * at a time as the {@link TransactionStream} they end up in is iterated.
      *
      * @param dataSource The {@link XaDataSource} from which to extract the
      *            transactions
      * @param startTxId The first tx id in the stream
      * @param endTxId The last tx id in the stream
-     * @param stream A list to contain the transaction stream - can already
-     *            contain transactions from other data sources.
-     * @return The {@link LogExtractor} used to create the transaction stream.
+     * @param filter Selects which of the transactions to include
+     * @return The transactions to extract from the data source.
      */
-    private static LogExtractor getTransactionStreamForDatasource(
+    private static DataSourceTransactions getTransactionStreamForDatasource(
             final XaDataSource dataSource, final long startTxId,
-            final long endTxId,
-            final List<Triplet<String, Long, TxExtractor>> stream,
-            Predicate<Long> filter )
+            final long endTxId, Predicate<Long> filter )
     {
-        LogExtractor logExtractor = null;
+        final long serverLastTx = dataSource.getLastCommittedTxId();
+        if ( serverLastTx < endTxId )
+        {
+            throw new RuntimeException(
+                    "Was requested to extract transaction ids " + startTxId
+                            + " to " + endTxId + " from data source "
+                            + dataSource.getName()
+                            + " but largest transaction id in server is "
+                            + serverLastTx );
+        }
         try
         {
-            final long serverLastTx = dataSource.getLastCommittedTxId();
-            if ( serverLastTx < endTxId )
+            // TODO check here for startTxId >= endTxId and exit early
+            return new DataSourceTransactions( dataSource, dataSource.getLogExtractor( startTxId, endTxId ),
+                    startTxId, endTxId, filter );
+        }
+        catch ( IOException ioe )
+        {
+            throw new RuntimeException( ioe );
+        }
+    }
+
+    /**
+     * The transactions of one data source in a {@link TransactionStream}, read from
+     * its log on demand. It's also the {@link TxExtractor} of every one of them, since
+     * only the transaction the stream is currently at can be extracted anyway. That
+     * way a slave far behind doesn't make the master build up a huge stream up front.
+     */
+    private static class DataSourceTransactions extends TxExtractor
+    {
+        private final XaDataSource dataSource;
+        private final LogExtractor logExtractor;
+        private final long startTxId;
+        private final long endTxId;
+        private final Predicate<Long> filter;
+        private long txId;
+
+        DataSourceTransactions( XaDataSource dataSource, LogExtractor logExtractor, long startTxId,
+                long endTxId, Predicate<Long> filter )
+        {
+            this.dataSource = dataSource;
+            this.logExtractor = logExtractor;
+            this.startTxId = startTxId;
+            this.endTxId = endTxId;
+            this.filter = filter;
+            this.txId = startTxId-1;
+        }
+
+        /**
+         * @return the id of the next transaction to extract, or -1 if there are no more.
+         */
+        long next()
+        {
+            while ( txId < endTxId )
             {
-                throw new RuntimeException(
-                        "Was requested to extract transaction ids " + startTxId
-                                + " to " + endTxId + " from data source "
-                                + dataSource.getName()
-                                + " but largest transaction id in server is "
-                                + serverLastTx );
+                if ( filter.accept( ++txId ) ) return txId;
             }
+            return -1;
+        }
+
+        @Override
+        public ReadableByteChannel extract()
+        {
+            InMemoryLogBuffer buffer = new InMemoryLogBuffer();
+            extract( buffer );
+            return buffer;
+        }
+
+        @Override
+        public void extract( LogBuffer buffer )
+        {
             try
             {
-                // TODO check here for startTxId >= endTxId and exit early
-                logExtractor = dataSource.getLogExtractor( startTxId, endTxId );
-            }
-            catch ( IOException ioe )
-            {
-                throw new RuntimeException( ioe );
-            }
-            final LogExtractor finalLogExtractor = logExtractor;
-            for ( long txId = startTxId; txId <= endTxId; txId++ )
-            {
-                if ( filter.accept( txId ) )
+                long extractedTxId = logExtractor.extractNext( buffer );
+                if ( extractedTxId == -1 )
                 {
-                    final long finalTxId = txId;
-                    TxExtractor extractor = new TxExtractor()
-                    {
-                        @Override
-                        public ReadableByteChannel extract()
-                        {
-                            InMemoryLogBuffer buffer = new InMemoryLogBuffer();
-                            extract( buffer );
-                            return buffer;
-                        }
-
-                        @Override
-                        public void extract( LogBuffer buffer )
-                        {
-                            try
-                            {
-                                long extractedTxId = finalLogExtractor.extractNext( buffer );
-                                if ( extractedTxId == -1 )
-                                {
-                                    throw new RuntimeException(
-                                            "Transaction "
-                                                    + finalTxId
-                                                    + " is missing and can't be extracted from "
-                                                    + dataSource.getName()
-                                                    + ". Was about to extract "
-                                                    + startTxId + " to "
-                                                    + endTxId );
-                                }
-                                if ( extractedTxId != finalTxId )
-                                {
-                                    throw new RuntimeException(
-                                            "Expected txId " + finalTxId
-                                                    + ", but was "
-                                                    + extractedTxId );
-                                }
-                            }
-                            catch ( IOException e )
-                            {
-                                throw new RuntimeException( e );
-                            }
-                        }
-                    };
-                    stream.add( Triplet.of( dataSource.getName(), txId,
-                            extractor ) );
+                    throw new RuntimeException(
+                            "Transaction "
+                                    + txId
+                                    + " is missing and can't be extracted from "
+                                    + dataSource.getName()
+                                    + ". Was about to extract "
+                                    + startTxId + " to "
+                                    + endTxId );
+                }
+                if ( extractedTxId != txId )
+                {
+                    throw new RuntimeException(
+                            "Expected txId " + txId
+                                    + ", but was "
+                                    + extractedTxId );
                 }
             }
-            return logExtractor;
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
         }
-        catch ( Throwable t )
+
+        void close()
         {
-            /*
-             * If there's an error in here then close the log extractors,
-             * otherwise if we're successful the TransactionStream will close it.
-             */
-            if ( logExtractor != null ) logExtractor.close();
-            throw Exceptions.launderedException( t );
+            logExtractor.close();
         }
     }
 
@@ -278,10 +300,9 @@ public class ServerUtil
     public static <T> Response<T> packResponse( GraphDatabaseAPI graphDb,
             RequestContext context, T response, Predicate<Long> filter )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
         Set<String> resourceNames = new HashSet<String>();
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
-        final List<LogExtractor> logExtractors = new ArrayList<LogExtractor>();
+        final List<DataSourceTransactions> sources = new ArrayList<DataSourceTransactions>();
         try
         {
             for ( Tx txEntry : context.lastAppliedTransactions() )
@@ -295,18 +316,16 @@ public class ServerUtil
                 resourceNames.add( resourceName );
                 final long serverLastTx = dataSource.getLastCommittedTxId();
                 if ( txEntry.getTxId() >= serverLastTx ) continue;
-                LogExtractor logExtractor = getTransactionStreamForDatasource(
-                        dataSource, txEntry.getTxId() + 1, serverLastTx, stream,
-                        filter );
-                logExtractors.add( logExtractor );
+                sources.add( getTransactionStreamForDatasource(
+                        dataSource, txEntry.getTxId() + 1, serverLastTx, filter ) );
             }
             return new Response<T>( response, graphDb.getStoreId(), createTransactionStream( resourceNames,
-                    stream, logExtractors ), ResourceReleaser.NO_OP );
+                    sources ), ResourceReleaser.NO_OP );
         }
         catch ( Throwable t )
         {   // If there's an error in here then close the log extractors, otherwise if we're
             // successful the TransactionStream will close it.
-            for ( LogExtractor extractor : logExtractors ) extractor.close();
+            for ( DataSourceTransactions source : sources ) source.close();
             throw Exceptions.launderedException( t );
         }
     }
@@ -327,7 +346,6 @@ public class ServerUtil
     public static Response<Void> getTransactions( GraphDatabaseAPI graphDb,
             String dataSourceName, long startTx, long endTx )
     {
-        List<Triplet<String, Long, TxExtractor>> stream = new ArrayList<Triplet<String, Long, TxExtractor>>();
         XaDataSourceManager dsManager = graphDb.getXaDataSourceManager();
         final XaDataSource dataSource = dsManager.getXaDataSource( dataSourceName );
         if ( dataSource == null )
@@ -336,32 +354,40 @@ public class ServerUtil
                                         + "' found" );
         }
 
-        List<LogExtractor> extractors = startTx < endTx ? Collections.singletonList(
-                getTransactionStreamForDatasource( dataSource, startTx, endTx, stream, ServerUtil.ALL ) ) :
-                Collections.<LogExtractor>emptyList();
+        List<DataSourceTransactions> sources = startTx < endTx ? Collections.singletonList(
+                getTransactionStreamForDatasource( dataSource, startTx, endTx, ServerUtil.ALL ) ) :
+                Collections.<DataSourceTransactions>emptyList();
         return new Response<Void>( null, graphDb.getStoreId(), createTransactionStream(
-                        Collections.singletonList( dataSourceName ), stream,
-                        extractors ), ResourceReleaser.NO_OP );
+                        Collections.singletonList( dataSourceName ), sources ), ResourceReleaser.NO_OP );
 
     }
 
     private static TransactionStream createTransactionStream( Collection<String> resourceNames,
-            final List<Triplet<String, Long, TxExtractor>> stream, final List<LogExtractor> logExtractors )
+            final List<DataSourceTransactions> sources )
     {
         return new TransactionStream( resourceNames.toArray( new String[resourceNames.size()] ) )
         {
-            private final Iterator<Triplet<String, Long, TxExtractor>> iterator = stream.iterator();
+            private int current;
 
             @Override
             protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
             {
-                return iterator.hasNext() ? iterator.next() : null;
+                for ( ; current < sources.size(); current++ )
+                {
+                    DataSourceTransactions source = sources.get( current );
+                    long txId = source.next();
+                    if ( txId != -1 )
+                    {
+                        return Triplet.<String, Long, TxExtractor>of( source.dataSource.getName(), txId, source );
+                    }
+                }
+                return null;
             }
 
             @Override
             public void close()
             {
-                for ( LogExtractor extractor : logExtractors ) extractor.close();
+                for ( DataSourceTransactions source : sources ) source.close();
             }
         };
     }
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Reads the raw contents of a store file, of known length, straight out of a
+ * {@link ChannelBuffer}, i.e. without the {@link BlockLogBuffer} block format.
+ * If the target is a {@link FileChannel} the contents can be written to it
+ * directly from the received chunks with {@link #transferTo(FileChannel)}.
+ *
+ * @see ToNetworkStoreWriter
+ */
+public class StoreFileReader implements ReadableByteChannel
+{
+    private final ChannelBuffer source;
+    private long remaining;
+
+    public StoreFileReader( ChannelBuffer source, long length )
+    {
+        this.source = source;
+        this.remaining = length;
+    }
+
+    public int read( ByteBuffer dst ) throws IOException
+    {
+        if ( remaining == 0 ) return -1;
+        int length = nextPieceLength( dst.remaining() );
+        int limit = dst.limit();
+        dst.limit( dst.position() + length );
+        try
+        {
+            source.readBytes( dst );
+        }
+        finally
+        {
+            dst.limit( limit );
+        }
+        remaining -= length;
+        return length;
+    }
+
+    /**
+     * Writes all the remaining contents to {@code target}, from the current position.
+     * @return the number of bytes written.
+     */
+    public long transferTo( FileChannel target ) throws IOException
+    {
+        long transferred = 0;
+        while ( remaining > 0 )
+        {
+            int written = source.readBytes( target, nextPieceLength( Integer.MAX_VALUE ) );
+            remaining -= written;
+            transferred += written;
+        }
+        return transferred;
+    }
+
+    /**
+     * Skips whatever the store writer didn't read, so that the next file can be read.
+     */
+    void skipRemaining()
+    {
+        while ( remaining > 0 )
+        {
+            int length = nextPieceLength( Integer.MAX_VALUE );
+            source.skipBytes( length );
+            remaining -= length;
+        }
+    }
+
+    /*
+     * The source may be a DechunkingChannelBuffer which only has the current chunk at hand,
+     * so never ask for more than that. Calling readable() makes it fetch the next chunk if needed.
+     */
+    private int nextPieceLength( int max )
+    {
+        if ( !source.readable() )
+        {
+            throw new ComException( "Store file stream ended with " + remaining + " bytes left to read" );
+        }
+        return (int) Math.min( Math.min( remaining, max ), source.readableBytes() );
+    }
+
+    public boolean isOpen()
+    {
+        return true;
+    }
+
+    public void close() throws IOException
+    {
+    }
+}
@@ -47,7 +47,11 @@ public class ToFileStoreWriter implements StoreWriter
             {
                 file.getParentFile().mkdirs();
                 randomAccessFile = new RandomAccessFile( file, "rw" );
-                if ( hasData )
+                if ( hasData && data instanceof StoreFileReader )
+                {   // Straight from the received chunks to the file
+                    ((StoreFileReader) data).transferTo( randomAccessFile.getChannel() );
+                }
+                else if ( hasData )
                 {
                     FileChannel channel = randomAccessFile.getChannel();
                     while ( data.read( temporaryBuffer ) >= 0 )
@@ -21,17 +21,35 @@ package org.neo4j.com;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 
+/**
+ * Streams store files over the network, to be read by {@link Protocol.FileStreamsDeserializer}.
+ * Files are either framed in {@link BlockLogBuffer} blocks, which is what older clients
+ * understand, or, if {@code rawFileData}, sent as is with their length up front. The latter
+ * reads file contents straight into the chunks being sent, instead of copying it through
+ * 256 byte blocks, which makes a big difference for big stores.
+ */
 public class ToNetworkStoreWriter implements StoreWriter
 {
+    // Read this much of a file at a time, well below any frame length in use
+    private static final int RAW_PIECE_SIZE = 64*1024;
+
     private final ChannelBuffer targetBuffer;
+    private final boolean rawFileData;
 
     public ToNetworkStoreWriter( ChannelBuffer targetBuffer )
+    {
+        this( targetBuffer, false );
+    }
+
+    public ToNetworkStoreWriter( ChannelBuffer targetBuffer, boolean rawFileData )
     {
         this.targetBuffer = targetBuffer;
+        this.rawFileData = rawFileData;
     }
 
     public void write( String path, ReadableByteChannel data, ByteBuffer temporaryBuffer,
@@ -40,7 +58,13 @@ public class ToNetworkStoreWriter implements StoreWriter
         char[] chars = path.toCharArray();
         targetBuffer.writeShort( chars.length );
         Protocol.writeChars( targetBuffer, chars );
-        targetBuffer.writeByte( hasData ? 1 : 0 );
+        if ( hasData && rawFileData && data instanceof FileChannel )
+        {
+            writeRaw( (FileChannel) data );
+            return;
+        }
+
+        targetBuffer.writeByte( hasData ? Protocol.STORE_FILE_BLOCKS : Protocol.STORE_FILE_EMPTY );
         // TODO Make use of temporaryBuffer?
         BlockLogBuffer buffer = new BlockLogBuffer( targetBuffer );
         if ( hasData )
@@ -50,6 +74,22 @@ public class ToNetworkStoreWriter implements StoreWriter
         }
     }
 
+    private void writeRaw( FileChannel data ) throws IOException
+    {
+        long remaining = data.size() - data.position();
+        targetBuffer.writeByte( Protocol.STORE_FILE_RAW );
+        targetBuffer.writeLong( remaining );
+        while ( remaining > 0 )
+        {
+            int read = targetBuffer.writeBytes( data, (int) Math.min( remaining, RAW_PIECE_SIZE ) );
+            if ( read == -1 )
+            {
+                throw new IOException( "File ended with " + remaining + " bytes left to send" );
+            }
+            remaining -= read;
+        }
+    }
+
     public void done()
     {
         targetBuffer.writeShort( 0 );
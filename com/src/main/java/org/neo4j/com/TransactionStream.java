@@ -27,6 +27,8 @@ import org.neo4j.helpers.collection.PrefetchingIterator;
 
 /**
  * Represents a stream of the data of one or more consecutive transactions.
+ * Streams may be read lazily from their source, so the {@link TxExtractor} of
+ * a transaction is only good until the stream moves on to the next one.
  */
 public abstract class TransactionStream extends
         PrefetchingIterator<Triplet<String/*datasource*/, Long/*txid*/, TxExtractor>>
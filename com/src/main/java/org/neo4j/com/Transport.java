@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ExecutorService;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+
+/**
+ * How {@link Server servers} and {@link Client clients} talk to each other. Which one
+ * to use is configured with the {@value #TRANSPORT_PROPERTY} system property, read when
+ * a server or client is created, and is {@link #TCP} unless set to "local".
+ */
+public enum Transport
+{
+    /**
+     * Sockets, the real thing.
+     */
+    TCP
+    {
+        @Override
+        ChannelFactory newServerChannelFactory( ExecutorService executor, int maxWorkers )
+        {
+            return new NioServerSocketChannelFactory( executor, executor, maxWorkers );
+        }
+
+        @Override
+        ChannelFactory newClientChannelFactory( ExecutorService executor )
+        {
+            return new NioClientSocketChannelFactory( executor, executor );
+        }
+
+        @Override
+        SocketAddress serverAddress( int port )
+        {
+            return new InetSocketAddress( port );
+        }
+
+        @Override
+        SocketAddress clientAddress( String hostNameOrIp, int port )
+        {
+            return new InetSocketAddress( hostNameOrIp, port );
+        }
+    },
+
+    /**
+     * Netty local channels between servers and clients in the same JVM, for tests and
+     * benchmarks of the request pipeline without the costs of networking. Servers are
+     * told apart by port only, the host name is ignored. Written chunks are copied, like
+     * a socket would, since the pooled chunk buffers are released as soon as the write
+     * completes, which for local channels is before the other side has read it.
+     */
+    LOCAL
+    {
+        @Override
+        ChannelFactory newServerChannelFactory( ExecutorService executor, int maxWorkers )
+        {
+            return new DefaultLocalServerChannelFactory();
+        }
+
+        @Override
+        ChannelFactory newClientChannelFactory( ExecutorService executor )
+        {
+            return new DefaultLocalClientChannelFactory();
+        }
+
+        @Override
+        SocketAddress serverAddress( int port )
+        {
+            return new LocalAddress( port );
+        }
+
+        @Override
+        SocketAddress clientAddress( String hostNameOrIp, int port )
+        {
+            return new LocalAddress( port );
+        }
+
+        @Override
+        void addTransportPipes( ChannelPipeline pipeline )
+        {
+            pipeline.addFirst( "copyOnWrite", new SimpleChannelDownstreamHandler()
+            {
+                @Override
+                public void writeRequested( ChannelHandlerContext ctx, MessageEvent e )
+                {
+                    ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+                    Channels.write( ctx, e.getFuture(), ChannelBuffers.copiedBuffer( buffer ), e.getRemoteAddress() );
+                }
+            } );
+        }
+    };
+
+    public static final String TRANSPORT_PROPERTY = "org.neo4j.com.transport";
+
+    /**
+     * @return the transport configured with the {@value #TRANSPORT_PROPERTY} system property.
+     */
+    public static Transport configured()
+    {
+        String name = System.getProperty( TRANSPORT_PROPERTY );
+        return name != null ? valueOf( name.toUpperCase() ) : TCP;
+    }
+
+    abstract ChannelFactory newServerChannelFactory( ExecutorService executor, int maxWorkers );
+
+    abstract ChannelFactory newClientChannelFactory( ExecutorService executor );
+
+    abstract SocketAddress serverAddress( int port );
+
+    abstract SocketAddress clientAddress( String hostNameOrIp, int port );
+
+    /**
+     * Adds whatever handlers this transport needs, closest to the channel.
+     */
+    void addTransportPipes( ChannelPipeline pipeline )
+    {
+    }
+}
@@ -23,6 +23,7 @@ import static org.neo4j.com.Protocol.writeString;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.neo4j.com.MadeUpServer.MadeUpRequestType;
@@ -34,11 +35,24 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
     private final byte internalProtocolVersion;
 
     public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion )
+    {
+        this( port, storeIdToExpect, internalProtocolVersion, applicationProtocolVersion, new Settings() );
+    }
+
+    public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion,
+            Settings settings )
+    {
+        this( port, storeIdToExpect, internalProtocolVersion, applicationProtocolVersion, settings,
+                Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS );
+    }
+
+    public MadeUpClient( int port, StoreId storeIdToExpect, byte internalProtocolVersion, byte applicationProtocolVersion,
+            Settings settings, int readTimeoutSeconds )
     {
         super( "localhost", port, StringLogger.DEV_NULL, storeIdToExpect, MadeUpServer.FRAME_LENGTH,
-                applicationProtocolVersion, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS,
+                applicationProtocolVersion, readTimeoutSeconds,
                 Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
-                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT, ConnectionLostHandler.NO_ACTION, settings );
         this.internalProtocolVersion = internalProtocolVersion;
     }
 
@@ -62,6 +76,31 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
         }, Protocol.INTEGER_DESERIALIZER );
     }
 
+    public ResponseFuture<Integer> multiplyAsync( final int value1, final int value2 )
+    {
+        return sendRequestAsync( MadeUpRequestType.MULTIPLY, RequestContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                buffer.writeInt( value1 );
+                buffer.writeInt( value2 );
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
+    public ResponseFuture<Integer> throwExceptionAsync( final String messageInException )
+    {
+        return sendRequestAsync( MadeUpRequestType.THROW_EXCEPTION, RequestContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                writeString( buffer, messageInException );
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
     @Override
     public Response<Void> streamSomeData( final MadeUpWriter writer, final int dataSize )
     {
@@ -84,6 +123,21 @@ public class MadeUpClient extends Client<MadeUpCommunicationInterface> implement
         } );
     }
 
+    @Override
+    public Response<Integer> sendDataStream( final ReadableByteChannel data )
+    {
+        return sendRequest( MadeUpRequestType.SEND_DATA_STREAM, RequestContext.EMPTY, new Serializer()
+        {
+            @Override
+            public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+            {
+                BlockLogBuffer blockBuffer = new BlockLogBuffer( buffer );
+                blockBuffer.write( data );
+                blockBuffer.done();
+            }
+        }, Protocol.INTEGER_DESERIALIZER );
+    }
+
     @Override
     public Response<Integer> throwException( final String messageInException )
     {
@@ -19,6 +19,8 @@
  */
 package org.neo4j.com;
 
+import java.nio.channels.ReadableByteChannel;
+
 public interface MadeUpCommunicationInterface
 {
     Response<Integer> multiply( int value1, int value2 );
@@ -26,4 +28,6 @@ public interface MadeUpCommunicationInterface
     Response<Void> streamSomeData( MadeUpWriter writer, int dataSize );
     
     Response<Integer> throwException( String messageInException );
+
+    Response<Integer> sendDataStream( ReadableByteChannel data );
 }
@@ -19,6 +19,10 @@
  */
 package org.neo4j.com;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
 
 public class MadeUpImplementation implements MadeUpCommunicationInterface
@@ -53,6 +57,37 @@ public class MadeUpImplementation implements MadeUpCommunicationInterface
         throw new MadeUpException( messageInException, new Exception( "The cause of it" ) );
     }
 
+    @Override
+    public Response<Integer> sendDataStream( ReadableByteChannel data )
+    {
+        // Expects the data of a KnownDataByteChannel
+        ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+        int totalSize = 0;
+        try
+        {
+            int size;
+            while ( (size = data.read( buffer )) != -1 )
+            {
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                {
+                    byte value = buffer.get();
+                    if ( value != (byte) ((totalSize++)%10) )
+                    {
+                        throw new IllegalStateException( "Unexpected " + value + " at position " + (totalSize-1) );
+                    }
+                }
+                buffer.clear();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new ComException( e );
+        }
+        return new Response<Integer>( totalSize, storeIdToRespondWith,
+                TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
     public boolean gotCalled()
     {
         return this.gotCalled;
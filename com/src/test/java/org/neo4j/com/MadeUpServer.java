@@ -32,9 +32,16 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
 
     public MadeUpServer( MadeUpCommunicationInterface requestTarget, int port, byte internalProtocolVersion,
             byte applicationProtocolVersion, TxChecksumVerifier txVerifier )
+    {
+        this( requestTarget, port, internalProtocolVersion, applicationProtocolVersion, txVerifier, new Settings() );
+    }
+
+    public MadeUpServer( MadeUpCommunicationInterface requestTarget, int port, byte internalProtocolVersion,
+            byte applicationProtocolVersion, TxChecksumVerifier txVerifier, Settings settings )
     {
         super( requestTarget, port, StringLogger.DEV_NULL, FRAME_LENGTH, applicationProtocolVersion,
-                DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS, txVerifier );
+                DEFAULT_MAX_NUMBER_OF_CONCURRENT_TRANSACTIONS, Client.DEFAULT_READ_RESPONSE_TIMEOUT_SECONDS, txVerifier,
+                settings );
         this.internalProtocolVersion = internalProtocolVersion;
     }
 
@@ -112,7 +119,17 @@ public class MadeUpServer extends Server<MadeUpCommunicationInterface, Void>
             {
                 return master.throwException( readString( input ) );
             }
-        }, Protocol.VOID_SERIALIZER );
+        }, Protocol.VOID_SERIALIZER ),
+
+        SEND_DATA_STREAM( new TargetCaller<MadeUpCommunicationInterface, Integer>()
+        {
+            @Override
+            public Response<Integer> call( MadeUpCommunicationInterface master,
+                    RequestContext context, ChannelBuffer input, ChannelBuffer target )
+            {
+                return master.sendDataStream( new BlockLogReader( input ) );
+            }
+        }, Protocol.INTEGER_SERIALIZER );
         
         private final TargetCaller masterCaller;
         private final ObjectSerializer serializer;
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many acquire/release cycles per second many threads get through when
+ * contending for fewer resources than there are threads, with {@link ResourcePool}
+ * and with the thread bound, synchronized pool it replaced. Run it as a main class,
+ * optionally with the number of threads, the number of resources and the number
+ * of microseconds each resource is held.
+ */
+public class ResourcePoolBenchmark
+{
+    private static final int ROUNDS = 6;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final long ROUND_MILLIS = 1000;
+
+    private interface Pool
+    {
+        Object acquire();
+
+        void release( Object resource );
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 200;
+        int resources = args.length > 1 ? Integer.parseInt( args[1] ) : 20;
+        int holdMicros = args.length > 2 ? Integer.parseInt( args[2] ) : 10;
+        System.out.println( threads + " threads sharing " + resources + " resources, held for " + holdMicros + " us" );
+
+        for ( boolean legacy : new boolean[] { true, false } )
+        {
+            Pool pool = legacy ? legacyPool( resources ) : currentPool( resources );
+            long cycles = 0;
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long count = run( pool, threads, holdMicros );
+                if ( round >= WARMUP_ROUNDS ) cycles += count;
+            }
+            long perSecond = cycles * 1000 / (ROUND_MILLIS * (ROUNDS - WARMUP_ROUNDS));
+            System.out.println( (legacy ? "thread bound pool: " : "lock-free pool:    ") + perSecond + " cycles/s" );
+        }
+    }
+
+    private static long run( final Pool pool, int threads, final int holdMicros ) throws InterruptedException
+    {
+        final AtomicLong cycles = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final long[] end = new long[1];
+        Thread[] workers = new Thread[threads];
+        for ( int i = 0; i < threads; i++ )
+        {
+            workers[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        return;
+                    }
+                    long count = 0;
+                    while ( System.nanoTime() < end[0] )
+                    {
+                        Object resource = pool.acquire();
+                        busyWait( holdMicros );
+                        pool.release( resource );
+                        count++;
+                    }
+                    cycles.addAndGet( count );
+                }
+            };
+            workers[i].start();
+        }
+        end[0] = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( ROUND_MILLIS );
+        start.countDown();
+        for ( Thread worker : workers )
+        {
+            worker.join();
+        }
+        return cycles.get();
+    }
+
+    private static void busyWait( int micros )
+    {
+        long until = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos( micros );
+        while ( System.nanoTime() < until )
+        {
+            // Simulates using the resource
+        }
+    }
+
+    private static Pool currentPool( int resources )
+    {
+        final ResourcePool<Object> pool = new ResourcePool<Object>( resources, resources )
+        {
+            @Override
+            protected Object create()
+            {
+                return new Object();
+            }
+        };
+        return new Pool()
+        {
+            @Override
+            public Object acquire()
+            {
+                return pool.acquire();
+            }
+
+            @Override
+            public void release( Object resource )
+            {
+                pool.release( resource );
+            }
+        };
+    }
+
+    /**
+     * The pool as it was before it went lock-free: a fair semaphore and a synchronized list
+     * of unused resources, with each resource bound to the thread that acquired it.
+     */
+    private static Pool legacyPool( final int resources )
+    {
+        return new Pool()
+        {
+            private final Semaphore permits = new Semaphore( resources, true );
+            private final LinkedList<Object> unused = new LinkedList<Object>();
+            private final Map<Thread, Object> current = new ConcurrentHashMap<Thread, Object>();
+
+            @Override
+            public Object acquire()
+            {
+                Thread thread = Thread.currentThread();
+                Object resource = current.get( thread );
+                if ( resource == null )
+                {
+                    permits.acquireUninterruptibly();
+                    synchronized ( unused )
+                    {
+                        resource = unused.poll();
+                    }
+                    if ( resource == null ) resource = new Object();
+                    current.put( thread, resource );
+                }
+                return resource;
+            }
+
+            @Override
+            public void release( Object ignored )
+            {
+                Object resource = current.remove( Thread.currentThread() );
+                try
+                {
+                    if ( resource != null )
+                    {
+                        synchronized ( unused )
+                        {
+                            if ( unused.size() < resources ) unused.add( resource );
+                        }
+                    }
+                }
+                finally
+                {
+                    permits.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+
+/**
+ * Measures latency and throughput of a store copy like response, i.e. a stream
+ * of many chunks, between a server and a client over loopback. Run it as a main
+ * class, optionally with the size of each response in megabytes and the
+ * write-ahead window of the server in bytes.
+ */
+public class StoreCopyBenchmark
+{
+    private static final int PORT = 1235;
+    private static final int ROUNDS = 10;
+    private static final int WARMUP_ROUNDS = 3;
+
+    public static void main( String[] args ) throws Exception
+    {
+        int megabytes = args.length > 0 ? Integer.parseInt( args[0] ) : 64;
+        int maxWriteAheadBytes = args.length > 1 ? Integer.parseInt( args[1] ) :
+                ChunkingChannelBuffer.DEFAULT_MAX_WRITE_AHEAD_BYTES;
+        StoreId storeId = new StoreId();
+        MadeUpServer server = new MadeUpServer( new MadeUpImplementation( storeId ), PORT, (byte) 0, (byte) 0,
+                TxChecksumVerifier.ALWAYS_MATCH, new Server.Settings().maxWriteAheadBytes( maxWriteAheadBytes ) );
+        MadeUpClient client = new MadeUpClient( PORT, storeId, (byte) 0, (byte) 0 );
+        try
+        {
+            long totalTime = 0, maxTime = 0;
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                long time = System.nanoTime();
+                client.streamSomeData( new DiscardingWriter(), megabytes * Protocol.MEGA ).close();
+                time = System.nanoTime() - time;
+                if ( round >= WARMUP_ROUNDS )
+                {
+                    totalTime += time;
+                    maxTime = Math.max( maxTime, time );
+                }
+            }
+            int measuredRounds = ROUNDS - WARMUP_ROUNDS;
+            System.out.println( String.format( "%d MB per response, write-ahead window %d bytes: " +
+                    "average %d ms, max %d ms, %.1f MB/s", megabytes, maxWriteAheadBytes,
+                    totalTime / measuredRounds / 1000000, maxTime / 1000000,
+                    megabytes * measuredRounds * 1000000000D / totalTime ) );
+        }
+        finally
+        {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private static class DiscardingWriter implements MadeUpWriter
+    {
+        @Override
+        public void write( ReadableByteChannel data )
+        {
+            ByteBuffer buffer = ByteBuffer.allocate( 64 * 1024 );
+            try
+            {
+                while ( data.read( buffer ) != -1 )
+                {
+                    buffer.clear();
+                }
+            }
+            catch ( IOException e )
+            {
+                throw new RuntimeException( e );
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+public class TestBufferPool
+{
+    @Test
+    public void reusesReleasedBuffersOfTheSameSizeClass() throws Exception
+    {
+        BufferPool pool = new BufferPool( Protocol.MEGA );
+        ChannelBuffer buffer = pool.acquire( 5000 );
+        assertEquals( 8*1024, buffer.capacity() );
+        buffer.writeInt( 10 );
+        pool.release( buffer );
+        assertEquals( 8*1024, pool.getPooledBytes() );
+
+        ChannelBuffer reused = pool.acquire( 6000 );
+        assertSame( buffer, reused );
+        assertFalse( reused.readable() );
+        assertEquals( 0, pool.getPooledBytes() );
+        assertFalse( buffer == pool.acquire( 6000 ) );
+        assertEquals( 3, pool.getAcquired() );
+        assertEquals( 1, pool.getReused() );
+    }
+
+    @Test
+    public void grownBufferIsPooledInTheSizeClassItCanServe() throws Exception
+    {
+        BufferPool pool = new BufferPool( Protocol.MEGA );
+        ChannelBuffer buffer = pool.acquire( BufferPool.MIN_SIZE );
+        buffer.writeBytes( new byte[BufferPool.MIN_SIZE*3] );
+        pool.release( buffer );
+
+        assertFalse( buffer == pool.acquire( BufferPool.MIN_SIZE ) );
+        assertSame( buffer, pool.acquire( BufferPool.MIN_SIZE*4 ) );
+    }
+
+    @Test
+    public void discardsReleasedBuffersBeyondMaxPooledBytes() throws Exception
+    {
+        BufferPool pool = new BufferPool( 16*1024 );
+        ByteBuffer first = pool.acquireDirect( 8*1024 );
+        ByteBuffer second = pool.acquireDirect( 8*1024 );
+        ByteBuffer third = pool.acquireDirect( 8*1024 );
+        pool.release( first );
+        pool.release( second );
+        pool.release( third );
+        assertEquals( 16*1024, pool.getPooledBytes() );
+        assertEquals( 3, pool.getReleased() );
+        assertEquals( 1, pool.getDiscarded() );
+
+        ByteBuffer reused = pool.acquireDirect( 8*1024 );
+        assertTrue( reused == first || reused == second );
+        assertEquals( reused.capacity(), reused.remaining() );
+    }
+
+    @Test
+    public void doesntPoolBuffersLargerThanMaxSize() throws Exception
+    {
+        BufferPool pool = new BufferPool( 64*Protocol.MEGA );
+        ChannelBuffer buffer = pool.acquire( BufferPool.MAX_SIZE+1 );
+        pool.release( buffer );
+        assertEquals( 0, pool.getPooledBytes() );
+        assertEquals( 1, pool.getDiscarded() );
+    }
+}
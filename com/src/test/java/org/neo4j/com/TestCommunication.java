@@ -20,6 +20,7 @@
 package org.neo4j.com;
 
 import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -27,7 +28,17 @@ import static org.junit.Assert.fail;
 import static org.neo4j.kernel.impl.nioneo.store.CommonAbstractStore.ALL_STORES_VERSION;
 import static org.neo4j.kernel.impl.nioneo.store.NeoStore.versionStringToLong;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Before;
 import org.junit.Ignore;
@@ -152,6 +163,294 @@ public class TestCommunication
         server.shutdown();
     }
 
+    @Test
+    public void makeSureClientCanStreamBigCompressedData() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, new Client.Settings().compression( true ) );
+
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+        assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void clientAndServerCanTalkOverLocalTransport() throws Exception
+    {
+        System.setProperty( Transport.TRANSPORT_PROPERTY, "local" );
+        try
+        {
+            MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+            MadeUpServer server = madeUpServer( serverImplementation );
+            MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                    APPLICATION_PROTOCOL_VERSION );
+            client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 );
+            assertEquals( (Integer) 50, client.multiply( 10, 5 ).response() );
+            client.shutdown();
+            server.shutdown();
+
+            // Requests sharing one channel, with chunks both compressed and pooled
+            concurrentRequestsOverOneChannel( true );
+        }
+        finally
+        {
+            System.clearProperty( Transport.TRANSPORT_PROPERTY );
+        }
+    }
+
+    @Test
+    public void serverHandlesBigRequestsWhileTheyStreamIn() throws Exception
+    {
+        // Lets only a couple of chunks be received ahead of the handler, so had the handler
+        // waited for the whole request it would never have gotten it
+        MemoryBudget budget = new MemoryBudget( MemoryBudget.DEFAULT_MAX_BYTES, MadeUpServer.FRAME_LENGTH*2 );
+        sendBigRequestsConcurrently( budget, 1 );
+        assertTrue( budget.getPauses() > 0 );
+    }
+
+    @Test
+    public void serverPausesChannelsWhileOverItsTotalMemoryBudget() throws Exception
+    {
+        MemoryBudget budget = new MemoryBudget( MadeUpServer.FRAME_LENGTH*3, MemoryBudget.DEFAULT_MAX_BYTES_PER_CHANNEL );
+        sendBigRequestsConcurrently( budget, 3 );
+        assertTrue( budget.getPauses() > 0 );
+    }
+
+    private void sendBigRequestsConcurrently( MemoryBudget budget, int channels ) throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH,
+                new Server.Settings().memoryBudget( budget ) );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION,
+                new Client.Settings().multiplexedChannels( channels ).compression( true ) );
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[3];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int size = MadeUpServer.FRAME_LENGTH*(20+i*10) + i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for ( int round = 0; round < 3; round++ )
+                        {
+                            Response<Integer> response = client.sendDataStream( new KnownDataByteChannel( size ) );
+                            assertEquals( (Integer) size, response.response() );
+                            response.close();
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        failure.compareAndSet( null, e );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        // Requests of a single chunk still work the same
+        assertEquals( (Integer) 10, client.sendDataStream( new KnownDataByteChannel( 10 ) ).response() );
+        // Everything held is eventually given back, and reading resumed
+        long time = currentTimeMillis();
+        while ( (budget.getUsedBytes() > 0 || budget.getPausedChannels() > 0) && currentTimeMillis()-time < 5000 )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 0, budget.getUsedBytes() );
+        assertEquals( 0, budget.getPausedChannels() );
+        client.shutdown();
+        server.shutdown();
+        if ( failure.get() != null )
+        {
+            throw new AssertionError( failure.get() );
+        }
+    }
+
+    @Test
+    public void concurrentRequestsCanShareOneChannel() throws Exception
+    {
+        concurrentRequestsOverOneChannel( false );
+    }
+
+    @Test
+    public void concurrentRequestsCanShareOneCompressedChannel() throws Exception
+    {
+        concurrentRequestsOverOneChannel( true );
+    }
+
+    private void concurrentRequestsOverOneChannel( boolean compression ) throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION,
+                new Client.Settings().multiplexedChannels( 1 ).compression( compression ) );
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[5];
+        for ( int i = 0; i < threads.length; i++ )
+        {
+            final int value = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for ( int round = 0; round < 10; round++ )
+                        {
+                            // Multi-chunk responses, interleaved with those of the other threads
+                            client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 ).close();
+                            Response<Integer> response = client.multiply( value, round );
+                            assertEquals( (Integer) (value*round), response.response() );
+                            response.close();
+                        }
+                    }
+                    catch ( Throwable e )
+                    {
+                        failure.compareAndSet( null, e );
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        client.shutdown();
+        server.shutdown();
+        if ( failure.get() != null )
+        {
+            throw new AssertionError( failure.get() );
+        }
+    }
+
+    @Test
+    public void failedRequestDoesntFailOthersSharingItsChannel() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse )
+        {
+            @Override
+            public Response<Integer> multiply( int value1, int value2 )
+            {
+                try
+                {
+                    Thread.sleep( 1000 );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new RuntimeException( e );
+                }
+                return super.multiply( value1, value2 );
+            }
+        };
+        MadeUpServer server = madeUpServer( serverImplementation );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, new Client.Settings().multiplexedChannels( 1 ) );
+
+        final AtomicReference<Object> slowResult = new AtomicReference<Object>();
+        Thread slowRequester = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    slowResult.set( client.multiply( 2, 3 ).response() );
+                }
+                catch ( Throwable e )
+                {
+                    slowResult.set( e );
+                }
+            }
+        };
+        try
+        {
+            slowRequester.start();
+            Thread.sleep( 200 );
+            try
+            {
+                client.throwException( "Failing only this request" );
+                fail( "Should have failed" );
+            }
+            catch ( MadeUpException e )
+            {   // Good
+            }
+            slowRequester.join();
+
+            assertEquals( 6, slowResult.get() );
+            assertEquals( (Integer) 20, client.multiply( 4, 5 ).response() );
+        }
+        finally
+        {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void asyncRequestsCompleteWithoutBlockingTheCaller() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+
+        List<ResponseFuture<Integer>> futures = new ArrayList<ResponseFuture<Integer>>();
+        for ( int i = 0; i < 50; i++ )
+        {
+            futures.add( client.multiplyAsync( i, 3 ) );
+        }
+        final CountDownLatch listenerCalled = new CountDownLatch( 1 );
+        futures.get( 0 ).addListener( new ResponseListener<Integer>()
+        {
+            @Override
+            public void completed( Response<Integer> response )
+            {
+                listenerCalled.countDown();
+            }
+
+            @Override
+            public void failed( Throwable cause )
+            {
+            }
+        } );
+        for ( int i = 0; i < futures.size(); i++ )
+        {
+            assertEquals( (Integer) (i*3), futures.get( i ).get().response() );
+        }
+        assertTrue( listenerCalled.await( 10, SECONDS ) );
+
+        try
+        {
+            client.throwExceptionAsync( "The message" ).get();
+            fail( "Should have thrown " + MadeUpException.class.getSimpleName() );
+        }
+        catch ( MadeUpException e )
+        {   // Good
+            assertEquals( "The message", e.getMessage() );
+        }
+
+        client.shutdown();
+        server.shutdown();
+    }
+
     @Test
     public void clientThrowsServerSideErrorMidwayThroughStreaming() throws Exception
     {
@@ -301,6 +600,293 @@ public class TestCommunication
         server.shutdown();
     }
 
+    @Test
+    public void requestTimingsAndTrafficAreRecorded() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse );
+        MadeUpServer server = madeUpServer( serverImplementation );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION );
+
+        client.multiply( 2, 3 ).close();
+        client.multiplyAsync( 4, 5 ).get().close();
+        client.streamSomeData( new ToAssertionWriter(), MadeUpServer.FRAME_LENGTH*3 ).close();
+
+        RequestMetrics.Entry clientStream = client.getRequestMetrics().getByRequestType().get(
+                MadeUpServer.MadeUpRequestType.STREAM_SOME_DATA.toString() );
+        assertEquals( 1, clientStream.getRequests() );
+        assertTrue( clientStream.getResponseBytes() > MadeUpServer.FRAME_LENGTH*3 );
+        RequestMetrics.Entry clientMultiply = client.getRequestMetrics().getByRequestType().get(
+                MadeUpServer.MadeUpRequestType.MULTIPLY.toString() );
+        assertEquals( 2, clientMultiply.getRequests() );
+        assertEquals( 2, clientMultiply.latency( RequestMetrics.Phase.TOTAL ).getCount() );
+
+        // The server records a request when the last chunk of the response has been sent off
+        RequestMetrics.Entry serverStream = null;
+        long end = currentTimeMillis() + 5000;
+        while ( serverStream == null && currentTimeMillis() < end )
+        {
+            serverStream = server.getRequestMetrics().getByRequestType().get(
+                    MadeUpServer.MadeUpRequestType.STREAM_SOME_DATA.toString() );
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, serverStream.getRequests() );
+        assertEquals( 1, serverStream.latency( RequestMetrics.Phase.EXECUTE ).getCount() );
+        assertEquals( clientStream.getRequestBytes(), serverStream.getRequestBytes() );
+        assertEquals( clientStream.getResponseBytes(), serverStream.getResponseBytes() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void serverRejectsRequestsWhenAllThreadsAreBusy() throws Exception
+    {
+        final CountDownLatch calledLatch = new CountDownLatch( 1 );
+        final CountDownLatch releaseLatch = new CountDownLatch( 1 );
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse )
+        {
+            @Override
+            public Response<Integer> multiply( int value1, int value2 )
+            {
+                calledLatch.countDown();
+                try
+                {
+                    releaseLatch.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new RuntimeException( e );
+                }
+                return super.multiply( value1, value2 );
+            }
+        };
+        RequestScheduler scheduler = new RequestScheduler( "test", 1, 0 );
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH,
+                new Server.Settings().scheduler( scheduler ) );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+
+        final AtomicReference<Integer> blockedResult = new AtomicReference<Integer>();
+        Thread blocked = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                blockedResult.set( client.multiply( 2, 3 ).response() );
+            }
+        };
+        blocked.start();
+        assertTrue( calledLatch.await( 10, SECONDS ) );
+
+        try
+        {
+            client.multiply( 4, 5 );
+            fail( "Should have been rejected" );
+        }
+        catch ( RequestRejectedException e )
+        {   // Good
+        }
+        assertEquals( 1, scheduler.getRejected( RequestClass.CONTROL ) );
+
+        releaseLatch.countDown();
+        blocked.join();
+        assertEquals( (Integer) 6, blockedResult.get() );
+        assertEquals( (Integer) 20, client.multiply( 4, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void serverDropsQueuedRequestsWhichTheirClientsHaveGivenUpOn() throws Exception
+    {
+        final CountDownLatch calledLatch = new CountDownLatch( 1 );
+        final CountDownLatch releaseLatch = new CountDownLatch( 1 );
+        final AtomicInteger calls = new AtomicInteger();
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse )
+        {
+            @Override
+            public Response<Integer> multiply( int value1, int value2 )
+            {
+                calls.incrementAndGet();
+                calledLatch.countDown();
+                try
+                {
+                    releaseLatch.await();
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new RuntimeException( e );
+                }
+                return super.multiply( value1, value2 );
+            }
+        };
+        RequestScheduler scheduler = new RequestScheduler( "test", 1, 1 );
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH,
+                new Server.Settings().scheduler( scheduler ) );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION );
+        MadeUpClient impatientClient = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, new Client.Settings(), 1 );
+
+        final AtomicReference<Integer> blockedResult = new AtomicReference<Integer>();
+        Thread blocked = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                blockedResult.set( client.multiply( 2, 3 ).response() );
+            }
+        };
+        blocked.start();
+        assertTrue( calledLatch.await( 10, SECONDS ) );
+
+        // Queued up behind the blocked request until the client gives up on it
+        try
+        {
+            impatientClient.multiply( 4, 5 );
+            fail( "Should have timed out" );
+        }
+        catch ( ComException e )
+        {   // Good
+        }
+        assertEquals( 1, scheduler.getQueued( RequestClass.CONTROL ) );
+
+        releaseLatch.countDown();
+        blocked.join();
+        assertEquals( (Integer) 6, blockedResult.get() );
+        for ( long end = currentTimeMillis() + 10000; scheduler.getExpired( RequestClass.CONTROL ) == 0 &&
+                currentTimeMillis() < end; )
+        {
+            Thread.sleep( 10 );
+        }
+        assertEquals( 1, scheduler.getExpired( RequestClass.CONTROL ) );
+        assertEquals( 1, calls.get() );
+        assertEquals( (Integer) 20, client.multiply( 4, 5 ).response() );
+
+        impatientClient.shutdown();
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void heartbeatsKeepSlowRequestsAndIdleChannelsAlive() throws Exception
+    {
+        MadeUpImplementation serverImplementation = new MadeUpImplementation( storeIdToUse )
+        {
+            @Override
+            public Response<Integer> multiply( int value1, int value2 )
+            {
+                try
+                {
+                    Thread.sleep( 1500 );
+                }
+                catch ( InterruptedException e )
+                {
+                    throw new RuntimeException( e );
+                }
+                return super.multiply( value1, value2 );
+            }
+        };
+        MadeUpServer server = new MadeUpServer( serverImplementation, PORT, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH,
+                new Server.Settings().heartbeatTimeoutMillis( 300 ) );
+        MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION,
+                new Client.Settings().multiplexedChannels( 1 ).heartbeatTimeoutMillis( 300 ) );
+
+        assertEquals( (Integer) 6, client.multiply( 2, 3 ).response() );
+        Thread.sleep( 1000 );
+        assertEquals( (Integer) 20, client.multiply( 4, 5 ).response() );
+
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void serverClosesChannelOfClientGoneSilent() throws Exception
+    {
+        MadeUpServer server = new MadeUpServer( new MadeUpImplementation( storeIdToUse ), PORT,
+                INTERNAL_PROTOCOL_VERSION, APPLICATION_PROTOCOL_VERSION, TxChecksumVerifier.ALWAYS_MATCH,
+                new Server.Settings().heartbeatTimeoutMillis( 300 ) );
+        Socket socket = new Socket( "localhost", PORT );
+        try
+        {
+            socket.setSoTimeout( 10000 );
+            writeHeartbeat( socket );
+            long start = currentTimeMillis();
+            InputStream in = socket.getInputStream();
+            int heartbeatBytes = 0;
+            while ( in.read() != -1 )
+            {
+                heartbeatBytes++;
+            }
+            assertTrue( "Got " + heartbeatBytes + " bytes of heartbeats", heartbeatBytes >= 10 );
+            assertTrue( currentTimeMillis() - start < 5000 );
+        }
+        finally
+        {
+            socket.close();
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void clientFailsRequestsToServerGoneSilent() throws Exception
+    {
+        ServerSocket silentServer = new ServerSocket( PORT );
+        final MadeUpClient client = new MadeUpClient( PORT, storeIdToUse, INTERNAL_PROTOCOL_VERSION,
+                APPLICATION_PROTOCOL_VERSION,
+                new Client.Settings().multiplexedChannels( 1 ).heartbeatTimeoutMillis( 300 ) );
+        Socket socket = null;
+        try
+        {
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread requester = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        client.multiply( 2, 3 );
+                    }
+                    catch ( Throwable e )
+                    {
+                        failure.set( e );
+                    }
+                }
+            };
+            long start = currentTimeMillis();
+            requester.start();
+            socket = silentServer.accept();
+            // Heartbeat once, then go silent as if the machine went away
+            writeHeartbeat( socket );
+            requester.join( 10000 );
+            long time = currentTimeMillis() - start;
+            assertTrue( failure.get() instanceof ComException );
+            assertTrue( "Failed after " + time + " ms", time >= 300 && time < 5000 );
+        }
+        finally
+        {
+            client.shutdown();
+            if ( socket != null ) socket.close();
+            silentServer.close();
+        }
+    }
+
+    private static void writeHeartbeat( Socket socket ) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream( socket.getOutputStream() );
+        out.writeInt( 2 + Protocol.REQUEST_ID_SIZE ); // frame length
+        out.writeByte( INTERNAL_PROTOCOL_VERSION << 2 );
+        out.writeByte( APPLICATION_PROTOCOL_VERSION );
+        out.writeInt( HeartbeatHandler.HEARTBEAT_REQUEST_ID );
+        out.flush();
+    }
+
     @Test
     @Ignore("getting build back to green")
     public void serverStopsStreamingToDeadClient() throws Exception
@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestCompressionHandler
+{
+    private static final byte VERSION = 5;
+
+    @Test
+    public void compressedChunksKeepTheirHeaderAndComeBackTheSame() throws Exception
+    {
+        CompressionHandler sender = new CompressionHandler( VERSION, true, StringLogger.DEV_NULL );
+        CompressionHandler receiver = new CompressionHandler( VERSION, false, StringLogger.DEV_NULL );
+        EncoderEmbedder<ChannelBuffer> out = new EncoderEmbedder<ChannelBuffer>( sender );
+        DecoderEmbedder<ChannelBuffer> in = new DecoderEmbedder<ChannelBuffer>( receiver );
+
+        for ( int i = 0; i < 5; i++ )
+        {
+            ChannelBuffer chunk = chunk( VERSION, 1234 + i, 10000 );
+            out.offer( chunk.duplicate() );
+            ChannelBuffer compressed = out.poll();
+            assertEquals( (byte) (chunk.getByte( 0 ) | CompressionHandler.COMPRESSED), compressed.getByte( 0 ) );
+            assertEquals( chunk.getByte( 1 ), compressed.getByte( 1 ) );
+            assertEquals( 1234 + i, compressed.getInt( 2 ) );
+            assertTrue( compressed.readableBytes() < chunk.readableBytes() / 10 );
+
+            in.offer( compressed );
+            assertEquals( chunk, in.poll() );
+        }
+
+        assertEquals( 5, sender.sent().getChunks() );
+        assertEquals( 5 * (10000 - 6), sender.sent().getBytes() );
+        assertEquals( sender.sent().getBytes(), receiver.received().getBytes() );
+        assertEquals( sender.sent().getCompressedBytes(), receiver.received().getCompressedBytes() );
+        assertTrue( receiver.isCompressing() );
+    }
+
+    @Test
+    public void doesNotCompressUntilTheOtherSideDoes() throws Exception
+    {
+        CompressionHandler handler = new CompressionHandler( VERSION, false, StringLogger.DEV_NULL );
+        EncoderEmbedder<ChannelBuffer> out = new EncoderEmbedder<ChannelBuffer>( handler );
+
+        ChannelBuffer chunk = chunk( VERSION, 1, 1000 );
+        out.offer( chunk );
+        assertSame( chunk, out.poll() );
+        assertFalse( handler.isCompressing() );
+    }
+
+    @Test
+    public void passesChunksOfOtherVersionsThrough() throws Exception
+    {
+        EncoderEmbedder<ChannelBuffer> out = new EncoderEmbedder<ChannelBuffer>(
+                new CompressionHandler( VERSION, true, StringLogger.DEV_NULL ) );
+
+        ChannelBuffer chunk = chunk( (byte) (VERSION - 1), 1, 1000 );
+        out.offer( chunk );
+        assertSame( chunk, out.poll() );
+    }
+
+    private ChannelBuffer chunk( byte internalProtocolVersion, int requestId, int size )
+    {
+        ChannelBuffer chunk = ChannelBuffers.buffer( size );
+        chunk.writeByte( internalProtocolVersion << 2 );
+        chunk.writeByte( 1 );
+        chunk.writeInt( requestId );
+        while ( chunk.writable() )
+        {
+            chunk.writeByte( chunk.writerIndex() % 10 );
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.neo4j.com.RequestContext.lastAppliedTx;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.neo4j.com.RequestContext.Tx;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+
+public class TestConnectionSession
+{
+    private final ConnectionSession client = new ConnectionSession();
+    private final ConnectionSession server = new ConnectionSession();
+
+    @Test
+    public void dataSourceNamesAreOnlySentUntilAcknowledged() throws Exception
+    {
+        RequestContext context = new RequestContext( 1349870000000L, 2, 10,
+                new Tx[] { lastAppliedTx( "nioneodb", 1234 ), lastAppliedTx( "lucene-index", 56 ) }, 1, -98765 );
+
+        int firstSize = roundTrip( context );
+        client.responseReceived( context );
+        int secondSize = roundTrip( context );
+        assertTrue( "Expected " + secondSize + " < " + firstSize, secondSize < firstSize );
+
+        // A new name is sent in full along with the already acknowledged ones
+        RequestContext withNewName = new RequestContext( 1349870000000L, 2, 11,
+                new Tx[] { lastAppliedTx( "nioneodb", 1235 ), lastAppliedTx( "other", 1 ) }, 1, 5 );
+        roundTrip( withNewName );
+    }
+
+    @Test
+    public void emptyContextRoundTrips() throws Exception
+    {
+        roundTrip( RequestContext.EMPTY );
+    }
+
+    @Test( expected = ComException.class )
+    public void unknownDataSourceIndexFails() throws Exception
+    {
+        RequestContext context = RequestContext.anonymous( new Tx[] { lastAppliedTx( "nioneodb", 1 ) } );
+        client.responseReceived( context );
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        client.writeContext( context, buffer );
+        server.readContext( buffer );
+    }
+
+    @Test
+    public void storeIdIsOmittedWhenClientHasIt() throws Exception
+    {
+        StoreId storeId = new StoreId( 1, 2, 3 );
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        server.writeStoreId( storeId, buffer );
+        assertTrue( client.readStoreIdFlag( buffer ) );
+        client.storeIdReceived( StoreId.deserialize( readBytes( buffer, 24 ) ) );
+
+        // Not omitted until the server has heard that the client has it
+        server.writeStoreId( storeId, buffer );
+        assertTrue( client.readStoreIdFlag( buffer ) );
+        buffer.skipBytes( 24 );
+
+        client.writeContext( RequestContext.EMPTY, buffer );
+        server.readContext( buffer );
+        server.writeStoreId( storeId, buffer );
+        assertFalse( client.readStoreIdFlag( buffer ) );
+        assertEquals( storeId, client.getReceivedStoreId() );
+
+        // Another store id is sent in full
+        server.writeStoreId( new StoreId( 4, 5, 6 ), buffer );
+        assertTrue( client.readStoreIdFlag( buffer ) );
+    }
+
+    @Test
+    public void varIntsAndStringsRoundTrip() throws Exception
+    {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        long[] longs = { 0, 1, -1, 127, 128, Long.MAX_VALUE, Long.MIN_VALUE };
+        for ( long value : longs )
+        {
+            Protocol.writeSignedVarLong( buffer, value );
+            Protocol.writeVarLong( buffer, value );
+        }
+        int[] ints = { 0, 1, -1, 300, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        for ( int value : ints )
+        {
+            Protocol.writeSignedVarInt( buffer, value );
+        }
+        String unicode = "n\u00e4me \u2603";
+        Protocol.writeString( buffer, unicode );
+        Protocol.writeUtf8String( buffer, unicode );
+        assertEquals( 1, sizeOf( 0 ) );
+        assertEquals( 2, sizeOf( 128 ) );
+
+        for ( long value : longs )
+        {
+            assertEquals( value, Protocol.readSignedVarLong( buffer ) );
+            assertEquals( value, Protocol.readVarLong( buffer ) );
+        }
+        for ( int value : ints )
+        {
+            assertEquals( value, Protocol.readSignedVarInt( buffer ) );
+        }
+        assertEquals( unicode, Protocol.readString( buffer ) );
+        assertEquals( unicode, Protocol.readUtf8String( buffer ) );
+        assertFalse( buffer.readable() );
+    }
+
+    private int roundTrip( RequestContext context )
+    {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        client.writeContext( context, buffer );
+        int size = buffer.readableBytes();
+        RequestContext read = server.readContext( buffer );
+        assertEquals( context, read );
+        assertEquals( context.getMasterId(), read.getMasterId() );
+        assertEquals( context.getChecksum(), read.getChecksum() );
+        assertEquals( context.lastAppliedTransactions().length, read.lastAppliedTransactions().length );
+        for ( int i = 0; i < context.lastAppliedTransactions().length; i++ )
+        {
+            Tx expected = context.lastAppliedTransactions()[i];
+            Tx actual = read.lastAppliedTransactions()[i];
+            assertEquals( expected.getDataSourceName(), actual.getDataSourceName() );
+            assertEquals( expected.getTxId(), actual.getTxId() );
+        }
+        assertFalse( buffer.readable() );
+        return size;
+    }
+
+    private static int sizeOf( long varLong )
+    {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        Protocol.writeVarLong( buffer, varLong );
+        return buffer.readableBytes();
+    }
+
+    private static byte[] readBytes( ChannelBuffer buffer, int length )
+    {
+        byte[] bytes = new byte[length];
+        buffer.readBytes( bytes );
+        return bytes;
+    }
+}
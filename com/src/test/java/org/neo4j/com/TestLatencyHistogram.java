@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void bucketsCoverAllValuesInOrder() throws Exception
+    {
+        long previousHighest = -1;
+        for ( int bucket = 0; bucket < 60*4; bucket++ )
+        {
+            long highest = LatencyHistogram.highestValueOf( bucket );
+            assertEquals( bucket, LatencyHistogram.bucketOf( previousHighest + 1 ) );
+            assertEquals( bucket, LatencyHistogram.bucketOf( highest ) );
+            assertTrue( highest > previousHighest );
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() throws Exception
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for ( int i = 1; i <= 1000; i++ )
+        {
+            histogram.record( i * 1000L );
+        }
+        assertEquals( 1000, histogram.getCount() );
+        assertEquals( 500500, histogram.getMeanNanos() );
+        assertEquals( 1000000, histogram.getMaxNanos() );
+        assertWithin( 500000, histogram.getPercentileNanos( 50 ), 0.25 );
+        assertWithin( 990000, histogram.getPercentileNanos( 99 ), 0.25 );
+        assertEquals( 1000000, histogram.getPercentileNanos( 100 ) );
+    }
+
+    @Test
+    public void emptyHistogramHasZeroPercentiles() throws Exception
+    {
+        assertEquals( 0, new LatencyHistogram().getPercentileNanos( 99 ) );
+    }
+
+    private void assertWithin( long expected, long actual, double precision )
+    {
+        assertTrue( actual + " not within " + precision + " of " + expected,
+                actual >= expected && actual <= expected * (1 + precision) );
+    }
+}
@@ -21,6 +21,12 @@ package org.neo4j.com;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -46,18 +52,85 @@ public class TestResourcePool
         
         Something somethingFirst = pool.acquire();
         somethingFirst.doStuff();
-        pool.release();
+        pool.release( somethingFirst );
         
         Something something = pool.acquire();
         assertEquals( somethingFirst, something );
         something.doStuff();
         something.close();
-        pool.release();
+        pool.release( something );
         
         Something somethingElse = pool.acquire();
         assertFalse( something == somethingElse );
         somethingElse.doStuff();
     }
+
+    @Test
+    public void releasedResourceIsHandedToWaitingThread() throws Exception
+    {
+        final ResourcePool<Something> pool = new ResourcePool<Something>( 1, 1 )
+        {
+            @Override
+            protected Something create()
+            {
+                return new Something();
+            }
+        };
+        Something held = pool.acquire();
+        final AtomicReference<Something> acquiredByOther = new AtomicReference<Something>();
+        Thread other = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                acquiredByOther.set( pool.acquire() );
+            }
+        };
+        other.start();
+        other.join( 200 );
+        assertTrue( "Should wait for a resource to be released", other.isAlive() );
+
+        pool.release( held );
+        other.join( 10000 );
+        assertSame( held, acquiredByOther.get() );
+        assertEquals( 1, pool.getActive() );
+        assertEquals( 2, pool.getWaitTimes().getCount() );
+        assertTrue( pool.getWaitTimes().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos( 200 ) );
+    }
+
+    @Test
+    public void evictsIdleResources() throws Exception
+    {
+        final AtomicInteger disposed = new AtomicInteger();
+        ResourcePool<Something> pool = new ResourcePool<Something>( 10, 5, 50 )
+        {
+            @Override
+            protected Something create()
+            {
+                return new Something();
+            }
+
+            @Override
+            protected void dispose( Something resource )
+            {
+                disposed.incrementAndGet();
+            }
+        };
+        Something first = pool.acquire();
+        Something second = pool.acquire();
+        pool.release( first );
+        pool.release( second );
+        assertEquals( 2, pool.getIdle() );
+
+        long end = System.currentTimeMillis() + 10000;
+        while ( pool.getIdle() > 0 && System.currentTimeMillis() < end ) Thread.sleep( 10 );
+        assertEquals( 0, pool.getIdle() );
+        assertEquals( 2, pool.getEvicted() );
+        assertEquals( 2, disposed.get() );
+        assertFalse( first == pool.acquire() );
+        pool.close( true );
+        assertEquals( 3, disposed.get() );
+    }
     
     private static class Something
     {
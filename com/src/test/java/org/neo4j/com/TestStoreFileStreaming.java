@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.kernel.impl.util.FileUtils;
+
+public class TestStoreFileStreaming
+{
+    private static final File PATH = new File( "target/tmp/storefiles" );
+    private final File source = new File( PATH, "source" );
+    private final File target = new File( PATH, "target" );
+
+    @Before
+    public void doBefore() throws Exception
+    {
+        FileUtils.deleteRecursively( PATH );
+        source.mkdirs();
+        target.mkdirs();
+    }
+
+    @Test
+    public void rawFilesAreStreamedAsIs() throws Exception
+    {
+        byte[] big = data( 300*1024 + 17 );
+        byte[] small = data( 10 );
+        streamAndReceive( true, big, small, new byte[0] );
+    }
+
+    @Test
+    public void blockFormatStillWorks() throws Exception
+    {
+        streamAndReceive( false, data( 300*1024 + 17 ), new byte[0] );
+    }
+
+    private void streamAndReceive( boolean raw, byte[]... contents ) throws IOException
+    {
+        ChannelBuffer network = ChannelBuffers.dynamicBuffer();
+        ToNetworkStoreWriter sender = new ToNetworkStoreWriter( network, raw );
+        ByteBuffer temporaryBuffer = ByteBuffer.allocate( 1024 );
+        for ( int i = 0; i < contents.length; i++ )
+        {
+            File file = new File( source, "file" + i );
+            write( file, contents[i] );
+            FileInputStream stream = new FileInputStream( file );
+            try
+            {
+                sender.write( file.getName(), stream.getChannel(), temporaryBuffer, file.length() > 0 );
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        sender.done();
+
+        new Protocol.FileStreamsDeserializer( new ToFileStoreWriter( target.getPath() ) ).read( network,
+                temporaryBuffer );
+        for ( int i = 0; i < contents.length; i++ )
+        {
+            assertArrayEquals( contents[i], read( new File( target, "file" + i ) ) );
+        }
+        assertEquals( 0, network.readableBytes() );
+    }
+
+    private byte[] data( int length )
+    {
+        byte[] data = new byte[length];
+        for ( int i = 0; i < length; i++ )
+        {
+            data[i] = (byte) (i%127);
+        }
+        return data;
+    }
+
+    private void write( File file, byte[] data ) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( data );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private byte[] read( File file ) throws IOException
+    {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            int offset = 0;
+            while ( offset < data.length )
+            {
+                offset += in.read( data, offset, data.length-offset );
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return data;
+    }
+}
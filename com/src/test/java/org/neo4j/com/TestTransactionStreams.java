@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+import org.neo4j.helpers.Triplet;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+
+public class TestTransactionStreams
+{
+    private static final String DATA_SOURCE = "nioneodb";
+    private static final int[] SIZES = { 10, 1000, 100000 };
+
+    @Test
+    public void readTransactionsOneAfterAnother() throws Exception
+    {
+        for ( boolean largeBlocks : new boolean[] { false, true } )
+        {
+            TransactionStream stream = writeAndRead( largeBlocks );
+            for ( int i = 0; i < SIZES.length; i++ )
+            {
+                Triplet<String, Long, TxExtractor> tx = stream.next();
+                assertEquals( DATA_SOURCE, tx.first() );
+                assertEquals( (Long) (long) i, tx.second() );
+                assertEquals( SIZES[i], readAndVerify( tx.third().extract(), i, Integer.MAX_VALUE ) );
+            }
+            assertFalse( stream.hasNext() );
+        }
+    }
+
+    @Test
+    public void skipWhatIsLeftUnreadOfATransaction() throws Exception
+    {
+        for ( boolean largeBlocks : new boolean[] { false, true } )
+        {
+            TransactionStream stream = writeAndRead( largeBlocks );
+            for ( int i = 0; i < SIZES.length; i++ )
+            {
+                assertTrue( stream.hasNext() );
+                Triplet<String, Long, TxExtractor> tx = stream.next();
+                assertEquals( (Long) (long) i, tx.second() );
+                // Neither read through nor closed
+                readAndVerify( tx.third().extract(), i, 5 );
+            }
+            assertFalse( stream.hasNext() );
+        }
+    }
+
+    private TransactionStream writeAndRead( boolean largeBlocks ) throws IOException
+    {
+        TransactionStream transactions = new TransactionStream( DATA_SOURCE )
+        {
+            private int next;
+
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                if ( next == SIZES.length ) return null;
+                final int tx = next++;
+                return Triplet.<String, Long, TxExtractor>of( DATA_SOURCE, (long) tx, new TxExtractor()
+                {
+                    @Override
+                    public void extract( LogBuffer buffer )
+                    {
+                        try
+                        {
+                            buffer.put( data( tx, SIZES[tx] ) );
+                        }
+                        catch ( IOException e )
+                        {
+                            throw new RuntimeException( e );
+                        }
+                    }
+
+                    @Override
+                    public ReadableByteChannel extract()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                } );
+            }
+        };
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        Server.writeTransactionStreams( transactions, buffer, largeBlocks );
+        return Client.readTransactionStreams( buffer, null, largeBlocks );
+    }
+
+    private static byte[] data( int tx, int size )
+    {
+        byte[] data = new byte[size];
+        for ( int i = 0; i < size; i++ )
+        {
+            data[i] = (byte) (tx + i);
+        }
+        return data;
+    }
+
+    private static int readAndVerify( ReadableByteChannel channel, int tx, int maxBytes ) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( 1000 );
+        byte[] expected = data( tx, SIZES[tx] );
+        int total = 0;
+        int read;
+        while ( total < maxBytes && (read = channel.read( buffer )) > 0 )
+        {
+            buffer.flip();
+            byte[] actual = new byte[read];
+            buffer.get( actual );
+            assertTrue( Arrays.equals( Arrays.copyOfRange( expected, total, total + read ), actual ) );
+            total += read;
+            buffer.clear();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.com;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.neo4j.helpers.Triplet;
+import org.neo4j.helpers.collection.PrefetchingIterator;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+
+/**
+ * Measures the throughput of {@link Server#writeTransactionStreams} and
+ * {@link Client#readTransactionStreams} with small and large blocks, i.e. the
+ * transaction stream framing of internal protocol version 3 and 4 respectively.
+ * Run it as a main class, optionally with the number of transactions, the size
+ * of each transaction and the size of the reads on the receiving end.
+ */
+public class TransactionStreamsBenchmark
+{
+    private static final int ROUNDS = 10;
+    private static final int WARMUP_ROUNDS = 5;
+
+    public static void main( String[] args ) throws IOException
+    {
+        int transactions = args.length > 0 ? Integer.parseInt( args[0] ) : 1000;
+        int transactionSize = args.length > 1 ? Integer.parseInt( args[1] ) : 20000;
+        int readSize = args.length > 2 ? Integer.parseInt( args[2] ) : 1024;
+        System.out.println( transactions + " transactions of " + transactionSize + " bytes, read " +
+                readSize + " bytes at a time" );
+
+        for ( boolean largeBlocks : new boolean[] { false, true } )
+        {
+            long writeTime = 0, readTime = 0, encodedSize = 0;
+            for ( int round = 0; round < ROUNDS; round++ )
+            {
+                ChannelBuffer buffer = ChannelBuffers.dynamicBuffer( transactions * (transactionSize + 100) );
+                long time = System.nanoTime();
+                Server.writeTransactionStreams( transactions( transactions, transactionSize ), buffer, largeBlocks );
+                long written = System.nanoTime();
+                long bytesRead = readAll( Client.readTransactionStreams( buffer, null, largeBlocks ), readSize );
+                long read = System.nanoTime();
+                if ( bytesRead != (long) transactions * transactionSize )
+                {
+                    throw new IllegalStateException( "Read " + bytesRead + " bytes, expected " +
+                            (long) transactions * transactionSize );
+                }
+                if ( round >= WARMUP_ROUNDS )
+                {
+                    writeTime += written - time;
+                    readTime += read - written;
+                    encodedSize = buffer.writerIndex();
+                }
+            }
+            int measuredRounds = ROUNDS - WARMUP_ROUNDS;
+            long payload = (long) transactions * transactionSize * measuredRounds;
+            System.out.println( (largeBlocks ? "large blocks: " : "small blocks: ") +
+                    "write " + megabytesPerSecond( payload, writeTime ) + " MB/s, " +
+                    "read " + megabytesPerSecond( payload, readTime ) + " MB/s, " +
+                    "encoded size " + encodedSize + " bytes" );
+        }
+    }
+
+    private static long megabytesPerSecond( long bytes, long nanos )
+    {
+        return bytes * 1000000000L / Math.max( 1, nanos ) / Protocol.MEGA;
+    }
+
+    private static long readAll( TransactionStream stream, int readSize ) throws IOException
+    {
+        ByteBuffer readBuffer = ByteBuffer.allocate( readSize );
+        long total = 0;
+        while ( stream.hasNext() )
+        {
+            ReadableByteChannel data = stream.next().third().extract();
+            int read;
+            while ( (read = data.read( readBuffer )) > 0 )
+            {
+                total += read;
+                readBuffer.clear();
+            }
+            data.close();
+        }
+        return total;
+    }
+
+    private static TransactionStream transactions( final int count, final int size )
+    {
+        final TxExtractor extractor = new TxExtractor()
+        {
+            private final byte[] entryData = new byte[100];
+
+            @Override
+            public void extract( LogBuffer buffer )
+            {
+                try
+                {
+                    // Roughly what a log entry with a command looks like
+                    int written = 0;
+                    while ( written + 8 + 4 + 1 + entryData.length <= size )
+                    {
+                        buffer.put( (byte) 1 );
+                        buffer.putInt( written );
+                        buffer.putLong( written );
+                        buffer.put( entryData );
+                        written += 8 + 4 + 1 + entryData.length;
+                    }
+                    buffer.put( Arrays.copyOf( entryData, size - written ) );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+
+            @Override
+            public ReadableByteChannel extract()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final Iterator<Triplet<String, Long, TxExtractor>> transactions =
+                new PrefetchingIterator<Triplet<String, Long, TxExtractor>>()
+        {
+            private long txId;
+
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                return txId < count ? Triplet.of( "nioneodb", ++txId, extractor ) : null;
+            }
+        };
+        return new TransactionStream( "nioneodb" )
+        {
+            @Override
+            protected Triplet<String, Long, TxExtractor> fetchNextOrNull()
+            {
+                return transactions.hasNext() ? transactions.next() : null;
+            }
+        };
+    }
+}
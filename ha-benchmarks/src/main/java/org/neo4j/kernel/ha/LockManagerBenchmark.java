@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.RagManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the throughput of taking and releasing locks, like a master does for its slaves,
+ * from one and up to many threads sharing a lock manager, each thread being a transaction
+ * of its own. Locks are taken on resources picked at random among the given number of them,
+ * so fewer resources means more waiting for locks held by others.
+ *
+ * Compares the plain {@link LockManager}, guarding all its locks by one monitor, to the
+ * {@link StripedLockManager}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+public class LockManagerBenchmark
+{
+    private static final int STRIPES = 128;
+
+    @Param( { "plain", "striped" } )
+    public String lockManager;
+
+    @Param( { "64", "65536" } )
+    public int resources;
+
+    private LockManager locks;
+    private Long[] resourceIds;
+
+    @Setup
+    public void setup()
+    {
+        // Transactions are always given, so the transaction manager is never asked for one
+        locks = "striped".equals( lockManager ) ? new StripedLockManager( null, STRIPES ) :
+                new LockManager( new RagManager( null ) );
+        resourceIds = new Long[resources];
+        for ( int i = 0; i < resources; i++ )
+        {
+            resourceIds[i] = Long.valueOf( i );
+        }
+    }
+
+    @State( Scope.Thread )
+    public static class Requester
+    {
+        private final Transaction tx = new LockingTransaction();
+        private final Random random = new Random();
+    }
+
+    @Benchmark
+    @Threads( 1 )
+    public void oneThread( Requester requester )
+    {
+        lockAndRelease( requester );
+    }
+
+    @Benchmark
+    @Threads( 8 )
+    public void eightThreads( Requester requester )
+    {
+        lockAndRelease( requester );
+    }
+
+    @Benchmark
+    @Threads( 64 )
+    public void sixtyFourThreads( Requester requester )
+    {
+        lockAndRelease( requester );
+    }
+
+    @Benchmark
+    @Threads( 256 )
+    public void twoHundredFiftySixThreads( Requester requester )
+    {
+        lockAndRelease( requester );
+    }
+
+    /*
+     * One lock at a time, so that there are no deadlocks, a read lock three times out of four.
+     */
+    private void lockAndRelease( Requester requester )
+    {
+        Long resource = resourceIds[requester.random.nextInt( resources )];
+        if ( requester.random.nextInt( 4 ) == 0 )
+        {
+            locks.getWriteLock( resource, requester.tx );
+            locks.releaseWriteLock( resource, requester.tx );
+        }
+        else
+        {
+            locks.getReadLock( resource, requester.tx );
+            locks.releaseReadLock( resource, requester.tx );
+        }
+    }
+
+    private static class LockingTransaction implements Transaction
+    {
+        @Override
+        public void commit()
+        {
+        }
+
+        @Override
+        public boolean delistResource( XAResource resource, int flag )
+        {
+            return false;
+        }
+
+        @Override
+        public boolean enlistResource( XAResource resource )
+        {
+            return false;
+        }
+
+        @Override
+        public int getStatus()
+        {
+            return 0;
+        }
+
+        @Override
+        public void registerSynchronization( Synchronization synchronization )
+        {
+        }
+
+        @Override
+        public void rollback()
+        {
+        }
+
+        @Override
+        public void setRollbackOnly()
+        {
+        }
+    }
+}
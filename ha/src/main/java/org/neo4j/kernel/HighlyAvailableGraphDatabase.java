@@ -42,6 +42,7 @@ import java.util.concurrent.TimeUnit;
 import javax.transaction.TransactionManager;
 
 import org.neo4j.backup.OnlineBackupSettings;
+import org.neo4j.com.Client;
 import org.neo4j.com.ComException;
 import org.neo4j.com.IllegalProtocolVersionException;
 import org.neo4j.com.RequestContext;
@@ -241,8 +242,12 @@ public class HighlyAvailableGraphDatabase
                 messageLog,
                 configuration.getInteger( HaSettings.read_timeout ),
                 configuration.isSet( HaSettings.lock_read_timeout ) ? configuration.getInteger( HaSettings.lock_read_timeout )
-                        : configuration.getInteger( HaSettings.read_timeout ),
-                configuration.getInteger( HaSettings.max_concurrent_channels_per_slave ) );
+                        : 0,
+                configuration.getInteger( HaSettings.max_concurrent_channels_per_slave ),
+                new Client.Settings()
+                        .multiplexedChannels( configuration.getInteger( HaSettings.multiplexed_channels_per_slave ) )
+                        .compression( configuration.getBoolean( HaSettings.slave_compression ) )
+                        .heartbeatTimeoutMillis( configuration.getInteger( HaSettings.heartbeat_timeout ) ) );
         masterClientResolver.getDefault();
         // TODO The dependency from BrokerFactory to 'this' is completely
         // broken. Needs rethinking
@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.com.BufferPool;
+import org.neo4j.com.MemoryBudget;
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.ha.MasterServer;
+import org.neo4j.kernel.ha.NetworkBuffers;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class NetworkBuffersBean extends ManagementBeanProvider
+{
+    public NetworkBuffersBean()
+    {
+        super( NetworkBuffers.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management )
+            throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new NetworkBuffersImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management )
+            throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new NetworkBuffersImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class NetworkBuffersImpl extends Neo4jMBean implements NetworkBuffers
+    {
+        private final BufferPool pool = BufferPool.DEFAULT;
+        private final HighlyAvailableGraphDatabase db;
+
+        protected NetworkBuffersImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        protected NetworkBuffersImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        @Override
+        public long getMaxPooledBytes()
+        {
+            return pool.getMaxPooledBytes();
+        }
+
+        @Override
+        public long getPooledBytes()
+        {
+            return pool.getPooledBytes();
+        }
+
+        @Override
+        public long getAcquired()
+        {
+            return pool.getAcquired();
+        }
+
+        @Override
+        public long getReused()
+        {
+            return pool.getReused();
+        }
+
+        @Override
+        public long getReleased()
+        {
+            return pool.getReleased();
+        }
+
+        @Override
+        public long getDiscarded()
+        {
+            return pool.getDiscarded();
+        }
+
+        @Override
+        public long getMemoryBudget()
+        {
+            MemoryBudget budget = memoryBudget();
+            return budget != null ? budget.getMaxBytes() : 0;
+        }
+
+        @Override
+        public long getUsedMemory()
+        {
+            MemoryBudget budget = memoryBudget();
+            return budget != null ? budget.getUsedBytes() : 0;
+        }
+
+        @Override
+        public int getPausedChannels()
+        {
+            MemoryBudget budget = memoryBudget();
+            return budget != null ? budget.getPausedChannels() : 0;
+        }
+
+        @Override
+        public long getPauses()
+        {
+            MemoryBudget budget = memoryBudget();
+            return budget != null ? budget.getPauses() : 0;
+        }
+
+        private MemoryBudget memoryBudget()
+        {
+            MasterServer master = db.getMasterServerIfMaster();
+            return master != null ? master.getMemoryBudget() : null;
+        }
+    }
+}
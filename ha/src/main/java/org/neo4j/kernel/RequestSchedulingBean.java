@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.com.RequestClass;
+import org.neo4j.com.RequestScheduler;
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.ha.MasterServer;
+import org.neo4j.kernel.ha.RequestScheduling;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class RequestSchedulingBean extends ManagementBeanProvider
+{
+    public RequestSchedulingBean()
+    {
+        super( RequestScheduling.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestSchedulingImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestSchedulingImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class RequestSchedulingImpl extends Neo4jMBean implements RequestScheduling
+    {
+        private final HighlyAvailableGraphDatabase db;
+
+        RequestSchedulingImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        RequestSchedulingImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        @Override
+        public Map<String, Long> getQueuedRequests()
+        {
+            Map<String, Long> result = new HashMap<String, Long>();
+            RequestScheduler scheduler = scheduler();
+            if ( scheduler == null ) return result;
+            for ( RequestClass requestClass : RequestClass.values() )
+            {
+                result.put( requestClass.name(), (long) scheduler.getQueued( requestClass ) );
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getActiveRequests()
+        {
+            Map<String, Long> result = new HashMap<String, Long>();
+            RequestScheduler scheduler = scheduler();
+            if ( scheduler == null ) return result;
+            for ( RequestClass requestClass : RequestClass.values() )
+            {
+                result.put( requestClass.name(), (long) scheduler.getActive( requestClass ) );
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getRejectedRequests()
+        {
+            Map<String, Long> result = new HashMap<String, Long>();
+            RequestScheduler scheduler = scheduler();
+            if ( scheduler == null ) return result;
+            for ( RequestClass requestClass : RequestClass.values() )
+            {
+                result.put( requestClass.name(), scheduler.getRejected( requestClass ) );
+            }
+            return result;
+        }
+
+        @Override
+        public Map<String, Long> getExpiredRequests()
+        {
+            Map<String, Long> result = new HashMap<String, Long>();
+            RequestScheduler scheduler = scheduler();
+            if ( scheduler == null ) return result;
+            for ( RequestClass requestClass : RequestClass.values() )
+            {
+                result.put( requestClass.name(), scheduler.getExpired( requestClass ) );
+            }
+            return result;
+        }
+
+        private RequestScheduler scheduler()
+        {
+            MasterServer master = db.getMasterServerIfMaster();
+            return master != null ? master.getRequestScheduler() : null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel;
+
+import javax.management.NotCompliantMBeanException;
+
+import org.neo4j.com.Client;
+import org.neo4j.helpers.Pair;
+import org.neo4j.helpers.Service;
+import org.neo4j.jmx.impl.ManagementBeanProvider;
+import org.neo4j.jmx.impl.ManagementData;
+import org.neo4j.jmx.impl.Neo4jMBean;
+import org.neo4j.kernel.ha.AbstractHAGraphDatabase;
+import org.neo4j.kernel.ha.Master;
+import org.neo4j.kernel.ha.MasterServer;
+import org.neo4j.kernel.ha.RequestStatistics;
+import org.neo4j.kernel.ha.RequestStatisticsInfo;
+import org.neo4j.kernel.ha.zookeeper.Machine;
+
+@Service.Implementation( ManagementBeanProvider.class )
+public final class RequestStatisticsBean extends ManagementBeanProvider
+{
+    public RequestStatisticsBean()
+    {
+        super( RequestStatistics.class );
+    }
+
+    @Override
+    protected Neo4jMBean createMXBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestStatisticsImpl( management, true );
+    }
+
+    @Override
+    protected Neo4jMBean createMBean( ManagementData management ) throws NotCompliantMBeanException
+    {
+        if ( !isHA( management ) ) return null;
+        return new RequestStatisticsImpl( management );
+    }
+
+    private static boolean isHA( ManagementData management )
+    {
+        return management.getKernelData().graphDatabase() instanceof AbstractHAGraphDatabase;
+    }
+
+    private static class RequestStatisticsImpl extends Neo4jMBean implements RequestStatistics
+    {
+        private static final RequestStatisticsInfo[] NONE = new RequestStatisticsInfo[0];
+        private final HighlyAvailableGraphDatabase db;
+
+        RequestStatisticsImpl( ManagementData management ) throws NotCompliantMBeanException
+        {
+            super( management );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        RequestStatisticsImpl( ManagementData management, boolean isMXBean )
+        {
+            super( management, isMXBean );
+            this.db = ((AbstractHAGraphDatabase) management.getKernelData().graphDatabase()).getHighlyAvailableGraphDatabase();
+        }
+
+        @Override
+        public RequestStatisticsInfo[] getMasterRequestsByType()
+        {
+            MasterServer master = db.getMasterServerIfMaster();
+            if ( master == null ) return NONE;
+            return RequestStatisticsInfo.from( master.getRequestMetrics().getByRequestType() );
+        }
+
+        @Override
+        public RequestStatisticsInfo[] getMasterRequestsBySlave()
+        {
+            MasterServer master = db.getMasterServerIfMaster();
+            if ( master == null ) return NONE;
+            return RequestStatisticsInfo.from( master.getRequestMetrics().getByMachine() );
+        }
+
+        @Override
+        public RequestStatisticsInfo[] getRequestsToMaster()
+        {
+            Pair<Master, Machine> master = db.getBroker().getMaster();
+            if ( master == null || !(master.first() instanceof Client) ) return NONE;
+            return RequestStatisticsInfo.from( ((Client<?>) master.first()).getRequestMetrics().getByRequestType() );
+        }
+    }
+}
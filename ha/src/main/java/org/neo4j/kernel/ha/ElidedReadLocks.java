@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.transaction.Transaction;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * The read locks on nodes and relationships which slave transactions hold locally only,
+ * see {@link HaSettings#slave_read_lock_elision}. The {@link SlaveLockManager} adds to them
+ * and the {@link SlaveTxIdGenerator} acquires them on the master as the transaction commits,
+ * along with checking that they haven't been written since the transaction read them.
+ * The {@link SlaveTxHook} forgets them as the transaction finishes.
+ */
+class ElidedReadLocks
+{
+    private final ThreadLocal<Reads> reads = new ThreadLocal<Reads>();
+
+    /**
+     * @return the elided reads of {@code tx} so far, or {@code null} if none.
+     */
+    Reads of( Transaction tx )
+    {
+        Reads current = reads.get();
+        return current != null && current.tx == tx ? current : null;
+    }
+
+    /**
+     * @param lastAppliedTx the last transaction applied on this slave as {@code tx}
+     * is about to make its first elided read.
+     */
+    Reads start( Transaction tx, long lastAppliedTx )
+    {
+        Reads started = new Reads( tx, lastAppliedTx );
+        reads.set( started );
+        return started;
+    }
+
+    /**
+     * @return the elided reads of {@code tx}, which it's up to the caller to acquire
+     * on the master from now on, or {@code null} if none.
+     */
+    Reads take( Transaction tx )
+    {
+        Reads taken = of( tx );
+        reads.remove();
+        return taken;
+    }
+
+    /**
+     * Forgets the elided reads of the transaction of the current thread, which has finished,
+     * whether or not they were taken, so that they don't stay with the thread until its next
+     * transaction reads something.
+     */
+    void forget()
+    {
+        reads.remove();
+    }
+
+    static class Reads
+    {
+        private final Transaction tx;
+        final long since;
+        private final Set<Long> nodes = new TreeSet<Long>();
+        private final Set<Long> relationships = new TreeSet<Long>();
+
+        Reads( Transaction tx, long since )
+        {
+            this.tx = tx;
+            this.since = since;
+        }
+
+        void add( Object resource )
+        {
+            if ( resource instanceof Node ) nodes.add( ( (Node) resource ).getId() );
+            else relationships.add( ( (Relationship) resource ).getId() );
+        }
+
+        boolean contains( Object resource )
+        {
+            if ( resource instanceof Node ) return nodes.contains( ( (Node) resource ).getId() );
+            return relationships.contains( ( (Relationship) resource ).getId() );
+        }
+
+        long[] nodes()
+        {
+            return toArray( nodes );
+        }
+
+        long[] relationships()
+        {
+            return toArray( relationships );
+        }
+
+        private static long[] toArray( Set<Long> ids )
+        {
+            // Sorted, so that masters acquire them in the same order for everyone
+            long[] result = new long[ids.size()];
+            int i = 0;
+            for ( Long id : ids )
+            {
+                result[i++] = id;
+            }
+            return result;
+        }
+    }
+}
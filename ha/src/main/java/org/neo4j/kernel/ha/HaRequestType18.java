@@ -25,6 +25,8 @@ import static org.neo4j.com.Protocol.VOID_SERIALIZER;
 import static org.neo4j.com.Protocol.readBoolean;
 import static org.neo4j.com.Protocol.readString;
 import static org.neo4j.kernel.ha.MasterClient.LOCK_SERIALIZER;
+import static org.neo4j.kernel.ha.MasterClient18.beginIfAsked;
+import static org.neo4j.kernel.ha.MasterClient18.readIds;
 
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
@@ -158,9 +160,29 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<Long> call( Master master, RequestContext context, ChannelBuffer input,
                 ChannelBuffer target )
         {
+            beginIfAsked( master, context, input );
+            boolean finish = readBoolean( input );
             String resource = readString( input );
-            final ReadableByteChannel reader = new BlockLogReader( input );
-            return master.commitSingleResourceTransaction( context, resource, TxExtractor.create( reader ) );
+            final ReadableByteChannel reader = new BlockLogReader( input, true );
+            Response<Long> response = master.commitSingleResourceTransaction( context, resource,
+                    TxExtractor.create( reader ) );
+            boolean finished = false;
+            if ( finish )
+            {
+                try
+                {
+                    master.finishTransaction( context, true ).close();
+                    finished = true;
+                }
+                catch ( RuntimeException e )
+                {
+                    // The commit went through regardless. The slave is told that the transaction
+                    // is still open, so that it finishes it with a request of its own.
+                }
+            }
+            // Ahead of the tx id written by the serializer, see MasterClient18
+            target.writeByte( finished ? 1 : 0 );
+            return response;
         }
     }, LONG_SERIALIZER, true ),
 
@@ -212,7 +234,7 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<Void> call( Master master, RequestContext context, ChannelBuffer input,
                 final ChannelBuffer target )
         {
-            return master.copyStore( context, new ToNetworkStoreWriter( target ) );
+            return master.copyStore( context, new ToNetworkStoreWriter( target, true ) );
         }
 
     }, VOID_SERIALIZER, true ),
@@ -247,6 +269,7 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<LockResult> call( Master master, RequestContext context, ChannelBuffer input,
                 ChannelBuffer target )
         {
+            beginIfAsked( master, context, input );
             return master.acquireGraphWriteLock( context );
         }
     }, LOCK_SERIALIZER, true )
@@ -265,6 +288,7 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<LockResult> call( Master master, RequestContext context, ChannelBuffer input,
                 ChannelBuffer target )
         {
+            beginIfAsked( master, context, input );
             return master.acquireGraphReadLock( context );
         }
     }, LOCK_SERIALIZER, true )
@@ -283,6 +307,7 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<LockResult> call( Master master, RequestContext context, ChannelBuffer input,
                 ChannelBuffer target )
         {
+            beginIfAsked( master, context, input );
             return master.acquireIndexReadLock( context, readString( input ), readString( input ) );
         }
 
@@ -302,6 +327,7 @@ public enum HaRequestType18 implements RequestType<Master>
         public Response<LockResult> call( Master master, RequestContext context, ChannelBuffer input,
                 ChannelBuffer target )
         {
+            beginIfAsked( master, context, input );
             return master.acquireIndexWriteLock( context, readString( input ), readString( input ) );
         }
 
@@ -323,7 +349,27 @@ public enum HaRequestType18 implements RequestType<Master>
         {
             return master.pushTransaction( context, readString( input ), input.readLong() );
         }
-    }, VOID_SERIALIZER, true );
+    }, VOID_SERIALIZER, true ),
+
+    // ====
+    ACQUIRE_READ_LOCKS_UNCHANGED_SINCE( new TargetCaller<Master, LockResult>()
+    {
+        @Override
+        public Response<LockResult> call( Master master, RequestContext context, ChannelBuffer input,
+                ChannelBuffer target )
+        {
+            beginIfAsked( master, context, input );
+            long txId = input.readLong();
+            return master.acquireReadLocksUnchangedSince( context, txId, readIds( input ), readIds( input ) );
+        }
+    }, LOCK_SERIALIZER, true )
+    {
+        @Override
+        public boolean isLock()
+        {
+            return true;
+        }
+    };
 
     @SuppressWarnings( "rawtypes" )
     final TargetCaller caller;
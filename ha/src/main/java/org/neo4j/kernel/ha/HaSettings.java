@@ -20,12 +20,14 @@
 package org.neo4j.kernel.ha;
 
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.ANY;
+import static org.neo4j.graphdb.factory.GraphDatabaseSetting.FALSE;
 import static org.neo4j.graphdb.factory.GraphDatabaseSetting.TRUE;
 
 import org.neo4j.graphdb.factory.Default;
 import org.neo4j.graphdb.factory.Description;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting.BooleanSetting;
+import org.neo4j.graphdb.factory.GraphDatabaseSetting.IntegerRangeNumberOfBytesSetting;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting.IntegerSetting;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting.OptionsSetting;
 import org.neo4j.graphdb.factory.GraphDatabaseSetting.StringSetting;
@@ -45,11 +47,73 @@ public class HaSettings
     @Default("20")
     public static final GraphDatabaseSetting.IntegerSetting read_timeout = new GraphDatabaseSetting.IntegerSetting( "ha.read_timeout", "Must be valid timeout in seconds",5,null );
 
+    @Description( "How long, in seconds, a slave waits for the master to grant it a lock. If not set, lock requests " +
+                  "wait in line for twice ha.read_timeout plus 5 seconds when heartbeats are enabled (see " +
+                  "ha.heartbeat_timeout), long enough for the master to roll back a lock holder gone idle and to " +
+                  "find deadlocks. Otherwise they wait for ha.read_timeout" )
     public static final GraphDatabaseSetting.IntegerSetting lock_read_timeout = new GraphDatabaseSetting.IntegerSetting( "ha.lock_read_timeout", "Must be valid timeout in seconds",1,null );
 
     @Default("20")
     public static final GraphDatabaseSetting.IntegerSetting max_concurrent_channels_per_slave = new GraphDatabaseSetting.IntegerSetting( "ha.max_concurrent_channels_per_slave", "Must be valid timeout in seconds",1,null );
 
+    @Description(   "Number of channels a slave shares among all its concurrent requests to the master, " +
+                    "responses being routed back by request id. 0 means one channel per concurrent request, " +
+                    "see ha.max_concurrent_channels_per_slave" )
+    @Default( "0" )
+    public static final IntegerSetting multiplexed_channels_per_slave = new IntegerSetting( "ha.multiplexed_channels_per_slave", "Must be a valid number of channels", 0, null );
+
+    @Description(   "Whether or not a slave compresses its communication with the master, in which case the master " +
+                    "compresses its responses too. Pays off for slaves on slow links, for example in another datacenter" )
+    @Default( FALSE )
+    public static final BooleanSetting slave_compression = new BooleanSetting( "ha.slave_compression" );
+
+    @Description(   "How much of a response to a slave the master may have written, but not yet sent off, " +
+                    "before waiting for the socket to drain" )
+    @Default( "4M" )
+    public static final IntegerRangeNumberOfBytesSetting write_ahead_window = new IntegerRangeNumberOfBytesSetting( "ha.write_ahead_window" );
+
+    @Description(   "How many bytes the master may hold on to for the requests in flight from all slaves, " +
+                    "i.e. requests received but not yet handled and responses not yet sent off. When over it " +
+                    "the master stops reading from slaves until enough has been handled and sent off" )
+    @Default( "256M" )
+    public static final IntegerRangeNumberOfBytesSetting memory_budget = new IntegerRangeNumberOfBytesSetting( "ha.memory_budget" );
+
+    @Description(   "How many bytes the master may hold on to for the requests in flight from a single slave " +
+                    "connection, like ha.memory_budget, but for just that connection" )
+    @Default( "16M" )
+    public static final IntegerRangeNumberOfBytesSetting channel_memory_budget = new IntegerRangeNumberOfBytesSetting( "ha.channel_memory_budget" );
+
+    @Description(   "Requests from slaves which take the master at least this many milliseconds to serve are logged, " +
+                    "along with how the time was spent and the context of the request. 0 means no logging of slow requests" )
+    @Default( "0" )
+    public static final IntegerSetting slow_request_threshold = new IntegerSetting( "ha.slow_request_threshold", "Must be a valid number of milliseconds", 0, null );
+
+    @Description(   "Channels between slaves and the master are closed if nothing, not even a heartbeat, has been heard " +
+                    "from the other side for this many milliseconds, which fails the requests in flight on them and " +
+                    "finishes off the transactions of them on the master. Should be the same for all cluster members. " +
+                    "0 means no heartbeats" )
+    @Default( "5000" )
+    public static final IntegerSetting heartbeat_timeout = new IntegerSetting( "ha.heartbeat_timeout", "Must be a valid number of milliseconds", 0, null );
+
+    @Description(   "Whether or not slave transactions hold read locks on nodes and relationships locally only, " +
+                    "instead of acquiring each of them on the master. They're acquired on the master all at once " +
+                    "as the transaction commits, which fails with a DeadlockDetectedException if any of those " +
+                    "entities has been written since the transaction read it. Saves a round trip per read lock " +
+                    "for transactions which read a lot before writing, at the cost of such failures at commit " +
+                    "rather than waiting for the lock. Should be the same for all cluster members, since only a " +
+                    "master with it set keeps track of what's been written" )
+    @Default( FALSE )
+    public static final BooleanSetting slave_read_lock_elision = new BooleanSetting( "ha.slave_read_lock_elision" );
+
+    @Description(   "Number of stripes the locks of a master are partitioned into by resource, each guarded on its own, " +
+                    "so that slaves taking and releasing locks on different resources don't contend for a single " +
+                    "monitor. Deadlocks are then only looked for once a lock has been waited for a while, and a slave's " +
+                    "lock request stops waiting as soon as the slave has stopped waiting for the response, or " +
+                    "disconnected. 0 means the regular lock manager, with one monitor for all locks, where such " +
+                    "a request only stops between the locks it asks for" )
+    @Default( "0" )
+    public static final IntegerSetting master_lock_stripes = new IntegerSetting( "ha.master_lock_stripes", "Must be a valid number of stripes", 0, null );
+
     public static final IntegerSetting server_id = new GraphDatabaseSetting.IntegerSetting( "ha.server_id", "Must be a valid server id" );
 
     public static final StringSetting server = new StringSetting( "ha.server", ANY, "Must be a valid IP and port to bind to as master" );
@@ -54,6 +54,16 @@ public interface Master
 
     Response<LockResult> acquireRelationshipReadLock( RequestContext context, long... relationships );
 
+    /**
+     * Acquires read locks on the given nodes and relationships, which the slave has read
+     * without locking them on the master, and checks that none of them have been written
+     * by a transaction committed after {@code txId}, the last transaction the slave had
+     * applied as it read them. If one has the result is
+     * {@link LockStatus#DEAD_LOCKED}, since the slave transaction can't go on either way.
+     */
+    Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId, long[] nodes,
+            long[] relationships );
+
     Response<Long> commitSingleResourceTransaction( RequestContext context,
             String resource, TxExtractor txGetter );
 
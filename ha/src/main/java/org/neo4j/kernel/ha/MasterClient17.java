@@ -37,6 +37,7 @@ import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.Serializer;
+import org.neo4j.com.Server;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
 import org.neo4j.com.TransactionStream;
@@ -77,6 +78,12 @@ public class MasterClient17 extends Client<Master> implements MasterClient
         return ( (HaRequestType17) type ).isLock() ? lockReadTimeout : readTimeout;
     }
 
+    @Override
+    protected byte getInternalProtocolVersion()
+    {
+        return Server.LEGACY_INTERNAL_PROTOCOL_VERSION;
+    }
+
     @Override
     protected boolean shouldCheckStoreId( RequestType<Master> type )
     {
@@ -302,6 +309,17 @@ public class MasterClient17 extends Client<Master> implements MasterClient
         }, VOID_DESERIALIZER );
     }
 
+    @Override
+    public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId, long[] nodes,
+            long[] relationships )
+    {
+        // Slaves only elide read locks with a 1.8 master, but it may have changed since.
+        // Failing the commit like a deadlock lets the application retry the transaction.
+        return new Response<LockResult>( new LockResult( "Master speaks application protocol version " +
+                PROTOCOL_VERSION + ", which can't validate read locks held on slaves only" ), getStoreId(),
+                TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
     @Override
     public Response<Void> pushTransaction( RequestContext context, final String resourceName, final long tx )
     {
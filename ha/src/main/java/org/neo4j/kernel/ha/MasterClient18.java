@@ -21,10 +21,15 @@ package org.neo4j.kernel.ha;
 
 import static org.neo4j.com.Protocol.EMPTY_SERIALIZER;
 import static org.neo4j.com.Protocol.VOID_DESERIALIZER;
+import static org.neo4j.com.Protocol.readBoolean;
 import static org.neo4j.com.Protocol.writeString;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.neo4j.com.BlockLogBuffer;
@@ -36,6 +41,8 @@ import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
+import org.neo4j.com.ResponseFuture;
+import org.neo4j.com.ResponseListener;
 import org.neo4j.com.Serializer;
 import org.neo4j.com.StoreWriter;
 import org.neo4j.com.TargetCaller;
@@ -58,18 +65,67 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     /* Version 1 first version
      * Version 2 since 2012-01-24
      * Version 3 since 2012-02-16
-     * Version 4 since 2012-07-05 */
-    public static final byte PROTOCOL_VERSION = 4;
+     * Version 4 since 2012-07-05
+     * Version 5 since 1.8, copyStore streams store files raw
+     * Version 6 since 1.8, slave transactions begin with their first request and finish with their commit
+     * Version 7 since 1.8, slaves may hold read locks locally, validated by the master at commit */
+    public static final byte PROTOCOL_VERSION = 7;
+
+    /*
+     * The master answers a lock request once the lock is granted, in the order the requests
+     * came in, so giving up on one only means waiting at the back of the line again. Without
+     * a lock read timeout of their own they wait long enough for the master to find a deadlock,
+     * which takes a second at most, and to roll back a lock holder which has gone idle, which
+     * it does after the read timeout, looking for them every few seconds. Only if the master
+     * hasn't answered by then is something wrong with it, the heartbeats failing the request
+     * sooner if it has gone silent.
+     */
+    static int queuedLockReadTimeout( int readTimeoutSeconds )
+    {
+        return 2 * readTimeoutSeconds + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY;
+    }
 
     private final int lockReadTimeout;
 
+    /*
+     * Transactions which have been initialized on this slave, but not yet on the master. Instead of
+     * an INITIALIZE_TX round trip of its own, the next request of such a transaction asks the master
+     * to begin it, which it keeps on doing until one of them succeeds. Mapped to whether or not
+     * any request has asked yet, i.e. whether or not the master may know about the transaction.
+     * An asynchronous request which failed counts as not having asked.
+     */
+    private final ConcurrentMap<RequestContext, Boolean> notYetBegun =
+            new ConcurrentHashMap<RequestContext, Boolean>();
+
+    /*
+     * Transactions which the master finished along with their commit, so that there's
+     * no FINISH left to send for them.
+     */
+    private final Set<RequestContext> finishedByCommit =
+            Collections.newSetFromMap( new ConcurrentHashMap<RequestContext, Boolean>() );
+
     public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
             int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels )
+    {
+        this( hostNameOrIp, port, stringLogger, storeId, connectionLostHandler, readTimeoutSeconds, lockReadTimeout,
+                maxConcurrentChannels, new Settings() );
+    }
+
+    public MasterClient18( String hostNameOrIp, int port, StringLogger stringLogger, StoreId storeId, ConnectionLostHandler connectionLostHandler,
+            int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels, Settings settings )
     {
         super( hostNameOrIp, port, stringLogger, storeId, MasterServer.FRAME_LENGTH, PROTOCOL_VERSION,
                 readTimeoutSeconds, maxConcurrentChannels, Math.min( maxConcurrentChannels,
-                        DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ), connectionLostHandler );
-        this.lockReadTimeout = lockReadTimeout;
+                        DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT ), connectionLostHandler, settings );
+        if ( lockReadTimeout > 0 )
+        {
+            this.lockReadTimeout = lockReadTimeout;
+        }
+        else
+        {
+            this.lockReadTimeout = settings.getHeartbeatTimeoutMillis() > 0 ?
+                    queuedLockReadTimeout( readTimeoutSeconds ) : readTimeoutSeconds;
+        }
     }
 
     @Override
@@ -124,20 +180,21 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     @Override
     public Response<Void> initializeTx( RequestContext context )
     {
-        return sendRequest( HaRequestType18.INITIALIZE_TX, context, EMPTY_SERIALIZER, VOID_DESERIALIZER );
+        notYetBegun.put( context, Boolean.FALSE );
+        return new Response<Void>( null, getStoreId(), TransactionStream.EMPTY, ResourceReleaser.NO_OP );
     }
 
     @Override
     public Response<LockResult> acquireNodeWriteLock( RequestContext context, long... nodes )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_NODE_WRITE_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_NODE_WRITE_LOCK, context,
                 new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
     public Response<LockResult> acquireNodeReadLock( RequestContext context, long... nodes )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_NODE_READ_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_NODE_READ_LOCK, context,
                 new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
     }
 
@@ -145,7 +202,7 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     public Response<LockResult> acquireRelationshipWriteLock( RequestContext context,
             long... relationships )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_WRITE_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_WRITE_LOCK, context,
                 new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
     }
 
@@ -153,64 +210,115 @@ public class MasterClient18 extends Client<Master> implements MasterClient
     public Response<LockResult> acquireRelationshipReadLock( RequestContext context,
             long... relationships )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_READ_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_READ_LOCK, context,
                 new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
     public Response<LockResult> acquireGraphWriteLock( RequestContext context )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_GRAPH_WRITE_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_GRAPH_WRITE_LOCK, context,
                 EMPTY_SERIALIZER, LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
     public Response<LockResult> acquireGraphReadLock( RequestContext context )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_GRAPH_READ_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_GRAPH_READ_LOCK, context,
                 EMPTY_SERIALIZER, LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
     public Response<LockResult> acquireIndexReadLock( RequestContext context, String index, String key )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_INDEX_READ_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_INDEX_READ_LOCK, context,
                 new AcquireIndexLockSerializer( index, key ), LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
     public Response<LockResult> acquireIndexWriteLock( RequestContext context, String index, String key )
     {
-        return sendRequest( HaRequestType18.ACQUIRE_INDEX_WRITE_LOCK, context,
+        return sendTxRequest( HaRequestType18.ACQUIRE_INDEX_WRITE_LOCK, context,
                 new AcquireIndexLockSerializer( index, key ), LOCK_RESULT_DESERIALIZER );
     }
 
     @Override
-    public Response<Long> commitSingleResourceTransaction( RequestContext context,
-            final String resource, final TxExtractor txGetter )
+    public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, final long txId,
+            final long[] nodes, final long[] relationships )
     {
-        return sendRequest( HaRequestType18.COMMIT, context, new Serializer()
+        return sendTxRequest( HaRequestType18.ACQUIRE_READ_LOCKS_UNCHANGED_SINCE, context, new Serializer()
         {
             public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
             {
-                writeString( buffer, resource );
-                BlockLogBuffer blockLogBuffer = new BlockLogBuffer( buffer );
-                txGetter.extract( blockLogBuffer );
-                blockLogBuffer.done();
+                buffer.writeLong( txId );
+                new AcquireLockSerializer( nodes ).write( buffer, readBuffer );
+                new AcquireLockSerializer( relationships ).write( buffer, readBuffer );
             }
-        }, new Deserializer<Long>()
+        }, LOCK_RESULT_DESERIALIZER );
+    }
+
+    /*
+     * Asynchronous variants of the calls a slave transaction makes, so that independent
+     * round trips can overlap without parking a thread for each one.
+     */
+
+    public ResponseFuture<LockResult> acquireNodeWriteLockAsync( RequestContext context, long... nodes )
+    {
+        return sendAsyncTxRequest( HaRequestType18.ACQUIRE_NODE_WRITE_LOCK, context,
+                new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    public ResponseFuture<LockResult> acquireNodeReadLockAsync( RequestContext context, long... nodes )
+    {
+        return sendAsyncTxRequest( HaRequestType18.ACQUIRE_NODE_READ_LOCK, context,
+                new AcquireLockSerializer( nodes ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    public ResponseFuture<LockResult> acquireRelationshipWriteLockAsync( RequestContext context,
+            long... relationships )
+    {
+        return sendAsyncTxRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_WRITE_LOCK, context,
+                new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    public ResponseFuture<LockResult> acquireRelationshipReadLockAsync( RequestContext context,
+            long... relationships )
+    {
+        return sendAsyncTxRequest( HaRequestType18.ACQUIRE_RELATIONSHIP_READ_LOCK, context,
+                new AcquireLockSerializer( relationships ), LOCK_RESULT_DESERIALIZER );
+    }
+
+    @Override
+    public Response<Long> commitSingleResourceTransaction( RequestContext context,
+            final String resource, final TxExtractor txGetter )
+    {
+        CommitResultDeserializer result = new CommitResultDeserializer();
+        Response<Long> response = sendTxRequest( HaRequestType18.COMMIT, context,
+                new CommitSerializer( true, resource, txGetter ), result );
+        if ( result.finished )
         {
-            @SuppressWarnings( "boxing" )
-            public Long read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
-            {
-                return buffer.readLong();
-            }
-        });
+            finishedByCommit.add( context );
+        }
+        return response;
+    }
+
+    public ResponseFuture<Long> commitSingleResourceTransactionAsync( RequestContext context,
+            final String resource, final TxExtractor txGetter )
+    {
+        // Leaves the transaction open on the master, since there's no telling when the caller sees the outcome
+        return sendAsyncTxRequest( HaRequestType18.COMMIT, context,
+                new CommitSerializer( false, resource, txGetter ), new CommitResultDeserializer() );
     }
 
     @Override
     public Response<Void> finishTransaction( RequestContext context, final boolean success )
     {
+        Boolean askedToBegin = notYetBegun.remove( context );
+        if ( finishedByCommit.remove( context ) || Boolean.FALSE.equals( askedToBegin ) )
+        {
+            // Either the commit already finished it, or it never got as far as the master
+            return new Response<Void>( null, getStoreId(), TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+        }
         try
         {
             return sendRequest( HaRequestType18.FINISH, context, new Serializer()
@@ -241,6 +349,51 @@ public class MasterClient18 extends Client<Master> implements MasterClient
         }
     }
 
+    private <R> Response<R> sendTxRequest( HaRequestType18 type, RequestContext context, Serializer serializer,
+            Deserializer<R> deserializer )
+    {
+        boolean begin = notYetBegun.replace( context, Boolean.TRUE ) != null;
+        Response<R> response = sendRequest( type, context, new TxSerializer( begin, serializer ), deserializer );
+        if ( begin )
+        {
+            notYetBegun.remove( context );
+        }
+        return response;
+    }
+
+    /*
+     * An asynchronous request can't tell whether or not it succeeded before its caller does,
+     * so it's the last one to ask the master to begin the transaction, unless it fails. The
+     * transaction is then put back, for the next request to ask again, before the caller
+     * sees the failure, so that no FINISH is sent for it if there's no next request.
+     */
+    private <R> ResponseFuture<R> sendAsyncTxRequest( HaRequestType18 type, final RequestContext context,
+            Serializer serializer, Deserializer<R> deserializer )
+    {
+        boolean begin = notYetBegun.remove( context ) != null;
+        ResponseFuture<R> future = sendRequestAsync( type, context, new TxSerializer( begin, serializer ),
+                deserializer );
+        if ( begin )
+        {
+            future.addListener( new ResponseListener<R>()
+            {
+                @Override
+                public void completed( Response<R> response )
+                {
+                }
+
+                @Override
+                public void failed( Throwable cause )
+                {
+                    // As good as never begun. Should the master have begun it all the same, the next request
+                    // resumes it there, or else it's rolled back there once timed out.
+                    notYetBegun.putIfAbsent( context, Boolean.FALSE );
+                }
+            } );
+        }
+        return future;
+    }
+
     @Override
     public void rollbackOngoingTransactions( RequestContext context )
     {
@@ -253,6 +406,11 @@ public class MasterClient18 extends Client<Master> implements MasterClient
         return sendRequest( HaRequestType18.PULL_UPDATES, context, EMPTY_SERIALIZER, VOID_DESERIALIZER );
     }
 
+    public ResponseFuture<Void> pullUpdatesAsync( RequestContext context )
+    {
+        return sendRequestAsync( HaRequestType18.PULL_UPDATES, context, EMPTY_SERIALIZER, VOID_DESERIALIZER );
+    }
+
     @Override
     public Response<Pair<Integer,Long>> getMasterIdForCommittedTx( final long txId, StoreId storeId )
     {
@@ -353,6 +511,67 @@ public class MasterClient18 extends Client<Master> implements MasterClient
         }
     }
 
+    /**
+     * Prefixes the request of a transaction with whether or not the master
+     * should begin that transaction before serving it.
+     */
+    private static class TxSerializer implements Serializer
+    {
+        private final boolean begin;
+        private final Serializer request;
+
+        TxSerializer( boolean begin, Serializer request )
+        {
+            this.begin = begin;
+            this.request = request;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeByte( begin ? 1 : 0 );
+            request.write( buffer, readBuffer );
+        }
+    }
+
+    private static class CommitSerializer implements Serializer
+    {
+        private final boolean finish;
+        private final String resource;
+        private final TxExtractor txGetter;
+
+        CommitSerializer( boolean finish, String resource, TxExtractor txGetter )
+        {
+            this.finish = finish;
+            this.resource = resource;
+            this.txGetter = txGetter;
+        }
+
+        public void write( ChannelBuffer buffer, ByteBuffer readBuffer ) throws IOException
+        {
+            buffer.writeByte( finish ? 1 : 0 );
+            writeString( buffer, resource );
+            BlockLogBuffer blockLogBuffer = new BlockLogBuffer( buffer, true );
+            txGetter.extract( blockLogBuffer );
+            blockLogBuffer.done();
+        }
+    }
+
+    /*
+     * Reads the tx id of a commit, and whether or not the master managed to finish the
+     * transaction along with it. If it didn't, the slave's finishTransaction asks it again.
+     */
+    private static class CommitResultDeserializer implements Deserializer<Long>
+    {
+        private boolean finished;
+
+        @SuppressWarnings( "boxing" )
+        public Long read( ChannelBuffer buffer, ByteBuffer temporaryBuffer ) throws IOException
+        {
+            finished = buffer.readByte() == 1;
+            return buffer.readLong();
+        }
+    }
+
     protected static class AcquireIndexLockSerializer implements Serializer
     {
         private final String index;
@@ -378,14 +597,35 @@ public class MasterClient18 extends Client<Master> implements MasterClient
         public Response<LockResult> call( Master master, RequestContext context,
                 ChannelBuffer input, ChannelBuffer target )
         {
-            long[] ids = new long[input.readInt()];
-            for ( int i = 0; i < ids.length; i++ )
-            {
-                ids[i] = input.readLong();
-            }
-            return lock( master, context, ids );
+            beginIfAsked( master, context, input );
+            return lock( master, context, readIds( input ) );
         }
 
         abstract Response<LockResult> lock( Master master, RequestContext context, long... ids );
     }
+
+    /**
+     * Reads what {@link AcquireLockSerializer} wrote.
+     */
+    static long[] readIds( ChannelBuffer input )
+    {
+        long[] ids = new long[input.readInt()];
+        for ( int i = 0; i < ids.length; i++ )
+        {
+            ids[i] = input.readLong();
+        }
+        return ids;
+    }
+
+    /**
+     * Reads what {@link TxSerializer} wrote in front of a request and begins
+     * the transaction on the master if the slave asked for it.
+     */
+    static void beginIfAsked( Master master, RequestContext context, ChannelBuffer input )
+    {
+        if ( readBoolean( input ) )
+        {
+            master.initializeTx( context ).close();
+        }
+    }
 }
@@ -22,6 +22,7 @@ package org.neo4j.kernel.ha;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.neo4j.com.Client;
 import org.neo4j.com.ConnectionLostHandler;
 import org.neo4j.com.MismatchingVersionHandler;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
@@ -42,7 +43,15 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
     @Override
     public void versionMismatched( int expected, int received )
     {
-        getFor( received, 2 );
+        // The application protocol version is what identifies which client to use
+        for ( ProtocolCombo combo : protocolToFactoryMapping.keySet() )
+        {
+            if ( combo.applicationProtocol == received )
+            {
+                getFor( combo.applicationProtocol, combo.internalProtocol );
+                return;
+            }
+        }
     }
 
     private static final class ProtocolCombo
@@ -79,12 +88,18 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
 
         static final ProtocolCombo PC_153 = new ProtocolCombo( 2, 2 );
         static final ProtocolCombo PC_17 = new ProtocolCombo( 3, 2 );
-        static final ProtocolCombo PC_18 = new ProtocolCombo( 4, 2 );
+        static final ProtocolCombo PC_18 = new ProtocolCombo( 7, 8 );
     }
 
     private final Map<ProtocolCombo, MasterClientFactory> protocolToFactoryMapping;
 
     public MasterClientResolver( StringLogger messageLogger, int readTimeout, int lockReadTimeout, int channels )
+    {
+        this( messageLogger, readTimeout, lockReadTimeout, channels, new Client.Settings() );
+    }
+
+    public MasterClientResolver( StringLogger messageLogger, int readTimeout, int lockReadTimeout, int channels,
+            Client.Settings settings )
     {
         protocolToFactoryMapping = new HashMap<ProtocolCombo, MasterClientFactory>();
         protocolToFactoryMapping.put( ProtocolCombo.PC_153, new F153( messageLogger, readTimeout, lockReadTimeout,
@@ -92,7 +107,7 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
         protocolToFactoryMapping.put( ProtocolCombo.PC_17, new F17( messageLogger, readTimeout, lockReadTimeout,
                 channels ) );
         protocolToFactoryMapping.put( ProtocolCombo.PC_18, new F18( messageLogger, readTimeout, lockReadTimeout,
-                channels ) );
+                channels, settings ) );
     }
 
     public MasterClientFactory getFor( int applicationProtocol, int internalProtocol )
@@ -140,7 +155,8 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
         public MasterClient instantiate( String hostNameOrIp, int port, StoreId storeId )
         {
             return new MasterClient153( hostNameOrIp, port, stringLogger, storeId, ConnectionLostHandler.NO_ACTION,
-                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+                    readTimeoutSeconds, lockReadTimeout > 0 ? lockReadTimeout : readTimeoutSeconds,
+                    maxConcurrentChannels );
         }
     };
 
@@ -155,22 +171,32 @@ public class MasterClientResolver implements MasterClientFactory, MismatchingVer
         public MasterClient instantiate( String hostNameOrIp, int port, StoreId storeId )
         {
             return new MasterClient17( hostNameOrIp, port, stringLogger, storeId, ConnectionLostHandler.NO_ACTION,
-                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+                    readTimeoutSeconds, lockReadTimeout > 0 ? lockReadTimeout : readTimeoutSeconds,
+                    maxConcurrentChannels );
         }
     };
 
     public static final class F18 extends StaticMasterClientFactory
     {
+        private final Client.Settings settings;
+
         public F18( StringLogger stringLogger, int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels )
+        {
+            this( stringLogger, readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels, new Client.Settings() );
+        }
+
+        public F18( StringLogger stringLogger, int readTimeoutSeconds, int lockReadTimeout, int maxConcurrentChannels,
+                Client.Settings settings )
         {
             super( stringLogger, readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+            this.settings = settings;
         }
 
         @Override
         public MasterClient instantiate( String hostNameOrIp, int port, StoreId storeId )
         {
             return new MasterClient18( hostNameOrIp, port, stringLogger, storeId, ConnectionLostHandler.NO_ACTION,
-                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels );
+                    readTimeoutSeconds, lockReadTimeout, maxConcurrentChannels, settings );
         }
     };
 }
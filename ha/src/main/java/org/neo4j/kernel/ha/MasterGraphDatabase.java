@@ -34,6 +34,7 @@ import org.neo4j.kernel.impl.core.RelationshipProxy;
 import org.neo4j.kernel.impl.nioneo.store.NeoStore;
 import org.neo4j.kernel.impl.nioneo.store.StoreFactory;
 import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.neo4j.kernel.impl.transaction.LockManager;
 import org.neo4j.kernel.impl.transaction.TxHook;
 import org.neo4j.kernel.impl.transaction.xaframework.TxIdGenerator;
 import org.neo4j.kernel.logging.Logging;
@@ -99,6 +100,15 @@ public class MasterGraphDatabase
         }
     }
 
+    @Override
+    protected LockManager createLockManager()
+    {
+        int stripes = config.get( HaSettings.master_lock_stripes );
+        LockManager locks = stripes > 0 ? new StripedLockManager( txManager, stripes ) : new LockManager( ragManager );
+        // Only slaves eliding read locks need to know what has been written since they read it
+        return config.get( HaSettings.slave_read_lock_elision ) ? new MasterLockManager( locks, this ) : locks;
+    }
+
     @Override
     protected TxHook createTxHook()
     {
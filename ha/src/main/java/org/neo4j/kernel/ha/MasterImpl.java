@@ -19,16 +19,19 @@
  */
 package org.neo4j.kernel.ha;
 
-import static java.util.Collections.synchronizedMap;
-
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.transaction.NotSupportedException;
@@ -37,6 +40,7 @@ import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
 import org.neo4j.com.RequestContext;
+import org.neo4j.com.RequestDeadline;
 import org.neo4j.com.ResourceReleaser;
 import org.neo4j.com.Response;
 import org.neo4j.com.ServerUtil;
@@ -75,7 +79,8 @@ public class MasterImpl implements Master
     private final GraphDatabaseAPI graphDb;
     private final StringLogger msgLog;
 
-    private final Map<RequestContext, MasterTransaction> transactions = synchronizedMap( new HashMap<RequestContext, MasterTransaction>() );
+    private final Map<RequestContext, MasterTransaction> transactions = new ConcurrentHashMap<RequestContext, MasterTransaction>();
+    private final TimingWheel timeouts;
     private final ScheduledExecutorService unfinishedTransactionsExecutor;
     private int unfinishedTransactionThreshold;
 
@@ -84,6 +89,8 @@ public class MasterImpl implements Master
         this.graphDb = db;
         this.msgLog = graphDb.getMessageLog();
         this.unfinishedTransactionThreshold = timeOut;
+        this.timeouts = new TimingWheel( UNFINISHED_TRANSACTION_CLEANUP_DELAY*1000, timeOut*1000,
+                System.currentTimeMillis() );
         this.unfinishedTransactionsExecutor = Executors.newSingleThreadScheduledExecutor();
         this.unfinishedTransactionsExecutor.scheduleWithFixedDelay( new Runnable()
         {
@@ -92,36 +99,7 @@ public class MasterImpl implements Master
             {
                 try
                 {
-                    Map<RequestContext, MasterTransaction> safeTransactions = null;
-                    synchronized ( transactions )
-                    {
-                        safeTransactions = new HashMap<RequestContext, MasterTransaction>( transactions );
-                    }
-
-                    for ( Map.Entry<RequestContext, MasterTransaction> entry : safeTransactions.entrySet() )
-                    {
-                        long time = entry.getValue().timeLastSuspended.get();
-                        if ( time != 0 && System.currentTimeMillis()-time >= unfinishedTransactionThreshold*1000 )
-                        {
-                            long displayableTime = (time == 0 ? 0 : (System.currentTimeMillis()-time));
-                            msgLog.logMessage( "Found old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            try
-                            {
-                                Transaction otherTx = suspendOtherAndResumeThis( entry.getKey(), false );
-                                finishThisAndResumeOther( otherTx, entry.getKey(), false );
-                                msgLog.logMessage( "Rolled back old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            }
-                            catch ( IllegalStateException e )
-                            {
-                                // Expected for waiting transactions
-                            }
-                            catch ( Throwable t )
-                            {
-                                // Not really expected
-                                msgLog.logMessage( "Unable to roll back old tx " + entry.getKey() + ", " + entry.getValue().transaction + ", " + displayableTime );
-                            }
-                        }
-                    }
+                    rollBackOldTransactions( System.currentTimeMillis() );
                 }
                 catch ( Throwable t )
                 {
@@ -131,6 +109,48 @@ public class MasterImpl implements Master
         }, UNFINISHED_TRANSACTION_CLEANUP_DELAY, UNFINISHED_TRANSACTION_CLEANUP_DELAY, TimeUnit.SECONDS );
     }
 
+    /**
+     * Rolls back the transactions which no request has used for longer than the timeout,
+     * which is done every {@link #UNFINISHED_TRANSACTION_CLEANUP_DELAY} seconds.
+     *
+     * @return the transactions rolled back.
+     */
+    List<RequestContext> rollBackOldTransactions( long now )
+    {
+        List<RequestContext> rolledBack = new ArrayList<RequestContext>();
+        for ( MasterTransaction tx : timeouts.advance( now ) )
+        {
+            // Transactions in use by a request, e.g. waiting for a lock, are left alone.
+            // They're put back in the wheel once let go of.
+            if ( !tx.use() )
+            {
+                continue;
+            }
+            long time = tx.timeLastSuspended.get();
+            long displayableTime = now-time;
+            try
+            {
+                if ( now-time < unfinishedTransactionThreshold*1000 )
+                {
+                    letGo( tx );
+                    continue;
+                }
+
+                msgLog.logMessage( "Found old tx " + tx.context + ", " + tx.transaction + ", " + displayableTime );
+                finishOff( tx.context, tx );
+                msgLog.logMessage( "Rolled back old tx " + tx.context + ", " + tx.transaction + ", " + displayableTime );
+                rolledBack.add( tx.context );
+            }
+            catch ( Throwable t )
+            {
+                // Not really expected. Unless gone it's been put back, to be tried again on a later sweep.
+                msgLog.logMessage( "Unable to roll back old tx " + tx.context + ", " + tx.transaction + ", " +
+                        displayableTime, t );
+            }
+        }
+        return rolledBack;
+    }
+
     public GraphDatabaseAPI getGraphDb()
     {
         return this.graphDb;
@@ -153,14 +173,39 @@ public class MasterImpl implements Master
     private Response<LockResult> acquireLock( RequestContext context,
             LockGrabber lockGrabber, Object... entities )
     {
-        Transaction otherTx = suspendOtherAndResumeThis( context, false );
+        return acquireLock( context, lockGrabber, Long.MAX_VALUE, entities );
+    }
+
+    private Response<LockResult> acquireLock( RequestContext context,
+            LockGrabber lockGrabber, long unchangedSince, Object... entities )
+    {
+        // Locks are taken for the transaction without resuming it on this thread, sparing
+        // lock requests, by far the most common ones, a suspend and resume each
+        MasterTransaction tx = useTx( context );
         try
         {
             LockManager lockManager = graphDb.getLockManager();
             LockReleaser lockReleaser = graphDb.getLockReleaser();
+            // Give up when the slave has given up on this request, or is gone. A StripedLockManager does so
+            // while waiting for a lock, but the kernel's lock wait can't be interrupted, so it's also done in
+            // between locks. The server then rolls back the transaction, releasing its locks.
+            RequestDeadline deadline = RequestDeadline.current();
             for ( Object entity : entities )
             {
-                lockGrabber.grab( lockManager, lockReleaser, entity );
+                deadline.check();
+                lockGrabber.grab( lockManager, lockReleaser, entity, tx.transaction );
+            }
+            deadline.check();
+            if ( unchangedSince != Long.MAX_VALUE )
+            {
+                for ( Object entity : entities )
+                {
+                    if ( writtenAfter( entity, unchangedSince ) )
+                    {
+                        return packResponse( context, new LockResult( entity +
+                                " has been changed since this transaction read it" ) );
+                    }
+                }
             }
             return packResponse( context, new LockResult( LockStatus.OK_LOCKED ) );
         }
@@ -174,7 +219,7 @@ public class MasterImpl implements Master
         }
         finally
         {
-            suspendThisAndResumeOther( otherTx, context );
+            release( context, tx );
         }
     }
 
@@ -188,29 +233,125 @@ public class MasterImpl implements Master
         return ServerUtil.packResponse( graphDb, context, response, filter );
     }
 
-    private Transaction getTx( RequestContext txId )
+    /**
+     * @return the transaction, for the calling request only until {@link #release(RequestContext,
+     * MasterTransaction) released}, so that it can't be finished off under its feet.
+     */
+    private MasterTransaction useTx( RequestContext txId )
+    {
+        MasterTransaction tx = transactions.get( txId );
+        if ( tx == null )
+        {
+            throw new IllegalStateException( "Transaction " + txId + " has either timed out on the" +
+                    " master or was not started on this master. There may have been a master switch" +
+                    " between the time this transaction started and up to now. This transaction" +
+                    " cannot continue since the state from the previous master isn't transferred." );
+        }
+        if ( !tx.use() )
+        {
+            throw new UnableToResumeTransactionException( new IllegalStateException( "Transaction " + txId +
+                    " is in use by another request, or being finished off" ) );
+        }
+        return tx;
+    }
+
+    private void release( RequestContext txId, MasterTransaction tx )
+    {
+        // update time stamp to current time so that we know that this tx just completed
+        // a request and can now again start to be monitored, so that it can be
+        // rolled back if it's getting old.
+        tx.updateTime();
+        letGo( tx );
+    }
+
+    private void letGo( MasterTransaction tx )
     {
-        MasterTransaction result = transactions.get( txId );
-        if ( result != null )
+        putBack( tx );
+        finishOffIfAsked( tx.context, tx );
+    }
+
+    // Lets go of a transaction in use by the caller, without finishing it off if asked to
+    private void putBack( MasterTransaction tx )
+    {
+        tx.release();
+        timeouts.schedule( tx, tx.timeLastSuspended.get() + unfinishedTransactionThreshold*1000 );
+    }
+
+    /*
+     * For transactions someone tried to finish while in use by a request, which then was
+     * the one to do it. Looked at once the request has let go of the transaction, in case
+     * that was tried right before then.
+     */
+    private void finishOffIfAsked( RequestContext txId, MasterTransaction tx )
+    {
+        if ( tx.finishAsap() && tx.use() )
         {
-            // set time stamp to zero so that we don't even try to finish it off
-            // if getting old. This is because if the tx is active and old then
-            // it means it's waiting for a lock and we cannot do anything about it.
-            result.resetTime();
-            return result.transaction;
+            finishOff( txId, tx );
         }
-        return null;
     }
 
-    private Transaction beginTx( RequestContext txId )
+    /*
+     * Rolls back a transaction in use by the caller. One which can't be resumed is put back,
+     * so that it's tried again once timed out, rather than held on to for good.
+     */
+    private void finishOff( RequestContext txId, MasterTransaction tx )
+    {
+        TransactionManager txManager = graphDb.getTxManager();
+        Transaction otherTx = null;
+        try
+        {
+            otherTx = txManager.getTransaction();
+            if ( otherTx != null )
+            {
+                txManager.suspend();
+            }
+            txManager.resume( tx.transaction );
+        }
+        catch ( Exception e )
+        {
+            putBack( tx );
+            resumeOther( txManager, otherTx );
+            throw Exceptions.launderedException( e );
+        }
+        finishThisAndResumeOther( otherTx, txId, false );
+    }
+
+    // Resumes the transaction suspended for another one, whether or not that one could be resumed or finished
+    private void resumeOther( TransactionManager txManager, Transaction otherTx )
+    {
+        try
+        {
+            if ( otherTx != null && txManager.getTransaction() == null )
+            {
+                txManager.resume( otherTx );
+            }
+        }
+        catch ( Exception e )
+        {
+            msgLog.logMessage( "Unable to resume " + otherTx, e );
+        }
+    }
+
+    /**
+     * @return a transaction for the given context, in use by the calling request, to be begun by it,
+     * or {@code null} if there already is one. Put there right away, so that of two requests for the
+     * same context only one begins a transaction for it.
+     */
+    private MasterTransaction claimToBegin( RequestContext txId )
+    {
+        MasterTransaction tx = new MasterTransaction( txId );
+        return transactions.putIfAbsent( txId, tx ) == null ? tx : null;
+    }
+
+    private void beginTx( MasterTransaction tx )
     {
+        boolean begun = false;
         try
         {
             TransactionManager txManager = graphDb.getTxManager();
             txManager.begin();
-            Transaction tx = txManager.getTransaction();
-            transactions.put( txId, new MasterTransaction( tx ) );
-            return tx;
+            tx.begun( txManager.getTransaction() );
+            begun = true;
         }
         catch ( NotSupportedException e )
         {
@@ -220,52 +361,46 @@ public class MasterImpl implements Master
         {
             throw new RuntimeException( e );
         }
+        finally
+        {
+            if ( !begun )
+            {
+                transactions.remove( tx.context, tx );
+            }
+        }
     }
 
     Transaction suspendOtherAndResumeThis( RequestContext txId, boolean allowBegin )
     {
         try
         {
+            MasterTransaction toBegin = allowBegin ? claimToBegin( txId ) : null;
+            // A request losing the race to begin it finds it in use, like for any other request on it
+            MasterTransaction tx = toBegin != null ? toBegin : useTx( txId );
             TransactionManager txManager = graphDb.getTxManager();
             Transaction otherTx = txManager.getTransaction();
-            Transaction transaction = getTx( txId );
-            if ( otherTx != null && otherTx == transaction )
+            if ( otherTx != null )
+            {
+                txManager.suspend();
+            }
+            if ( tx == toBegin )
             {
-                return null;
+                beginTx( tx );
             }
             else
             {
-                if ( otherTx != null )
+                try
                 {
-                    txManager.suspend();
+                    txManager.resume( tx.transaction );
                 }
-                if ( transaction == null )
+                catch ( IllegalStateException e )
                 {
-                    if ( allowBegin )
-                    {
-                        beginTx( txId );
-                    }
-                    else
-                    {
-                        throw new IllegalStateException( "Transaction " + txId + " has either timed out on the" +
-                        		" master or was not started on this master. There may have been a master switch" +
-                        		" between the time this transaction started and up to now. This transaction" +
-                        		" cannot continue since the state from the previous master isn't transferred." );
-                    }
+                    putBack( tx );
+                    resumeOther( txManager, otherTx );
+                    throw new UnableToResumeTransactionException( e );
                 }
-                else
-                {
-                    try
-                    {
-                        txManager.resume( transaction );
-                    }
-                    catch ( IllegalStateException e )
-                    {
-                        throw new UnableToResumeTransactionException( e );
-                    }
-                }
-                return otherTx;
             }
+            return otherTx;
         }
         catch ( Exception e )
         {
@@ -285,17 +420,12 @@ public class MasterImpl implements Master
             }
 
             TransactionManager txManager = graphDb.getTxManager();
-
-            // update time stamp to current time so that we know that this tx just completed
-            // a request and can now again start to be monitored, so that it can be
-            // rolled back if it's getting old.
-            tx.updateTime();
-
             txManager.suspend();
             if ( otherTx != null )
             {
                 txManager.resume( otherTx );
             }
+            release( txId, tx );
         }
         catch ( Exception e )
         {
@@ -305,20 +435,39 @@ public class MasterImpl implements Master
 
     void finishThisAndResumeOther( Transaction otherTx, RequestContext txId, boolean success )
     {
+        TransactionManager txManager = graphDb.getTxManager();
         try
         {
-            TransactionManager txManager = graphDb.getTxManager();
             if ( success ) txManager.commit();
             else txManager.rollback();
+        }
+        catch ( Exception e )
+        {
+            // It may still be associated with this thread, which goes on to serve other requests
+            suspendQuietly( txManager );
+            throw Exceptions.launderedException( e );
+        }
+        finally
+        {
+            // Gone either way, there being nothing more to do with it. It stays in use, so that
+            // the timing wheel, and any request still holding on to it, leave it alone.
             transactions.remove( txId );
-            if ( otherTx != null )
+            resumeOther( txManager, otherTx );
+        }
+    }
+
+    private void suspendQuietly( TransactionManager txManager )
+    {
+        try
+        {
+            if ( txManager.getTransaction() != null )
             {
-                txManager.resume( otherTx );
+                txManager.suspend();
             }
         }
         catch ( Exception e )
         {
-            throw Exceptions.launderedException( e );
+            msgLog.logMessage( "Unable to suspend transaction which failed to finish", e );
         }
     }
 
@@ -354,6 +503,23 @@ public class MasterImpl implements Master
         return acquireLock( context, WRITE_LOCK_GRABBER, graphProperties() );
     }
 
+    public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId,
+            long[] nodes, long[] relationships )
+    {
+        Object[] entities = new Object[nodes.length + relationships.length];
+        System.arraycopy( nodesById( nodes ), 0, entities, 0, nodes.length );
+        System.arraycopy( relationshipsById( relationships ), 0, entities, nodes.length, relationships.length );
+        return acquireLock( context, READ_LOCK_GRABBER, txId, entities );
+    }
+
+    private boolean writtenAfter( Object entity, long txId )
+    {
+        // Without a write history there's no telling, so assume the worst
+        LockManager lockManager = graphDb.getLockManager();
+        return !( lockManager instanceof MasterLockManager ) ||
+                ( (MasterLockManager) lockManager ).writtenAfter( entity, txId );
+    }
+
     private PropertyContainer graphProperties()
     {
         return graphDb.getNodeManager().getGraphProperties();
@@ -424,7 +590,13 @@ public class MasterImpl implements Master
         }
         catch ( UnableToResumeTransactionException e )
         {
-            transactions.get( context ).markAsFinishAsap();
+            // The request using it finishes it off when done
+            MasterTransaction tx = transactions.get( context );
+            if ( tx != null )
+            {
+                tx.markAsFinishAsap();
+                finishOffIfAsked( context, tx );
+            }
             throw e;
         }
 
@@ -480,24 +652,24 @@ public class MasterImpl implements Master
 
     private static interface LockGrabber
     {
-        void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity );
+        void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity, Transaction tx );
     }
 
     private static LockGrabber READ_LOCK_GRABBER = new LockGrabber()
     {
-        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity )
+        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity, Transaction tx )
         {
-            lockManager.getReadLock( entity );
-            lockReleaser.addLockToTransaction( entity, LockType.READ );
+            lockManager.getReadLock( entity, tx );
+            lockReleaser.addLockToTransaction( entity, LockType.READ, tx );
         }
     };
 
     private static LockGrabber WRITE_LOCK_GRABBER = new LockGrabber()
     {
-        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity )
+        public void grab( LockManager lockManager, LockReleaser lockReleaser, Object entity, Transaction tx )
         {
-            lockManager.getWriteLock( entity );
-            lockReleaser.addLockToTransaction( entity, LockType.WRITE );
+            lockManager.getWriteLock( entity, tx );
+            lockReleaser.addLockToTransaction( entity, LockType.WRITE, tx );
         }
     };
 
@@ -545,11 +717,22 @@ public class MasterImpl implements Master
 
     static class MasterTransaction
     {
-        private final Transaction transaction;
+        private final RequestContext context;
+        // Set by the request which begins it, before anyone else can use it
+        private volatile Transaction transaction;
         private final AtomicLong timeLastSuspended = new AtomicLong();
+        // By the request using it, or whoever is finishing it off. Begun by a request.
+        private final AtomicBoolean inUse = new AtomicBoolean( true );
         private volatile boolean finishAsap;
+        // Whether it's in the timing wheel
+        private final AtomicBoolean scheduled = new AtomicBoolean();
 
-        MasterTransaction( Transaction transaction )
+        MasterTransaction( RequestContext context )
+        {
+            this.context = context;
+        }
+
+        void begun( Transaction transaction )
         {
             this.transaction = transaction;
         }
@@ -559,9 +742,14 @@ public class MasterImpl implements Master
             this.timeLastSuspended.set( System.currentTimeMillis() );
         }
 
-        void resetTime()
+        boolean use()
         {
-            this.timeLastSuspended.set( 0 );
+            return this.inUse.compareAndSet( false, true );
+        }
+
+        void release()
+        {
+            this.inUse.set( false );
         }
 
         void markAsFinishAsap()
@@ -574,4 +762,63 @@ public class MasterImpl implements Master
             return this.finishAsap;
         }
     }
+
+    /**
+     * Hashed timing wheel of transactions by when they time out, so that finding those that
+     * have doesn't look at all the others. A transaction is put in it when let go of by a request,
+     * unless it's already in there, rather than moved on every request. One found to have been
+     * active since it was put in is put back further ahead.
+     */
+    static class TimingWheel
+    {
+        private final long tickMillis;
+        private final Queue<MasterTransaction>[] slots;
+        private volatile long currentTick;
+
+        @SuppressWarnings( "unchecked" )
+        TimingWheel( long tickMillis, long timeoutMillis, long now )
+        {
+            this.tickMillis = tickMillis;
+            this.slots = new Queue[(int) (timeoutMillis / tickMillis) + 2];
+            for ( int i = 0; i < slots.length; i++ )
+            {
+                slots[i] = new ConcurrentLinkedQueue<MasterTransaction>();
+            }
+            this.currentTick = now / tickMillis;
+        }
+
+        void schedule( MasterTransaction tx, long deadline )
+        {
+            if ( tx.scheduled.compareAndSet( false, true ) )
+            {
+                // One racing with advance() may land in a slot just emptied, and is then
+                // only looked at a turn of the wheel later.
+                long tick = Math.max( deadline / tickMillis, currentTick + 1 );
+                slots[(int) (tick % slots.length)].add( tx );
+            }
+        }
+
+        /**
+         * @return the transactions in the slots passed since last time, taken out of the wheel.
+         * Those that are due as well as those that aren't yet, since a slot is shared by deadlines
+         * a whole number of turns apart.
+         */
+        List<MasterTransaction> advance( long now )
+        {
+            List<MasterTransaction> result = new ArrayList<MasterTransaction>();
+            long nowTick = now / tickMillis;
+            for ( long tick = Math.max( currentTick + 1, nowTick - slots.length + 1 ); tick <= nowTick; tick++ )
+            {
+                currentTick = tick;
+                Queue<MasterTransaction> slot = slots[(int) (tick % slots.length)];
+                for ( MasterTransaction tx; (tx = slot.poll()) != null; )
+                {
+                    tx.scheduled.set( false );
+                    result.add( tx );
+                }
+            }
+            currentTick = nowTick;
+            return result;
+        }
+    }
 }
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.List;
+
+import javax.transaction.Transaction;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.IllegalResourceException;
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.LockNotFoundException;
+import org.neo4j.kernel.info.LockInfo;
+
+/**
+ * The {@link LockManager} of a master, which keeps a {@link WriteHistory} of the
+ * nodes and relationships it has handed out write locks for, no matter if to
+ * transactions of its own or of slaves. The locking itself is left to another
+ * lock manager, a plain one or a {@link StripedLockManager}. Only used if slaves
+ * may elide read locks, see {@link HaSettings#slave_read_lock_elision}.
+ */
+public class MasterLockManager extends LockManager
+{
+    private static final int WRITE_HISTORY_SIZE = 100000;
+
+    private final LockManager locks;
+    private final GraphDatabaseAPI graphDb;
+    private final WriteHistory writeHistory = new WriteHistory( WRITE_HISTORY_SIZE );
+
+    public MasterLockManager( LockManager locks, GraphDatabaseAPI graphDb )
+    {
+        // Every method is overridden, so none of the state of a plain lock manager is used
+        super( null );
+        this.locks = locks;
+        this.graphDb = graphDb;
+    }
+
+    @Override
+    public long getDetectedDeadlockCount()
+    {
+        return locks.getDetectedDeadlockCount();
+    }
+
+    @Override
+    public void getReadLock( Object resource ) throws DeadlockDetectedException, IllegalResourceException
+    {
+        locks.getReadLock( resource );
+    }
+
+    @Override
+    public void getReadLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
+            IllegalResourceException
+    {
+        locks.getReadLock( resource, tx );
+    }
+
+    @Override
+    public void getWriteLock( Object resource ) throws DeadlockDetectedException, IllegalResourceException
+    {
+        locks.getWriteLock( resource );
+    }
+
+    @Override
+    public void getWriteLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
+            IllegalResourceException
+    {
+        locks.getWriteLock( resource, tx );
+    }
+
+    @Override
+    public void releaseReadLock( Object resource, Transaction tx ) throws LockNotFoundException,
+            IllegalResourceException
+    {
+        locks.releaseReadLock( resource, tx );
+    }
+
+    @Override
+    public void releaseWriteLock( Object resource, Transaction tx ) throws LockNotFoundException,
+            IllegalResourceException
+    {
+        // Write locks are released after commit, so whatever was written is covered by the last
+        // committed transaction. Recorded before anyone else can get the lock.
+        if ( resource instanceof Node || resource instanceof Relationship )
+        {
+            writeHistory.written( resource, lastCommittedTx() );
+        }
+        locks.releaseWriteLock( resource, tx );
+    }
+
+    @Override
+    public void dumpLocksOnResource( Object resource )
+    {
+        locks.dumpLocksOnResource( resource );
+    }
+
+    @Override
+    public List<LockInfo> getAllLocks()
+    {
+        return locks.getAllLocks();
+    }
+
+    @Override
+    public List<LockInfo> getAwaitedLocks( long minWaitTime )
+    {
+        return locks.getAwaitedLocks( minWaitTime );
+    }
+
+    @Override
+    public void dumpRagStack()
+    {
+        locks.dumpRagStack();
+    }
+
+    @Override
+    public void dumpAllLocks()
+    {
+        locks.dumpAllLocks();
+    }
+
+    boolean writtenAfter( Object entity, long txId )
+    {
+        return writeHistory.writtenAfter( entity, txId, lastCommittedTx() );
+    }
+
+    private long lastCommittedTx()
+    {
+        return graphDb.getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId();
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.transaction.Transaction;
+
+/**
+ * The locks slave transactions have gotten from the master. They're held there until the
+ * transaction finishes, even if released locally before that, so the {@link SlaveLockManager}
+ * doesn't ask for them again whenever the kernel re-acquires one of them, which it does for
+ * every change to an entity. The {@link SlaveTxHook} forgets them as the transaction finishes.
+ */
+class MasterLocks
+{
+    private final ThreadLocal<Held> held = new ThreadLocal<Held>();
+
+    /**
+     * @return the locks {@code tx} holds on the master, which the caller adds to as it gets more.
+     */
+    Held of( Transaction tx )
+    {
+        Held current = held.get();
+        if ( current == null || current.tx != tx )
+        {
+            current = new Held( tx );
+            held.set( current );
+        }
+        return current;
+    }
+
+    /**
+     * Forgets the locks of the transaction of the current thread, which has finished.
+     */
+    void forget()
+    {
+        held.remove();
+    }
+
+    static class Held
+    {
+        final Transaction tx;
+        final Set<Object> read = new HashSet<Object>();
+        final Set<Object> write = new HashSet<Object>();
+
+        Held( Transaction tx )
+        {
+            this.tx = tx;
+        }
+
+        boolean holdsReadLock( Object resource )
+        {
+            return read.contains( resource ) || write.contains( resource );
+        }
+
+        boolean holdsWriteLock( Object resource )
+        {
+            return write.contains( resource );
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.TreeMap;
 
 import org.jboss.netty.channel.Channel;
 import org.neo4j.com.Protocol;
+import org.neo4j.com.RequestClass;
 import org.neo4j.com.RequestContext;
 import org.neo4j.com.RequestType;
 import org.neo4j.com.Server;
@@ -44,9 +45,16 @@ public class MasterServer extends Server<Master, Void>
 
     public MasterServer( Master requestTarget, final int port, StringLogger logger, int maxConcurrentTransactions,
             int oldChannelThreshold, TxChecksumVerifier txVerifier )
+    {
+        this( requestTarget, port, logger, maxConcurrentTransactions, oldChannelThreshold, txVerifier,
+                new Settings() );
+    }
+
+    public MasterServer( Master requestTarget, final int port, StringLogger logger, int maxConcurrentTransactions,
+            int oldChannelThreshold, TxChecksumVerifier txVerifier, Settings settings )
     {
         super( requestTarget, port, logger, FRAME_LENGTH, MasterClient18.PROTOCOL_VERSION, maxConcurrentTransactions,
-                oldChannelThreshold, txVerifier );
+                oldChannelThreshold, txVerifier, settings );
     }
 
     @Override
@@ -55,6 +63,27 @@ public class MasterServer extends Server<Master, Void>
         return HaRequestType18.values()[id];
     }
 
+    @Override
+    protected RequestClass getRequestClass( RequestType<Master> type )
+    {
+        if ( ( (HaRequestType18) type ).isLock() )
+        {
+            return RequestClass.LOCK;
+        }
+        switch ( (HaRequestType18) type )
+        {
+        case COMMIT:
+        case PUSH_TRANSACTION:
+            return RequestClass.TRANSACTION;
+        case PULL_UPDATES:
+        case COPY_STORE:
+        case COPY_TRANSACTIONS:
+            return RequestClass.BULK;
+        default:
+            return RequestClass.CONTROL;
+        }
+    }
+
     @Override
     protected void finishOffChannel( Channel channel, RequestContext context )
     {
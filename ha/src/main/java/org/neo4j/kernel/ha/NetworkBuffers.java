@@ -0,0 +1,61 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import org.neo4j.jmx.Description;
+import org.neo4j.jmx.ManagementInterface;
+
+@ManagementInterface( name = NetworkBuffers.NAME )
+@Description( "Information about the pool of buffers used for communication between HA cluster members, " +
+        "and the memory budget of the master for requests from slaves" )
+public interface NetworkBuffers
+{
+    final String NAME = "Network Buffers";
+
+    @Description( "The maximum number of bytes kept in the pool of network buffers" )
+    long getMaxPooledBytes();
+
+    @Description( "The number of bytes currently kept in the pool of network buffers" )
+    long getPooledBytes();
+
+    @Description( "The number of buffers acquired from the pool" )
+    long getAcquired();
+
+    @Description( "The number of buffers acquired from the pool that were reused, rather than allocated" )
+    long getReused();
+
+    @Description( "The number of buffers released back to the pool" )
+    long getReleased();
+
+    @Description( "The number of buffers released back to the pool that were discarded since the pool was full" )
+    long getDiscarded();
+
+    @Description( "The number of bytes the master may hold on to for the requests in flight from slaves" )
+    long getMemoryBudget();
+
+    @Description( "The number of bytes the master currently holds on to for the requests in flight from slaves" )
+    long getUsedMemory();
+
+    @Description( "The number of slave connections currently not read from, for being over the memory budget" )
+    int getPausedChannels();
+
+    @Description( "The number of times a slave connection has been paused, for being over the memory budget" )
+    long getPauses();
+}
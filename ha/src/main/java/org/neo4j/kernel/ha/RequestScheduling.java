@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.Map;
+
+import org.neo4j.jmx.Description;
+import org.neo4j.jmx.ManagementInterface;
+
+@ManagementInterface( name = RequestScheduling.NAME )
+@Description( "Information about how requests from slaves are scheduled on the master, per class of requests. "
+              + "Empty unless this instance is master" )
+public interface RequestScheduling
+{
+    final String NAME = "Request Scheduling";
+
+    @Description( "The number of requests waiting for a thread, per class of requests" )
+    Map<String, Long> getQueuedRequests();
+
+    @Description( "The number of requests being executed, per class of requests" )
+    Map<String, Long> getActiveRequests();
+
+    @Description( "The number of requests rejected since the master was too busy, per class of requests" )
+    Map<String, Long> getRejectedRequests();
+
+    @Description( "The number of requests dropped since the slaves had stopped waiting for them by the time they "
+                  + "got a thread, per class of requests" )
+    Map<String, Long> getExpiredRequests();
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import org.neo4j.jmx.Description;
+import org.neo4j.jmx.ManagementInterface;
+
+@ManagementInterface( name = RequestStatistics.NAME )
+@Description( "Latencies and traffic of the requests between this HA cluster member and the others" )
+public interface RequestStatistics
+{
+    final String NAME = "Request Statistics";
+
+    @Description( "Requests served by this instance as master, per request type" )
+    RequestStatisticsInfo[] getMasterRequestsByType();
+
+    @Description( "Requests served by this instance as master, per slave machine id" )
+    RequestStatisticsInfo[] getMasterRequestsBySlave();
+
+    @Description( "Requests sent by this instance as slave to the master, per request type" )
+    RequestStatisticsInfo[] getRequestsToMaster();
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.beans.ConstructorProperties;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.com.LatencyHistogram;
+import org.neo4j.com.RequestMetrics;
+import org.neo4j.com.RequestMetrics.Phase;
+
+/**
+ * Latencies and traffic of the requests of one request type, or from one slave.
+ * Latencies are in microseconds, for the request as a whole. The phases of the
+ * requests are summarized one per line.
+ */
+public final class RequestStatisticsInfo implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final long requests;
+    private final long meanMicros;
+    private final long p50Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+    private final long requestBytes;
+    private final long responseBytes;
+    private final String[] phases;
+
+    @ConstructorProperties( { "name", "requests", "meanMicros", "p50Micros", "p99Micros", "maxMicros",
+            "requestBytes", "responseBytes", "phases" } )
+    public RequestStatisticsInfo( String name, long requests, long meanMicros, long p50Micros, long p99Micros,
+            long maxMicros, long requestBytes, long responseBytes, String[] phases )
+    {
+        this.name = name;
+        this.requests = requests;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.phases = phases;
+    }
+
+    public static RequestStatisticsInfo[] from( Map<?, RequestMetrics.Entry> entries )
+    {
+        List<RequestStatisticsInfo> result = new ArrayList<RequestStatisticsInfo>();
+        for ( Map.Entry<?, RequestMetrics.Entry> entry : entries.entrySet() )
+        {
+            RequestMetrics.Entry metrics = entry.getValue();
+            LatencyHistogram total = metrics.latency( Phase.TOTAL );
+            List<String> phases = new ArrayList<String>();
+            for ( Phase phase : Phase.values() )
+            {
+                LatencyHistogram latency = metrics.latency( phase );
+                if ( phase == Phase.TOTAL || latency.getCount() == 0 ) continue;
+                phases.add( phase.name().toLowerCase() + ": mean " + micros( latency.getMeanNanos() ) + " us, p99 "
+                        + micros( latency.getPercentileNanos( 99 ) ) + " us, max " + micros( latency.getMaxNanos() )
+                        + " us" );
+            }
+            result.add( new RequestStatisticsInfo( entry.getKey().toString(), total.getCount(),
+                    micros( total.getMeanNanos() ), micros( total.getPercentileNanos( 50 ) ),
+                    micros( total.getPercentileNanos( 99 ) ), micros( total.getMaxNanos() ),
+                    metrics.getRequestBytes(), metrics.getResponseBytes(), phases.toArray( new String[phases.size()] ) ) );
+        }
+        return result.toArray( new RequestStatisticsInfo[result.size()] );
+    }
+
+    private static long micros( long nanos )
+    {
+        return nanos / 1000;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long getRequests()
+    {
+        return requests;
+    }
+
+    public long getMeanMicros()
+    {
+        return meanMicros;
+    }
+
+    public long getP50Micros()
+    {
+        return p50Micros;
+    }
+
+    public long getP99Micros()
+    {
+        return p99Micros;
+    }
+
+    public long getMaxMicros()
+    {
+        return maxMicros;
+    }
+
+    public long getRequestBytes()
+    {
+        return requestBytes;
+    }
+
+    public long getResponseBytes()
+    {
+        return responseBytes;
+    }
+
+    public String[] getPhases()
+    {
+        return phases;
+    }
+}
@@ -50,6 +50,8 @@ public class SlaveGraphDatabase
     private LastCommittedTxIdSetter lastCommittedTxIdSetter;
     private SlaveIdGenerator.SlaveIdGeneratorFactory slaveIdGeneratorFactory;
     private FileSystemAbstraction fileSystemAbstraction;
+    private final ElidedReadLocks elidedReadLocks = new ElidedReadLocks();
+    private final MasterLocks masterLocks = new MasterLocks();
 
     public SlaveGraphDatabase( String storeDir, Map<String, String> params,
             StoreId storeId, HighlyAvailableGraphDatabase highlyAvailableGraphDatabase, Broker broker,
@@ -76,7 +78,7 @@ public class SlaveGraphDatabase
     @Override
     protected TxHook createTxHook()
     {
-        return new SlaveTxHook( broker, databaseOperations, this );
+        return new SlaveTxHook( broker, databaseOperations, this, masterLocks, elidedReadLocks );
     }
 
     @Override
@@ -95,7 +97,7 @@ public class SlaveGraphDatabase
     protected TxIdGenerator createTxIdGenerator()
     {
         assert txManager != null;
-        return new SlaveTxIdGenerator( broker, databaseOperations, txManager );
+        return new SlaveTxIdGenerator( broker, databaseOperations, txManager, elidedReadLocks );
     }
 
     @Override
@@ -108,7 +110,8 @@ public class SlaveGraphDatabase
     protected LockManager createLockManager()
     {
         assert txManager != null && txHook != null;
-        return new SlaveLockManager( ragManager, (TxManager) txManager, txHook, broker, databaseOperations );
+        return new SlaveLockManager( ragManager, (TxManager) txManager, txHook, broker, databaseOperations,
+                config.get( HaSettings.slave_read_lock_elision ) ? elidedReadLocks : null, masterLocks );
     }
 
     public void forgetIdAllocationsFromMaster()
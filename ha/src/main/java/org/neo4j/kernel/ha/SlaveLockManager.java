@@ -26,6 +26,7 @@ import org.neo4j.com.Response;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.configuration.Config;
 import org.neo4j.kernel.impl.core.GraphProperties;
 import org.neo4j.kernel.impl.core.NodeManager.IndexLock;
 import org.neo4j.kernel.impl.transaction.IllegalResourceException;
@@ -40,15 +41,31 @@ public class SlaveLockManager extends LockManager
     private final TxManager tm;
     private final SlaveDatabaseOperations databaseOperations;
     private final TxHook txHook;
+    private final ElidedReadLocks elidedReadLocks;
+    private final MasterLocks masterLocks;
 
     public SlaveLockManager( RagManager ragManager, TxManager tm, TxHook txHook, Broker broker,
             SlaveDatabaseOperations databaseOperations )
+    {
+        this( ragManager, tm, txHook, broker, databaseOperations, null, new MasterLocks() );
+    }
+
+    /**
+     * @param elidedReadLocks where to keep the read locks on nodes and relationships which
+     * are held locally only, or {@code null} for acquiring all of them on the master.
+     * @param masterLocks where to keep the locks transactions have gotten from the master,
+     * shared with the {@link SlaveTxHook} which forgets them as transactions finish.
+     */
+    SlaveLockManager( RagManager ragManager, TxManager tm, TxHook txHook, Broker broker,
+            SlaveDatabaseOperations databaseOperations, ElidedReadLocks elidedReadLocks, MasterLocks masterLocks )
     {
         super( ragManager );
         this.tm = tm;
         this.txHook = txHook;
         this.broker = broker;
         this.databaseOperations = databaseOperations;
+        this.elidedReadLocks = elidedReadLocks;
+        this.masterLocks = masterLocks;
     }
 
     private int getLocalTxId()
@@ -74,23 +91,22 @@ public class SlaveLockManager extends LockManager
                 return;
             }
 
-            initializeTxIfFirst();
-            LockResult result = null;
-            do
+            MasterLocks.Held locks = masterLocks( tx );
+            if ( locks != null && canElide( grabber ) )
             {
-                int eventIdentifier = getLocalTxId();
-                result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
-                        databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
-                switch ( result.getStatus() )
+                if ( !locks.holdsReadLock( resource ) )
                 {
-                case OK_LOCKED:
-                    super.getReadLock( resource, tx );
-                    return;
-                case DEAD_LOCKED:
-                    throw new DeadlockDetectedException( result.getDeadlockMessage() );
+                    elidedReads( locks.tx ).add( resource );
                 }
+                super.getReadLock( resource, tx );
+                return;
+            }
+            if ( locks == null || !locks.holdsReadLock( resource ) )
+            {
+                acquireOnMaster( grabber, resource );
             }
-            while ( result.getStatus() == LockStatus.NOT_LOCKED );
+            super.getReadLock( resource, tx );
+            if ( locks != null ) locks.read.add( resource );
         }
         catch ( RuntimeException e )
         {
@@ -99,19 +115,10 @@ public class SlaveLockManager extends LockManager
         }
     }
 
-    private void initializeTxIfFirst()
-    {
-        // The main point of initializing transaction (for HA) is in TransactionImpl, so this is
-        // for that extra point where grabbing a lock
-        Transaction tx = tm.getTransaction();
-        if ( !txHook.hasAnyLocks( tx ) ) txHook.initializeTransaction( tm.getEventIdentifier() );
-    }
-
     @Override
     public void getWriteLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
             IllegalResourceException
     {
-        // Code copied from getReadLock. Fix!
         LockGrabber grabber = null;
         if ( resource instanceof Node ) grabber = LockGrabber.NODE_WRITE;
         else if ( resource instanceof Relationship ) grabber = LockGrabber.RELATIONSHIP_WRITE;
@@ -126,23 +133,13 @@ public class SlaveLockManager extends LockManager
                 return;
             }
 
-            initializeTxIfFirst();
-            LockResult result = null;
-            do
+            MasterLocks.Held locks = masterLocks( tx );
+            if ( locks == null || !locks.holdsWriteLock( resource ) )
             {
-                int eventIdentifier = getLocalTxId();
-                result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
-                        databaseOperations.getSlaveContext( eventIdentifier ), resource ) );
-                switch ( result.getStatus() )
-                {
-                case OK_LOCKED:
-                    super.getWriteLock( resource, tx );
-                    return;
-                case DEAD_LOCKED:
-                    throw new DeadlockDetectedException( result.getDeadlockMessage() );
-                }
+                acquireOnMaster( grabber, resource );
             }
-            while ( result.getStatus() == LockStatus.NOT_LOCKED );
+            super.getWriteLock( resource, tx );
+            if ( locks != null ) locks.write.add( resource );
         }
         catch ( RuntimeException e )
         {
@@ -151,6 +148,67 @@ public class SlaveLockManager extends LockManager
         }
     }
 
+    private void acquireOnMaster( LockGrabber grabber, Object resource )
+    {
+        initializeTxIfFirst();
+        // The master answers once it has granted the lock, or found that waiting for it would deadlock
+        LockResult result = databaseOperations.receive( grabber.acquireLock( broker.getMaster().first(),
+                databaseOperations.getSlaveContext( getLocalTxId() ), resource ) );
+        switch ( result.getStatus() )
+        {
+        case OK_LOCKED:
+            return;
+        case DEAD_LOCKED:
+            throw new DeadlockDetectedException( result.getDeadlockMessage() );
+        default:
+            // Asking again wouldn't change a thing
+            throw new IllegalResourceException( "Master couldn't lock " + resource );
+        }
+    }
+
+    private boolean canElide( LockGrabber grabber )
+    {
+        // The master needs to be able to validate them at commit
+        return elidedReadLocks != null && ( grabber == LockGrabber.NODE_READ ||
+                grabber == LockGrabber.RELATIONSHIP_READ ) && broker.getMaster().first() instanceof MasterClient18;
+    }
+
+    private ElidedReadLocks.Reads elidedReads( Transaction tx )
+    {
+        ElidedReadLocks.Reads reads = elidedReadLocks.of( tx );
+        if ( reads == null )
+        {
+            reads = elidedReadLocks.start( tx, lastAppliedTx() );
+        }
+        return reads;
+    }
+
+    private long lastAppliedTx()
+    {
+        for ( RequestContext.Tx tx : databaseOperations.getSlaveContext( getLocalTxId() ).lastAppliedTransactions() )
+        {
+            if ( tx.getDataSourceName().equals( Config.DEFAULT_DATA_SOURCE_NAME ) )
+            {
+                return tx.getTxId();
+            }
+        }
+        throw new IllegalStateException( "No " + Config.DEFAULT_DATA_SOURCE_NAME + " data source" );
+    }
+
+    private void initializeTxIfFirst()
+    {
+        // The main point of initializing transaction (for HA) is in TransactionImpl, so this is
+        // for that extra point where grabbing a lock
+        Transaction tx = tm.getTransaction();
+        if ( !txHook.hasAnyLocks( tx ) ) txHook.initializeTransaction( tm.getEventIdentifier() );
+    }
+
+    private MasterLocks.Held masterLocks( Transaction tx )
+    {
+        if ( tx == null ) tx = tm.getTransaction();
+        return tx != null ? masterLocks.of( tx ) : null;
+    }
+
     // Release lock is as usual, since when the master committs it will release
     // the locks there and then when this slave committs it will release its
     // locks as usual here.
@@ -29,12 +29,22 @@ public class SlaveTxHook implements TxHook
     private final Broker broker;
     private final SlaveDatabaseOperations databaseOperations;
     private GraphDatabaseAPI spi;
+    private final MasterLocks masterLocks;
+    private final ElidedReadLocks elidedReadLocks;
 
     public SlaveTxHook( Broker broker, SlaveDatabaseOperations databaseOperations, GraphDatabaseAPI spi )
+    {
+        this( broker, databaseOperations, spi, new MasterLocks(), new ElidedReadLocks() );
+    }
+
+    SlaveTxHook( Broker broker, SlaveDatabaseOperations databaseOperations, GraphDatabaseAPI spi,
+            MasterLocks masterLocks, ElidedReadLocks elidedReadLocks )
     {
         this.broker = broker;
         this.databaseOperations = databaseOperations;
         this.spi = spi;
+        this.masterLocks = masterLocks;
+        this.elidedReadLocks = elidedReadLocks;
     }
 
     @Override
@@ -68,6 +78,12 @@ public class SlaveTxHook implements TxHook
             databaseOperations.exceptionHappened( e );
             throw e;
         }
+        finally
+        {
+            // The master releases them whichever way it went
+            masterLocks.forget();
+            elidedReadLocks.forget();
+        }
     }
 
     @Override
@@ -28,6 +28,8 @@ import javax.transaction.TransactionManager;
 
 import org.neo4j.com.Response;
 import org.neo4j.com.TxExtractor;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.impl.transaction.IllegalResourceException;
 import org.neo4j.kernel.impl.transaction.TxManager;
 import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
 import org.neo4j.kernel.impl.transaction.xaframework.TxIdGenerator;
@@ -56,12 +58,20 @@ public class SlaveTxIdGenerator implements TxIdGenerator
     private final Broker broker;
     private final SlaveDatabaseOperations databaseOperations;
     private final TxManager txManager;
+    private final ElidedReadLocks elidedReadLocks;
 
     public SlaveTxIdGenerator( Broker broker, SlaveDatabaseOperations databaseOperations, TransactionManager txManager )
+    {
+        this( broker, databaseOperations, txManager, new ElidedReadLocks() );
+    }
+
+    SlaveTxIdGenerator( Broker broker, SlaveDatabaseOperations databaseOperations, TransactionManager txManager,
+            ElidedReadLocks elidedReadLocks )
     {
         this.broker = broker;
         this.databaseOperations = databaseOperations;
         this.txManager = (TxManager) txManager;
+        this.elidedReadLocks = elidedReadLocks;
     }
 
     public long generate( final XaDataSource dataSource, final int identifier )
@@ -69,6 +79,7 @@ public class SlaveTxIdGenerator implements TxIdGenerator
         try
         {
             final int eventIdentifier = txManager.getEventIdentifier();
+            acquireElidedReadLocks( eventIdentifier );
             Response<Long> response = broker.getMaster().first().commitSingleResourceTransaction(
                     onlyIncludeResource( databaseOperations.getSlaveContext( eventIdentifier ), dataSource ),
                     dataSource.getName(), new TxExtractor()
@@ -108,6 +119,27 @@ public class SlaveTxIdGenerator implements TxIdGenerator
         }
     }
 
+    private void acquireElidedReadLocks( int eventIdentifier )
+    {
+        ElidedReadLocks.Reads reads = elidedReadLocks.take( txManager.getTransaction() );
+        if ( reads == null )
+        {
+            return;
+        }
+        LockResult result = databaseOperations.receive( broker.getMaster().first().acquireReadLocksUnchangedSince(
+                databaseOperations.getSlaveContext( eventIdentifier ), reads.since, reads.nodes(),
+                reads.relationships() ) );
+        switch ( result.getStatus() )
+        {
+        case OK_LOCKED:
+            return;
+        case DEAD_LOCKED:
+            throw new DeadlockDetectedException( result.getDeadlockMessage() );
+        default:
+            throw new IllegalResourceException( "Master couldn't lock the nodes and relationships read" );
+        }
+    }
+
     public int getCurrentMasterId()
     {
         return this.broker.getMaster().other().getMachineId();
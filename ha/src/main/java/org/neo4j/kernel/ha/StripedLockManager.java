@@ -0,0 +1,654 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.neo4j.com.RequestDeadline;
+import org.neo4j.com.RequestExpiredException;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.TransactionFailureException;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.impl.transaction.IllegalResourceException;
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.kernel.impl.transaction.LockNotFoundException;
+import org.neo4j.kernel.impl.transaction.LockType;
+import org.neo4j.kernel.impl.transaction.RagManager;
+import org.neo4j.kernel.info.LockInfo;
+import org.neo4j.kernel.info.LockingTransaction;
+import org.neo4j.kernel.info.ResourceType;
+import org.neo4j.kernel.info.WaitingThread;
+
+/**
+ * A {@link LockManager} partitioning its locks by resource into stripes, each guarded
+ * by a monitor of its own, where a plain one guards all of its locks by one monitor and
+ * keeps track of who holds and waits for what in a {@link RagManager} synchronized as a
+ * whole. Taking or releasing a lock only synchronizes on the stripe of its resource.
+ *
+ * Deadlocks are only looked for once a transaction has been waiting for a lock a while,
+ * by following whom it's waiting for, whom those are waiting for and so on, one stripe at
+ * a time. Most waits are over long before that, so a deadlock takes a little longer to be
+ * found, but waiting doesn't cost a walk of who's waiting for whom each time. Waiting
+ * transactions get their locks in the order they started waiting, except for those already
+ * holding the lock, which go first since the others may be waiting for them.
+ *
+ * A wait for a lock by a thread handling a request is given up once the request is past
+ * its {@link RequestDeadline}, with a {@link RequestExpiredException}.
+ */
+public class StripedLockManager extends LockManager
+{
+    private static final long DEADLOCK_CHECK_DELAY = TimeUnit.MILLISECONDS.toNanos( 50 );
+    private static final long DEADLOCK_RECHECK_INTERVAL = TimeUnit.SECONDS.toNanos( 1 );
+    // How often a lock wait for a request sees if the request is past its deadline
+    private static final long DEADLINE_CHECK_INTERVAL = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    private final TransactionManager tm;
+    private final Stripe[] stripes;
+    private final ConcurrentMap<Object, Waiter> waiting = new ConcurrentHashMap<Object, Waiter>();
+    private final AtomicLong deadlockCount = new AtomicLong();
+
+    /**
+     * @param tm asked for the current transaction when locking or releasing without
+     * a transaction given.
+     * @param stripes the number of stripes, rounded up to a power of two.
+     */
+    public StripedLockManager( TransactionManager tm, int stripes )
+    {
+        // Every method is overridden, so none of the state of a plain lock manager is used
+        super( null );
+        this.tm = tm;
+        int count = 1;
+        while ( count < stripes )
+        {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        for ( int i = 0; i < count; i++ )
+        {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    @Override
+    public long getDetectedDeadlockCount()
+    {
+        return deadlockCount.get();
+    }
+
+    @Override
+    public void getReadLock( Object resource ) throws DeadlockDetectedException, IllegalResourceException
+    {
+        getReadLock( resource, null );
+    }
+
+    @Override
+    public void getReadLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
+            IllegalResourceException
+    {
+        acquire( resource, tx, LockType.READ );
+    }
+
+    @Override
+    public void getWriteLock( Object resource ) throws DeadlockDetectedException, IllegalResourceException
+    {
+        getWriteLock( resource, null );
+    }
+
+    @Override
+    public void getWriteLock( Object resource, Transaction tx ) throws DeadlockDetectedException,
+            IllegalResourceException
+    {
+        acquire( resource, tx, LockType.WRITE );
+    }
+
+    @Override
+    public void releaseReadLock( Object resource, Transaction tx ) throws LockNotFoundException,
+            IllegalResourceException
+    {
+        release( resource, tx, LockType.READ );
+    }
+
+    @Override
+    public void releaseWriteLock( Object resource, Transaction tx ) throws LockNotFoundException,
+            IllegalResourceException
+    {
+        release( resource, tx, LockType.WRITE );
+    }
+
+    private void acquire( Object resource, Transaction tx, LockType type )
+    {
+        Object owner = owner( resource, tx );
+        Stripe stripe = stripeFor( resource );
+        Waiter waiter;
+        synchronized ( stripe )
+        {
+            ResourceLock lock = stripe.locks.get( resource );
+            if ( lock == null )
+            {
+                lock = new ResourceLock( resource, stripe );
+                stripe.locks.put( resource, lock );
+            }
+            boolean holding = lock.holders.containsKey( owner );
+            if ( ( holding || lock.waiters.isEmpty() ) && lock.grantable( owner, type ) )
+            {
+                lock.grant( owner, type );
+                return;
+            }
+            waiter = new Waiter( owner, type, lock );
+            if ( holding )
+            {
+                lock.waiters.addFirst( waiter );
+            }
+            else
+            {
+                lock.waiters.addLast( waiter );
+            }
+            waiting.put( owner, waiter );
+        }
+
+        // Most waits are over long before a deadlock would be worth looking for, and a walk
+        // may race with another one, so one is looked for every now and then while waiting
+        RequestDeadline deadline = RequestDeadline.current();
+        long deadlineCheckInterval = deadline == RequestDeadline.NONE ? Long.MAX_VALUE : DEADLINE_CHECK_INTERVAL;
+        for ( long interval = DEADLOCK_CHECK_DELAY; !waiter.granted; interval = DEADLOCK_RECHECK_INTERVAL )
+        {
+            long until = System.nanoTime() + interval;
+            for ( long left = interval; left > 0 && !waiter.granted; left = until - System.nanoTime() )
+            {
+                LockSupport.parkNanos( this, Math.min( left, deadlineCheckInterval ) );
+                // Just like for the kernel's locks, waiting for a lock isn't interruptible. It's given
+                // up once the slave asking for it has though, rather than taking the lock only to hold
+                // it until the transaction is rolled back.
+                Thread.interrupted();
+                if ( !waiter.granted && deadline.isPassed() && giveUp( waiter ) )
+                {
+                    throw new RequestExpiredException( owner + " gave up waiting for a " + type + " lock on " +
+                            resource + ", the request for it being past its deadline" );
+                }
+            }
+            if ( !waiter.granted && deadlocks( waiter ) && giveUp( waiter ) )
+            {
+                deadlockCount.incrementAndGet();
+                throw new DeadlockDetectedException( owner + " can't wait for a " + type + " lock on " +
+                        resource + ", it would wait for transactions which in turn are waiting for it" );
+            }
+        }
+    }
+
+    private void release( Object resource, Transaction tx, LockType type )
+    {
+        Object owner = owner( resource, tx );
+        Stripe stripe = stripeFor( resource );
+        synchronized ( stripe )
+        {
+            ResourceLock lock = stripe.locks.get( resource );
+            if ( lock == null || !lock.release( owner, type ) )
+            {
+                throw new LockNotFoundException( "Lock not found for: " + resource );
+            }
+            grantWaiting( lock );
+            stripe.removeIfUnused( lock );
+        }
+    }
+
+    /*
+     * Walks the graph of who's waiting for whom, from the given waiter on, stripe by stripe.
+     * The waiter is registered before, so of two transactions starting to wait for each other
+     * at the same time at least one of them sees the other. Since the graph keeps changing
+     * during the walk, a cycle found may be made up of edges which never were there all at
+     * the same time, so it's only a deadlock if it's still there when walked once more.
+     */
+    private boolean deadlocks( Waiter waiter )
+    {
+        Map<Object, Waiter> waiters = new HashMap<Object, Waiter>();
+        Map<Object, Object> blocking = new HashMap<Object, Object>();
+        List<Object> toVisit = new ArrayList<Object>();
+        List<Object> blockers = new ArrayList<Object>();
+        waiters.put( waiter.owner, waiter );
+        toVisit.add( waiter.owner );
+        while ( !toVisit.isEmpty() )
+        {
+            Object owner = toVisit.remove( toVisit.size() - 1 );
+            Waiter blocked = waiters.get( owner );
+            blockers.clear();
+            if ( !blockers( blocked, blockers ) )
+            {
+                continue;
+            }
+            for ( Object blocker : blockers )
+            {
+                if ( blocker.equals( waiter.owner ) )
+                {
+                    if ( stillDeadlocked( cycle( owner, waiter, waiters, blocking ) ) )
+                    {
+                        return true;
+                    }
+                }
+                else if ( !blocking.containsKey( blocker ) )
+                {
+                    Waiter next = waiting.get( blocker );
+                    if ( next != null )
+                    {
+                        blocking.put( blocker, owner );
+                        waiters.put( blocker, next );
+                        toVisit.add( blocker );
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the waiters of the cycle from the given waiter, blocked by the owner after it,
+     * and so on, to the given last owner, blocked by the given waiter.
+     */
+    private static List<Waiter> cycle( Object last, Waiter waiter, Map<Object, Waiter> waiters,
+            Map<Object, Object> blocking )
+    {
+        LinkedList<Waiter> cycle = new LinkedList<Waiter>();
+        for ( Object owner = last; !owner.equals( waiter.owner ); owner = blocking.get( owner ) )
+        {
+            cycle.addFirst( waiters.get( owner ) );
+        }
+        cycle.addFirst( waiter );
+        return cycle;
+    }
+
+    /*
+     * A waiter still in line has been waiting all along, and the locks held by a waiting
+     * transaction don't change, so if each waiter in turn is still in line and blocked by
+     * the next one the cycle is there for good.
+     */
+    private static boolean stillDeadlocked( List<Waiter> cycle )
+    {
+        for ( int i = 0; i < cycle.size(); i++ )
+        {
+            if ( !blockedBy( cycle.get( i ), cycle.get( ( i + 1 ) % cycle.size() ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean blockedBy( Waiter waiter, Waiter blocker )
+    {
+        ResourceLock lock = waiter.lock;
+        synchronized ( lock.stripe )
+        {
+            if ( !waiter.inLine )
+            {
+                return false;
+            }
+            Holding holding = lock.holders.get( blocker.owner );
+            if ( holding != null && blocks( waiter, holding ) )
+            {
+                return true;
+            }
+            for ( Waiter ahead : lock.waiters )
+            {
+                if ( ahead == waiter )
+                {
+                    return false;
+                }
+                if ( ahead == blocker )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Adds those holding locks the waiter can't have together with theirs, and those in
+     * line before it, to the given list.
+     *
+     * @return whether or not the waiter is still waiting.
+     */
+    private static boolean blockers( Waiter waiter, List<Object> into )
+    {
+        ResourceLock lock = waiter.lock;
+        synchronized ( lock.stripe )
+        {
+            if ( !waiter.inLine )
+            {
+                return false;
+            }
+            for ( Map.Entry<Object, Holding> holder : lock.holders.entrySet() )
+            {
+                if ( !holder.getKey().equals( waiter.owner ) && blocks( waiter, holder.getValue() ) )
+                {
+                    into.add( holder.getKey() );
+                }
+            }
+            for ( Waiter ahead : lock.waiters )
+            {
+                if ( ahead == waiter )
+                {
+                    break;
+                }
+                into.add( ahead.owner );
+            }
+            return true;
+        }
+    }
+
+    private static boolean blocks( Waiter waiter, Holding holding )
+    {
+        return waiter.type == LockType.WRITE || holding.writes > 0;
+    }
+
+    /**
+     * @return whether or not the waiter gave up, which it can't if it has been granted
+     * the lock meanwhile, meaning there was no deadlock after all.
+     */
+    private boolean giveUp( Waiter waiter )
+    {
+        ResourceLock lock = waiter.lock;
+        synchronized ( lock.stripe )
+        {
+            if ( !waiter.inLine )
+            {
+                return false;
+            }
+            waiter.inLine = false;
+            lock.waiters.remove( waiter );
+            waiting.remove( waiter.owner, waiter );
+            grantWaiting( lock );
+            lock.stripe.removeIfUnused( lock );
+            return true;
+        }
+    }
+
+    // Called holding the monitor of the stripe of the lock
+    private void grantWaiting( ResourceLock lock )
+    {
+        for ( Iterator<Waiter> iterator = lock.waiters.iterator(); iterator.hasNext(); )
+        {
+            Waiter waiter = iterator.next();
+            if ( !lock.grantable( waiter.owner, waiter.type ) )
+            {
+                break;
+            }
+            iterator.remove();
+            lock.grant( waiter.owner, waiter.type );
+            waiting.remove( waiter.owner, waiter );
+            waiter.inLine = false;
+            waiter.granted = true;
+            LockSupport.unpark( waiter.thread );
+        }
+    }
+
+    private Object owner( Object resource, Transaction tx )
+    {
+        if ( resource == null )
+        {
+            throw new IllegalResourceException( "Null parameter" );
+        }
+        if ( tx != null )
+        {
+            return tx;
+        }
+        try
+        {
+            Transaction current = tm.getTransaction();
+            // Locks taken outside of a transaction belong to the thread taking them
+            return current != null ? current : Thread.currentThread();
+        }
+        catch ( SystemException e )
+        {
+            throw new TransactionFailureException( "Could not get current transaction.", e );
+        }
+    }
+
+    private Stripe stripeFor( Object resource )
+    {
+        int hash = resource.hashCode();
+        hash ^= ( hash >>> 20 ) ^ ( hash >>> 12 );
+        hash ^= ( hash >>> 7 ) ^ ( hash >>> 4 );
+        return stripes[hash & ( stripes.length - 1 )];
+    }
+
+    @Override
+    public List<LockInfo> getAllLocks()
+    {
+        List<LockInfo> result = new ArrayList<LockInfo>();
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                for ( ResourceLock lock : stripe.locks.values() )
+                {
+                    result.add( lock.info() );
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<LockInfo> getAwaitedLocks( long minWaitTime )
+    {
+        long waitingSince = System.currentTimeMillis() - minWaitTime;
+        List<LockInfo> result = new ArrayList<LockInfo>();
+        for ( Stripe stripe : stripes )
+        {
+            synchronized ( stripe )
+            {
+                for ( ResourceLock lock : stripe.locks.values() )
+                {
+                    for ( Waiter waiter : lock.waiters )
+                    {
+                        if ( waiter.since < waitingSince )
+                        {
+                            result.add( lock.info() );
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void dumpLocksOnResource( Object resource )
+    {
+        Stripe stripe = stripeFor( resource );
+        synchronized ( stripe )
+        {
+            ResourceLock lock = stripe.locks.get( resource );
+            System.out.println( lock != null ? lock.info().toString() : "No locks on " + resource );
+        }
+    }
+
+    @Override
+    public void dumpRagStack()
+    {
+        for ( Waiter waiter : waiting.values() )
+        {
+            System.out.println( waiter.owner + " waiting for " + waiter.type + " lock on " + waiter.lock.resource );
+        }
+    }
+
+    @Override
+    public void dumpAllLocks()
+    {
+        for ( LockInfo lock : getAllLocks() )
+        {
+            System.out.println( lock );
+        }
+    }
+
+    private static class Stripe
+    {
+        private final Map<Object, ResourceLock> locks = new HashMap<Object, ResourceLock>();
+
+        void removeIfUnused( ResourceLock lock )
+        {
+            if ( lock.holders.isEmpty() && lock.waiters.isEmpty() )
+            {
+                locks.remove( lock.resource );
+            }
+        }
+    }
+
+    // Guarded by the monitor of its stripe
+    private static class ResourceLock
+    {
+        private final Object resource;
+        private final Stripe stripe;
+        private final Map<Object, Holding> holders = new HashMap<Object, Holding>( 4 );
+        private final LinkedList<Waiter> waiters = new LinkedList<Waiter>();
+        private int readCount;
+        private int writeCount;
+
+        ResourceLock( Object resource, Stripe stripe )
+        {
+            this.resource = resource;
+            this.stripe = stripe;
+        }
+
+        boolean grantable( Object owner, LockType type )
+        {
+            Holding holding = holders.get( owner );
+            int reads = holding != null ? holding.reads : 0;
+            int writes = holding != null ? holding.writes : 0;
+            // Nobody else may be writing, and for a write lock nobody else may be reading either
+            return writeCount == writes && ( type == LockType.READ || readCount == reads );
+        }
+
+        void grant( Object owner, LockType type )
+        {
+            Holding holding = holders.get( owner );
+            if ( holding == null )
+            {
+                holding = new Holding();
+                holders.put( owner, holding );
+            }
+            if ( type == LockType.READ )
+            {
+                holding.reads++;
+                readCount++;
+            }
+            else
+            {
+                holding.writes++;
+                writeCount++;
+            }
+        }
+
+        boolean release( Object owner, LockType type )
+        {
+            Holding holding = holders.get( owner );
+            if ( holding == null || ( type == LockType.READ ? holding.reads : holding.writes ) == 0 )
+            {
+                return false;
+            }
+            if ( type == LockType.READ )
+            {
+                holding.reads--;
+                readCount--;
+            }
+            else
+            {
+                holding.writes--;
+                writeCount--;
+            }
+            if ( holding.reads == 0 && holding.writes == 0 )
+            {
+                holders.remove( owner );
+            }
+            return true;
+        }
+
+        LockInfo info()
+        {
+            List<LockingTransaction> lockingTxs = new ArrayList<LockingTransaction>();
+            for ( Map.Entry<Object, Holding> holder : holders.entrySet() )
+            {
+                lockingTxs.add( new LockingTransaction( holder.getKey().toString(), holder.getValue().reads,
+                        holder.getValue().writes ) );
+            }
+            List<WaitingThread> waitingThreads = new ArrayList<WaitingThread>();
+            for ( Waiter waiter : waiters )
+            {
+                Holding holding = holders.get( waiter.owner );
+                waitingThreads.add( WaitingThread.create( waiter.owner.toString(),
+                        holding != null ? holding.reads : 0, holding != null ? holding.writes : 0,
+                        waiter.thread, waiter.since, waiter.type == LockType.WRITE ) );
+            }
+            if ( resource instanceof Node )
+            {
+                return new LockInfo( ResourceType.NODE, Long.toString( ( (Node) resource ).getId() ), readCount,
+                        writeCount, lockingTxs, waitingThreads );
+            }
+            if ( resource instanceof Relationship )
+            {
+                return new LockInfo( ResourceType.RELATIONSHIP, Long.toString( ( (Relationship) resource ).getId() ),
+                        readCount, writeCount, lockingTxs, waitingThreads );
+            }
+            return new LockInfo( ResourceType.OTHER, resource.toString(), readCount, writeCount, lockingTxs,
+                    waitingThreads );
+        }
+    }
+
+    private static class Holding
+    {
+        private int reads;
+        private int writes;
+    }
+
+    private static class Waiter
+    {
+        private final Object owner;
+        private final LockType type;
+        private final ResourceLock lock;
+        private final Thread thread = Thread.currentThread();
+        private final long since = System.currentTimeMillis();
+        // Guarded by the monitor of the stripe of the lock
+        private boolean inLine = true;
+        private volatile boolean granted;
+
+        Waiter( Object owner, LockType type, ResourceLock lock )
+        {
+            this.owner = owner;
+            this.type = type;
+            this.lock = lock;
+        }
+    }
+}
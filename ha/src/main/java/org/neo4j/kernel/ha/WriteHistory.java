@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+/**
+ * Remembers, for the most recently written nodes and relationships, the last committed
+ * transaction at the time they were last written. Used by the master to tell whether
+ * an entity which a slave read without locking it on the master has been changed since.
+ * Entities which have been forgotten, or never were written since this master started,
+ * count as written by the last committed transaction at the time they were forgotten,
+ * or at the time it started respectively, which errs on the side of a change.
+ * <p>
+ * Every write lock released on the master is recorded here, so it's kept free of locks.
+ * Instead of forgetting the least recently written entity one at a time, every time half
+ * the capacity has been written the ones not written since the time before are forgotten.
+ */
+class WriteHistory
+{
+    private final int generationSize;
+    private final ConcurrentMap<Object, Long> lastWrites = new ConcurrentHashMap<Object, Long>();
+    private final AtomicLong forgottenUpTo = new AtomicLong( -1 );
+    private final AtomicInteger writesInGeneration = new AtomicInteger();
+    private final AtomicBoolean forgetting = new AtomicBoolean();
+    private volatile long generationStart = -1;
+
+    WriteHistory( int capacity )
+    {
+        this.generationSize = Math.max( 1, capacity / 2 );
+    }
+
+    /**
+     * @param lastCommittedTx the last committed transaction at the time the write lock
+     * on {@code entity} is released.
+     */
+    void written( Object entity, long lastCommittedTx )
+    {
+        started( lastCommittedTx );
+        Object key = key( entity );
+        if ( key == null )
+        {
+            return;
+        }
+        lastWrites.put( key, lastCommittedTx );
+        if ( writesInGeneration.incrementAndGet() >= generationSize && forgetting.compareAndSet( false, true ) )
+        {
+            try
+            {
+                writesInGeneration.set( 0 );
+                forgetUpTo( generationStart );
+                generationStart = lastCommittedTx;
+            }
+            finally
+            {
+                forgetting.set( false );
+            }
+        }
+    }
+
+    /**
+     * @return whether or not {@code entity} may have been written by a transaction
+     * committed after {@code txId}.
+     */
+    boolean writtenAfter( Object entity, long txId, long lastCommittedTx )
+    {
+        started( lastCommittedTx );
+        Long lastWrite = lastWrites.get( key( entity ) );
+        return ( lastWrite != null ? lastWrite : forgottenUpTo.get() ) > txId;
+    }
+
+    private void started( long lastCommittedTx )
+    {
+        forgottenUpTo.compareAndSet( -1, lastCommittedTx );
+    }
+
+    private void forgetUpTo( long txId )
+    {
+        // Raised before any entity is removed, so that whoever doesn't find one sees it as written no earlier
+        long current;
+        while ( ( current = forgottenUpTo.get() ) < txId && !forgottenUpTo.compareAndSet( current, txId ) );
+        for ( Map.Entry<Object, Long> entry : lastWrites.entrySet() )
+        {
+            Long lastWrite = entry.getValue();
+            if ( lastWrite <= txId )
+            {
+                // Unless written again meanwhile
+                lastWrites.remove( entry.getKey(), lastWrite );
+            }
+        }
+    }
+
+    private static Object key( Object entity )
+    {
+        // Slaves lock LockableNode/LockableRelationship while the master itself locks proxies
+        if ( entity instanceof Node ) return new LockableNode( ( (Node) entity ).getId() );
+        if ( entity instanceof Relationship ) return new LockableRelationship( ( (Relationship) entity ).getId() );
+        return null;
+    }
+}
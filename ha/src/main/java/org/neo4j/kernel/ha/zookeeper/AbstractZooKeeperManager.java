@@ -693,6 +693,13 @@ OUTER:      do
             throw noMasterException();
         }
 
+        @Override
+        public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId,
+                long[] nodes, long[] relationships )
+        {
+            throw noMasterException();
+        }
+
         @Override
         public Response<LockResult> acquireNodeWriteLock( RequestContext context, long... nodes )
         {
@@ -21,13 +21,18 @@
 package org.neo4j.kernel.ha.zookeeper;
 
 import static org.neo4j.kernel.ha.HaSettings.allow_init_cluster;
+import static org.neo4j.kernel.ha.HaSettings.channel_memory_budget;
 import static org.neo4j.kernel.ha.HaSettings.cluster_name;
+import static org.neo4j.kernel.ha.HaSettings.heartbeat_timeout;
 import static org.neo4j.kernel.ha.HaSettings.lock_read_timeout;
 import static org.neo4j.kernel.ha.HaSettings.max_concurrent_channels_per_slave;
+import static org.neo4j.kernel.ha.HaSettings.memory_budget;
 import static org.neo4j.kernel.ha.HaSettings.read_timeout;
 import static org.neo4j.kernel.ha.HaSettings.server;
 import static org.neo4j.kernel.ha.HaSettings.server_id;
 import static org.neo4j.kernel.ha.HaSettings.slave_coordinator_update_mode;
+import static org.neo4j.kernel.ha.HaSettings.slow_request_threshold;
+import static org.neo4j.kernel.ha.HaSettings.write_ahead_window;
 import static org.neo4j.kernel.ha.HaSettings.zk_session_timeout;
 
 import java.io.IOException;
@@ -58,6 +63,8 @@ import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.ZooDefs;
 import org.apache.zookeeper.ZooKeeper;
 import org.neo4j.backup.OnlineBackupSettings;
+import org.neo4j.com.MemoryBudget;
+import org.neo4j.com.Server;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.Pair;
 import org.neo4j.kernel.GraphDatabaseAPI;
@@ -183,7 +190,12 @@ public class ZooClient extends AbstractZooKeeperManager
         int timeOut = conf.isSet( lock_read_timeout ) ? conf.getInteger( lock_read_timeout ) : conf.getInteger( read_timeout );
         return new MasterServer( new MasterImpl( graphDb, timeOut ), Machine.splitIpAndPort( haServer ).other(),
                 graphDb.getMessageLog(), conf.getInteger( max_concurrent_channels_per_slave ), timeOut,
-                new BranchDetectingTxVerifier( graphDb ) );
+                new BranchDetectingTxVerifier( graphDb ), new Server.Settings()
+                        .maxWriteAheadBytes( conf.get( write_ahead_window ) )
+                        .slowRequestThresholdMillis( conf.getInteger( slow_request_threshold ) )
+                        .heartbeatTimeoutMillis( conf.getInteger( heartbeat_timeout ) )
+                        .memoryBudget( new MemoryBudget( conf.get( memory_budget ),
+                                conf.get( channel_memory_budget ) ) ) );
     }
 
     @Override
@@ -287,6 +287,101 @@ public class TestBlockLogBuffer
         assertThat( actual, new ArrayMatches<byte[]>( Arrays.copyOfRange( bytesValue, 510, 600 ) ) );
     }
     
+    @Test
+    public void largeBlocksOnlyOneNonFullBlock() throws Exception
+    {
+        ChannelBuffer wrappedBuffer = ChannelBuffers.dynamicBuffer();
+        BlockLogBuffer buffer = new BlockLogBuffer( wrappedBuffer, true );
+
+        byte byteValue = 5;
+        long longValue = 574853;
+        buffer.put( byteValue );
+        buffer.putLong( longValue );
+        buffer.done();
+
+        assertEquals( 4 + 9, wrappedBuffer.readableBytes() );
+        assertEquals( 9, wrappedBuffer.readInt() );
+        assertEquals( byteValue, wrappedBuffer.readByte() );
+        assertEquals( longValue, wrappedBuffer.readLong() );
+    }
+
+    @Test
+    public void largeBlocksCanBeEmpty() throws Exception
+    {
+        ChannelBuffer wrappedBuffer = ChannelBuffers.dynamicBuffer();
+        BlockLogBuffer buffer = new BlockLogBuffer( wrappedBuffer, true );
+        buffer.done();
+        wrappedBuffer.writeByte( 7 );
+
+        BlockLogReader reader = new BlockLogReader( wrappedBuffer, true );
+        assertEquals( -1, reader.read( ByteBuffer.allocate( 10 ) ) );
+        reader.close();
+        assertEquals( 7, wrappedBuffer.readByte() );
+    }
+
+    @Test
+    public void canReadReallyLargeByteArrayInLargeBlocks() throws Exception
+    {
+        ChannelBuffer wrappedBuffer = ChannelBuffers.dynamicBuffer();
+        BlockLogBuffer buffer = new BlockLogBuffer( wrappedBuffer, true );
+
+        byte[] bytesValue = new byte[100000];
+        for ( int i = 0; i < bytesValue.length; i++ )
+        {
+            bytesValue[i] = (byte) i;
+        }
+        long longValue = 123456;
+        buffer.putLong( longValue );
+        buffer.put( bytesValue );
+        buffer.putLong( longValue );
+        buffer.put( "This is chars".toCharArray() );
+        buffer.done();
+        wrappedBuffer.writeByte( 7 );
+
+        BlockLogReader reader = new BlockLogReader( wrappedBuffer, true );
+        ByteBuffer verificationBuffer = ByteBuffer.allocate( 200000 );
+        // Read in odd portions to cross block boundaries in the middle of a read
+        ByteBuffer portion = ByteBuffer.allocate( 3001 );
+        int read;
+        while ( (read = reader.read( portion )) != -1 )
+        {
+            portion.flip();
+            verificationBuffer.put( portion );
+            portion.clear();
+            if ( read == 0 ) break;
+        }
+        verificationBuffer.flip();
+        assertEquals( 8 + bytesValue.length + 8 + 26, verificationBuffer.remaining() );
+        assertEquals( longValue, verificationBuffer.getLong() );
+        byte[] actual = new byte[bytesValue.length];
+        verificationBuffer.get( actual );
+        assertThat( actual, new ArrayMatches<byte[]>( bytesValue ) );
+        assertEquals( longValue, verificationBuffer.getLong() );
+        reader.close();
+        assertEquals( 7, wrappedBuffer.readByte() );
+    }
+
+    @Test
+    public void closingLargeBlocksReaderSkipsTheRest() throws Exception
+    {
+        ChannelBuffer wrappedBuffer = ChannelBuffers.dynamicBuffer();
+        BlockLogBuffer buffer = new BlockLogBuffer( wrappedBuffer, true );
+        for ( int i = 0; i < 10000; i++ )
+        {
+            buffer.putLong( i );
+        }
+        buffer.done();
+        wrappedBuffer.writeByte( 7 );
+
+        BlockLogReader reader = new BlockLogReader( wrappedBuffer, true );
+        ByteBuffer verificationBuffer = ByteBuffer.allocate( 8 );
+        reader.read( verificationBuffer );
+        verificationBuffer.flip();
+        assertEquals( 0L, verificationBuffer.getLong() );
+        reader.close();
+        assertEquals( 7, wrappedBuffer.readByte() );
+    }
+
     private class ArrayMatches<T> extends BaseMatcher<T>
     {
         private final T expected;
@@ -0,0 +1,269 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.transaction.Transaction;
+
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.ResourceReleaser;
+import org.neo4j.com.Response;
+import org.neo4j.com.StoreWriter;
+import org.neo4j.com.TransactionStream;
+import org.neo4j.com.TxExtractor;
+import org.neo4j.helpers.Pair;
+import org.neo4j.kernel.IdType;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.neo4j.kernel.impl.transaction.LockManager;
+
+/**
+ * A {@link Master} which only records the transaction related calls made to it,
+ * for testing what slaves send to the master.
+ */
+class FakeMaster implements Master
+{
+    private final StoreId storeId;
+    private final List<String> calls = new ArrayList<String>();
+    private volatile LockStatus lockStatus = LockStatus.OK_LOCKED;
+    private volatile boolean failToFinish;
+    private volatile boolean failToLock;
+    private volatile LockManager nodeLocks;
+    private long lastTxId;
+
+    FakeMaster( StoreId storeId )
+    {
+        this.storeId = storeId;
+    }
+
+    /**
+     * @return the calls made so far, e.g. {@code acquireNodeWriteLock} or {@code finishTransaction(true)}.
+     */
+    synchronized List<String> calls()
+    {
+        return new ArrayList<String>( calls );
+    }
+
+    synchronized void clearCalls()
+    {
+        calls.clear();
+    }
+
+    void answerLocksWith( LockStatus lockStatus )
+    {
+        this.lockStatus = lockStatus;
+    }
+
+    void failToFinish( boolean failToFinish )
+    {
+        this.failToFinish = failToFinish;
+    }
+
+    void failToLock( boolean failToLock )
+    {
+        this.failToLock = failToLock;
+    }
+
+    /**
+     * Makes node write lock requests take write locks on the nodes in the given lock manager,
+     * for a transaction of their own, which is never finished.
+     */
+    void lockNodesIn( LockManager nodeLocks )
+    {
+        this.nodeLocks = nodeLocks;
+    }
+
+    private synchronized void called( String call )
+    {
+        calls.add( call );
+    }
+
+    private <T> Response<T> response( T response )
+    {
+        return new Response<T>( response, storeId, TransactionStream.EMPTY, ResourceReleaser.NO_OP );
+    }
+
+    private Response<LockResult> lock( String call )
+    {
+        called( call );
+        if ( failToLock )
+        {
+            throw new IllegalStateException( "Failing to lock" );
+        }
+        return response( new LockResult( lockStatus ) );
+    }
+
+    @Override
+    public Response<IdAllocation> allocateIds( IdType idType )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response<Integer> createRelationshipType( RequestContext context, String name )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response<Void> initializeTx( RequestContext context )
+    {
+        called( "initializeTx" );
+        return response( null );
+    }
+
+    @Override
+    public Response<LockResult> acquireNodeWriteLock( RequestContext context, long... nodes )
+    {
+        LockManager locks = nodeLocks;
+        if ( locks != null )
+        {
+            Transaction tx = new FakeTransaction( context.toString() );
+            for ( long node : nodes )
+            {
+                locks.getWriteLock( "node " + node, tx );
+            }
+        }
+        return lock( "acquireNodeWriteLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireNodeReadLock( RequestContext context, long... nodes )
+    {
+        return lock( "acquireNodeReadLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireGraphWriteLock( RequestContext context )
+    {
+        return lock( "acquireGraphWriteLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireGraphReadLock( RequestContext context )
+    {
+        return lock( "acquireGraphReadLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireRelationshipWriteLock( RequestContext context, long... relationships )
+    {
+        return lock( "acquireRelationshipWriteLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireRelationshipReadLock( RequestContext context, long... relationships )
+    {
+        return lock( "acquireRelationshipReadLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId, long[] nodes,
+            long[] relationships )
+    {
+        return lock( "acquireReadLocksUnchangedSince" );
+    }
+
+    @Override
+    public Response<Long> commitSingleResourceTransaction( RequestContext context, String resource,
+            TxExtractor txGetter )
+    {
+        ReadableByteChannel transaction = txGetter.extract();
+        ByteBuffer buffer = ByteBuffer.allocate( 1024 );
+        try
+        {
+            while ( transaction.read( buffer ) != -1 )
+            {
+                buffer.clear();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new RuntimeException( e );
+        }
+        synchronized ( this )
+        {
+            called( "commitSingleResourceTransaction" );
+            return response( ++lastTxId );
+        }
+    }
+
+    @Override
+    public Response<Void> finishTransaction( RequestContext context, boolean success )
+    {
+        called( "finishTransaction(" + success + ")" );
+        if ( failToFinish )
+        {
+            throw new IllegalStateException( "Failing to finish " + context );
+        }
+        return response( null );
+    }
+
+    @Override
+    public Response<Void> pullUpdates( RequestContext context )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response<Pair<Integer, Long>> getMasterIdForCommittedTx( long txId, StoreId myStoreId )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response<Void> copyStore( RequestContext context, StoreWriter writer )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response<Void> copyTransactions( RequestContext context, String dsName, long startTxId, long endTxId )
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void shutdown()
+    {
+    }
+
+    @Override
+    public Response<LockResult> acquireIndexWriteLock( RequestContext context, String index, String key )
+    {
+        return lock( "acquireIndexWriteLock" );
+    }
+
+    @Override
+    public Response<LockResult> acquireIndexReadLock( RequestContext context, String index, String key )
+    {
+        return lock( "acquireIndexReadLock" );
+    }
+
+    @Override
+    public Response<Void> pushTransaction( RequestContext context, String resourceName, long tx )
+    {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.xa.XAResource;
+
+class FakeTransaction implements Transaction
+{
+    private final String name;
+
+    FakeTransaction( String name )
+    {
+        this.name = name;
+    }
+
+    @Override
+    public void commit()
+    {
+    }
+
+    @Override
+    public boolean delistResource( XAResource resource, int flag )
+    {
+        return false;
+    }
+
+    @Override
+    public boolean enlistResource( XAResource resource )
+    {
+        return false;
+    }
+
+    @Override
+    public int getStatus()
+    {
+        return 0;
+    }
+
+    @Override
+    public void registerSynchronization( Synchronization synchronization )
+    {
+    }
+
+    @Override
+    public void rollback()
+    {
+    }
+
+    @Override
+    public void setRollbackOnly()
+    {
+    }
+
+    @Override
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import javax.transaction.Transaction;
+
+import org.junit.Test;
+
+public class TestElidedReadLocks
+{
+    private final ElidedReadLocks locks = new ElidedReadLocks();
+    private final Transaction tx = new FakeTransaction( "tx" );
+
+    @Test
+    public void readsAreKeptPerTransaction() throws Exception
+    {
+        assertNull( locks.of( tx ) );
+        ElidedReadLocks.Reads reads = locks.start( tx, 10 );
+        reads.add( new LockableNode( 3 ) );
+        reads.add( new LockableRelationship( 3 ) );
+
+        assertSame( reads, locks.of( tx ) );
+        assertNull( locks.of( new FakeTransaction( "other" ) ) );
+        assertEquals( 10, reads.since );
+        assertTrue( reads.contains( new LockableNode( 3 ) ) );
+        assertFalse( reads.contains( new LockableRelationship( 4 ) ) );
+    }
+
+    @Test
+    public void readsAreSortedSoThatMasterLocksThemInOrder() throws Exception
+    {
+        ElidedReadLocks.Reads reads = locks.start( tx, 10 );
+        reads.add( new LockableNode( 5 ) );
+        reads.add( new LockableNode( 1 ) );
+        reads.add( new LockableNode( 5 ) );
+        reads.add( new LockableRelationship( 7 ) );
+
+        assertArrayEquals( new long[] { 1, 5 }, reads.nodes() );
+        assertArrayEquals( new long[] { 7 }, reads.relationships() );
+    }
+
+    @Test
+    public void takenReadsAreForgotten() throws Exception
+    {
+        ElidedReadLocks.Reads reads = locks.start( tx, 10 );
+        assertSame( reads, locks.take( tx ) );
+        assertNull( locks.of( tx ) );
+        assertNull( locks.take( tx ) );
+    }
+}
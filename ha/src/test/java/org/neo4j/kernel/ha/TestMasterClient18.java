@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.com.Client;
+import org.neo4j.com.ComException;
+import org.neo4j.com.ConnectionLostHandler;
+import org.neo4j.com.Protocol;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.TxChecksumVerifier;
+import org.neo4j.com.TxExtractor;
+import org.neo4j.kernel.impl.nioneo.store.StoreId;
+import org.neo4j.kernel.impl.transaction.xaframework.LogBuffer;
+import org.neo4j.kernel.impl.util.StringLogger;
+
+public class TestMasterClient18
+{
+    private final StoreId storeId = new StoreId();
+    private final FakeMaster master = new FakeMaster( storeId );
+    private MasterServer server;
+    private MasterClient18 client;
+
+    @Before
+    public void startServerAndClient()
+    {
+        server = new MasterServer( master, Protocol.PORT, StringLogger.DEV_NULL,
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT, 20, TxChecksumVerifier.ALWAYS_MATCH );
+        client = new MasterClient18( "localhost", Protocol.PORT, StringLogger.DEV_NULL, storeId,
+                ConnectionLostHandler.NO_ACTION, 20, 20, Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+    }
+
+    @After
+    public void shutDownServerAndClient()
+    {
+        client.shutdown();
+        server.shutdown();
+    }
+
+    @Test
+    public void transactionIsBegunByItsFirstLockRequest() throws Exception
+    {
+        RequestContext context = context( 1 );
+        client.initializeTx( context ).close();
+        assertTrue( master.calls().isEmpty() );
+
+        client.acquireNodeWriteLock( context, 1 ).close();
+        client.acquireNodeWriteLock( context, 2 ).close();
+        assertEquals( asList( "initializeTx", "acquireNodeWriteLock", "acquireNodeWriteLock" ), master.calls() );
+    }
+
+    @Test
+    public void transactionIsFinishedByItsCommit() throws Exception
+    {
+        RequestContext context = context( 2 );
+        client.initializeTx( context ).close();
+        client.acquireNodeWriteLock( context, 1 ).close();
+        client.commitSingleResourceTransaction( context, "resource", transaction() ).close();
+        assertEquals( asList( "initializeTx", "acquireNodeWriteLock", "commitSingleResourceTransaction",
+                "finishTransaction(true)" ), master.calls() );
+
+        master.clearCalls();
+        client.finishTransaction( context, true ).close();
+        assertTrue( master.calls().isEmpty() );
+    }
+
+    @Test
+    public void transactionWhichNeverReachedMasterIsFinishedLocally() throws Exception
+    {
+        RequestContext context = context( 3 );
+        client.initializeTx( context ).close();
+        client.finishTransaction( context, false ).close();
+        assertTrue( master.calls().isEmpty() );
+    }
+
+    @Test
+    public void transactionIsFinishedByItselfIfItsCommitCouldNotFinishIt() throws Exception
+    {
+        RequestContext context = context( 4 );
+        master.failToFinish( true );
+        client.initializeTx( context ).close();
+        client.acquireNodeWriteLock( context, 1 ).close();
+        client.commitSingleResourceTransaction( context, "resource", transaction() ).close();
+
+        master.failToFinish( false );
+        master.clearCalls();
+        client.finishTransaction( context, true ).close();
+        assertEquals( asList( "finishTransaction(true)" ), master.calls() );
+    }
+
+    @Test
+    public void lockRequestsWaitLongEnoughForMasterToRollBackIdleLockHolders() throws Exception
+    {
+        MasterClient18 heartbeatingClient = new MasterClient18( "localhost", Protocol.PORT, StringLogger.DEV_NULL,
+                storeId, ConnectionLostHandler.NO_ACTION, 20, 0,
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT,
+                new Client.Settings().heartbeatTimeoutMillis( 5000 ) );
+        try
+        {
+            int lockReadTimeout = heartbeatingClient.getReadTimeout( HaRequestType18.ACQUIRE_NODE_WRITE_LOCK, 20 );
+            assertTrue( lockReadTimeout > 20 + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY );
+            assertTrue( lockReadTimeout < Integer.MAX_VALUE );
+            assertEquals( 20, heartbeatingClient.getReadTimeout( HaRequestType18.COMMIT, 20 ) );
+        }
+        finally
+        {
+            heartbeatingClient.shutdown();
+        }
+    }
+
+    @Test
+    public void lockRequestStopsWaitingOnMasterOnceSlaveHasStoppedWaiting() throws Exception
+    {
+        StripedLockManager locks = new StripedLockManager( null, 4 );
+        Transaction holder = new FakeTransaction( "holder" );
+        locks.getWriteLock( "node 1", holder );
+        master.lockNodesIn( locks );
+        MasterClient18 impatientClient = new MasterClient18( "localhost", Protocol.PORT, StringLogger.DEV_NULL,
+                storeId, ConnectionLostHandler.NO_ACTION, 20, 1,
+                Client.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CHANNELS_PER_CLIENT );
+        try
+        {
+            RequestContext context = context( 5 );
+            impatientClient.initializeTx( context ).close();
+            impatientClient.acquireNodeWriteLock( context, 1 ).close();
+            fail( "Lock request should have timed out" );
+        }
+        catch ( ComException e )
+        {   // Good
+        }
+        finally
+        {
+            impatientClient.shutdown();
+        }
+
+        for ( long end = System.currentTimeMillis() + 5000; !locks.getAwaitedLocks( 0 ).isEmpty() &&
+                System.currentTimeMillis() < end; )
+        {
+            Thread.sleep( 10 );
+        }
+        locks.releaseWriteLock( "node 1", holder );
+        assertTrue( locks.getAllLocks().isEmpty() );
+    }
+
+    @Test
+    public void transactionWhoseAsynchronousBeginFailedIsBegunByItsNextRequest() throws Exception
+    {
+        RequestContext context = context( 6 );
+        client.initializeTx( context ).close();
+        failAsynchronousLockRequest( context );
+
+        master.clearCalls();
+        client.acquireNodeWriteLock( context, 1 ).close();
+        assertEquals( asList( "initializeTx", "acquireNodeWriteLock" ), master.calls() );
+    }
+
+    @Test
+    public void transactionWhoseAsynchronousBeginFailedIsNotFinishedOnMaster() throws Exception
+    {
+        RequestContext context = context( 7 );
+        client.initializeTx( context ).close();
+        failAsynchronousLockRequest( context );
+
+        master.clearCalls();
+        client.finishTransaction( context, false ).close();
+        assertTrue( master.calls().isEmpty() );
+    }
+
+    private void failAsynchronousLockRequest( RequestContext context )
+    {
+        master.failToLock( true );
+        try
+        {
+            client.acquireNodeWriteLockAsync( context, 1 ).get();
+            fail( "Lock request should have failed" );
+        }
+        catch ( IllegalStateException e )
+        {   // Good
+        }
+        finally
+        {
+            master.failToLock( false );
+        }
+    }
+
+    private RequestContext context( int eventIdentifier )
+    {
+        return new RequestContext( 0, 1, eventIdentifier, new RequestContext.Tx[0], 0, 0 );
+    }
+
+    private TxExtractor transaction()
+    {
+        return new TxExtractor()
+        {
+            @Override
+            public void extract( LogBuffer buffer )
+            {
+                try
+                {
+                    buffer.put( new byte[] { 1, 2, 3 } );
+                }
+                catch ( IOException e )
+                {
+                    throw new RuntimeException( e );
+                }
+            }
+
+            @Override
+            public ReadableByteChannel extract()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
@@ -0,0 +1,588 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.Response;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.transaction.LockManager;
+import org.neo4j.test.ImpermanentGraphDatabase;
+
+public class TestMasterImpl
+{
+    private static final int TIMEOUT_SECONDS = 20;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private GraphDatabaseAPI db;
+    private volatile long beginDelayMillis;
+    private final AtomicInteger begun = new AtomicInteger();
+    private MasterImpl master;
+
+    @After
+    public void shutDown()
+    {
+        executor.shutdownNow();
+        if ( master != null ) master.shutdown();
+        if ( db != null ) db.shutdown();
+    }
+
+    @Test
+    public void readLocksOfEntitiesWrittenSinceTheyWereReadAreRefused() throws Exception
+    {
+        startMaster( true );
+        long node = createNode();
+        long readAt = lastCommittedTx();
+        setProperty( node );
+
+        assertEquals( LockStatus.DEAD_LOCKED, acquireReadLocksUnchangedSince( context( 1 ), readAt, node ) );
+    }
+
+    @Test
+    public void readLocksOfEntitiesWrittenBeforeTheyWereReadAreGranted() throws Exception
+    {
+        startMaster( true );
+        long node = createNode();
+        setProperty( node );
+        long readAt = lastCommittedTx();
+        setProperty( createNode() );
+
+        assertEquals( LockStatus.OK_LOCKED, acquireReadLocksUnchangedSince( context( 1 ), readAt, node ) );
+    }
+
+    @Test
+    public void readLocksAreRefusedByMasterWithoutWriteHistory() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+
+        assertEquals( LockStatus.DEAD_LOCKED, acquireReadLocksUnchangedSince( context( 1 ), lastCommittedTx(), node ) );
+    }
+
+    @Test
+    public void queuedLockRequestIsGrantedOnceHolderFinishes() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        RequestContext holder = lockedBy( context( 1 ), node );
+
+        RequestContext waiter = context( 2 );
+        master.initializeTx( waiter ).close();
+        Future<LockStatus> waiting = acquireNodeWriteLockInBackground( waiter, node );
+        assertWaiting( waiting );
+
+        master.finishTransaction( holder, true ).close();
+        assertEquals( LockStatus.OK_LOCKED, waiting.get( 10, TimeUnit.SECONDS ) );
+        master.finishTransaction( waiter, true ).close();
+    }
+
+    @Test
+    public void requestOnTransactionInUseByAnotherRequestIsRefused() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        RequestContext holder = lockedBy( context( 1 ), node );
+
+        RequestContext waiter = context( 2 );
+        master.initializeTx( waiter ).close();
+        Future<LockStatus> waiting = acquireNodeWriteLockInBackground( waiter, node );
+        assertWaiting( waiting );
+        try
+        {
+            master.acquireNodeWriteLock( waiter, createNode() );
+            fail( "Shouldn't be able to use a transaction which another request is using" );
+        }
+        catch ( UnableToResumeTransactionException e )
+        {   // Good
+        }
+
+        master.finishTransaction( holder, true ).close();
+        assertEquals( LockStatus.OK_LOCKED, waiting.get( 10, TimeUnit.SECONDS ) );
+        master.finishTransaction( waiter, true ).close();
+        assertFalse( isOngoing( waiter ) );
+    }
+
+    @Test
+    public void transactionFinishedWhileLockRequestIsInFlightIsRolledBackWhenRequestIsDone() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        RequestContext holder = lockedBy( context( 1 ), node );
+
+        RequestContext waiter = context( 2 );
+        master.initializeTx( waiter ).close();
+        Future<LockStatus> waiting = acquireNodeWriteLockInBackground( waiter, node );
+        assertWaiting( waiting );
+        try
+        {
+            master.finishTransaction( waiter, true );
+            fail( "Shouldn't be able to finish a transaction which another request is using" );
+        }
+        catch ( UnableToResumeTransactionException e )
+        {   // Good
+        }
+        assertTrue( isOngoing( waiter ) );
+
+        master.finishTransaction( holder, true ).close();
+        assertEquals( LockStatus.OK_LOCKED, waiting.get( 10, TimeUnit.SECONDS ) );
+        assertFalse( isOngoing( waiter ) );
+        // The lock it was granted went with it
+        assertEquals( LockStatus.OK_LOCKED, status( master.acquireNodeWriteLock( lockedBy( context( 3 ), node ),
+                node ) ) );
+    }
+
+    @Test
+    public void transactionWaitingForLockIsNotTimedOut() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        RequestContext waiter = context( 2 );
+        master.initializeTx( waiter ).close();
+        Thread.sleep( 50 );
+        long holderTouched = System.currentTimeMillis();
+        RequestContext holder = lockedBy( context( 1 ), node );
+        Future<LockStatus> waiting = acquireNodeWriteLockInBackground( waiter, node );
+        assertWaiting( waiting );
+
+        // The waiter has been idle for longer than the timeout, by the time it's checked, but it's in use
+        long now = holderTouched + TIMEOUT_SECONDS*1000 - 1;
+        assertEquals( Collections.<RequestContext>emptyList(), master.rollBackOldTransactions( now ) );
+        assertTrue( isOngoing( waiter ) );
+        assertWaiting( waiting );
+
+        master.finishTransaction( holder, true ).close();
+        assertEquals( LockStatus.OK_LOCKED, waiting.get( 10, TimeUnit.SECONDS ) );
+        master.finishTransaction( waiter, true ).close();
+    }
+
+    @Test
+    public void idleTransactionIsRolledBackOnceTimedOut() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        long beforeTouched = System.currentTimeMillis();
+        RequestContext idle = lockedBy( context( 1 ), node );
+        long afterTouched = System.currentTimeMillis();
+
+        assertEquals( Collections.<RequestContext>emptyList(),
+                master.rollBackOldTransactions( beforeTouched + TIMEOUT_SECONDS*1000 - 1 ) );
+        assertTrue( isOngoing( idle ) );
+        // Checked a tick later, at the latest, since it was put back when found not to have timed out yet
+        assertEquals( asList( idle ), master.rollBackOldTransactions(
+                afterTouched + (TIMEOUT_SECONDS + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY)*1000 ) );
+        assertFalse( isOngoing( idle ) );
+        // The lock it held went with it
+        lockedBy( context( 2 ), node );
+    }
+
+    @Test
+    public void touchingTransactionPostponesItsTimeout() throws Exception
+    {
+        startMaster( false );
+        RequestContext touched = context( 1 );
+        master.initializeTx( touched ).close();
+        RequestContext idle = context( 2 );
+        master.initializeTx( idle ).close();
+        Thread.sleep( 50 );
+        long beforeTouched = System.currentTimeMillis();
+        lockedBy( touched, createNode() );
+
+        long now = beforeTouched + TIMEOUT_SECONDS*1000 - 1;
+        assertEquals( asList( idle ), master.rollBackOldTransactions( now ) );
+        assertTrue( isOngoing( touched ) );
+        assertEquals( asList( touched ),
+                master.rollBackOldTransactions( now + (TIMEOUT_SECONDS + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY)*1000 ) );
+        assertFalse( isOngoing( touched ) );
+    }
+
+    @Test
+    public void finishedTransactionIsNotRolledBack() throws Exception
+    {
+        startMaster( false );
+        long node = createNode();
+        RequestContext finished = lockedBy( context( 1 ), node );
+        master.finishTransaction( finished, true ).close();
+
+        assertEquals( Collections.<RequestContext>emptyList(),
+                master.rollBackOldTransactions( System.currentTimeMillis() + 2*TIMEOUT_SECONDS*1000 ) );
+    }
+
+    @Test
+    public void transactionWhichFailsToRollBackIsTriedAgain() throws Exception
+    {
+        startMaster( false );
+        final RequestContext context = context( 1 );
+        master.initializeTx( context ).close();
+        long touched = System.currentTimeMillis();
+        // Resumed on another thread, without the master knowing, so that it can't be resumed to roll back
+        Callable<javax.transaction.Transaction> resumeElsewhere = new Callable<javax.transaction.Transaction>()
+        {
+            @Override
+            public javax.transaction.Transaction call() throws Exception
+            {
+                master.suspendOtherAndResumeThis( context, false );
+                javax.transaction.Transaction tx = db.getTxManager().getTransaction();
+                master.suspendThisAndResumeOther( null, context );
+                db.getTxManager().resume( tx );
+                return tx;
+            }
+        };
+        ExecutorService elsewhere = Executors.newSingleThreadExecutor();
+        try
+        {
+            final javax.transaction.Transaction resumedElsewhere = elsewhere.submit( resumeElsewhere ).get();
+            long timedOut = touched + (TIMEOUT_SECONDS + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY)*1000;
+
+            assertEquals( Collections.<RequestContext>emptyList(), master.rollBackOldTransactions( timedOut ) );
+            assertTrue( isOngoing( context ) );
+
+            elsewhere.submit( new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    assertEquals( resumedElsewhere, db.getTxManager().suspend() );
+                    return null;
+                }
+            } ).get();
+            assertEquals( asList( context ), master.rollBackOldTransactions(
+                    timedOut + (TIMEOUT_SECONDS + MasterImpl.UNFINISHED_TRANSACTION_CLEANUP_DELAY)*1000 ) );
+            assertFalse( isOngoing( context ) );
+        }
+        finally
+        {
+            elsewhere.shutdown();
+        }
+    }
+
+    @Test
+    public void transactionWhichFailsToCommitIsGone() throws Exception
+    {
+        startMaster( false );
+        db.registerTransactionEventHandler( new TransactionEventHandler<Void>()
+        {
+            @Override
+            public Void beforeCommit( TransactionData data ) throws Exception
+            {
+                throw new Exception( "Failing to commit" );
+            }
+
+            @Override
+            public void afterCommit( TransactionData data, Void state )
+            {
+            }
+
+            @Override
+            public void afterRollback( TransactionData data, Void state )
+            {
+            }
+        } );
+        RequestContext context = context( 1 );
+        master.initializeTx( context ).close();
+        master.suspendOtherAndResumeThis( context, false );
+        db.createNode();
+        master.suspendThisAndResumeOther( null, context );
+        try
+        {
+            master.finishTransaction( context, true );
+            fail( "Commit should have failed" );
+        }
+        catch ( RuntimeException e )
+        {   // Good
+        }
+
+        assertFalse( isOngoing( context ) );
+        assertNull( db.getTxManager().getTransaction() );
+    }
+
+    @Test
+    public void concurrentRequestsBeginOnlyOneTransactionForTheirContext() throws Exception
+    {
+        startMaster( false );
+        // Leaves time for the others to get in while one of them begins
+        beginDelayMillis = 5;
+        int contexts = 5;
+        for ( int i = 0; i < contexts; i++ )
+        {
+            final RequestContext context = context( i );
+            final CyclicBarrier barrier = new CyclicBarrier( 4 );
+            List<Future<Void>> requests = new ArrayList<Future<Void>>();
+            for ( int j = 0; j < 4; j++ )
+            {
+                requests.add( executor.submit( new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws Exception
+                    {
+                        barrier.await();
+                        try
+                        {
+                            master.initializeTx( context ).close();
+                        }
+                        catch ( UnableToResumeTransactionException e )
+                        {   // Lost the race to the one beginning it
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+            for ( Future<Void> request : requests )
+            {
+                request.get( 10, TimeUnit.SECONDS );
+            }
+            master.finishTransaction( context, false ).close();
+        }
+
+        assertEquals( contexts, begun.get() );
+    }
+
+    private void startMaster( final boolean writeHistory )
+    {
+        db = new ImpermanentGraphDatabase()
+        {
+            @Override
+            protected LockManager createLockManager()
+            {
+                LockManager locks = super.createLockManager();
+                return writeHistory ? new MasterLockManager( locks, this ) : locks;
+            }
+
+            @Override
+            public TransactionManager getTxManager()
+            {
+                return new DelayedBegin( super.getTxManager() );
+            }
+        };
+        master = new MasterImpl( db, TIMEOUT_SECONDS );
+    }
+
+    private LockStatus acquireReadLocksUnchangedSince( RequestContext context, long txId, long node )
+    {
+        master.initializeTx( context ).close();
+        try
+        {
+            return status( master.acquireReadLocksUnchangedSince( context, txId, new long[] { node }, new long[0] ) );
+        }
+        finally
+        {
+            master.finishTransaction( context, false ).close();
+        }
+    }
+
+    private LockStatus status( Response<LockResult> response )
+    {
+        try
+        {
+            return response.response().getStatus();
+        }
+        finally
+        {
+            response.close();
+        }
+    }
+
+    private RequestContext lockedBy( RequestContext context, long node )
+    {
+        master.initializeTx( context ).close();
+        assertEquals( LockStatus.OK_LOCKED, status( master.acquireNodeWriteLock( context, node ) ) );
+        return context;
+    }
+
+    private Future<LockStatus> acquireNodeWriteLockInBackground( final RequestContext context, final long node )
+    {
+        return executor.submit( new Callable<LockStatus>()
+        {
+            @Override
+            public LockStatus call() throws Exception
+            {
+                return status( master.acquireNodeWriteLock( context, node ) );
+            }
+        } );
+    }
+
+    private void assertWaiting( Future<LockStatus> lockRequest ) throws Exception
+    {
+        try
+        {
+            lockRequest.get( 300, TimeUnit.MILLISECONDS );
+            fail( "Lock shouldn't have been granted while held by another transaction" );
+        }
+        catch ( TimeoutException e )
+        {   // Good
+        }
+    }
+
+    private boolean isOngoing( RequestContext context )
+    {
+        for ( Collection<RequestContext> contexts : master.getOngoingTransactions().values() )
+        {
+            if ( contexts.contains( context ) ) return true;
+        }
+        return false;
+    }
+
+    private long createNode()
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            Node node = db.createNode();
+            tx.success();
+            return node.getId();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private void setProperty( long node )
+    {
+        Transaction tx = db.beginTx();
+        try
+        {
+            db.getNodeById( node ).setProperty( "key", "value" );
+            tx.success();
+        }
+        finally
+        {
+            tx.finish();
+        }
+    }
+
+    private long lastCommittedTx()
+    {
+        return db.getXaDataSourceManager().getNeoStoreDataSource().getLastCommittedTxId();
+    }
+
+    private RequestContext context( int eventIdentifier )
+    {
+        return new RequestContext( 0, 1, eventIdentifier, new RequestContext.Tx[0], 0, 0 );
+    }
+
+    // Counts the transactions begun through it, taking its time to begin them
+    private class DelayedBegin implements TransactionManager
+    {
+        private final TransactionManager txManager;
+
+        DelayedBegin( TransactionManager txManager )
+        {
+            this.txManager = txManager;
+        }
+
+        @Override
+        public void begin() throws NotSupportedException, SystemException
+        {
+            begun.incrementAndGet();
+            try
+            {
+                Thread.sleep( beginDelayMillis );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+            txManager.begin();
+        }
+
+        @Override
+        public void commit() throws RollbackException, HeuristicMixedException, HeuristicRollbackException,
+                SecurityException, IllegalStateException, SystemException
+        {
+            txManager.commit();
+        }
+
+        @Override
+        public int getStatus() throws SystemException
+        {
+            return txManager.getStatus();
+        }
+
+        @Override
+        public javax.transaction.Transaction getTransaction() throws SystemException
+        {
+            return txManager.getTransaction();
+        }
+
+        @Override
+        public void resume( javax.transaction.Transaction tx ) throws InvalidTransactionException,
+                IllegalStateException, SystemException
+        {
+            txManager.resume( tx );
+        }
+
+        @Override
+        public void rollback() throws IllegalStateException, SecurityException, SystemException
+        {
+            txManager.rollback();
+        }
+
+        @Override
+        public void setRollbackOnly() throws IllegalStateException, SystemException
+        {
+            txManager.setRollbackOnly();
+        }
+
+        @Override
+        public void setTransactionTimeout( int seconds ) throws SystemException
+        {
+            txManager.setTransactionTimeout( seconds );
+        }
+
+        @Override
+        public javax.transaction.Transaction suspend() throws SystemException
+        {
+            return txManager.suspend();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import javax.transaction.Transaction;
+
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.com.Response;
+import org.neo4j.kernel.impl.core.NodeManager.IndexLock;
+import org.neo4j.kernel.impl.transaction.IllegalResourceException;
+import org.neo4j.kernel.impl.transaction.RagManager;
+import org.neo4j.kernel.impl.transaction.TxManager;
+
+public class TestSlaveLockManager
+{
+    private final FakeMaster master = new FakeMaster( AbstractBroker.storeId );
+    private final Transaction tx = new FakeTransaction( "tx" );
+    private final Object resource = new IndexLock( "index", "key" );
+    private final TxManager tm = new TxManager( null, null, null, null, null, null )
+    {
+        @Override
+        public Transaction getTransaction()
+        {
+            return tx;
+        }
+
+        @Override
+        public int getEventIdentifier()
+        {
+            return 1;
+        }
+    };
+    private final SlaveDatabaseOperations databaseOperations = new SlaveDatabaseOperations()
+    {
+        @Override
+        public RequestContext getSlaveContext( int eventIdentifier )
+        {
+            return new RequestContext( 0, 1, eventIdentifier, new RequestContext.Tx[0], 0, 0 );
+        }
+
+        @Override
+        public <T> T receive( Response<T> response )
+        {
+            try
+            {
+                return response.response();
+            }
+            finally
+            {
+                response.close();
+            }
+        }
+
+        @Override
+        public void exceptionHappened( RuntimeException e )
+        {
+        }
+
+        @Override
+        public int getMasterForTx( long tx )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void handle( Exception e )
+        {
+        }
+    };
+    private final Broker broker = new FakeSlaveBroker( master, 0, null );
+    private final MasterLocks masterLocks = new MasterLocks();
+    private final ElidedReadLocks elidedReadLocks = new ElidedReadLocks();
+    private final SlaveTxHook txHook = new SlaveTxHook( broker, databaseOperations, null, masterLocks,
+            elidedReadLocks )
+    {
+        @Override
+        public boolean hasAnyLocks( Transaction tx )
+        {
+            // So that the lock manager doesn't go and initialize the transaction itself
+            return true;
+        }
+    };
+    private final SlaveLockManager lockManager = new SlaveLockManager( new RagManager( tm ), tm, txHook, broker,
+            databaseOperations, null, masterLocks );
+
+    @Test
+    public void repeatedLocksAreOnlyAcquiredOnMasterOnce() throws Exception
+    {
+        lockManager.getWriteLock( resource, tx );
+        lockManager.releaseWriteLock( resource, tx );
+        lockManager.getWriteLock( resource, tx );
+        lockManager.getReadLock( resource, tx );
+        assertEquals( asList( "acquireIndexWriteLock" ), master.calls() );
+    }
+
+    @Test
+    public void locksAreAcquiredOnMasterAgainAfterCommit() throws Exception
+    {
+        lockManager.getWriteLock( resource, tx );
+        lockManager.releaseWriteLock( resource, tx );
+        txHook.finishTransaction( 1, true );
+
+        lockManager.getWriteLock( resource, tx );
+        assertEquals( asList( "acquireIndexWriteLock", "finishTransaction(true)", "acquireIndexWriteLock" ),
+                master.calls() );
+    }
+
+    @Test
+    public void elidedReadsAreForgottenWhenTransactionFinishes() throws Exception
+    {
+        elidedReadLocks.start( tx, 1 );
+        txHook.finishTransaction( 1, false );
+        assertNull( elidedReadLocks.of( tx ) );
+    }
+
+    @Test
+    public void locksAreAcquiredOnMasterAgainAfterRollback() throws Exception
+    {
+        lockManager.getWriteLock( resource, tx );
+        lockManager.releaseWriteLock( resource, tx );
+        txHook.finishTransaction( 1, false );
+
+        lockManager.getWriteLock( resource, tx );
+        assertEquals( asList( "acquireIndexWriteLock", "finishTransaction(false)", "acquireIndexWriteLock" ),
+                master.calls() );
+    }
+
+    @Test
+    public void locksAreAcquiredOnMasterAgainAfterFailingToFinish() throws Exception
+    {
+        lockManager.getWriteLock( resource, tx );
+        lockManager.releaseWriteLock( resource, tx );
+        master.failToFinish( true );
+        try
+        {
+            txHook.finishTransaction( 1, true );
+            fail( "Master should have failed to finish the transaction" );
+        }
+        catch ( IllegalStateException e )
+        {   // Good
+        }
+
+        lockManager.getWriteLock( resource, tx );
+        assertEquals( asList( "acquireIndexWriteLock", "finishTransaction(true)", "acquireIndexWriteLock" ),
+                master.calls() );
+    }
+
+    @Test
+    public void lockRefusedByMasterFailsWithoutAskingAgain() throws Exception
+    {
+        master.answerLocksWith( LockStatus.NOT_LOCKED );
+        try
+        {
+            lockManager.getWriteLock( resource, tx );
+            fail( "Master shouldn't have granted the lock" );
+        }
+        catch ( IllegalResourceException e )
+        {   // Good
+        }
+        assertEquals( asList( "acquireIndexWriteLock" ), master.calls() );
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Test;
+import org.neo4j.kernel.DeadlockDetectedException;
+import org.neo4j.kernel.impl.transaction.LockNotFoundException;
+
+public class TestStripedLockManager
+{
+    private final StripedLockManager locks = new StripedLockManager( null, 4 );
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void locksAreReentrantAndUpgradable() throws Exception
+    {
+        Transaction tx = new FakeTransaction( "tx" );
+        locks.getReadLock( "resource", tx );
+        locks.getReadLock( "resource", tx );
+        locks.getWriteLock( "resource", tx );
+        locks.releaseWriteLock( "resource", tx );
+        locks.releaseReadLock( "resource", tx );
+        locks.releaseReadLock( "resource", tx );
+        assertTrue( locks.getAllLocks().isEmpty() );
+        try
+        {
+            locks.releaseReadLock( "resource", tx );
+            fail( "Shouldn't be able to release a lock not held" );
+        }
+        catch ( LockNotFoundException e )
+        {   // Good
+        }
+    }
+
+    @Test
+    public void readLocksAreShared() throws Exception
+    {
+        locks.getReadLock( "resource", new FakeTransaction( "first" ) );
+        await( readLock( "resource", new FakeTransaction( "second" ) ) );
+    }
+
+    @Test
+    public void writeLockWaitsForReadersToRelease() throws Exception
+    {
+        Transaction reader = new FakeTransaction( "reader" );
+        locks.getReadLock( "resource", reader );
+        Future<Void> writer = writeLock( "resource", new FakeTransaction( "writer" ) );
+        assertWaiting( writer );
+        locks.releaseReadLock( "resource", reader );
+        await( writer );
+    }
+
+    @Test
+    public void waitersAreGrantedLocksInTheOrderTheyStartedWaiting() throws Exception
+    {
+        Transaction holder = new FakeTransaction( "holder" );
+        Transaction writer = new FakeTransaction( "writer" );
+        locks.getWriteLock( "resource", holder );
+        Future<Void> writing = writeLock( "resource", writer );
+        assertWaiting( writing );
+        Future<Void> reading = readLock( "resource", new FakeTransaction( "reader" ) );
+        assertWaiting( reading );
+
+        locks.releaseWriteLock( "resource", holder );
+        await( writing );
+        assertWaiting( reading );
+        locks.releaseWriteLock( "resource", writer );
+        await( reading );
+    }
+
+    @Test
+    public void deadlockFailsOneOfTheTransactions() throws Exception
+    {
+        Future<Boolean> first = lockBothInTurn( new FakeTransaction( "first" ), "a", "b" );
+        Future<Boolean> second = lockBothInTurn( new FakeTransaction( "second" ), "b", "a" );
+        boolean firstDeadlocked = first.get( 10, TimeUnit.SECONDS );
+        boolean secondDeadlocked = second.get( 10, TimeUnit.SECONDS );
+        assertTrue( firstDeadlocked ^ secondDeadlocked );
+        assertEquals( 1, locks.getDetectedDeadlockCount() );
+        assertTrue( locks.getAllLocks().isEmpty() );
+    }
+
+    private Future<Boolean> lockBothInTurn( final Transaction tx, final String firstResource,
+            final String secondResource ) throws Exception
+    {
+        locks.getWriteLock( firstResource, tx );
+        return executor.submit( new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call() throws Exception
+            {
+                try
+                {
+                    Thread.sleep( 100 );
+                    locks.getWriteLock( secondResource, tx );
+                    locks.releaseWriteLock( secondResource, tx );
+                    return false;
+                }
+                catch ( DeadlockDetectedException e )
+                {
+                    return true;
+                }
+                finally
+                {
+                    locks.releaseWriteLock( firstResource, tx );
+                }
+            }
+        } );
+    }
+
+    private Future<Void> readLock( final Object resource, final Transaction tx )
+    {
+        return executor.submit( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                locks.getReadLock( resource, tx );
+                return null;
+            }
+        } );
+    }
+
+    private Future<Void> writeLock( final Object resource, final Transaction tx )
+    {
+        return executor.submit( new Callable<Void>()
+        {
+            @Override
+            public Void call() throws Exception
+            {
+                locks.getWriteLock( resource, tx );
+                return null;
+            }
+        } );
+    }
+
+    private void assertWaiting( Future<Void> lock ) throws Exception
+    {
+        try
+        {
+            lock.get( 200, TimeUnit.MILLISECONDS );
+            fail( "Should be waiting for the lock" );
+        }
+        catch ( TimeoutException e )
+        {   // Good
+        }
+        assertFalse( lock.isDone() );
+    }
+
+    private void await( Future<Void> lock ) throws Exception
+    {
+        lock.get( 10, TimeUnit.SECONDS );
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+import org.neo4j.com.RequestContext;
+import org.neo4j.kernel.ha.MasterImpl.MasterTransaction;
+import org.neo4j.kernel.ha.MasterImpl.TimingWheel;
+
+public class TestTimingWheel
+{
+    private static final long TICK = 5000;
+    private static final long TIMEOUT = 20000;
+    private static final long START = 1000000;
+
+    private final TimingWheel wheel = new TimingWheel( TICK, TIMEOUT, START );
+
+    @Test
+    public void transactionIsTakenOutOnceItsDeadlineIsReached() throws Exception
+    {
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START + 12000 );
+
+        assertNone( wheel.advance( START + 9999 ) );
+        assertEquals( asList( tx ), wheel.advance( START + 12000 ) );
+    }
+
+    @Test
+    public void transactionIsTakenOutOnlyOnce() throws Exception
+    {
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START + 12000 );
+
+        assertEquals( asList( tx ), wheel.advance( START + 12000 ) );
+        assertNone( wheel.advance( START + 100000 ) );
+    }
+
+    @Test
+    public void schedulingAgainBeforeBeingTakenOutKeepsTheFirstDeadline() throws Exception
+    {
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START + 7000 );
+        wheel.schedule( tx, START + 17000 );
+
+        assertEquals( asList( tx ), wheel.advance( START + 7000 ) );
+        assertNone( wheel.advance( START + 17000 ) );
+    }
+
+    @Test
+    public void transactionTakenOutCanBeScheduledAgain() throws Exception
+    {
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START + 7000 );
+        assertEquals( asList( tx ), wheel.advance( START + 7000 ) );
+
+        wheel.schedule( tx, START + 17000 );
+        assertNone( wheel.advance( START + 14999 ) );
+        assertEquals( asList( tx ), wheel.advance( START + 17000 ) );
+    }
+
+    @Test
+    public void deadlineAlreadyPassedIsTakenOutOnNextTick() throws Exception
+    {
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START - 30000 );
+
+        assertNone( wheel.advance( START + TICK - 1 ) );
+        assertEquals( asList( tx ), wheel.advance( START + TICK ) );
+    }
+
+    @Test
+    public void deadlineMoreThanATurnAheadIsTakenOutATurnEarly() throws Exception
+    {
+        // Six slots of five seconds, so the slot of START + 40000 is also that of START + 10000
+        MasterTransaction tx = tx( 1 );
+        wheel.schedule( tx, START + 40000 );
+
+        assertEquals( asList( tx ), wheel.advance( START + 10000 ) );
+    }
+
+    @Test
+    public void advancingMoreThanATurnTakesOutEverything() throws Exception
+    {
+        MasterTransaction first = tx( 1 ), second = tx( 2 ), third = tx( 3 );
+        wheel.schedule( first, START + 5000 );
+        wheel.schedule( second, START + 15000 );
+        wheel.schedule( third, START + 25000 );
+
+        assertEquals( new HashSet<MasterTransaction>( asList( first, second, third ) ),
+                new HashSet<MasterTransaction>( wheel.advance( START + 100000 ) ) );
+    }
+
+    private void assertNone( List<MasterTransaction> txs )
+    {
+        assertTrue( "Expected no transactions, but got " + txs, txs.isEmpty() );
+    }
+
+    private MasterTransaction tx( int eventIdentifier )
+    {
+        return new MasterTransaction( new RequestContext( 0, 1, eventIdentifier, new RequestContext.Tx[0], 0, 0 ) );
+    }
+}
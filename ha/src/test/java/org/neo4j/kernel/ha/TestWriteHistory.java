@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2002-2012 "Neo Technology,"
+ * Network Engine for Objects in Lund AB [http://neotechnology.com]
+ *
+ * This file is part of Neo4j.
+ *
+ * Neo4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.neo4j.kernel.ha;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestWriteHistory
+{
+    private final WriteHistory history = new WriteHistory( 4 );
+
+    @Test
+    public void writeAfterReadCountsAsChange() throws Exception
+    {
+        history.written( node( 1 ), 10 );
+        assertTrue( history.writtenAfter( node( 1 ), 5, 10 ) );
+    }
+
+    @Test
+    public void writeBeforeReadDoesNotCountAsChange() throws Exception
+    {
+        history.written( node( 1 ), 5 );
+        assertFalse( history.writtenAfter( node( 1 ), 7, 10 ) );
+    }
+
+    @Test
+    public void entityNeverWrittenCountsAsWrittenWhenHistoryStarted() throws Exception
+    {
+        history.written( node( 1 ), 8 );
+        assertTrue( history.writtenAfter( relationship( 1 ), 7, 10 ) );
+        assertFalse( history.writtenAfter( relationship( 1 ), 8, 10 ) );
+    }
+
+    @Test
+    public void forgottenEntityCountsAsWrittenWhenForgotten() throws Exception
+    {
+        // Half the capacity makes a generation, the first one forgotten as the second is complete
+        history.written( node( 1 ), 1 );
+        history.written( node( 2 ), 2 );
+        history.written( node( 3 ), 3 );
+        history.written( node( 4 ), 4 );
+
+        assertTrue( history.writtenAfter( node( 1 ), 1, 4 ) );
+        assertFalse( history.writtenAfter( node( 1 ), 2, 4 ) );
+        assertFalse( history.writtenAfter( node( 3 ), 3, 4 ) );
+    }
+
+    @Test
+    public void entityWrittenAgainIsNotForgotten() throws Exception
+    {
+        history.written( node( 1 ), 1 );
+        history.written( node( 2 ), 2 );
+        history.written( node( 3 ), 3 );
+        history.written( node( 1 ), 3 );
+
+        assertFalse( history.writtenAfter( node( 1 ), 3, 4 ) );
+        assertTrue( history.writtenAfter( node( 2 ), 1, 4 ) );
+    }
+
+    private LockableNode node( long id )
+    {
+        return new LockableNode( id );
+    }
+
+    private LockableRelationship relationship( long id )
+    {
+        return new LockableRelationship( id );
+    }
+}
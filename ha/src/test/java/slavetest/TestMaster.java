@@ -109,6 +109,12 @@ class TestMaster implements Master
         return actual.acquireRelationshipReadLock( context, relationships );
     }
 
+    public Response<LockResult> acquireReadLocksUnchangedSince( RequestContext context, long txId, long[] nodes,
+            long[] relationships )
+    {
+        return actual.acquireReadLocksUnchangedSince( context, txId, nodes, relationships );
+    }
+
     public Response<Long> commitSingleResourceTransaction( RequestContext context, String resource,
             TxExtractor txGetter )
     {